@@ -0,0 +1,17 @@
+#version 320 es
+
+precision mediump float;
+
+// World space direction towards the light.
+uniform vec3 u_LightDirection;
+uniform vec4 u_Color;
+
+in vec3 v_Normal;
+
+out vec4 FragColor;
+
+void main() {
+    // Two sided, the mesh is seen from behind where the scan is incomplete.
+    float diffuse = abs(dot(normalize(v_Normal), u_LightDirection));
+    FragColor = vec4(u_Color.rgb * (0.3 + 0.7 * diffuse), u_Color.a);
+}
@@ -0,0 +1,14 @@
+#version 320 es
+
+// Reconstructed surface from TsdfMesher, positions and normals in world space.
+uniform mat4 u_ViewProjection;
+
+layout(location = 0) in vec3 a_Position;
+layout(location = 1) in vec3 a_Normal;
+
+out vec3 v_Normal;
+
+void main() {
+    v_Normal = a_Normal;
+    gl_Position = u_ViewProjection * vec4(a_Position, 1.0);
+}
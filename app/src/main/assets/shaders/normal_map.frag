@@ -0,0 +1,28 @@
+#version 320 es
+
+// Normal map at depth resolution, rendered once per depth frame. Texel (x, y) holds the normal of
+// depth texel (x, y), computed like GetNormalFromDepth in screenquad.frag.
+
+precision highp float;
+precision highp int;
+
+layout(binding=1) uniform highp usampler2D DepthTexture;
+
+out vec4 Normal;
+
+// Maximum range of the TOF depth sensor in mm
+const float MAX_RANGE_MM = 11000.0;
+
+float GetUnpackedDepthXY(ivec2 depthPoint) {
+    float depth = float(texelFetch(DepthTexture, depthPoint, 0).r & 0x1FFFu);
+    return depth < MAX_RANGE_MM ? depth : 0.0;
+}
+
+void main() {
+    ivec2 depthPoint = ivec2(gl_FragCoord.xy);
+    int radius = 1;
+    vec3 t = vec3(depthPoint.x, depthPoint.y-radius, GetUnpackedDepthXY(ivec2(depthPoint.x, depthPoint.y-radius)));
+    vec3 l = vec3(depthPoint.x-radius, depthPoint.y, GetUnpackedDepthXY(ivec2(depthPoint.x-radius, depthPoint.y)));
+    vec3 c = vec3(depthPoint.x, depthPoint.y, GetUnpackedDepthXY(depthPoint));
+    Normal = vec4(normalize(cross(l-c, t-c)), 1.0);
+}
@@ -0,0 +1,7 @@
+#version 320 es
+
+// Full screen triangle without vertex attributes, draw with glDrawArrays(GL_TRIANGLES, 0, 3).
+void main() {
+   vec2 position = vec2(float((gl_VertexID << 1) & 2), float(gl_VertexID & 2));
+   gl_Position = vec4(position * 2.0 - 1.0, 0.0, 1.0);
+}
@@ -0,0 +1,26 @@
+#version 320 es
+
+// Depth buffer values at depth resolution, rendered once per depth frame into the depth attachment
+// of DepthOcclusionPass. Texel (x, y) holds the window depth of depth texel (x, y) under the
+// projection with near and far planes u_Near and u_Far, so virtual content drawn with that
+// projection is depth tested against the real scene.
+
+precision highp float;
+precision highp int;
+
+layout(binding=1) uniform highp usampler2D DepthTexture;
+
+uniform float u_Near;
+uniform float u_Far;
+
+void main() {
+    float depthMm = float(texelFetch(DepthTexture, ivec2(gl_FragCoord.xy), 0).r & 0x1FFFu);
+    if (depthMm == 0.0) {
+        // Holes occlude nothing.
+        gl_FragDepth = 1.0;
+        return;
+    }
+    float z = clamp(depthMm * 0.001, u_Near, u_Far);
+    float ndc = (u_Far + u_Near - 2.0 * u_Near * u_Far / z) / (u_Far - u_Near);
+    gl_FragDepth = ndc * 0.5 + 0.5;
+}
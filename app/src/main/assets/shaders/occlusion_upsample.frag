@@ -0,0 +1,20 @@
+#version 320 es
+
+// Copies the depth resolution occlusion depth into the screen depth buffer. Nearest texel, so
+// object edges stay sharp instead of blending foreground and background depths.
+
+precision highp float;
+precision highp int;
+
+layout(binding=3) uniform highp sampler2D OcclusionDepth;
+
+// Rows of the affine map from window coordinates to depth texel coordinates.
+uniform vec3 u_DepthFromScreenX;
+uniform vec3 u_DepthFromScreenY;
+
+void main() {
+    vec3 screenPoint = vec3(gl_FragCoord.xy, 1.0);
+    vec2 depthPoint = vec2(dot(u_DepthFromScreenX, screenPoint), dot(u_DepthFromScreenY, screenPoint));
+    ivec2 depthSize = textureSize(OcclusionDepth, 0);
+    gl_FragDepth = texelFetch(OcclusionDepth, clamp(ivec2(floor(depthPoint)), ivec2(0), depthSize - 1), 0).r;
+}
@@ -1,6 +1,19 @@
 #version 320 es
 #extension GL_OES_EGL_image_external_essl3 : require
 
+// Compiled once per visualization mode, BackgroundRenderer injects VIZ_MODE:
+// 0 chroma depth over color, 1 chroma depth, 2 shaded normals, 3 shaded normals over color,
+// 4 confidence, 5 raw normals, 6 color darkened where depth is missing.
+#ifndef VIZ_MODE
+#define VIZ_MODE 0
+#endif
+// VIZ_OFFSCREEN 1 renders at reduced resolution for viz_upsample.frag: the camera color is left
+// out and alpha holds the opacity of the visualization over it, so the upsample composites the
+// color at full resolution.
+#ifndef VIZ_OFFSCREEN
+#define VIZ_OFFSCREEN 0
+#endif
+
 precision highp float;
 precision mediump int;
 precision lowp sampler2D;
@@ -9,9 +22,14 @@ in vec2 v_TexCoord;
 
 layout(binding=0) uniform samplerExternalOES ColorTexture;
 layout(binding=1) uniform lowp usampler2D DepthTexture;
+// Normals at depth resolution from normal_map.frag, used when u_PrecomputedNormals is 1.
+layout(binding=2) uniform mediump sampler2D NormalTexture;
 
-uniform float u_vizMode;
 uniform float u_DepthThresh;
+uniform int u_PrecomputedNormals;
+// 1 when the depth was registered to the color image by DepthRegistration, so the color texture
+// coordinates address it directly.
+uniform int u_RegisteredDepth;
 
 uniform vec2 u_ScreenResolution;
 
@@ -185,10 +203,20 @@ vec4 normalViz(float shading, float linearDepth, vec4 colors, float showColor){
 
 
 void main() {
+#if VIZ_OFFSCREEN || VIZ_MODE == 1 || VIZ_MODE == 2 || VIZ_MODE == 4 || VIZ_MODE == 5
+    vec4 colors = vec4(0.0f);
+#else
     vec4 colors = texture(ColorTexture, v_TexCoord.xy);
+#endif
 
     vec2 screenPoint = vec2(gl_FragCoord.x, u_ScreenResolution.y - gl_FragCoord.y) - 0.5f;
-    ivec2 depthPoint = screenCoord2DepthCoord(screenPoint);
+    ivec2 depthPoint;
+    if (u_RegisteredDepth != 0) {
+        ivec2 depthSize = textureSize(DepthTexture, 0);
+        depthPoint = min(ivec2(v_TexCoord * vec2(depthSize)), depthSize - 1);
+    } else {
+        depthPoint = screenCoord2DepthCoord(screenPoint);
+    }
 
     uint raw_depth_uint16 = texelFetch(DepthTexture, depthPoint, 0).r;
     //uint raw_depth_uint16 = texture(DepthTexture, v_TexCoord.xy).r;
@@ -205,16 +233,37 @@ void main() {
 
     // ********************* Visualization modes *****************************************************
     //  *************************************************************************************************
-    vec3 normal = GetNormalFromDepth(depthPoint);
+#if VIZ_MODE == 2 || VIZ_MODE == 3 || VIZ_MODE == 5
+    vec3 normal = u_PrecomputedNormals != 0 ? texelFetch(NormalTexture, depthPoint, 0).xyz : GetNormalFromDepth(depthPoint);
     float shading = shadedNormal(normal);
-    float mode = -1.0f;
-    mode++; if(u_vizMode ==  mode) FragColor = depthViz(z_linear, colors, u_DepthThresh, 1.0f);
-    mode++; if(u_vizMode ==  mode) FragColor = depthViz(z_linear, colors, u_DepthThresh, 0.0f);
-    mode++; if(u_vizMode ==  mode) FragColor = normalViz(shading, z_linear, colors, 0.0f);
-    mode++; if(u_vizMode ==  mode) FragColor = normalViz(shading, z_linear, colors, 1.0f);
-    mode++; if(u_vizMode ==  mode) FragColor = vec4(depthPercentage, depthPercentage, depthPercentage, 1.0f);
-    mode++; if(u_vizMode ==  mode) FragColor = vec4(normal.r, normal.g, normal.b, 1.0f);
-    mode++; if(u_vizMode >= mode) FragColor = vec4(colors.rgb - (colors.rgb * 0.5f * when_eq(z_linear, 0.0f)), 1.0f);      // darken rgb image pixels when depth is zero, to visualize lack of depth data
+#endif
+
+#if VIZ_MODE == 0
+    FragColor = depthViz(z_linear, colors, u_DepthThresh, 1.0f);
+#elif VIZ_MODE == 1
+    FragColor = depthViz(z_linear, colors, u_DepthThresh, 0.0f);
+#elif VIZ_MODE == 2
+    FragColor = normalViz(shading, z_linear, colors, 0.0f);
+#elif VIZ_MODE == 3
+    FragColor = normalViz(shading, z_linear, colors, 1.0f);
+#elif VIZ_MODE == 4
+    FragColor = vec4(depthPercentage, depthPercentage, depthPercentage, 1.0f);
+#elif VIZ_MODE == 5
+    FragColor = vec4(normal.r, normal.g, normal.b, 1.0f);
+#else
+    FragColor = vec4(colors.rgb - (colors.rgb * 0.5f * when_eq(z_linear, 0.0f)), 1.0f);      // darken rgb image pixels when depth is zero, to visualize lack of depth data
+#endif
+
+#if VIZ_OFFSCREEN
+    // Holes show the color in the modes that overlay it, half darkened in the last one.
+#if VIZ_MODE == 0 || VIZ_MODE == 3
+    FragColor.a = when_neq(z_linear, 0.0f);
+#elif VIZ_MODE == 1 || VIZ_MODE == 2 || VIZ_MODE == 4 || VIZ_MODE == 5
+    FragColor.a = 1.0f;
+#else
+    FragColor = vec4(0.0f, 0.0f, 0.0f, 0.5f * when_eq(z_linear, 0.0f));
+#endif
+#endif
 
 }
 
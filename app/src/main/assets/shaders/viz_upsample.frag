@@ -0,0 +1,51 @@
+#version 320 es
+#extension GL_OES_EGL_image_external_essl3 : require
+
+// Scales the reduced resolution visualization from screenquad.frag (VIZ_OFFSCREEN) up to the
+// screen with a joint bilateral filter: the four nearest low resolution texels are weighted
+// bilinearly and by how close the camera color at their centers is to the color at this pixel, so
+// edges follow the full resolution image instead of the blocky depth texels. The camera color is
+// then composited behind it, visualization alpha being its opacity.
+
+precision highp float;
+
+in vec2 v_TexCoord;
+
+layout(binding=0) uniform samplerExternalOES ColorTexture;
+layout(binding=4) uniform mediump sampler2D VizTexture;
+
+// Low resolution texels per window pixel, per axis.
+uniform vec2 u_LowResScale;
+// Rows of the affine map from window coordinates to camera texture coordinates.
+uniform vec3 u_TexFromScreenX;
+uniform vec3 u_TexFromScreenY;
+// 1 / (2 sigma^2) of the color weight, colors in 0..1.
+uniform float u_ColorWeight;
+
+out vec4 FragColor;
+
+void main() {
+    vec3 guide = texture(ColorTexture, v_TexCoord).rgb;
+    vec2 lowResPoint = gl_FragCoord.xy * u_LowResScale - 0.5;
+    ivec2 base = ivec2(floor(lowResPoint));
+    vec2 f = lowResPoint - vec2(base);
+    ivec2 lowResMax = textureSize(VizTexture, 0) - 1;
+
+    vec4 sum = vec4(0.0);
+    float weightSum = 0.0;
+    for (int j = 0; j < 2; j++) {
+        for (int i = 0; i < 2; i++) {
+            ivec2 texel = clamp(base + ivec2(i, j), ivec2(0), lowResMax);
+            vec3 center = vec3((vec2(texel) + 0.5) / u_LowResScale, 1.0);
+            vec2 texCoord = vec2(dot(u_TexFromScreenX, center), dot(u_TexFromScreenY, center));
+            vec3 difference = texture(ColorTexture, texCoord).rgb - guide;
+            float spatial = (i == 0 ? 1.0 - f.x : f.x) * (j == 0 ? 1.0 - f.y : f.y);
+            // The small floor falls back to bilinear where no neighbour matches the color.
+            float weight = spatial * (exp(-dot(difference, difference) * u_ColorWeight) + 1e-4);
+            sum += weight * texelFetch(VizTexture, texel, 0);
+            weightSum += weight;
+        }
+    }
+    vec4 viz = sum / weightSum;
+    FragColor = vec4(viz.rgb + guide * (1.0 - viz.a), 1.0);
+}
@@ -0,0 +1,44 @@
+package com.matt.arcore.java.common.depth;
+
+/**
+ * Pinhole intrinsics of an image of a given size: focal lengths and principal point in pixels, with
+ * the origin at the top left corner of the top left pixel.
+ */
+public final class CameraIntrinsics {
+
+  public final float fx;
+  public final float fy;
+  public final float cx;
+  public final float cy;
+  public final int width;
+  public final int height;
+
+  public CameraIntrinsics(float fx, float fy, float cx, float cy, int width, int height) {
+    if (fx <= 0 || fy <= 0 || width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Invalid intrinsics " + fx + ", " + fy + " for "
+          + width + "x" + height);
+    }
+    this.fx = fx;
+    this.fy = fy;
+    this.cx = cx;
+    this.cy = cy;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Intrinsics of the same camera resampled to {@code newWidth} x {@code newHeight}, for example
+   * ARCore's CPU image intrinsics mapped onto the depth image.
+   */
+  public CameraIntrinsics scaled(int newWidth, int newHeight) {
+    float sx = (float) newWidth / width;
+    float sy = (float) newHeight / height;
+    return new CameraIntrinsics(fx * sx, fy * sy, cx * sx, cy * sy, newWidth, newHeight);
+  }
+
+  @Override
+  public String toString() {
+    return "CameraIntrinsics{f=" + fx + "," + fy + " c=" + cx + "," + cy + " " + width + "x"
+        + height + "}";
+  }
+}
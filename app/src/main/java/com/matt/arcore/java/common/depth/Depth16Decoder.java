@@ -0,0 +1,147 @@
+package com.matt.arcore.java.common.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes Android DEPTH16 samples on the CPU with the same semantics as GetUnpackedDepth,
+ * GetUnpackedConfidence and the MAX_RANGE_MM clamp in screenquad.frag.
+ *
+ * <p>Each 16 bit sample holds the range in millimetres in its low 13 bits and a 3 bit confidence in
+ * its high bits. Confidence 0 means 100% confidence, values 1 to 7 map to 0% to 100%. The bulk
+ * methods write into caller provided arrays and do not allocate per pixel.
+ */
+public final class Depth16Decoder {
+
+  public static final int DEPTH_MASK = 0x1FFF;
+  public static final int CONFIDENCE_SHIFT = 13;
+  public static final int CONFIDENCE_MASK = 0x7;
+
+  // Maximum range of the TOF depth sensor in mm, depths at or beyond it decode to 0.
+  public static final int MAX_RANGE_MM = 11000;
+
+  private Depth16Decoder() {}
+
+  /** Range in millimetres, 0 for holes and samples at or beyond {@link #MAX_RANGE_MM}. */
+  public static int depthMm(short raw) {
+    int depth = raw & DEPTH_MASK;
+    return depth < MAX_RANGE_MM ? depth : 0;
+  }
+
+  /** Raw 3 bit confidence, 0 to 7. */
+  public static int confidence(short raw) {
+    return (raw >> CONFIDENCE_SHIFT) & CONFIDENCE_MASK;
+  }
+
+  /** Confidence as a fraction between 0 and 1, as shown by the shader's depthPercentage mode. */
+  public static float confidenceFraction(int confidence) {
+    return confidence == 0 ? 1.0f : (confidence - 1) / 7.0f;
+  }
+
+  /** Nearest raw confidence code for a fraction between 0 and 1, the inverse of the above. */
+  public static int confidenceCode(float fraction) {
+    // Halfway between code 7, 6/7, and code 0, 100%.
+    return fraction >= 13.0f / 14
+        ? 0
+        : Math.min(CONFIDENCE_MASK, 1 + (int) (Math.max(fraction, 0) * 7 + 0.5f));
+  }
+
+  /**
+   * Decodes a frame with padded rows.
+   *
+   * @param src DEPTH16 samples; read from index 0, its position is restored afterwards.
+   * @param rowStride samples between the start of consecutive rows in {@code src}.
+   * @param depthMm required output, width * height ranges in millimetres.
+   * @param confidence optional output, width * height raw confidences.
+   * @param metres optional output, width * height ranges in metres.
+   */
+  public static void decode(
+      ShortBuffer src,
+      int width,
+      int height,
+      int rowStride,
+      short[] depthMm,
+      byte[] confidence,
+      float[] metres) {
+    int pixels = width * height;
+    if (rowStride < width || src.limit() < (height - 1) * rowStride + width) {
+      throw new IllegalArgumentException("Source too small for " + width + "x" + height
+          + " with row stride " + rowStride);
+    }
+    if (depthMm.length < pixels
+        || (confidence != null && confidence.length < pixels)
+        || (metres != null && metres.length < pixels)) {
+      throw new IllegalArgumentException("Output arrays smaller than " + pixels + " pixels");
+    }
+
+    int position = src.position();
+    if (rowStride == width) {
+      src.position(0);
+      src.get(depthMm, 0, pixels);
+    } else {
+      for (int row = 0; row < height; row++) {
+        src.position(row * rowStride);
+        src.get(depthMm, row * width, width);
+      }
+    }
+    src.position(position);
+
+    // The raw samples now sit in depthMm, decode them in place in a single pass per output set.
+    if (confidence != null && metres != null) {
+      for (int i = 0; i < pixels; i++) {
+        int raw = depthMm[i];
+        int depth = raw & DEPTH_MASK;
+        depth = depth < MAX_RANGE_MM ? depth : 0;
+        confidence[i] = (byte) ((raw >> CONFIDENCE_SHIFT) & CONFIDENCE_MASK);
+        depthMm[i] = (short) depth;
+        metres[i] = depth * 0.001f;
+      }
+    } else if (confidence != null) {
+      for (int i = 0; i < pixels; i++) {
+        int raw = depthMm[i];
+        int depth = raw & DEPTH_MASK;
+        confidence[i] = (byte) ((raw >> CONFIDENCE_SHIFT) & CONFIDENCE_MASK);
+        depthMm[i] = (short) (depth < MAX_RANGE_MM ? depth : 0);
+      }
+    } else if (metres != null) {
+      for (int i = 0; i < pixels; i++) {
+        int depth = depthMm[i] & DEPTH_MASK;
+        depth = depth < MAX_RANGE_MM ? depth : 0;
+        depthMm[i] = (short) depth;
+        metres[i] = depth * 0.001f;
+      }
+    } else {
+      for (int i = 0; i < pixels; i++) {
+        int depth = depthMm[i] & DEPTH_MASK;
+        depthMm[i] = (short) (depth < MAX_RANGE_MM ? depth : 0);
+      }
+    }
+  }
+
+  /**
+   * Decodes a frame with padded rows from a byte buffer in the platform byte order, such as an
+   * {@code Image.Plane} buffer. Creates one short view of {@code src} per call.
+   *
+   * @param rowStrideBytes bytes between the start of consecutive rows, must be even.
+   */
+  public static void decode(
+      ByteBuffer src,
+      int width,
+      int height,
+      int rowStrideBytes,
+      short[] depthMm,
+      byte[] confidence,
+      float[] metres) {
+    if ((rowStrideBytes & 1) != 0) {
+      throw new IllegalArgumentException("Odd DEPTH16 row stride " + rowStrideBytes);
+    }
+    ByteBuffer whole = src.duplicate().order(src.order());
+    whole.clear();
+    decode(whole.asShortBuffer(), width, height, rowStrideBytes / 2, depthMm, confidence, metres);
+  }
+
+  /** Decodes a whole {@link DepthFrame} without allocating. */
+  public static void decode(DepthFrame frame, short[] depthMm, byte[] confidence, float[] metres) {
+    decode(frame.samples, frame.width, frame.height, frame.width, depthMm, confidence, metres);
+  }
+}
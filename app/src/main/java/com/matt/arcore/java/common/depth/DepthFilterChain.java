@@ -0,0 +1,50 @@
+package com.matt.arcore.java.common.depth;
+
+import java.io.IOException;
+
+/**
+ * Runs several {@link DepthFilterStage}s in order, on both the CPU and the GPU side.
+ *
+ * <p>The order holds within each side only. The CPU hooks of all stages run on the producing
+ * thread before the frame is published and the GPU hooks after it was uploaded, so every CPU stage
+ * sees the frame before any GPU stage does, wherever they appear in the chain. Mixed chains should
+ * list their CPU stages first, so the given order is the order the stages execute in.
+ */
+public final class DepthFilterChain implements DepthFilterStage {
+
+  private final DepthFilterStage[] stages;
+
+  public DepthFilterChain(DepthFilterStage... stages) {
+    this.stages = stages.clone();
+  }
+
+  @Override
+  public void filterFrame(DepthFrame frame) {
+    for (DepthFilterStage stage : stages) {
+      stage.filterFrame(frame);
+    }
+  }
+
+  @Override
+  public void createOnGlThread() throws IOException {
+    for (DepthFilterStage stage : stages) {
+      stage.createOnGlThread();
+    }
+  }
+
+  @Override
+  public int filterTexture(int depthTexture, int width, int height, long sequence) {
+    int texture = depthTexture;
+    for (DepthFilterStage stage : stages) {
+      texture = stage.filterTexture(texture, width, height, sequence);
+    }
+    return texture;
+  }
+
+  @Override
+  public void reset() {
+    for (DepthFilterStage stage : stages) {
+      stage.reset();
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package com.matt.arcore.java.common.depth;
+
+import java.io.IOException;
+
+/**
+ * A depth processing step between the depth source and the renderer.
+ *
+ * <p>A stage runs either on the CPU, in {@link #filterFrame} on the thread that produces the
+ * frames before they are published, or on the GPU, in {@link #filterTexture} on the GL thread after
+ * the frame was uploaded. The hooks of the other side are no-ops, so the same instance can be
+ * handed to both the source and the renderer. Filtered frames keep the DEPTH16 packing, depth in
+ * the low 13 bits and confidence in the high 3.
+ */
+public interface DepthFilterStage {
+
+  /** Filters a frame in place. Called on the producing thread, not allocating in steady state. */
+  void filterFrame(DepthFrame frame);
+
+  /** Creates GL resources. Called on the GL thread whenever the surface is created. */
+  void createOnGlThread() throws IOException;
+
+  /**
+   * Filters the uploaded depth texture. Called on the GL thread every draw; a stage filters each
+   * frame sequence once and returns its previous result for repeated sequences.
+   *
+   * @param depthTexture R16UI texture holding frame {@code sequence}.
+   * @return the texture to sample instead, an unsigned integer texture with DEPTH16 packing.
+   */
+  int filterTexture(int depthTexture, int width, int height, long sequence);
+
+  /** Forgets all history, for example after the camera was paused. Safe from any thread. */
+  void reset();
+}
@@ -0,0 +1,112 @@
+package com.matt.arcore.java.common.depth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * A preallocated DEPTH16 frame slot. The backing buffer is direct and sized once for
+ * width * height * 2 bytes, so frames can be copied in and uploaded to GL without allocating.
+ */
+public final class DepthFrame {
+
+  public static final int BYTES_PER_PIXEL = 2;
+
+  public final int width;
+  public final int height;
+
+  // Tightly packed DEPTH16 samples, native byte order, position 0 and limit at the frame size.
+  public final ByteBuffer data;
+  // 16 bit view of data, one element per pixel.
+  public final ShortBuffer samples;
+
+  long sequence;
+  long timestamp;
+  long arrivalNanos;
+  long publishNanos;
+
+  public DepthFrame(int width, int height) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Invalid depth frame size " + width + "x" + height);
+    }
+    this.width = width;
+    this.height = height;
+    this.data = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL).order(ByteOrder.nativeOrder());
+    this.samples = data.asShortBuffer();
+  }
+
+  /** Monotonically increasing frame number assigned when the frame was published, 0 if never. */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /** Sensor timestamp of the frame in nanoseconds, as reported by {@code Image.getTimestamp()}. */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /** {@link System#nanoTime()} when the producer received the frame, 0 if not stamped. */
+  public long getArrivalNanos() {
+    return arrivalNanos;
+  }
+
+  /** Producer: stamps the frame with the {@link System#nanoTime()} it was received at. */
+  public void setArrivalNanos(long arrivalNanos) {
+    this.arrivalNanos = arrivalNanos;
+  }
+
+  /** {@link System#nanoTime()} when the frame was published, 0 if never. */
+  public long getPublishNanos() {
+    return publishNanos;
+  }
+
+  public int getRowStride() {
+    return width * BYTES_PER_PIXEL;
+  }
+
+  /**
+   * Copies one DEPTH16 plane into this slot with bulk puts. Rows are copied one at a time only when
+   * the source row stride has padding. The source position and limit are modified.
+   *
+   * @param src plane buffer positioned anywhere; read from index 0.
+   * @param srcRowStride bytes between the start of consecutive rows in {@code src}.
+   */
+  public void copyFrom(ByteBuffer src, int srcRowStride) {
+    int rowBytes = getRowStride();
+    if (srcRowStride < rowBytes) {
+      throw new IllegalArgumentException("Row stride " + srcRowStride + " smaller than row " + rowBytes);
+    }
+    data.clear();
+    if (srcRowStride == rowBytes) {
+      src.limit(rowBytes * height).position(0);
+      data.put(src);
+    } else {
+      for (int row = 0; row < height; row++) {
+        int start = row * srcRowStride;
+        src.limit(start + rowBytes).position(start);
+        data.put(src);
+      }
+    }
+    data.flip();
+  }
+
+  /**
+   * Copies the samples, sequence number and timestamps of another frame of the same size. The
+   * buffers of {@code other} are left untouched.
+   */
+  public void copyFrom(DepthFrame other) {
+    if (other.width != width || other.height != height) {
+      throw new IllegalArgumentException("Cannot copy a " + other.width + "x" + other.height
+          + " frame into " + width + "x" + height);
+    }
+    ByteBuffer src = other.data.duplicate();
+    src.clear();
+    data.clear();
+    data.put(src);
+    data.flip();
+    sequence = other.sequence;
+    timestamp = other.timestamp;
+    arrivalNanos = other.arrivalNanos;
+    publishNanos = other.publishNanos;
+  }
+}
@@ -0,0 +1,124 @@
+package com.matt.arcore.java.common.depth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer handing {@link DepthFrame}s from a single producer thread to a single
+ * consumer thread.
+ *
+ * <p>Three preallocated slots rotate between the roles back (being written by the producer),
+ * middle (last published) and front (being read by the consumer). The middle index and a "fresh"
+ * flag live in one {@link AtomicInteger}; {@link #publish(long)} and {@link #acquireLatest()} each
+ * swap their private slot with the middle one in a single atomic exchange. The exchange gives the
+ * happens-before edge between the producer's writes to a slot and the consumer's reads of it, so
+ * data, sequence and timestamp of an acquired frame always belong together. No method blocks or
+ * allocates.
+ */
+public final class DepthFrameExchange {
+
+  private static final int INDEX_MASK = 0x3;
+  private static final int FRESH = 0x4;
+
+  private final DepthFrame[] slots = new DepthFrame[3];
+
+  // Middle slot index, plus FRESH while it holds a frame the consumer has not seen.
+  private final AtomicInteger middle = new AtomicInteger(1);
+
+  // Owned by the producer thread.
+  private int back = 0;
+  private long lastSequence;
+
+  // Owned by the consumer thread.
+  private int front = 2;
+
+  // Statistics, each written by one thread only.
+  private volatile long publishedCount;
+  private volatile long droppedCount;
+  private volatile long consumedCount;
+  private volatile long consumedTwiceCount;
+
+  public DepthFrameExchange(int width, int height) {
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new DepthFrame(width, height);
+    }
+  }
+
+  public int getWidth() {
+    return slots[0].width;
+  }
+
+  public int getHeight() {
+    return slots[0].height;
+  }
+
+  /** Producer: returns the slot to fill before the next {@link #publish(long)}. */
+  public DepthFrame getWriteFrame() {
+    return slots[back];
+  }
+
+  /**
+   * Producer: publishes the slot returned by {@link #getWriteFrame()} as the newest frame, stamped
+   * with the publish time. If the previously published frame was never acquired it is counted as
+   * dropped and its slot reused.
+   *
+   * @param timestamp sensor timestamp of the frame in nanoseconds.
+   */
+  public void publish(long timestamp) {
+    DepthFrame frame = slots[back];
+    frame.timestamp = timestamp;
+    frame.publishNanos = System.nanoTime();
+    frame.sequence = ++lastSequence;
+    int previous = middle.getAndSet(back | FRESH);
+    back = previous & INDEX_MASK;
+    publishedCount = lastSequence;
+    if ((previous & FRESH) != 0) {
+      droppedCount++;
+    }
+  }
+
+  /**
+   * Consumer: returns the newest published frame, or null if nothing was published yet. When no
+   * new frame arrived since the last call the same frame is returned again and counted as consumed
+   * twice; compare {@link DepthFrame#getSequence()} to detect this. The frame stays valid until the
+   * next call.
+   */
+  public DepthFrame acquireLatest() {
+    if ((middle.get() & FRESH) != 0) {
+      front = middle.getAndSet(front) & INDEX_MASK;
+      consumedCount++;
+      return slots[front];
+    }
+    DepthFrame current = slots[front];
+    if (current.sequence == 0) {
+      return null;
+    }
+    consumedTwiceCount++;
+    return current;
+  }
+
+  /** Sequence number of the newest published frame, 0 if none. */
+  public long getPublishedCount() {
+    return publishedCount;
+  }
+
+  /** Frames overwritten by the producer before the consumer acquired them. */
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /** Acquisitions that returned a new frame. */
+  public long getConsumedCount() {
+    return consumedCount;
+  }
+
+  /** Acquisitions that returned the same frame as the previous call. */
+  public long getConsumedTwiceCount() {
+    return consumedTwiceCount;
+  }
+
+  @Override
+  public String toString() {
+    return "published: " + publishedCount + " consumed: " + consumedCount
+        + " dropped: " + droppedCount + " consumed twice: " + consumedTwiceCount;
+  }
+}
@@ -0,0 +1,29 @@
+package com.matt.arcore.java.common.depth;
+
+/**
+ * Producer of DEPTH16 frames, such as the live TOF camera or a recorded session.
+ *
+ * <p>Frames are published into the source's {@link DepthFrameExchange}; consumers call {@link
+ * DepthFrameExchange#acquireLatest()} on their own thread. A consumer that must see every frame,
+ * rather than the latest one, processes it from the {@link Listener}.
+ */
+public interface DepthFrameSource {
+
+  /** Called on the producing thread right after a frame has been published. */
+  interface Listener {
+    void onDepthFrameAvailable(DepthFrameSource source);
+  }
+
+  /** Exchange the frames are published into, or null until the frame size is known. */
+  DepthFrameExchange getDepthFrames();
+
+  int getWidth();
+
+  int getHeight();
+
+  /** Number of frames published so far, safe to call from any thread. */
+  long getFrameCount();
+
+  /** Sets or clears the listener. Safe to call from any thread. */
+  void setListener(Listener listener);
+}
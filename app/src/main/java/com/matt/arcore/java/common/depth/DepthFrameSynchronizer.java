@@ -0,0 +1,173 @@
+package com.matt.arcore.java.common.depth;
+
+/**
+ * Short history of depth frames indexed by sensor timestamp, for pairing each color frame with the
+ * depth frame captured closest to it instead of whichever arrived last.
+ *
+ * <p>Memory is bounded by {@code capacity} preallocated frames; adding to a full history overwrites
+ * the oldest. Timestamps are kept in a ring in increasing order, so a lookup is a binary search.
+ * The producer adds frames and the consumer copies its match out under a lock held for one frame
+ * copy, so neither side ever holds a frame the other may overwrite.
+ *
+ * <p>Only the frame is chosen. The matched depth is not reprojected for the camera motion between
+ * its timestamp and the color frame's; {@link DepthRegistration} applies the static depth-to-color
+ * extrinsics only. {@link PoseHistory} gives the pose at either timestamp for such a warp.
+ */
+public final class DepthFrameSynchronizer {
+
+  private final DepthFrame[] frames;
+  private final long[] timestamps;
+  private final int capacity;
+  // Ring of valid entries, oldest at head. Guarded by this.
+  private int head;
+  private int count;
+
+  private long maxSkewNanos = Long.MAX_VALUE;
+  private long addedCount;
+  private long outOfOrderCount;
+  private long lastSkewNanos;
+
+  public DepthFrameSynchronizer(int width, int height, int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Invalid history capacity " + capacity);
+    }
+    this.capacity = capacity;
+    frames = new DepthFrame[capacity];
+    timestamps = new long[capacity];
+    for (int i = 0; i < capacity; i++) {
+      frames[i] = new DepthFrame(width, height);
+    }
+  }
+
+  public int getWidth() {
+    return frames[0].width;
+  }
+
+  public int getHeight() {
+    return frames[0].height;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Matches further apart than this are rejected by {@link #findClosest}, so callers can fall back
+   * to the latest frame. Unlimited by default.
+   */
+  public synchronized void setMaxSkewNanos(long maxSkewNanos) {
+    if (maxSkewNanos < 0) {
+      throw new IllegalArgumentException("Negative max skew " + maxSkewNanos);
+    }
+    this.maxSkewNanos = maxSkewNanos;
+  }
+
+  /**
+   * Producer: copies a published frame into the history. Frames not newer than the newest one
+   * already held are ignored, the history stays sorted.
+   *
+   * @return false if the frame was ignored.
+   */
+  public synchronized boolean add(DepthFrame frame) {
+    long timestamp = frame.getTimestamp();
+    if (count > 0 && timestamp <= timestamps[physical(count - 1)]) {
+      outOfOrderCount++;
+      return false;
+    }
+    int slot;
+    if (count < capacity) {
+      slot = physical(count);
+      count++;
+    } else {
+      slot = head;
+      head = (head + 1) % capacity;
+    }
+    frames[slot].copyFrom(frame);
+    timestamps[slot] = timestamp;
+    addedCount++;
+    return true;
+  }
+
+  /**
+   * Consumer: copies the frame whose timestamp is closest to {@code timestamp} into {@code out}.
+   * Ties go to the older frame.
+   *
+   * @return false, leaving {@code out} untouched, if the history is empty or the closest frame is
+   *     further than the max skew.
+   */
+  public synchronized boolean findClosest(long timestamp, DepthFrame out) {
+    int index = closestIndex(timestamp);
+    if (index < 0) {
+      return false;
+    }
+    int slot = physical(index);
+    long skew = Math.abs(timestamps[slot] - timestamp);
+    if (skew > maxSkewNanos) {
+      return false;
+    }
+    lastSkewNanos = skew;
+    if (out.getSequence() != frames[slot].getSequence()) {
+      out.copyFrom(frames[slot]);
+    }
+    return true;
+  }
+
+  /** Timestamp of the frame {@link #findClosest} would pick, or 0 if the history is empty. */
+  public synchronized long findClosestTimestamp(long timestamp) {
+    int index = closestIndex(timestamp);
+    return index < 0 ? 0 : timestamps[physical(index)];
+  }
+
+  public synchronized void clear() {
+    head = 0;
+    count = 0;
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  public synchronized long getAddedCount() {
+    return addedCount;
+  }
+
+  public synchronized long getOutOfOrderCount() {
+    return outOfOrderCount;
+  }
+
+  /** Absolute timestamp difference of the last successful {@link #findClosest}. */
+  public synchronized long getLastSkewNanos() {
+    return lastSkewNanos;
+  }
+
+  // Logical index of the closest entry, -1 when empty. Caller holds the lock.
+  private int closestIndex(long timestamp) {
+    if (count == 0) {
+      return -1;
+    }
+    // First logical index with a timestamp >= the target.
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[physical(mid)] < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    if (low == count) {
+      return count - 1;
+    }
+    if (low == 0) {
+      return 0;
+    }
+    long after = timestamps[physical(low)] - timestamp;
+    long before = timestamp - timestamps[physical(low - 1)];
+    return before <= after ? low - 1 : low;
+  }
+
+  private int physical(int logical) {
+    return (head + logical) % capacity;
+  }
+}
@@ -0,0 +1,275 @@
+package com.matt.arcore.java.common.depth;
+
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Back-projects decoded depth frames into point clouds.
+ *
+ * <p>Points are written as four floats, X, Y, Z and confidence, into a caller provided
+ * FloatBuffer. Camera space follows the OpenGL and ARCore convention: X right, Y up, looking down
+ * -Z. The optional pose is a column-major 4x4 camera-to-world matrix, such as the inverse of the
+ * view matrix or {@code Camera.getPose().toMatrix()}; without it points stay in camera space.
+ *
+ * <p>Pixels are sampled every {@link #setStride stride} pixels in both directions. Holes, samples
+ * outside the range limits and samples below the confidence threshold are skipped. With an executor
+ * sampled rows are projected in parallel into per-row regions of a scratch array and compacted into
+ * the output in row order, so the output is identical to the sequential result. Scratch arrays are
+ * sized on the first frame and reused afterwards.
+ */
+public final class DepthPointCloudBuilder implements RowBandExecutor.RowBandTask {
+
+  public static final int FLOATS_PER_POINT = 4;
+
+  private static final float[] CONFIDENCE_FRACTIONS = new float[Depth16Decoder.CONFIDENCE_MASK + 1];
+
+  static {
+    for (int i = 0; i < CONFIDENCE_FRACTIONS.length; i++) {
+      CONFIDENCE_FRACTIONS[i] = Depth16Decoder.confidenceFraction(i);
+    }
+  }
+
+  private final RowBandExecutor executor;
+
+  private int stride = 1;
+  private float minConfidence;
+  private float minRangeMetres;
+  private float maxRangeMetres = Depth16Decoder.MAX_RANGE_MM * 0.001f;
+
+  // Per-frame state shared with the row band tasks.
+  private short[] depthMm;
+  private byte[] confidence;
+  private int width;
+  private int sampledColumns;
+  private float[] columnFactors = new float[0];
+  private float[] rowFactors = new float[0];
+  private final float[] transform = new float[16];
+  private int minDepthMm;
+  private int maxDepthMm;
+  private int minConfidenceCode;
+  private float[] scratch = new float[0];
+  private int[] rowCounts = new int[0];
+
+  // Scratch for build(DepthFrame, ...).
+  private short[] frameDepth = new short[0];
+  private byte[] frameConfidence = new byte[0];
+
+  /** @param executor runs row bands in parallel, or null to build on the calling thread. */
+  public DepthPointCloudBuilder(RowBandExecutor executor) {
+    this.executor = executor;
+  }
+
+  /** Allocates a direct output buffer large enough for every pixel of a width x height frame. */
+  public static FloatBuffer allocateOutput(int width, int height) {
+    return ByteBuffer.allocateDirect(width * height * FLOATS_PER_POINT * 4)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+  }
+
+  /** Samples every {@code stride}-th pixel of every {@code stride}-th row. */
+  public void setStride(int stride) {
+    if (stride < 1) {
+      throw new IllegalArgumentException("stride must be at least 1, got " + stride);
+    }
+    this.stride = stride;
+  }
+
+  public int getStride() {
+    return stride;
+  }
+
+  /** Skips samples whose confidence fraction, 0 to 1, is below {@code minConfidence}. */
+  public void setMinConfidence(float minConfidence) {
+    this.minConfidence = minConfidence;
+  }
+
+  /** Keeps samples with {@code minMetres <= range <= maxMetres}. */
+  public void setRange(float minMetres, float maxMetres) {
+    if (minMetres > maxMetres) {
+      throw new IllegalArgumentException("Empty range " + minMetres + " to " + maxMetres);
+    }
+    this.minRangeMetres = minMetres;
+    this.maxRangeMetres = maxMetres;
+  }
+
+  /**
+   * Decodes a DEPTH16 frame and builds its point cloud.
+   *
+   * @see #build(short[], byte[], int, int, CameraIntrinsics, float[], FloatBuffer)
+   */
+  public synchronized int build(
+      DepthFrame frame, CameraIntrinsics intrinsics, float[] pose, FloatBuffer out) {
+    int pixels = frame.width * frame.height;
+    if (frameDepth.length < pixels) {
+      frameDepth = new short[pixels];
+      frameConfidence = new byte[pixels];
+    }
+    Depth16Decoder.decode(frame, frameDepth, frameConfidence, null);
+    return build(frameDepth, frameConfidence, frame.width, frame.height, intrinsics, pose, out);
+  }
+
+  /**
+   * Builds the point cloud of a decoded frame.
+   *
+   * @param depthMm width * height ranges in millimetres as produced by {@link Depth16Decoder}.
+   * @param confidence width * height raw confidences, or null to treat every sample as fully
+   *     confident.
+   * @param intrinsics intrinsics of the depth image, scaled to width x height if needed.
+   * @param pose column-major camera-to-world matrix, or null for camera space.
+   * @param out receives the points from position 0 and is flipped, so its limit marks the end.
+   * @return the number of points written.
+   */
+  public synchronized int build(
+      short[] depthMm,
+      byte[] confidence,
+      int width,
+      int height,
+      CameraIntrinsics intrinsics,
+      float[] pose,
+      FloatBuffer out) {
+    int pixels = width * height;
+    if (depthMm.length < pixels || (confidence != null && confidence.length < pixels)) {
+      throw new IllegalArgumentException("Input arrays smaller than " + pixels + " pixels");
+    }
+    if (pose != null && pose.length < 16) {
+      throw new IllegalArgumentException("pose must be a 4x4 matrix");
+    }
+    if (intrinsics.width != width || intrinsics.height != height) {
+      intrinsics = intrinsics.scaled(width, height);
+    }
+    int columns = (width + stride - 1) / stride;
+    int rows = (height + stride - 1) / stride;
+    if (out.capacity() < columns * rows * FLOATS_PER_POINT) {
+      throw new IllegalArgumentException("Output holds " + out.capacity() / FLOATS_PER_POINT
+          + " points, need " + columns * rows);
+    }
+    prepare(depthMm, confidence, width, columns, rows, intrinsics, pose);
+
+    if (executor != null) {
+      executor.execute(rows, this);
+    } else {
+      run(0, rows);
+    }
+
+    out.clear();
+    int rowFloats = columns * FLOATS_PER_POINT;
+    int points = 0;
+    for (int row = 0; row < rows; row++) {
+      int count = rowCounts[row];
+      out.put(scratch, row * rowFloats, count * FLOATS_PER_POINT);
+      points += count;
+    }
+    out.flip();
+
+    this.depthMm = null;
+    this.confidence = null;
+    return points;
+  }
+
+  private void prepare(
+      short[] depthMm,
+      byte[] confidence,
+      int width,
+      int columns,
+      int rows,
+      CameraIntrinsics intrinsics,
+      float[] pose) {
+    this.depthMm = depthMm;
+    this.confidence = confidence;
+    this.width = width;
+    this.sampledColumns = columns;
+
+    if (columnFactors.length < columns) {
+      columnFactors = new float[columns];
+    }
+    if (rowFactors.length < rows) {
+      rowFactors = new float[rows];
+      rowCounts = new int[rows];
+    }
+    if (scratch.length < columns * rows * FLOATS_PER_POINT) {
+      scratch = new float[columns * rows * FLOATS_PER_POINT];
+    }
+    // Rays through pixel centres, image rows grow downwards while camera Y points up.
+    for (int c = 0; c < columns; c++) {
+      columnFactors[c] = (c * stride + 0.5f - intrinsics.cx) / intrinsics.fx;
+    }
+    for (int r = 0; r < rows; r++) {
+      rowFactors[r] = -(r * stride + 0.5f - intrinsics.cy) / intrinsics.fy;
+    }
+
+    if (pose != null) {
+      System.arraycopy(pose, 0, transform, 0, 16);
+    } else {
+      for (int i = 0; i < 16; i++) {
+        transform[i] = (i % 5 == 0) ? 1 : 0;
+      }
+    }
+
+    minDepthMm = Math.max(1, (int) Math.ceil(minRangeMetres * 1000));
+    maxDepthMm = (int) Math.min(Depth16Decoder.MAX_RANGE_MM - 1, Math.floor(maxRangeMetres * 1000));
+    minConfidenceCode = 0;
+    if (confidence != null) {
+      // Smallest raw code that passes, code 0 (100%) always passes.
+      minConfidenceCode = CONFIDENCE_FRACTIONS.length;
+      for (int code = 1; code < CONFIDENCE_FRACTIONS.length; code++) {
+        if (CONFIDENCE_FRACTIONS[code] >= minConfidence) {
+          minConfidenceCode = code;
+          break;
+        }
+      }
+    }
+  }
+
+  /** Projects sampled rows {@code [rowStart, rowEnd)} into their scratch regions. */
+  @Override
+  public void run(int rowStart, int rowEnd) {
+    final short[] depthMm = this.depthMm;
+    final byte[] confidence = this.confidence;
+    final float[] columnFactors = this.columnFactors;
+    final float[] scratch = this.scratch;
+    final float[] m = transform;
+    final int stride = this.stride;
+    final int columns = sampledColumns;
+    final int minDepth = minDepthMm;
+    final int maxDepth = maxDepthMm;
+    final int minCode = minConfidenceCode;
+    final float m0 = m[0], m1 = m[1], m2 = m[2];
+    final float m4 = m[4], m5 = m[5], m6 = m[6];
+    final float m8 = m[8], m9 = m[9], m10 = m[10];
+    final float m12 = m[12], m13 = m[13], m14 = m[14];
+
+    for (int row = rowStart; row < rowEnd; row++) {
+      int src = row * stride * width;
+      int dst = row * columns * FLOATS_PER_POINT;
+      int start = dst;
+      float rowFactor = rowFactors[row];
+      for (int c = 0; c < columns; c++, src += stride) {
+        int depth = depthMm[src];
+        if (depth < minDepth || depth > maxDepth) {
+          continue;
+        }
+        float conf = 1.0f;
+        if (confidence != null) {
+          int code = confidence[src];
+          if (code != 0 && code < minCode) {
+            continue;
+          }
+          conf = CONFIDENCE_FRACTIONS[code];
+        }
+        float z = depth * 0.001f;
+        float x = columnFactors[c] * z;
+        float y = rowFactor * z;
+        // Camera looks down -Z.
+        scratch[dst] = m0 * x + m4 * y - m8 * z + m12;
+        scratch[dst + 1] = m1 * x + m5 * y - m9 * z + m13;
+        scratch[dst + 2] = m2 * x + m6 * y - m10 * z + m14;
+        scratch[dst + 3] = conf;
+        dst += FLOATS_PER_POINT;
+      }
+      rowCounts[row] = (dst - start) / FLOATS_PER_POINT;
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package com.matt.arcore.java.common.depth;
+
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+
+import java.util.Arrays;
+
+/**
+ * Reprojects depth frames into the color camera's image, so depth and color pixels line up without
+ * the scale and offset approximation.
+ *
+ * <p>Every depth pixel is unprojected along its undistorted ray, moved by the depth-to-color
+ * transform and projected with the color intrinsics and distortion. The output keeps the frame's
+ * size but its pixel grid covers the color image, so it is sampled with color texture coordinates.
+ * Each sample is splatted into a small square footprint with a z-test, the nearest surface wins.
+ *
+ * <p>The rays are a lookup table rebuilt only when the calibration or frame size changes. The
+ * projection is split into row bands on the executor; the splat, which may write any output pixel
+ * from any row, runs sequentially afterwards. Output samples keep their DEPTH16 confidence with the
+ * range measured along the color camera's axis.
+ */
+public final class DepthRegistration implements DepthFilterStage, RowBandExecutor.RowBandTask {
+
+  private final RowBandExecutor executor;
+
+  private LensCalibration depthCalibration;
+  private LensCalibration colorCalibration;
+  private int splatSize = 2;
+
+  // Geometry of the current lookup table, recomputed when any of it changes.
+  private LensCalibration lutDepth;
+  private LensCalibration lutColor;
+  private int width;
+  private int height;
+  private float[] rayX = new float[0];
+  private float[] rayY = new float[0];
+  private final float[] rotation = new float[9];
+  private final float[] translation = new float[3];
+  private final float[] colorDistortion = new float[5];
+  // Color image pixels per output pixel.
+  private float outputScaleX;
+  private float outputScaleY;
+
+  private short[] input = new short[0];
+  private short[] output = new short[0];
+  // Output pixel and DEPTH16 value of each input pixel, -1 when it does not land in the image.
+  private int[] targets = new int[0];
+  private short[] values = new short[0];
+
+  /** @param executor runs row bands in parallel, or null to register on the calling thread. */
+  public DepthRegistration(RowBandExecutor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Sets the depth and color calibrations, each at any resolution of its stream; depth is rescaled
+   * to the frame size and the output covers {@code color}'s image.
+   */
+  public synchronized void setCalibration(LensCalibration depth, LensCalibration color) {
+    depthCalibration = depth;
+    colorCalibration = color;
+  }
+
+  /** Side of the square each sample is splatted into, 1 for a single pixel. */
+  public synchronized void setSplatSize(int splatSize) {
+    if (splatSize < 1) {
+      throw new IllegalArgumentException("Invalid splat size " + splatSize);
+    }
+    this.splatSize = splatSize;
+  }
+
+  /** Intrinsics of registered frames of the given size, the color camera's scaled to them. */
+  public synchronized CameraIntrinsics getOutputIntrinsics(int width, int height) {
+    return colorCalibration != null ? colorCalibration.intrinsics.scaled(width, height) : null;
+  }
+
+  @Override
+  public synchronized void filterFrame(DepthFrame frame) {
+    if (depthCalibration == null || colorCalibration == null) {
+      return;
+    }
+    int pixels = frame.width * frame.height;
+    ensureBuffers(pixels);
+    frame.samples.clear();
+    frame.samples.get(input, 0, pixels);
+    register(input, frame.width, frame.height, output);
+    frame.samples.clear();
+    frame.samples.put(output, 0, pixels);
+    frame.samples.clear();
+  }
+
+  /**
+   * Registers one DEPTH16 frame.
+   *
+   * @param raw width * height DEPTH16 samples.
+   * @param out receives width * height DEPTH16 samples on the color image grid, 0 where nothing
+   *     landed.
+   */
+  public synchronized void register(short[] raw, int width, int height, short[] out) {
+    int pixels = width * height;
+    if (raw.length < pixels || out.length < pixels) {
+      throw new IllegalArgumentException("Arrays smaller than " + pixels + " pixels");
+    }
+    if (depthCalibration == null || colorCalibration == null) {
+      throw new IllegalStateException("No calibration set");
+    }
+    ensureLookupTable(width, height);
+    ensureBuffers(pixels);
+    short[] previousInput = input;
+    input = raw;
+    try {
+      if (executor != null) {
+        executor.execute(height, this);
+      } else {
+        run(0, height);
+      }
+    } finally {
+      input = previousInput;
+    }
+    splat(out, width, height);
+  }
+
+  private void ensureBuffers(int pixels) {
+    if (targets.length < pixels) {
+      input = new short[pixels];
+      output = new short[pixels];
+      targets = new int[pixels];
+      values = new short[pixels];
+    }
+  }
+
+  private void ensureLookupTable(int width, int height) {
+    if (width == this.width && height == this.height && depthCalibration.equals(lutDepth)
+        && colorCalibration.equals(lutColor)) {
+      return;
+    }
+    LensCalibration depth = depthCalibration.scaled(width, height);
+    CameraIntrinsics k = depth.intrinsics;
+    int pixels = width * height;
+    rayX = new float[pixels];
+    rayY = new float[pixels];
+    float[] ray = new float[2];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        // Pixel centres, the intrinsics have their origin at the corner of the first pixel.
+        float yn = (y + 0.5f - k.cy) / k.fy;
+        float xn = (x + 0.5f - k.cx - depth.skew * yn) / k.fx;
+        depth.undistort(xn, yn, ray);
+        rayX[y * width + x] = ray[0];
+        rayY[y * width + x] = ray[1];
+      }
+    }
+    LensCalibration.relativeTransform(depthCalibration, colorCalibration, rotation, translation);
+    colorCalibration.getDistortion(colorDistortion);
+    outputScaleX = (float) width / colorCalibration.intrinsics.width;
+    outputScaleY = (float) height / colorCalibration.intrinsics.height;
+    this.width = width;
+    this.height = height;
+    lutDepth = depthCalibration;
+    lutColor = colorCalibration;
+  }
+
+  /** Projects rows {@code [rowStart, rowEnd)} into the color image. */
+  @Override
+  public void run(int rowStart, int rowEnd) {
+    final int width = this.width;
+    final LensCalibration color = colorCalibration;
+    final CameraIntrinsics k = color.intrinsics;
+    final float[] r = rotation;
+    final float[] t = translation;
+    final float k1 = colorDistortion[0], k2 = colorDistortion[1], k3 = colorDistortion[2];
+    final float p1 = colorDistortion[3], p2 = colorDistortion[4];
+
+    for (int i = rowStart * width, end = rowEnd * width; i < end; i++) {
+      int sample = input[i];
+      int mm = sample & Depth16Decoder.DEPTH_MASK;
+      targets[i] = -1;
+      if (mm == 0 || mm >= Depth16Decoder.MAX_RANGE_MM) {
+        continue;
+      }
+      float z = mm * 0.001f;
+      float px = rayX[i] * z;
+      float py = rayY[i] * z;
+      float cz = r[6] * px + r[7] * py + r[8] * z + t[2];
+      if (cz <= 0) {
+        continue;
+      }
+      float cx = r[0] * px + r[1] * py + r[2] * z + t[0];
+      float cy = r[3] * px + r[4] * py + r[5] * z + t[1];
+      float x = cx / cz;
+      float y = cy / cz;
+      // LensCalibration.distort, inlined to keep the band loop free of calls and allocations.
+      float r2 = x * x + y * y;
+      float radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+      float xn = x * radial + 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+      float yn = y * radial + p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+      float u = (k.fx * xn + color.skew * yn + k.cx) * outputScaleX;
+      float v = (k.fy * yn + k.cy) * outputScaleY;
+      if (u < 0 || v < 0 || u >= width || v >= height) {
+        continue;
+      }
+      int registeredMm = Math.min((int) (cz * 1000 + 0.5f), Depth16Decoder.DEPTH_MASK);
+      targets[i] = (int) v * width + (int) u;
+      values[i] = (short) (registeredMm | (sample & ~Depth16Decoder.DEPTH_MASK));
+    }
+  }
+
+  // Nearest sample wins in each output pixel of the footprints.
+  private void splat(short[] out, int width, int height) {
+    int pixels = width * height;
+    Arrays.fill(out, 0, pixels, (short) 0);
+    int size = splatSize;
+    // Footprint centred on the target pixel, extending up and left for even sizes.
+    int before = size / 2;
+    for (int i = 0; i < pixels; i++) {
+      int target = targets[i];
+      if (target < 0) {
+        continue;
+      }
+      short value = values[i];
+      int mm = value & Depth16Decoder.DEPTH_MASK;
+      int tx = target % width;
+      int ty = target / width;
+      int yEnd = Math.min(height, ty - before + size);
+      int xEnd = Math.min(width, tx - before + size);
+      for (int y = Math.max(0, ty - before); y < yEnd; y++) {
+        for (int x = Math.max(0, tx - before), o = y * width + x; x < xEnd; x++, o++) {
+          int existing = out[o] & Depth16Decoder.DEPTH_MASK;
+          if (existing == 0 || mm < existing) {
+            out[o] = value;
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void createOnGlThread() {}
+
+  @Override
+  public int filterTexture(int depthTexture, int width, int height, long sequence) {
+    return depthTexture;
+  }
+
+  /** Registration keeps no history. */
+  @Override
+  public void reset() {}
+}
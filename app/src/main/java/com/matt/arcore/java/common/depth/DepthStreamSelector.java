@@ -0,0 +1,148 @@
+package com.matt.arcore.java.common.depth;
+
+import java.util.List;
+
+/**
+ * Picks a DEPTH16 stream configuration from the sizes and minimum frame durations a camera
+ * advertises. Pure function of its inputs, so it can be exercised with a made up list of options.
+ */
+public final class DepthStreamSelector {
+
+  /** What to optimise for. Remaining ties prefer more pixels, then a higher frame rate. */
+  public enum Policy {
+    /** Shortest minimum frame duration. */
+    MAX_FPS,
+    /** Most pixels. */
+    MAX_PIXELS,
+    /** Aspect ratio closest to the target, ignoring orientation. */
+    CLOSEST_ASPECT,
+    /** Most pixels whose resident frame copies fit in the memory budget, else the smallest. */
+    MEMORY_BUDGET
+  }
+
+  /**
+   * Copies of a depth frame alive at once whatever is enabled: the ImageReader's two images, the
+   * three {@link DepthFrameExchange} slots and the GL texture.
+   */
+  public static final int BASE_FRAME_COPIES = 6;
+
+  /**
+   * Copies of a depth frame alive at once with the optional pools on top of {@link
+   * #BASE_FRAME_COPIES}.
+   *
+   * @param synchronizerHistory capacity of the {@link DepthFrameSynchronizer}, 0 without one. The
+   *     renderer holds one more frame the synchronized copy is made into.
+   * @param recorderQueue queue capacity of the depth recorder, 0 when not recording.
+   */
+  public static int residentFrameCopies(int synchronizerHistory, int recorderQueue) {
+    if (synchronizerHistory < 0 || recorderQueue < 0) {
+      throw new IllegalArgumentException("Invalid pool sizes " + synchronizerHistory + ", "
+          + recorderQueue);
+    }
+    int synchronizerCopies = synchronizerHistory > 0 ? synchronizerHistory + 1 : 0;
+    return BASE_FRAME_COPIES + synchronizerCopies + recorderQueue;
+  }
+
+  /** One advertised output size. */
+  public static final class StreamOption {
+    public final int width;
+    public final int height;
+    // From StreamConfigurationMap.getOutputMinFrameDuration, 0 when the camera does not report it.
+    public final long minFrameDurationNs;
+
+    public StreamOption(int width, int height, long minFrameDurationNs) {
+      if (width <= 0 || height <= 0 || minFrameDurationNs < 0) {
+        throw new IllegalArgumentException("Invalid stream option " + width + "x" + height + " @ "
+            + minFrameDurationNs + " ns");
+      }
+      this.width = width;
+      this.height = height;
+      this.minFrameDurationNs = minFrameDurationNs;
+    }
+
+    public int getPixels() {
+      return width * height;
+    }
+
+    /** Highest frame rate the stream supports, 0 if unknown. */
+    public double getMaxFps() {
+      return minFrameDurationNs > 0 ? 1e9 / minFrameDurationNs : 0;
+    }
+
+    /** Bytes held by {@code frameCopies} DEPTH16 copies of a frame. */
+    public long getResidentBytes(int frameCopies) {
+      return (long) getPixels() * DepthFrame.BYTES_PER_PIXEL * frameCopies;
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height + " @ " + String.format("%.1f", getMaxFps()) + " fps";
+    }
+  }
+
+  private DepthStreamSelector() {}
+
+  /**
+   * @param targetAspect width / height of the view the depth is shown in, either orientation. Not
+   *     positive when there is no preference, then CLOSEST_ASPECT falls back to MAX_PIXELS.
+   * @param memoryBudgetBytes budget for MEMORY_BUDGET, ignored by the other policies.
+   * @param residentFrameCopies frame copies the budget has to hold, see {@link
+   *     #residentFrameCopies}. Ignored by the other policies.
+   * @return the chosen option, or null if {@code options} is empty.
+   */
+  public static StreamOption select(List<StreamOption> options, Policy policy, float targetAspect,
+      long memoryBudgetBytes, int residentFrameCopies) {
+    StreamOption best = null;
+    for (StreamOption option : options) {
+      if (best == null
+          || compare(option, best, policy, targetAspect, memoryBudgetBytes, residentFrameCopies) > 0) {
+        best = option;
+      }
+    }
+    return best;
+  }
+
+  // Positive if a is preferred over b.
+  private static int compare(StreamOption a, StreamOption b, Policy policy, float targetAspect,
+      long memoryBudgetBytes, int residentFrameCopies) {
+    int result = 0;
+    switch (policy) {
+      case MAX_FPS:
+        result = Double.compare(a.getMaxFps(), b.getMaxFps());
+        break;
+      case MAX_PIXELS:
+        break;
+      case CLOSEST_ASPECT:
+        if (targetAspect > 0) {
+          result = Double.compare(aspectError(b, targetAspect), aspectError(a, targetAspect));
+        }
+        break;
+      case MEMORY_BUDGET:
+        boolean aFits = a.getResidentBytes(residentFrameCopies) <= memoryBudgetBytes;
+        boolean bFits = b.getResidentBytes(residentFrameCopies) <= memoryBudgetBytes;
+        if (aFits != bFits) {
+          return aFits ? 1 : -1;
+        }
+        if (!aFits) {
+          // Nothing fits, take the smallest.
+          result = Integer.compare(b.getPixels(), a.getPixels());
+        }
+        break;
+    }
+    if (result == 0) {
+      result = Integer.compare(a.getPixels(), b.getPixels());
+    }
+    if (result == 0) {
+      result = Double.compare(a.getMaxFps(), b.getMaxFps());
+    }
+    return result;
+  }
+
+  // Distance between aspect ratios on a log scale, so 2:1 and 1:2 are equally far from 1:1.
+  private static double aspectError(StreamOption option, float targetAspect) {
+    double aspect = Math.max(option.width, option.height)
+        / (double) Math.min(option.width, option.height);
+    double target = targetAspect >= 1 ? targetAspect : 1 / targetAspect;
+    return Math.abs(Math.log(aspect / target));
+  }
+}
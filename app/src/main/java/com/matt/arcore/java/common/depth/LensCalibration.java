@@ -0,0 +1,180 @@
+package com.matt.arcore.java.common.depth;
+
+import java.util.Arrays;
+
+/**
+ * Intrinsics, lens distortion and pose of one camera, as reported by Camera2's
+ * LENS_INTRINSIC_CALIBRATION, LENS_DISTORTION, LENS_POSE_ROTATION and LENS_POSE_TRANSLATION.
+ *
+ * <p>Distortion follows Camera2: radial k1, k2, k3 and tangential p1, p2 applied to normalized
+ * coordinates. The pose rotation is a quaternion (x, y, z, w) from the shared reference frame to
+ * the camera, the translation the camera's optical centre in the reference frame in metres, so a
+ * reference point p is at R * (p - t) in camera coordinates. Camera coordinates follow the pinhole
+ * convention, x right, y down and z along the optical axis.
+ */
+public final class LensCalibration {
+
+  private static final int UNDISTORT_ITERATIONS = 10;
+
+  public final CameraIntrinsics intrinsics;
+  public final float skew;
+  private final float[] distortion;
+  private final float[] rotation;
+  private final float[] translation;
+
+  /**
+   * @param distortion k1, k2, k3, p1, p2, or null for none.
+   * @param rotation quaternion (x, y, z, w), or null for identity.
+   * @param translation optical centre in metres, or null for the origin.
+   */
+  public LensCalibration(CameraIntrinsics intrinsics, float skew, float[] distortion,
+      float[] rotation, float[] translation) {
+    if ((distortion != null && distortion.length < 5) || (rotation != null && rotation.length < 4)
+        || (translation != null && translation.length < 3)) {
+      throw new IllegalArgumentException("Short distortion, rotation or translation array");
+    }
+    this.intrinsics = intrinsics;
+    this.skew = skew;
+    this.distortion = distortion != null ? Arrays.copyOf(distortion, 5) : new float[5];
+    this.rotation = rotation != null ? Arrays.copyOf(rotation, 4) : new float[] {0, 0, 0, 1};
+    this.translation = translation != null ? Arrays.copyOf(translation, 3) : new float[3];
+  }
+
+  /**
+   * Calibration of a stream from the Camera2 keys, which describe the pre-correction active array.
+   * The stream is a centred crop of the array to the stream's aspect ratio, scaled to its size.
+   *
+   * @param intrinsicCalibration f_x, f_y, c_x, c_y, s of LENS_INTRINSIC_CALIBRATION.
+   */
+  public static LensCalibration fromCamera2(float[] intrinsicCalibration, float[] distortion,
+      float[] poseRotation, float[] poseTranslation, int arrayWidth, int arrayHeight,
+      int streamWidth, int streamHeight) {
+    if (intrinsicCalibration == null || intrinsicCalibration.length < 5) {
+      throw new IllegalArgumentException("Missing intrinsic calibration");
+    }
+    float scale = Math.max((float) streamWidth / arrayWidth, (float) streamHeight / arrayHeight);
+    float cropX = (arrayWidth - streamWidth / scale) / 2;
+    float cropY = (arrayHeight - streamHeight / scale) / 2;
+    CameraIntrinsics intrinsics = new CameraIntrinsics(
+        intrinsicCalibration[0] * scale, intrinsicCalibration[1] * scale,
+        (intrinsicCalibration[2] - cropX) * scale, (intrinsicCalibration[3] - cropY) * scale,
+        streamWidth, streamHeight);
+    return new LensCalibration(intrinsics, intrinsicCalibration[4] * scale, distortion,
+        poseRotation, poseTranslation);
+  }
+
+  /** The same camera at another resolution, distortion and pose are resolution independent. */
+  public LensCalibration scaled(int width, int height) {
+    if (width == intrinsics.width && height == intrinsics.height) {
+      return this;
+    }
+    return new LensCalibration(intrinsics.scaled(width, height),
+        skew * width / intrinsics.width, distortion, rotation, translation);
+  }
+
+  /** Applies the lens distortion to normalized coordinates, out receives x and y. */
+  public void distort(float x, float y, float[] out) {
+    float k1 = distortion[0], k2 = distortion[1], k3 = distortion[2];
+    float p1 = distortion[3], p2 = distortion[4];
+    float r2 = x * x + y * y;
+    float radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+    out[0] = x * radial + 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+    out[1] = y * radial + p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+  }
+
+  /** Inverts {@link #distort} by fixed point iteration, accurate for moderate distortion. */
+  public void undistort(float x, float y, float[] out) {
+    float k1 = distortion[0], k2 = distortion[1], k3 = distortion[2];
+    float p1 = distortion[3], p2 = distortion[4];
+    float ux = x;
+    float uy = y;
+    for (int i = 0; i < UNDISTORT_ITERATIONS; i++) {
+      float r2 = ux * ux + uy * uy;
+      float radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+      float dx = 2 * p1 * ux * uy + p2 * (r2 + 2 * ux * ux);
+      float dy = p1 * (r2 + 2 * uy * uy) + 2 * p2 * ux * uy;
+      ux = (x - dx) / radial;
+      uy = (y - dy) / radial;
+    }
+    out[0] = ux;
+    out[1] = uy;
+  }
+
+  /** Copies k1, k2, k3, p1, p2 into {@code out}. */
+  public void getDistortion(float[] out) {
+    System.arraycopy(distortion, 0, out, 0, distortion.length);
+  }
+
+  /**
+   * Rigid transform from the camera coordinates of {@code from} to those of {@code to}:
+   * p_to = rotation * p_from + translation.
+   *
+   * @param rotation receives a row-major 3x3 matrix.
+   * @param translation receives 3 values in metres.
+   */
+  public static void relativeTransform(LensCalibration from, LensCalibration to, float[] rotation,
+      float[] translation) {
+    float[] rFrom = rotationMatrix(from.rotation);
+    float[] rTo = rotationMatrix(to.rotation);
+    // rotation = rTo * rFrom^T
+    for (int row = 0; row < 3; row++) {
+      for (int col = 0; col < 3; col++) {
+        float sum = 0;
+        for (int k = 0; k < 3; k++) {
+          sum += rTo[row * 3 + k] * rFrom[col * 3 + k];
+        }
+        rotation[row * 3 + col] = sum;
+      }
+    }
+    // translation = rTo * (tFrom - tTo)
+    for (int row = 0; row < 3; row++) {
+      float sum = 0;
+      for (int k = 0; k < 3; k++) {
+        sum += rTo[row * 3 + k] * (from.translation[k] - to.translation[k]);
+      }
+      translation[row] = sum;
+    }
+  }
+
+  // Row-major rotation matrix of a unit quaternion (x, y, z, w).
+  private static float[] rotationMatrix(float[] q) {
+    float x = q[0], y = q[1], z = q[2], w = q[3];
+    return new float[] {
+        1 - 2 * (y * y + z * z), 2 * (x * y - z * w), 2 * (x * z + y * w),
+        2 * (x * y + z * w), 1 - 2 * (x * x + z * z), 2 * (y * z - x * w),
+        2 * (x * z - y * w), 2 * (y * z + x * w), 1 - 2 * (x * x + y * y)};
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof LensCalibration)) {
+      return false;
+    }
+    LensCalibration other = (LensCalibration) o;
+    CameraIntrinsics a = intrinsics;
+    CameraIntrinsics b = other.intrinsics;
+    return a.fx == b.fx && a.fy == b.fy && a.cx == b.cx && a.cy == b.cy && a.width == b.width
+        && a.height == b.height && skew == other.skew && Arrays.equals(distortion, other.distortion)
+        && Arrays.equals(rotation, other.rotation) && Arrays.equals(translation, other.translation);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = Float.floatToIntBits(intrinsics.fx);
+    result = 31 * result + Float.floatToIntBits(intrinsics.cx);
+    result = 31 * result + intrinsics.width;
+    result = 31 * result + Arrays.hashCode(distortion);
+    result = 31 * result + Arrays.hashCode(rotation);
+    return 31 * result + Arrays.hashCode(translation);
+  }
+
+  @Override
+  public String toString() {
+    return "LensCalibration{" + intrinsics + " skew=" + skew + " distortion="
+        + Arrays.toString(distortion) + " rotation=" + Arrays.toString(rotation) + " translation="
+        + Arrays.toString(translation) + "}";
+  }
+}
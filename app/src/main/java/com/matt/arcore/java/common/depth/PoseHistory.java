@@ -0,0 +1,210 @@
+package com.matt.arcore.java.common.depth;
+
+/**
+ * Recent camera poses by timestamp, for the pose at the capture time of a depth frame rather than
+ * at the color frame it is drawn with.
+ *
+ * <p>Poses are rigid 4x4 column-major matrices, such as those of {@code Pose.toMatrix}, stored as a
+ * rotation quaternion and a translation in a fixed ring. Between two samples the rotation is
+ * slerped and the translation interpolated linearly. Not thread safe.
+ */
+public final class PoseHistory {
+
+  private static final int QUATERNION = 4;
+  private static final int TRANSLATION = 3;
+
+  private final long[] timestamps;
+  private final float[] rotations;
+  private final float[] translations;
+  private final int capacity;
+  private int head;
+  private int count;
+
+  private final float[] q0 = new float[QUATERNION];
+  private final float[] q1 = new float[QUATERNION];
+
+  public PoseHistory(int capacity) {
+    if (capacity < 2) {
+      throw new IllegalArgumentException("Pose history needs at least 2 entries, got " + capacity);
+    }
+    this.capacity = capacity;
+    timestamps = new long[capacity];
+    rotations = new float[capacity * QUATERNION];
+    translations = new float[capacity * TRANSLATION];
+  }
+
+  /**
+   * Adds the pose at {@code timestamp}, overwriting the oldest entry when full. Poses not newer than
+   * the newest one are ignored.
+   */
+  public void add(long timestamp, float[] pose) {
+    if (count > 0 && timestamp <= timestamps[physical(count - 1)]) {
+      return;
+    }
+    int slot;
+    if (count < capacity) {
+      slot = physical(count);
+      count++;
+    } else {
+      slot = head;
+      head = (head + 1) % capacity;
+    }
+    timestamps[slot] = timestamp;
+    matrixToQuaternion(pose, rotations, slot * QUATERNION);
+    translations[slot * TRANSLATION] = pose[12];
+    translations[slot * TRANSLATION + 1] = pose[13];
+    translations[slot * TRANSLATION + 2] = pose[14];
+  }
+
+  public void clear() {
+    head = 0;
+    count = 0;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Writes the pose at {@code timestamp} into {@code out}, interpolated between the samples around
+   * it. Outside the recorded range the nearest sample is used, without extrapolating.
+   *
+   * @return true if {@code timestamp} lies within the recorded range, false if the nearest sample
+   *     was used or the history is empty, in which case {@code out} is untouched.
+   */
+  public boolean interpolate(long timestamp, float[] out) {
+    if (count == 0) {
+      return false;
+    }
+    // First logical index with a timestamp >= the target.
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[physical(mid)] < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    if (low == count) {
+      write(physical(count - 1), physical(count - 1), 0, out);
+      return false;
+    }
+    if (timestamps[physical(low)] == timestamp) {
+      write(physical(low), physical(low), 0, out);
+      return true;
+    }
+    if (low == 0) {
+      write(physical(0), physical(0), 0, out);
+      return false;
+    }
+    int before = physical(low - 1);
+    int after = physical(low);
+    float t = (float) ((double) (timestamp - timestamps[before]) / (timestamps[after] - timestamps[before]));
+    write(before, after, t, out);
+    return true;
+  }
+
+  private void write(int slot0, int slot1, float t, float[] out) {
+    System.arraycopy(rotations, slot0 * QUATERNION, q0, 0, QUATERNION);
+    System.arraycopy(rotations, slot1 * QUATERNION, q1, 0, QUATERNION);
+    slerp(q0, q1, t, q0);
+    quaternionToMatrix(q0, out);
+    for (int i = 0; i < TRANSLATION; i++) {
+      float a = translations[slot0 * TRANSLATION + i];
+      float b = translations[slot1 * TRANSLATION + i];
+      out[12 + i] = a + (b - a) * t;
+    }
+    out[3] = 0;
+    out[7] = 0;
+    out[11] = 0;
+    out[15] = 1;
+  }
+
+  private int physical(int logical) {
+    return (head + logical) % capacity;
+  }
+
+  // Quaternion (x, y, z, w) of the rotation part of a column-major matrix.
+  static void matrixToQuaternion(float[] m, float[] q, int offset) {
+    float m00 = m[0], m11 = m[5], m22 = m[10];
+    float trace = m00 + m11 + m22;
+    float x, y, z, w;
+    if (trace > 0) {
+      float s = (float) Math.sqrt(trace + 1.0) * 2;
+      w = 0.25f * s;
+      x = (m[6] - m[9]) / s;
+      y = (m[8] - m[2]) / s;
+      z = (m[1] - m[4]) / s;
+    } else if (m00 > m11 && m00 > m22) {
+      float s = (float) Math.sqrt(1.0 + m00 - m11 - m22) * 2;
+      w = (m[6] - m[9]) / s;
+      x = 0.25f * s;
+      y = (m[4] + m[1]) / s;
+      z = (m[8] + m[2]) / s;
+    } else if (m11 > m22) {
+      float s = (float) Math.sqrt(1.0 + m11 - m00 - m22) * 2;
+      w = (m[8] - m[2]) / s;
+      x = (m[4] + m[1]) / s;
+      y = 0.25f * s;
+      z = (m[9] + m[6]) / s;
+    } else {
+      float s = (float) Math.sqrt(1.0 + m22 - m00 - m11) * 2;
+      w = (m[1] - m[4]) / s;
+      x = (m[8] + m[2]) / s;
+      y = (m[9] + m[6]) / s;
+      z = 0.25f * s;
+    }
+    q[offset] = x;
+    q[offset + 1] = y;
+    q[offset + 2] = z;
+    q[offset + 3] = w;
+  }
+
+  // Rotation part of a column-major matrix from a unit quaternion (x, y, z, w).
+  static void quaternionToMatrix(float[] q, float[] m) {
+    float x = q[0], y = q[1], z = q[2], w = q[3];
+    m[0] = 1 - 2 * (y * y + z * z);
+    m[1] = 2 * (x * y + z * w);
+    m[2] = 2 * (x * z - y * w);
+    m[4] = 2 * (x * y - z * w);
+    m[5] = 1 - 2 * (x * x + z * z);
+    m[6] = 2 * (y * z + x * w);
+    m[8] = 2 * (x * z + y * w);
+    m[9] = 2 * (y * z - x * w);
+    m[10] = 1 - 2 * (x * x + y * y);
+  }
+
+  static void slerp(float[] a, float[] b, float t, float[] out) {
+    double dot = a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+    // Take the short way around.
+    float sign = 1;
+    if (dot < 0) {
+      dot = -dot;
+      sign = -1;
+    }
+    double wa;
+    double wb;
+    if (dot > 0.9995) {
+      // Nearly parallel, normalized lerp avoids dividing by sin(0).
+      wa = 1 - t;
+      wb = t;
+    } else {
+      double theta = Math.acos(dot);
+      double sin = Math.sin(theta);
+      wa = Math.sin((1 - t) * theta) / sin;
+      wb = Math.sin(t * theta) / sin;
+    }
+    double norm = 0;
+    for (int i = 0; i < QUATERNION; i++) {
+      double v = wa * a[i] + wb * sign * b[i];
+      out[i] = (float) v;
+      norm += v * v;
+    }
+    float inv = (float) (1 / Math.sqrt(norm));
+    for (int i = 0; i < QUATERNION; i++) {
+      out[i] *= inv;
+    }
+  }
+}
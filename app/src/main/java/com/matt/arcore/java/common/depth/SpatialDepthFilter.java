@@ -0,0 +1,312 @@
+package com.matt.arcore.java.common.depth;
+
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+
+/**
+ * Edge-preserving hole filling and smoothing of depth frames on the CPU.
+ *
+ * <p>A separable joint-bilateral filter, a horizontal pass followed by a vertical one. Each tap is
+ * weighted by a spatial Gaussian, by a range Gaussian on its difference to the centre depth and by
+ * its DEPTH16 confidence, so depth is not blended across edges and unreliable samples contribute
+ * little. A hole takes the most confident nearby sample as its reference and is filled from the
+ * samples that agree with it, which fills it from one side of an edge only. Holes wider than the
+ * kernel stay holes.
+ *
+ * <p>Valid samples keep their confidence code; filled holes get one from the weight that filled
+ * them. Both passes are split into row bands on the executor. Buffers are sized on the first frame
+ * and reused.
+ */
+public final class SpatialDepthFilter implements DepthFilterStage, RowBandExecutor.RowBandTask {
+
+  public static final int DEFAULT_RADIUS = 3;
+
+  // Range kernel exp(-t^2 / 2) sampled at t = i / RANGE_LUT_SCALE, the last entry is 0 and taken
+  // for everything from 3 sigma on.
+  private static final int RANGE_LUT_SCALE = 16;
+  private static final float[] RANGE_LUT = new float[3 * RANGE_LUT_SCALE + 1];
+  // Weight of a 0% confidence sample.
+  private static final float MIN_SAMPLE_WEIGHT = 1.0f / 16;
+  // Filled holes with a lower confidence stay holes.
+  private static final float MIN_FILL_CONFIDENCE = 0.1f;
+  private static final float[] CONFIDENCE_WEIGHTS = new float[Depth16Decoder.CONFIDENCE_MASK + 1];
+
+  static {
+    for (int i = 0; i < RANGE_LUT.length - 1; i++) {
+      float t = (i + 0.5f) / RANGE_LUT_SCALE;
+      RANGE_LUT[i] = (float) Math.exp(-0.5 * t * t);
+    }
+    for (int i = 0; i < CONFIDENCE_WEIGHTS.length; i++) {
+      CONFIDENCE_WEIGHTS[i] = Math.max(MIN_SAMPLE_WEIGHT, Depth16Decoder.confidenceFraction(i));
+    }
+  }
+
+  private final RowBandExecutor executor;
+
+  private int radius = DEFAULT_RADIUS;
+  private float spatialSigma = DEFAULT_RADIUS / 2.0f;
+  private float rangeSigmaMm = 30;
+  private float rangeSigmaRelative = 0.03f;
+  private float[] spatialWeights;
+  // Range LUT index per mm of difference, by reference depth in mm.
+  private final float[] rangeScales = new float[Depth16Decoder.MAX_RANGE_MM];
+  // 1 / sum of the spatial weights inside the frame, by position along a row and along a column.
+  private float[] rowSpatialNorms = new float[0];
+  private float[] columnSpatialNorms = new float[0];
+
+  private int width;
+  private int height;
+  private short[] samples = new short[0];
+  private float[] depth = new float[0];
+  private float[] confidence = new float[0];
+  private float[] passDepth = new float[0];
+  private float[] passConfidence = new float[0];
+  // Which pass run() is executing.
+  private boolean horizontal;
+
+  /** @param executor runs row bands in parallel, or null to filter on the calling thread. */
+  public SpatialDepthFilter(RowBandExecutor executor) {
+    this.executor = executor;
+    updateSpatialWeights();
+    updateRangeScales();
+  }
+
+  /** Kernel radius in pixels, the window is 2 * radius + 1 taps per pass. */
+  public synchronized void setRadius(int radius, float spatialSigma) {
+    if (radius < 1 || spatialSigma <= 0) {
+      throw new IllegalArgumentException("Invalid kernel radius " + radius + " sigma " + spatialSigma);
+    }
+    this.radius = radius;
+    this.spatialSigma = spatialSigma;
+    updateSpatialWeights();
+  }
+
+  /** Range sigma is max(mm, relative * reference depth), matching the sensor's growing noise. */
+  public synchronized void setRangeSigma(float mm, float relative) {
+    if (mm <= 0 || relative < 0) {
+      throw new IllegalArgumentException("Invalid range sigma " + mm + " mm, " + relative);
+    }
+    this.rangeSigmaMm = mm;
+    this.rangeSigmaRelative = relative;
+    updateRangeScales();
+  }
+
+  private void updateRangeScales() {
+    for (int mm = 0; mm < rangeScales.length; mm++) {
+      rangeScales[mm] = RANGE_LUT_SCALE / Math.max(rangeSigmaMm, rangeSigmaRelative * mm);
+    }
+  }
+
+  private void updateSpatialWeights() {
+    spatialWeights = new float[2 * radius + 1];
+    for (int k = -radius; k <= radius; k++) {
+      spatialWeights[k + radius] = (float) Math.exp(-0.5 * k * k / (spatialSigma * spatialSigma));
+    }
+    // Force the norms to be rebuilt for the new kernel.
+    width = 0;
+    height = 0;
+  }
+
+  private float[] spatialNorms(int length) {
+    float[] norms = new float[length];
+    for (int position = 0; position < length; position++) {
+      float sum = 0;
+      for (int k = Math.max(-radius, -position); k <= Math.min(radius, length - 1 - position); k++) {
+        sum += spatialWeights[k + radius];
+      }
+      norms[position] = 1 / sum;
+    }
+    return norms;
+  }
+
+  /** Filters a DEPTH16 frame in place. */
+  @Override
+  public synchronized void filterFrame(DepthFrame frame) {
+    int pixels = frame.width * frame.height;
+    ensureBuffers(frame.width, frame.height);
+    frame.samples.clear();
+    frame.samples.get(samples, 0, pixels);
+    for (int i = 0; i < pixels; i++) {
+      int raw = samples[i];
+      int d = raw & Depth16Decoder.DEPTH_MASK;
+      d = d < Depth16Decoder.MAX_RANGE_MM ? d : 0;
+      depth[i] = d;
+      confidence[i] = d != 0
+          ? CONFIDENCE_WEIGHTS[(raw >> Depth16Decoder.CONFIDENCE_SHIFT) & Depth16Decoder.CONFIDENCE_MASK]
+          : 0;
+    }
+
+    runPasses();
+
+    // Result of the vertical pass is back in depth and confidence.
+    for (int i = 0; i < pixels; i++) {
+      int raw = samples[i];
+      int d = (int) (depth[i] + 0.5f);
+      if (d == 0) {
+        samples[i] = 0;
+      } else if ((raw & Depth16Decoder.DEPTH_MASK) != 0
+          && (raw & Depth16Decoder.DEPTH_MASK) < Depth16Decoder.MAX_RANGE_MM) {
+        samples[i] = (short) (d | (raw & ~Depth16Decoder.DEPTH_MASK));
+      } else {
+        samples[i] = (short) (d | Depth16Decoder.confidenceCode(confidence[i]) << Depth16Decoder.CONFIDENCE_SHIFT);
+      }
+    }
+    frame.samples.clear();
+    frame.samples.put(samples, 0, pixels);
+    frame.samples.clear();
+  }
+
+  /**
+   * Filters decoded depth.
+   *
+   * @param depthMm width * height ranges in millimetres, 0 for holes. Ranges outside the DEPTH16
+   *     range, negative or from {@link Depth16Decoder#MAX_RANGE_MM} on, are treated as holes too.
+   * @param confidenceIn width * height raw confidence codes, or null for fully confident samples.
+   *     Only the low 3 bits of each code are used.
+   * @param outDepthMm receives the filtered ranges, may be {@code depthMm}.
+   * @param outConfidence receives confidence fractions, the weight behind each output sample, or
+   *     null.
+   */
+  public synchronized void filter(short[] depthMm, byte[] confidenceIn, int width, int height,
+      short[] outDepthMm, float[] outConfidence) {
+    int pixels = width * height;
+    if (depthMm.length < pixels || outDepthMm.length < pixels
+        || (confidenceIn != null && confidenceIn.length < pixels)
+        || (outConfidence != null && outConfidence.length < pixels)) {
+      throw new IllegalArgumentException("Arrays smaller than " + pixels + " pixels");
+    }
+    ensureBuffers(width, height);
+    for (int i = 0; i < pixels; i++) {
+      int d = depthMm[i];
+      d = d > 0 && d < Depth16Decoder.MAX_RANGE_MM ? d : 0;
+      depth[i] = d;
+      confidence[i] = d == 0 ? 0
+          : confidenceIn != null ? CONFIDENCE_WEIGHTS[confidenceIn[i] & Depth16Decoder.CONFIDENCE_MASK]
+          : 1.0f;
+    }
+
+    runPasses();
+
+    for (int i = 0; i < pixels; i++) {
+      outDepthMm[i] = (short) (int) (depth[i] + 0.5f);
+    }
+    if (outConfidence != null) {
+      System.arraycopy(confidence, 0, outConfidence, 0, pixels);
+    }
+  }
+
+  private void ensureBuffers(int width, int height) {
+    int pixels = width * height;
+    if (width != this.width || height != this.height) {
+      this.width = width;
+      this.height = height;
+      rowSpatialNorms = spatialNorms(width);
+      columnSpatialNorms = spatialNorms(height);
+    }
+    if (depth.length < pixels) {
+      samples = new short[pixels];
+      depth = new float[pixels];
+      confidence = new float[pixels];
+      passDepth = new float[pixels];
+      passConfidence = new float[pixels];
+    }
+  }
+
+  private void runPasses() {
+    horizontal = true;
+    if (executor != null) {
+      executor.execute(height, this);
+    } else {
+      run(0, height);
+    }
+    horizontal = false;
+    if (executor != null) {
+      executor.execute(height, this);
+    } else {
+      run(0, height);
+    }
+  }
+
+  /** Runs the current pass over rows {@code [rowStart, rowEnd)}. */
+  @Override
+  public void run(int rowStart, int rowEnd) {
+    if (horizontal) {
+      pass(depth, confidence, passDepth, passConfidence, rowStart, rowEnd, 1, width, rowSpatialNorms);
+    } else {
+      pass(passDepth, passConfidence, depth, confidence, rowStart, rowEnd, width, height,
+          columnSpatialNorms);
+    }
+  }
+
+  /**
+   * One separable pass. Taps are {@code step} apart in the arrays and {@code length} taps long
+   * along the filtered direction. Holes carry zero confidence, so the tap loop needs no branches.
+   */
+  private void pass(float[] srcDepth, float[] srcConfidence, float[] dstDepth,
+      float[] dstConfidence, int rowStart, int rowEnd, int step, int length, float[] spatialNorms) {
+    final int width = this.width;
+    final int radius = this.radius;
+    final float[] spatial = spatialWeights;
+    final float[] rangeScales = this.rangeScales;
+    final boolean alongRow = step == 1;
+    final int lastRangeIndex = RANGE_LUT.length - 1;
+
+    for (int y = rowStart; y < rowEnd; y++) {
+      for (int x = 0; x < width; x++) {
+        int centre = y * width + x;
+        int position = alongRow ? x : y;
+        int kMin = Math.max(-radius, -position);
+        int kMax = Math.min(radius, length - 1 - position);
+
+        // Holes borrow the reference depth of their most confident neighbour.
+        float reference = srcDepth[centre];
+        if (reference == 0) {
+          float best = 0;
+          for (int k = kMin, j = centre + kMin * step; k <= kMax; k++, j += step) {
+            float weight = srcConfidence[j] * spatial[k + radius];
+            if (weight > best) {
+              best = weight;
+              reference = srcDepth[j];
+            }
+          }
+          if (reference == 0) {
+            dstDepth[centre] = 0;
+            dstConfidence[centre] = 0;
+            continue;
+          }
+        }
+
+        float rangeScale = rangeScales[(int) reference];
+        float weightSum = 0;
+        float depthSum = 0;
+        for (int k = kMin, j = centre + kMin * step; k <= kMax; k++, j += step) {
+          float s = spatial[k + radius];
+          float d = srcDepth[j];
+          int index = Math.min((int) (Math.abs(d - reference) * rangeScale), lastRangeIndex);
+          float weight = s * RANGE_LUT[index] * srcConfidence[j];
+          weightSum += weight;
+          depthSum += weight * d;
+        }
+        float filledConfidence = weightSum * spatialNorms[position];
+        if (srcDepth[centre] == 0 && filledConfidence < MIN_FILL_CONFIDENCE) {
+          dstDepth[centre] = 0;
+          dstConfidence[centre] = 0;
+        } else {
+          dstDepth[centre] = depthSum / weightSum;
+          dstConfidence[centre] = filledConfidence;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void createOnGlThread() {}
+
+  @Override
+  public int filterTexture(int depthTexture, int width, int height, long sequence) {
+    return depthTexture;
+  }
+
+  /** The filter keeps no history. */
+  @Override
+  public void reset() {}
+}
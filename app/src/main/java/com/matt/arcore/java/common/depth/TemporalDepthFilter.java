@@ -0,0 +1,109 @@
+package com.matt.arcore.java.common.depth;
+
+import java.util.Arrays;
+
+/**
+ * CPU implementation of the {@link TemporalFilterSettings} temporal filter. Filters DEPTH16 frames
+ * in place before they are published, so the renderer and shaders see ordinary DEPTH16 data.
+ *
+ * <p>Per-pixel state lives in primitive arrays sized on the first frame; the per-frame path does
+ * not allocate. Frames must come from one thread at a time.
+ */
+public final class TemporalDepthFilter implements DepthFilterStage {
+
+  private static final float[] SAMPLE_WEIGHTS = new float[Depth16Decoder.CONFIDENCE_MASK + 1];
+
+  static {
+    for (int i = 0; i < SAMPLE_WEIGHTS.length; i++) {
+      SAMPLE_WEIGHTS[i] = Math.max(TemporalFilterSettings.MIN_SAMPLE_WEIGHT,
+          Depth16Decoder.confidenceFraction(i));
+    }
+  }
+
+  private final TemporalFilterSettings settings;
+  // Steady state weight of a fully confident pixel is 1 / (1 - decay).
+  private final float normalise;
+
+  private int width;
+  private int height;
+  private float[] estimate = new float[0];
+  private float[] weight = new float[0];
+  private short[] samples = new short[0];
+  private volatile boolean resetPending;
+
+  public TemporalDepthFilter(TemporalFilterSettings settings) {
+    this.settings = settings;
+    this.normalise = 1 - settings.decay;
+  }
+
+  @Override
+  public void filterFrame(DepthFrame frame) {
+    int pixels = frame.width * frame.height;
+    if (frame.width != width || frame.height != height) {
+      width = frame.width;
+      height = frame.height;
+      estimate = new float[pixels];
+      weight = new float[pixels];
+      samples = new short[pixels];
+    } else if (resetPending) {
+      Arrays.fill(weight, 0);
+    }
+    resetPending = false;
+
+    frame.samples.clear();
+    frame.samples.get(samples, 0, pixels);
+    filter(samples, pixels);
+    frame.samples.clear();
+    frame.samples.put(samples, 0, pixels);
+    frame.samples.clear();
+  }
+
+  private void filter(short[] samples, int pixels) {
+    final float[] estimate = this.estimate;
+    final float[] weight = this.weight;
+    final float decay = settings.decay;
+    final float discontinuityMm = settings.discontinuityMm;
+    final float discontinuityRelative = settings.discontinuityRelative;
+    final float minOutput = settings.minOutputConfidence;
+    final float normalise = this.normalise;
+
+    for (int i = 0; i < pixels; i++) {
+      int raw = samples[i];
+      int depth = raw & Depth16Decoder.DEPTH_MASK;
+      float est = estimate[i];
+      float w = weight[i] * decay;
+      if (depth != 0 && depth < Depth16Decoder.MAX_RANGE_MM) {
+        float c = SAMPLE_WEIGHTS[(raw >> Depth16Decoder.CONFIDENCE_SHIFT) & Depth16Decoder.CONFIDENCE_MASK];
+        float diff = depth - est;
+        if (w < 1e-4f || Math.abs(diff) > Math.max(discontinuityMm, discontinuityRelative * est)) {
+          est = depth;
+          w = c;
+        } else {
+          w += c;
+          est += diff * c / w;
+        }
+        estimate[i] = est;
+      }
+      weight[i] = w;
+
+      float confidence = w * normalise;
+      samples[i] = confidence >= minOutput
+          ? (short) ((int) (est + 0.5f)
+              | Depth16Decoder.confidenceCode(confidence) << Depth16Decoder.CONFIDENCE_SHIFT)
+          : 0;
+    }
+  }
+
+  @Override
+  public void createOnGlThread() {}
+
+  @Override
+  public int filterTexture(int depthTexture, int width, int height, long sequence) {
+    return depthTexture;
+  }
+
+  @Override
+  public void reset() {
+    resetPending = true;
+  }
+}
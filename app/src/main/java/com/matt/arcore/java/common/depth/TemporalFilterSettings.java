@@ -0,0 +1,39 @@
+package com.matt.arcore.java.common.depth;
+
+/**
+ * Parameters shared by the CPU and GPU temporal depth filters.
+ *
+ * <p>Each pixel keeps a running estimate and an accumulated weight. Every frame the weight decays
+ * by {@link #decay}, then a valid sample is blended in with a weight equal to its confidence. A
+ * sample further from the estimate than the discontinuity threshold restarts the pixel from that
+ * sample, so edges and moving objects do not smear. The output confidence is the accumulated
+ * weight normalised to the steady state of a fully confident pixel.
+ */
+public final class TemporalFilterSettings {
+
+  public static final TemporalFilterSettings DEFAULT =
+      new TemporalFilterSettings(0.8f, 80.0f, 0.05f, 0.1f);
+
+  // Weight of a sample with 0% confidence, so such samples still end holes.
+  static final float MIN_SAMPLE_WEIGHT = 1.0f / 16;
+
+  /** Fraction of the accumulated weight kept from one frame to the next, in [0, 1). */
+  public final float decay;
+  /** Differences up to this many millimetres are always smoothed. */
+  public final float discontinuityMm;
+  /** Differences up to this fraction of the estimate are smoothed. */
+  public final float discontinuityRelative;
+  /** Pixels with a normalised weight below this are output as holes. */
+  public final float minOutputConfidence;
+
+  public TemporalFilterSettings(
+      float decay, float discontinuityMm, float discontinuityRelative, float minOutputConfidence) {
+    if (!(decay >= 0 && decay < 1)) {
+      throw new IllegalArgumentException("decay must be in [0, 1), got " + decay);
+    }
+    this.decay = decay;
+    this.discontinuityMm = discontinuityMm;
+    this.discontinuityRelative = discontinuityRelative;
+    this.minOutputConfidence = minOutputConfidence;
+  }
+}
@@ -11,6 +11,8 @@ import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
+import com.matt.arcore.java.common.image.BufferUtils;
+
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -23,7 +25,6 @@ import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Random;
 
@@ -54,62 +55,23 @@ public class MiscUtils {
 
     public static byte [] ShortToByte(short [] input)
     {
-        int index;
-        int iterations = input.length;
-
-        ByteBuffer bb = ByteBuffer.allocate(input.length * 2);
-
-        for(index = 0; index != iterations; ++index)
-        {
-            bb.putShort(input[index]);
-        }
-
-        return bb.array();
+        return BufferUtils.ShortToByte(input);
     }
 
 
 
     public static int[] IntBuftoArray(IntBuffer b) {
-        if(b.hasArray()) {
-            if(b.arrayOffset() == 0)
-                return b.array();
-
-            return Arrays.copyOfRange(b.array(), b.arrayOffset(), b.array().length);
-        }
-
-        b.rewind();
-        int[] foo = new int[b.remaining()];
-        b.get(foo);
-
-        return foo;
+        return BufferUtils.IntBuftoArray(b);
     }
 
 
     // create a direct clone of a ByteBuffer
     public static ByteBuffer byteBufferCloneDirect(ByteBuffer original) {
-        ByteBuffer clone = ByteBuffer.allocateDirect(original.capacity());
-        original.rewind();//copy from the beginning
-        clone.put(original);
-        original.rewind();
-        clone.flip();
-        return clone;
+        return BufferUtils.byteBufferCloneDirect(original);
     }
 
     public static FloatBuffer cloneFloatBuffer(FloatBuffer original) {
-        final ByteBuffer byteClone = (original.isDirect()) ?
-                //multiplying by 4 and adding 3 so the capacity is the same
-                //when converted to FloatBuffer
-                ByteBuffer.allocateDirect(original.capacity() *4 + 3) :
-                ByteBuffer.allocate(original.capacity() * 4 + 3);
-
-        final FloatBuffer clone = byteClone.asFloatBuffer();
-        final FloatBuffer readOnlyCopy = original.asReadOnlyBuffer();
-
-        readOnlyCopy.rewind();
-        clone.put(readOnlyCopy);
-        clone.position(original.position());
-        clone.limit(original.limit());
-        return clone;
+        return BufferUtils.cloneFloatBuffer(original);
     }
 
 
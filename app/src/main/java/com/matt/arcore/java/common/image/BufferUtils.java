@@ -0,0 +1,70 @@
+package com.matt.arcore.java.common.image;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * NIO buffer copy helpers, free of Android dependencies. {@link
+ * com.matt.arcore.java.common.helpers.MiscUtils} delegates here.
+ */
+public final class BufferUtils {
+
+  private BufferUtils() {}
+
+  public static byte[] ShortToByte(short[] input) {
+    int index;
+    int iterations = input.length;
+
+    ByteBuffer bb = ByteBuffer.allocate(input.length * 2);
+
+    for (index = 0; index != iterations; ++index) {
+      bb.putShort(input[index]);
+    }
+
+    return bb.array();
+  }
+
+  public static int[] IntBuftoArray(IntBuffer b) {
+    if (b.hasArray()) {
+      if (b.arrayOffset() == 0)
+        return b.array();
+
+      return Arrays.copyOfRange(b.array(), b.arrayOffset(), b.array().length);
+    }
+
+    b.rewind();
+    int[] foo = new int[b.remaining()];
+    b.get(foo);
+
+    return foo;
+  }
+
+  // create a direct clone of a ByteBuffer
+  public static ByteBuffer byteBufferCloneDirect(ByteBuffer original) {
+    ByteBuffer clone = ByteBuffer.allocateDirect(original.capacity());
+    original.rewind();//copy from the beginning
+    clone.put(original);
+    original.rewind();
+    clone.flip();
+    return clone;
+  }
+
+  public static FloatBuffer cloneFloatBuffer(FloatBuffer original) {
+    final ByteBuffer byteClone = (original.isDirect()) ?
+        //multiplying by 4 and adding 3 so the capacity is the same
+        //when converted to FloatBuffer
+        ByteBuffer.allocateDirect(original.capacity() * 4 + 3) :
+        ByteBuffer.allocate(original.capacity() * 4 + 3);
+
+    final FloatBuffer clone = byteClone.asFloatBuffer();
+    final FloatBuffer readOnlyCopy = original.asReadOnlyBuffer();
+
+    readOnlyCopy.rewind();
+    clone.put(readOnlyCopy);
+    clone.position(original.position());
+    clone.limit(original.limit());
+    return clone;
+  }
+}
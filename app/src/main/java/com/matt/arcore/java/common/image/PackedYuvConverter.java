@@ -0,0 +1,91 @@
+package com.matt.arcore.java.common.image;
+
+/**
+ * Table-driven YUV420SP (NV21) to ARGB_8888 conversion computing all three channels of a pixel with
+ * one 64 bit add.
+ *
+ * <p>The red, green and blue sums of {@link YuvConverter#YUV2RGB} are packed SWAR style into three
+ * 21 bit lanes of a long, each offset by {@link #BIAS} so it stays non-negative and never carries
+ * into its neighbour. The chroma contribution of a 2x2 block is packed once and shared by its four
+ * pixels, and each inner iteration writes two pixels of both rows of the block. Output is
+ * bit-identical to {@link YuvConverter#convertYUV420SPToARGB8888}.
+ */
+public final class PackedYuvConverter {
+
+  private static final int LANE_BITS = 21;
+  private static final int LANE_MASK = (1 << LANE_BITS) - 1;
+  private static final int G_SHIFT = LANE_BITS;
+  private static final int R_SHIFT = 2 * LANE_BITS;
+
+  // Largest lane sum is 1192 * 239 + 2066 * 127 = 547270 and the smallest 2066 * -128 = -264448,
+  // so a 2^19 offset keeps every lane within [0, 2^21).
+  private static final int BIAS = 1 << 19;
+  private static final long BIASES = ((long) BIAS << R_SHIFT) + ((long) BIAS << G_SHIFT) + BIAS;
+
+  // Y term replicated into all three lanes.
+  private static final long[] Y_LANES = new long[256];
+  // V terms in the red and green lanes, plus the lane offsets.
+  private static final long[] V_LANES = new long[256];
+  // U terms in the green and blue lanes.
+  private static final long[] U_LANES = new long[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      long y = YuvTables.Y[i];
+      Y_LANES[i] = (y << R_SHIFT) + (y << G_SHIFT) + y;
+      V_LANES[i] = ((long) YuvTables.V_R[i] << R_SHIFT) + ((long) YuvTables.V_G[i] << G_SHIFT) + BIASES;
+      U_LANES[i] = ((long) YuvTables.U_G[i] << G_SHIFT) + YuvTables.U_B[i];
+    }
+  }
+
+  private PackedYuvConverter() {}
+
+  /** Same arguments and layout as {@link YuvConverter#convertYUV420SPToARGB8888}. */
+  public static void convertYUV420SPToARGB8888(byte[] input, int width, int height, int[] output) {
+    final int frameSize = width * height;
+    final long[] yLanes = Y_LANES;
+    int j = 0;
+    for (; j + 1 < height; j += 2) {
+      final int uvp = frameSize + (j >> 1) * width;
+      final int row0 = j * width;
+      final int row1 = row0 + width;
+      int i = 0;
+      for (; i + 1 < width; i += 2) {
+        final long chroma = chroma(input, uvp + i);
+        output[row0 + i] = unpack(yLanes[0xff & input[row0 + i]] + chroma);
+        output[row0 + i + 1] = unpack(yLanes[0xff & input[row0 + i + 1]] + chroma);
+        output[row1 + i] = unpack(yLanes[0xff & input[row1 + i]] + chroma);
+        output[row1 + i + 1] = unpack(yLanes[0xff & input[row1 + i + 1]] + chroma);
+      }
+      if (i < width) {
+        final long chroma = chroma(input, uvp + i);
+        output[row0 + i] = unpack(yLanes[0xff & input[row0 + i]] + chroma);
+        output[row1 + i] = unpack(yLanes[0xff & input[row1 + i]] + chroma);
+      }
+    }
+    if (j < height) {
+      // Last row of an odd height frame.
+      final int uvp = frameSize + (j >> 1) * width;
+      final int row0 = j * width;
+      for (int i = 0; i < width; i += 2) {
+        final long chroma = chroma(input, uvp + i);
+        output[row0 + i] = unpack(yLanes[0xff & input[row0 + i]] + chroma);
+        if (i + 1 < width) {
+          output[row0 + i + 1] = unpack(yLanes[0xff & input[row0 + i + 1]] + chroma);
+        }
+      }
+    }
+  }
+
+  // NV21 stores V before U.
+  private static long chroma(byte[] input, int uvIndex) {
+    return V_LANES[0xff & input[uvIndex]] + U_LANES[0xff & input[uvIndex + 1]];
+  }
+
+  private static int unpack(long lanes) {
+    return YuvTables.pack(
+        ((int) (lanes >>> R_SHIFT) & LANE_MASK) - BIAS,
+        ((int) (lanes >>> G_SHIFT) & LANE_MASK) - BIAS,
+        ((int) lanes & LANE_MASK) - BIAS);
+  }
+}
@@ -0,0 +1,127 @@
+package com.matt.arcore.java.common.image;
+
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import java.nio.ByteBuffer;
+
+/**
+ * Row-band parallel YUV_420_888 to ARGB_8888 conversion reading the camera planes in place.
+ *
+ * <p>Output is bit-identical to {@link YuvConverter#convertYUV420ToARGB8888}. Pixels are computed
+ * from {@link YuvTables} with branchless clamping, and each band of rows runs on a {@link
+ * RowBandExecutor} thread. The planes are read with absolute gets, so direct {@code
+ * Image.Plane} buffers need no byte[] copy and their positions are left untouched. A converter
+ * serializes its own calls and does not allocate per frame.
+ */
+public final class ParallelYuvConverter implements RowBandExecutor.RowBandTask {
+
+  private final RowBandExecutor executor;
+
+  // Arguments of the conversion in progress, read by the band tasks.
+  private ByteBuffer yPlane;
+  private ByteBuffer uPlane;
+  private ByteBuffer vPlane;
+  private int width;
+  private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
+  private int[] out;
+  // Wraps of the heap arrays of the last byte[] call, reused while the caller passes the same arrays.
+  private ByteBuffer yWrap;
+  private ByteBuffer uWrap;
+  private ByteBuffer vWrap;
+
+  public ParallelYuvConverter(RowBandExecutor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Converts one frame. Strides are those reported by the planes' {@code getRowStride()} and
+   * {@code getPixelStride()}; the Y pixel stride is assumed to be 1 as guaranteed for
+   * YUV_420_888.
+   *
+   * @param out width * height ARGB_8888 pixels, rows tightly packed.
+   */
+  public synchronized void convertYUV420ToARGB8888(
+      ByteBuffer yPlane,
+      ByteBuffer uPlane,
+      ByteBuffer vPlane,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    if (out.length < width * height) {
+      throw new IllegalArgumentException("Output smaller than " + width + "x" + height);
+    }
+    this.yPlane = yPlane;
+    this.uPlane = uPlane;
+    this.vPlane = vPlane;
+    this.width = width;
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+    this.out = out;
+    try {
+      executor.execute(height, this);
+    } finally {
+      this.yPlane = null;
+      this.uPlane = null;
+      this.vPlane = null;
+      this.out = null;
+    }
+  }
+
+  /**
+   * Heap array variant with the same arguments as {@link YuvConverter#convertYUV420ToARGB8888}.
+   * Wrapping the arrays allocates only when they differ from those of the previous call.
+   */
+  public synchronized void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    yWrap = wrap(yData, yWrap);
+    uWrap = wrap(uData, uWrap);
+    vWrap = wrap(vData, vWrap);
+    convertYUV420ToARGB8888(
+        yWrap, uWrap, vWrap, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+  }
+
+  private static ByteBuffer wrap(byte[] data, ByteBuffer wrapped) {
+    return wrapped != null && wrapped.array() == data ? wrapped : ByteBuffer.wrap(data);
+  }
+
+  @Override
+  public void run(int rowStart, int rowEnd) {
+    final ByteBuffer yPlane = this.yPlane;
+    final ByteBuffer uPlane = this.uPlane;
+    final ByteBuffer vPlane = this.vPlane;
+    final int[] out = this.out;
+    final int width = this.width;
+    final int uvPixelStride = this.uvPixelStride;
+    final int[] yTable = YuvTables.Y;
+    final int[] vrTable = YuvTables.V_R;
+    final int[] vgTable = YuvTables.V_G;
+    final int[] ugTable = YuvTables.U_G;
+    final int[] ubTable = YuvTables.U_B;
+
+    for (int j = rowStart; j < rowEnd; j++) {
+      int pY = yRowStride * j;
+      int pUV = uvRowStride * (j >> 1);
+      int yp = j * width;
+      for (int i = 0; i < width; i++) {
+        int uvOffset = pUV + (i >> 1) * uvPixelStride;
+        int y = yTable[0xff & yPlane.get(pY + i)];
+        int u = 0xff & uPlane.get(uvOffset);
+        int v = 0xff & vPlane.get(uvOffset);
+        out[yp + i] = YuvTables.pack(y + vrTable[v], y + vgTable[v] + ugTable[u], y + ubTable[u]);
+      }
+    }
+  }
+}
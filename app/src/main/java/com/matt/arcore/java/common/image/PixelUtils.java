@@ -0,0 +1,29 @@
+package com.matt.arcore.java.common.image;
+
+/** Pixel layout helpers shared by GL readback code, free of Android dependencies. */
+public final class PixelUtils {
+
+  private PixelUtils() {}
+
+  /**
+   * Converts pixels read with glReadPixels(GL_RGBA, GL_UNSIGNED_BYTE) into an Android ARGB_8888
+   * bitmap layout: swaps the red and blue channels and flips the rows, since GL's origin is the
+   * bottom left corner.
+   *
+   * @param src w * h pixels as returned by glReadPixels into an int array.
+   * @param dst w * h output pixels, must not alias {@code src}.
+   */
+  public static void glRgbaToArgbFlipped(int[] src, int[] dst, int w, int h) {
+    for (int i = 0, k = 0; i < h; i++, k++) {
+      //remember, that OpenGL bitmap is incompatible with Android bitmap
+      //and so, some correction need.
+      for (int j = 0; j < w; j++) {
+        int pix = src[i * w + j];
+        int pb = (pix >> 16) & 0xff;
+        int pr = (pix << 16) & 0x00ff0000;
+        int pix1 = (pix & 0xff00ff00) | pr | pb;
+        dst[(h - k - 1) * w + j] = pix1;
+      }
+    }
+  }
+}
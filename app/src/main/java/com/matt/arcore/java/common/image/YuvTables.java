@@ -0,0 +1,48 @@
+package com.matt.arcore.java.common.image;
+
+/**
+ * Per-channel lookup tables for {@link YuvConverter#YUV2RGB}. Each table holds one term of the
+ * fixed point conversion for every 8 bit input, so a pixel costs table loads and adds instead of
+ * multiplies. Sums of the terms are bit-identical to the arithmetic in YUV2RGB.
+ */
+final class YuvTables {
+
+  // 1192 * max(y - 16, 0)
+  static final int[] Y = new int[256];
+  // 1634 * (v - 128), the red chroma term.
+  static final int[] V_R = new int[256];
+  // -833 * (v - 128), the green chroma term from V.
+  static final int[] V_G = new int[256];
+  // -400 * (u - 128), the green chroma term from U.
+  static final int[] U_G = new int[256];
+  // 2066 * (u - 128), the blue chroma term.
+  static final int[] U_B = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      Y[i] = 1192 * Math.max(i - 16, 0);
+      V_R[i] = 1634 * (i - 128);
+      V_G[i] = -833 * (i - 128);
+      U_G[i] = -400 * (i - 128);
+      U_B[i] = 2066 * (i - 128);
+    }
+  }
+
+  private YuvTables() {}
+
+  /** Branchless clamp to [0, kMaxChannelValue]. */
+  static int clamp(int x) {
+    // Negative values become 0.
+    x &= ~(x >> 31);
+    // Values above the maximum become all ones, then the mask leaves exactly the maximum.
+    return (x | ((YuvConverter.kMaxChannelValue - x) >> 31)) & YuvConverter.kMaxChannelValue;
+  }
+
+  /** Packs clamped 18 bit channels into ARGB_8888 exactly like YUV2RGB. */
+  static int pack(int r, int g, int b) {
+    r = clamp(r);
+    g = clamp(g);
+    b = clamp(b);
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+}
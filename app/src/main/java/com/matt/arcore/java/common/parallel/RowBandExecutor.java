@@ -0,0 +1,166 @@
+package com.matt.arcore.java.common.parallel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed pool of worker threads that splits an image-shaped job into horizontal row bands.
+ *
+ * <p>{@link #execute(int, RowBandTask)} blocks until every band has run; the calling thread works
+ * on bands too. Workers are parked between jobs and woken directly, so dispatching a job does not
+ * allocate. Jobs are serialized, and a task must not call {@link #execute} on the executor that
+ * runs it.
+ */
+public final class RowBandExecutor {
+
+  /** Processes rows {@code [rowStart, rowEnd)}. Called concurrently for disjoint bands. */
+  public interface RowBandTask {
+    void run(int rowStart, int rowEnd);
+  }
+
+  // Bands per participating thread, more bands even out uneven per-row cost.
+  private static final int BANDS_PER_THREAD = 4;
+  // Value of nextBand while no job is open, so late workers claim nothing.
+  private static final int CLOSED = Integer.MAX_VALUE / 2;
+
+  private static RowBandExecutor shared;
+
+  private final Worker[] workers;
+
+  // Current job, published to the workers by the volatile write of generation.
+  private RowBandTask task;
+  private int rows;
+  private int bandCount;
+  private Thread caller;
+  private volatile long generation;
+  private volatile boolean shutdown;
+
+  private final AtomicInteger nextBand = new AtomicInteger(CLOSED);
+  private final AtomicInteger remainingBands = new AtomicInteger();
+  private volatile Throwable failure;
+
+  /**
+   * @param parallelism total number of threads working on a job, including the caller.
+   * @param name prefix for the worker thread names.
+   */
+  public RowBandExecutor(int parallelism, String name) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1, got " + parallelism);
+    }
+    workers = new Worker[parallelism - 1];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker(name + "-" + i);
+      workers[i].start();
+    }
+  }
+
+  /** Process wide executor using one thread per available processor. */
+  public static synchronized RowBandExecutor shared() {
+    if (shared == null) {
+      shared = new RowBandExecutor(Runtime.getRuntime().availableProcessors(), "RowBandWorker");
+    }
+    return shared;
+  }
+
+  public int getParallelism() {
+    return workers.length + 1;
+  }
+
+  /**
+   * Runs {@code task} over {@code rows} rows split into bands and waits for it to finish. An
+   * exception thrown by any band is rethrown here once all bands have completed.
+   */
+  public synchronized void execute(int rows, RowBandTask task) {
+    if (shutdown) {
+      throw new IllegalStateException("RowBandExecutor was shut down");
+    }
+    if (rows <= 0) {
+      return;
+    }
+    int bands = Math.min(rows, getParallelism() * BANDS_PER_THREAD);
+    if (workers.length == 0 || bands == 1) {
+      task.run(0, rows);
+      return;
+    }
+
+    this.task = task;
+    this.rows = rows;
+    this.bandCount = bands;
+    this.caller = Thread.currentThread();
+    this.failure = null;
+    remainingBands.set(bands);
+    // Opens the job; the job fields above are visible to any thread that claims a band.
+    nextBand.set(0);
+    generation++;
+    for (Worker worker : workers) {
+      LockSupport.unpark(worker);
+    }
+
+    runBands();
+    while (remainingBands.get() > 0) {
+      LockSupport.park(this);
+    }
+    nextBand.set(CLOSED);
+
+    this.task = null;
+    this.caller = null;
+    Throwable error = failure;
+    if (error != null) {
+      failure = null;
+      if (error instanceof RuntimeException) {
+        throw (RuntimeException) error;
+      }
+      if (error instanceof Error) {
+        throw (Error) error;
+      }
+      throw new RuntimeException(error);
+    }
+  }
+
+  /** Stops the worker threads. Further calls to {@link #execute} throw. */
+  public void shutdown() {
+    shutdown = true;
+    for (Worker worker : workers) {
+      LockSupport.unpark(worker);
+    }
+  }
+
+  private void runBands() {
+    int band;
+    while ((band = nextBand.getAndIncrement()) < bandCount) {
+      try {
+        task.run(
+            (int) ((long) band * rows / bandCount), (int) ((long) (band + 1) * rows / bandCount));
+      } catch (Throwable t) {
+        if (failure == null) {
+          failure = t;
+        }
+      }
+      if (remainingBands.decrementAndGet() == 0) {
+        LockSupport.unpark(caller);
+      }
+    }
+  }
+
+  private final class Worker extends Thread {
+    private long seenGeneration;
+
+    Worker(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (!shutdown) {
+        long current = generation;
+        if (current == seenGeneration) {
+          LockSupport.park(RowBandExecutor.this);
+          continue;
+        }
+        seenGeneration = current;
+        runBands();
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.matt.arcore.java.common.profiling;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, for percentiles of per-frame timings.
+ *
+ * <p>Buckets are log-linear: exact below 16 ns, then 16 sub-buckets per power of two, so any
+ * reported percentile is within about 6% of the recorded value. Values of 2^40 ns (18 minutes) and
+ * above land in the last bucket. {@link #record} may be called from any number of threads;
+ * snapshots taken concurrently may miss the latest values but never block writers.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Adds one duration, negative values count as 0. */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(bucketOf(nanos));
+    sum.addAndGet(nanos);
+    long current;
+    while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+      // Retry until no larger value raced in.
+    }
+  }
+
+  /** Clears all counts. Values recorded during the reset may survive it. */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    sum.set(0);
+    max.set(0);
+  }
+
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      copy[i] = counts.get(i);
+      count += copy[i];
+    }
+    return new Snapshot(name, copy, count, sum.get(), max.get());
+  }
+
+  static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Largest value that falls into {@code bucket}. */
+  static long bucketUpperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+  /** Immutable view of a histogram at one point in time. */
+  public static final class Snapshot {
+    private final String name;
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(String name, long[] counts, long count, long sum, long max) {
+      this.name = name;
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getMeanNanos() {
+      return count > 0 ? sum / count : 0;
+    }
+
+    public long getMaxNanos() {
+      return max;
+    }
+
+    /**
+     * Upper bound of the bucket holding the value at {@code percentile} (0 to 100), never more than
+     * the maximum. 0 when empty.
+     */
+    public long getPercentileNanos(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(bucketUpperBound(i), max);
+        }
+      }
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "%s: n=%d mean=%.2f p50=%.2f p95=%.2f p99=%.2f max=%.2f ms",
+          name, count, getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+          getPercentileNanos(95) / 1e6, getPercentileNanos(99) / 1e6, max / 1e6);
+    }
+  }
+}
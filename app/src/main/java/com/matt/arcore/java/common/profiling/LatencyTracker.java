@@ -0,0 +1,225 @@
+package com.matt.arcore.java.common.profiling;
+
+import com.matt.arcore.java.common.depth.DepthFrame;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end latency of depth frames, from the sensor timestamp to the frame that shows them.
+ *
+ * <p>Each depth frame is stamped on arrival and publish by its {@link DepthFrame} producer; the
+ * renderer reports when it uploaded it and the render loop reports each presented frame through
+ * {@link #onPresented}. Per stage latencies go into {@link LatencyHistogram}s, together with the
+ * skew between the presented depth and the color frame it is drawn over. The most recent
+ * presentations are kept in a fixed ring for {@link #writeCsv}.
+ *
+ * <p>All stamps except the sensor and color timestamps are {@link System#nanoTime()}. Sensor
+ * timestamps are only converted when their clock is known, see {@link #setSensorClockOffset}.
+ * {@link #onPresented} belongs to the render thread, the readers may run on any thread.
+ */
+public class LatencyTracker {
+
+  /** Latency stages of a presented depth frame. */
+  public enum Stage {
+    // Sensor exposure timestamp to the producer callback, needs a known sensor clock.
+    SENSOR_TO_ARRIVAL("sensor to arrival"),
+    ARRIVAL_TO_PUBLISH("arrival to publish"),
+    PUBLISH_TO_UPLOAD("publish to upload"),
+    // Upload to the first presented frame that used it.
+    UPLOAD_TO_PRESENT("upload to present"),
+    // Age of the depth on every presented frame, including repeats; needs a known sensor clock.
+    SENSOR_TO_PRESENT("sensor to present");
+
+    public final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+  }
+
+  private static final String CSV_HEADER = "present_ns,color_timestamp_ns,depth_sequence,"
+      + "depth_timestamp_ns,arrival_ns,publish_ns,upload_ns,first_present\n";
+  private static final int CSV_FIELDS = 8;
+
+  private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+  private final LatencyHistogram skew = new LatencyHistogram("depth to color skew");
+  private final AtomicLong depthOlderCount = new AtomicLong();
+  private final AtomicLong depthNewerCount = new AtomicLong();
+
+  private volatile boolean sensorClockKnown;
+  private volatile long sensorClockOffset;
+  private long lastPresentedSequence;
+
+  private final long[] rows;
+  private final int capacity;
+  private int nextRow;
+  private int rowCount;
+
+  /** @param csvCapacity presentations kept for {@link #writeCsv}, the oldest are overwritten. */
+  public LatencyTracker(int csvCapacity) {
+    if (csvCapacity <= 0) {
+      throw new IllegalArgumentException("Invalid CSV capacity " + csvCapacity);
+    }
+    for (Stage stage : Stage.values()) {
+      stages[stage.ordinal()] = new LatencyHistogram(stage.label);
+    }
+    capacity = csvCapacity;
+    rows = new long[csvCapacity * CSV_FIELDS];
+  }
+
+  /**
+   * Declares sensor timestamps to be {@code System.nanoTime() + offsetNanos}. For a camera with
+   * SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME that is elapsedRealtimeNanos() - nanoTime(). Until
+   * called, the stages starting at the sensor timestamp are not recorded.
+   */
+  public void setSensorClockOffset(long offsetNanos) {
+    sensorClockOffset = offsetNanos;
+    sensorClockKnown = true;
+  }
+
+  /**
+   * Records a presented frame.
+   *
+   * @param depthFrame the depth frame drawn, null to skip the frame.
+   * @param uploadNanos when the renderer uploaded {@code depthFrame}.
+   * @param presentNanos when the frame was handed to the display, just before the buffer swap.
+   * @param colorTimestamp sensor timestamp of the color frame drawn with it, 0 if unknown.
+   */
+  public void onPresented(DepthFrame depthFrame, long uploadNanos, long presentNanos, long colorTimestamp) {
+    if (depthFrame == null || depthFrame.getSequence() == 0) {
+      return;
+    }
+    long sequence = depthFrame.getSequence();
+    long depthTimestamp = depthFrame.getTimestamp();
+    long arrival = depthFrame.getArrivalNanos();
+    long publish = depthFrame.getPublishNanos();
+    boolean first = sequence != lastPresentedSequence;
+    lastPresentedSequence = sequence;
+
+    if (first) {
+      if (arrival != 0) {
+        record(Stage.ARRIVAL_TO_PUBLISH, publish - arrival);
+      }
+      record(Stage.PUBLISH_TO_UPLOAD, uploadNanos - publish);
+      record(Stage.UPLOAD_TO_PRESENT, presentNanos - uploadNanos);
+    }
+    if (sensorClockKnown) {
+      long sensorNanos = depthTimestamp - sensorClockOffset;
+      if (first && arrival != 0) {
+        record(Stage.SENSOR_TO_ARRIVAL, arrival - sensorNanos);
+      }
+      record(Stage.SENSOR_TO_PRESENT, presentNanos - sensorNanos);
+    }
+    if (colorTimestamp != 0) {
+      long delta = colorTimestamp - depthTimestamp;
+      skew.record(Math.abs(delta));
+      if (delta > 0) {
+        depthOlderCount.incrementAndGet();
+      } else if (delta < 0) {
+        depthNewerCount.incrementAndGet();
+      }
+    }
+
+    synchronized (rows) {
+      int base = nextRow * CSV_FIELDS;
+      rows[base] = presentNanos;
+      rows[base + 1] = colorTimestamp;
+      rows[base + 2] = sequence;
+      rows[base + 3] = depthTimestamp;
+      rows[base + 4] = arrival;
+      rows[base + 5] = publish;
+      rows[base + 6] = uploadNanos;
+      rows[base + 7] = first ? 1 : 0;
+      nextRow = (nextRow + 1) % capacity;
+      rowCount = Math.min(rowCount + 1, capacity);
+    }
+  }
+
+  private void record(Stage stage, long nanos) {
+    stages[stage.ordinal()].record(nanos);
+  }
+
+  public LatencyHistogram getHistogram(Stage stage) {
+    return stages[stage.ordinal()];
+  }
+
+  /** Absolute difference between the color and depth timestamps of each presented frame. */
+  public LatencyHistogram getSkewHistogram() {
+    return skew;
+  }
+
+  /** Presented frames whose depth was captured before their color frame. */
+  public long getDepthOlderCount() {
+    return depthOlderCount.get();
+  }
+
+  /** Presented frames whose depth was captured after their color frame. */
+  public long getDepthNewerCount() {
+    return depthNewerCount.get();
+  }
+
+  public void reset() {
+    for (LatencyHistogram histogram : stages) {
+      histogram.reset();
+    }
+    skew.reset();
+    depthOlderCount.set(0);
+    depthNewerCount.set(0);
+    synchronized (rows) {
+      nextRow = 0;
+      rowCount = 0;
+    }
+  }
+
+  /** Depth age and skew percentiles in two lines, for an overlay. */
+  public String summary() {
+    LatencyHistogram.Snapshot age = getHistogram(sensorClockKnown ? Stage.SENSOR_TO_PRESENT
+        : Stage.UPLOAD_TO_PRESENT).snapshot();
+    LatencyHistogram.Snapshot skewSnapshot = skew.snapshot();
+    return String.format(Locale.US, "%s p50 %.1f p95 %.1f ms\nskew p50 %.1f p95 %.1f ms, depth older %d newer %d",
+        age.getName(), age.getPercentileNanos(50) / 1e6, age.getPercentileNanos(95) / 1e6,
+        skewSnapshot.getPercentileNanos(50) / 1e6, skewSnapshot.getPercentileNanos(95) / 1e6,
+        depthOlderCount.get(), depthNewerCount.get());
+  }
+
+  /** Every histogram with count, mean, p50, p95, p99 and max, one per line. */
+  public String dump() {
+    StringBuilder sb = new StringBuilder();
+    for (LatencyHistogram histogram : stages) {
+      sb.append(histogram.snapshot()).append('\n');
+    }
+    sb.append(skew.snapshot()).append(", depth older ").append(depthOlderCount.get())
+        .append(" newer ").append(depthNewerCount.get()).append('\n');
+    return sb.toString();
+  }
+
+  /** Writes the retained presentations, oldest first, as CSV with a header line. */
+  public void writeCsv(Writer writer) throws IOException {
+    long[] copy;
+    int count;
+    int first;
+    synchronized (rows) {
+      copy = rows.clone();
+      count = rowCount;
+      first = (nextRow - rowCount + capacity) % capacity;
+    }
+    writer.write(CSV_HEADER);
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      int base = ((first + i) % capacity) * CSV_FIELDS;
+      line.setLength(0);
+      for (int field = 0; field < CSV_FIELDS; field++) {
+        if (field > 0) {
+          line.append(',');
+        }
+        line.append(copy[base + field]);
+      }
+      line.append('\n');
+      writer.write(line.toString());
+    }
+    writer.flush();
+  }
+}
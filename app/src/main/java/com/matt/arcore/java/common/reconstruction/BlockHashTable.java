@@ -0,0 +1,135 @@
+package com.matt.arcore.java.common.reconstruction;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from packed block coordinates to block slots.
+ *
+ * <p>Linear probing over parallel key and value arrays, so lookups and inserts do not allocate.
+ * Removal shifts the following entries of the probe run back instead of leaving tombstones, which
+ * keeps probe runs short while blocks are allocated and evicted all the time. Keys are never
+ * negative, see {@link #key}. Not thread safe.
+ */
+final class BlockHashTable {
+
+  private static final long EMPTY = -1;
+  // Each axis gets 21 bits, two's complement, so blocks within +-2^20 of the origin are distinct.
+  private static final int AXIS_BITS = 21;
+  private static final long AXIS_MASK = (1L << AXIS_BITS) - 1;
+
+  private long[] keys;
+  private int[] values;
+  private int mask;
+  private int size;
+
+  BlockHashTable(int expectedSize) {
+    int capacity = 16;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  /** Packs block coordinates into a non-negative key. */
+  static long key(int x, int y, int z) {
+    return ((x & AXIS_MASK) << (2 * AXIS_BITS)) | ((y & AXIS_MASK) << AXIS_BITS) | (z & AXIS_MASK);
+  }
+
+  static int x(long key) {
+    return (int) (key << (64 - 3 * AXIS_BITS) >> (64 - AXIS_BITS));
+  }
+
+  static int y(long key) {
+    return (int) (key << (64 - 2 * AXIS_BITS) >> (64 - AXIS_BITS));
+  }
+
+  static int z(long key) {
+    return (int) (key << (64 - AXIS_BITS) >> (64 - AXIS_BITS));
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Slot stored for {@code key}, or -1. */
+  int get(long key) {
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      long k = keys[i];
+      if (k == key) {
+        return values[i];
+      }
+      if (k == EMPTY) {
+        return -1;
+      }
+    }
+  }
+
+  void put(long key, int value) {
+    if ((size + 1) * 2 > keys.length) {
+      rehash(keys.length * 2);
+    }
+    int i = hash(key) & mask;
+    while (keys[i] != EMPTY && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    if (keys[i] == EMPTY) {
+      size++;
+    }
+    keys[i] = key;
+    values[i] = value;
+  }
+
+  /** Removes {@code key} and returns its slot, or -1 if it was absent. */
+  int remove(long key) {
+    int i = hash(key) & mask;
+    while (keys[i] != key) {
+      if (keys[i] == EMPTY) {
+        return -1;
+      }
+      i = (i + 1) & mask;
+    }
+    int removed = values[i];
+    size--;
+    // Move later entries of the run into the gap unless that would put them before their home.
+    int gap = i;
+    for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+      int home = hash(keys[j]) & mask;
+      if (((j - home) & mask) >= ((j - gap) & mask)) {
+        keys[gap] = keys[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+    }
+    keys[gap] = EMPTY;
+    return removed;
+  }
+
+  void clear() {
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    mask = capacity - 1;
+    size = 0;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
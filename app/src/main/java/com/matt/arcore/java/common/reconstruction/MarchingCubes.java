@@ -0,0 +1,132 @@
+package com.matt.arcore.java.common.reconstruction;
+
+import java.util.Arrays;
+
+/**
+ * Marching cubes case table, derived from the cube geometry when the class loads.
+ *
+ * <p>Corner {@code i} of a cell sits at {@code (i & 1, (i >> 1) & 1, (i >> 2) & 1)} and is inside
+ * when its distance is negative. On each face the crossings are joined so that inside corners are
+ * cut off one at a time; the choice only looks at the face, so two cells sharing a face always
+ * agree and the surface has no cracks. The segments of the six faces close into loops, which are
+ * fanned into triangles wound counter-clockwise seen from outside, the positive side.
+ *
+ * <p>A loop can cross one face twice when that face has two inside corners on a diagonal. A fan
+ * diagonal between two crossings of the same face would lie in the face, where the neighbouring
+ * cell has no matching triangle edge, so each loop is fanned from a crossing none of whose
+ * diagonals share a face with it.
+ */
+final class MarchingCubes {
+
+  /** First corner of each edge; the edge runs from it along {@link #EDGE_AXIS}. */
+  static final int[] EDGE_CORNER = new int[12];
+  /** 0 for X, 1 for Y, 2 for Z. */
+  static final int[] EDGE_AXIS = new int[12];
+  /** Triangles of each of the 256 cases, three edge numbers each. */
+  static final int[][] TRIANGLES = new int[256][];
+
+  private static final int[][] EDGE_BY_CORNERS = new int[8][8];
+  // Bit f is set when the edge lies on face f.
+  private static final int[] EDGE_FACES = new int[12];
+
+  static {
+    int edge = 0;
+    for (int axis = 0; axis < 3; axis++) {
+      for (int corner = 0; corner < 8; corner++) {
+        if ((corner & (1 << axis)) == 0) {
+          EDGE_CORNER[edge] = corner;
+          EDGE_AXIS[edge] = axis;
+          EDGE_BY_CORNERS[corner][corner | 1 << axis] = edge;
+          EDGE_BY_CORNERS[corner | 1 << axis][corner] = edge;
+          edge++;
+        }
+      }
+    }
+
+    // Corners of each face counter-clockwise seen from outside the cell: (u, v, axis) is right
+    // handed, so the u, v square winds around +axis and is reversed on the low side.
+    int[][] faces = new int[6][4];
+    for (int axis = 0; axis < 3; axis++) {
+      int u = 1 << ((axis + 1) % 3);
+      int v = 1 << ((axis + 2) % 3);
+      for (int side = 0; side < 2; side++) {
+        int base = side << axis;
+        int[] square = {base, base | u, base | u | v, base | v};
+        int[] face = faces[axis * 2 + side];
+        for (int k = 0; k < 4; k++) {
+          face[k] = side == 1 ? square[k] : square[3 - k];
+        }
+        for (int k = 0; k < 4; k++) {
+          EDGE_FACES[EDGE_BY_CORNERS[face[k]][face[(k + 1) % 4]]] |= 1 << (axis * 2 + side);
+        }
+      }
+    }
+
+    int[] next = new int[12];
+    int[] loop = new int[12];
+    int[] triangles = new int[48];
+    for (int cube = 0; cube < 256; cube++) {
+      // next[e] is the edge the surface boundary continues to after entering the face through e.
+      Arrays.fill(next, -1);
+      for (int[] face : faces) {
+        for (int k = 0; k < 4; k++) {
+          int from = face[k];
+          int to = face[(k + 1) % 4];
+          if (!inside(cube, from) && inside(cube, to)) {
+            // Walk the inside run to where the boundary leaves it.
+            int j = (k + 1) % 4;
+            while (inside(cube, face[(j + 1) % 4])) {
+              j = (j + 1) % 4;
+            }
+            next[EDGE_BY_CORNERS[from][to]] = EDGE_BY_CORNERS[face[j]][face[(j + 1) % 4]];
+          }
+        }
+      }
+
+      int count = 0;
+      for (int start = 0; start < 12; start++) {
+        if (next[start] < 0) {
+          continue;
+        }
+        int length = 0;
+        for (int e = start; next[e] >= 0; ) {
+          loop[length++] = e;
+          int following = next[e];
+          next[e] = -1;
+          e = following;
+        }
+        // The boundary runs counter-clockwise around the inside corners seen from outside.
+        int apex = fanApex(loop, length);
+        if (apex < 0) {
+          throw new IllegalStateException("No fan apex for marching cubes case " + cube);
+        }
+        for (int k = 1; k + 1 < length; k++) {
+          triangles[count++] = loop[apex];
+          triangles[count++] = loop[(apex + k) % length];
+          triangles[count++] = loop[(apex + k + 1) % length];
+        }
+      }
+      TRIANGLES[cube] = Arrays.copyOf(triangles, count);
+    }
+  }
+
+  private MarchingCubes() {}
+
+  // First loop position whose diagonals all cross the cell's interior, or -1.
+  private static int fanApex(int[] loop, int length) {
+    for (int apex = 0; apex < length; apex++) {
+      boolean clear = true;
+      for (int k = 2; k + 1 < length && clear; k++) {
+        clear = (EDGE_FACES[loop[apex]] & EDGE_FACES[loop[(apex + k) % length]]) == 0;
+      }
+      if (clear) {
+        return apex;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean inside(int cube, int corner) {
+    return (cube & (1 << corner)) != 0;
+  }
+}
@@ -0,0 +1,136 @@
+package com.matt.arcore.java.common.reconstruction;
+
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.profiling.LatencyHistogram;
+
+/**
+ * Integrates depth frames into a {@link TsdfVolume} on a dedicated thread.
+ *
+ * <p>{@link #submit} copies the frame and its pose into a pending slot and returns, so the GL
+ * thread never waits for an integration. The fusion thread takes the pending frame and integrates
+ * it, with the volume's executor spreading the blocks over its workers. A frame still pending when
+ * the next one arrives is replaced and counted as skipped, so fusion lags by at most one frame.
+ */
+public final class TsdfFusion {
+
+  private final TsdfVolume volume;
+  private final Thread thread;
+  private final LatencyHistogram integrationTimes = new LatencyHistogram("tsdf integrate");
+
+  // Guarded by this, handed between submit() and the fusion thread.
+  private DepthFrame pendingFrame;
+  private final float[] pendingPose = new float[16];
+  private CameraIntrinsics pendingIntrinsics;
+  private boolean hasPending;
+  private boolean closed;
+
+  // Fusion thread only.
+  private DepthFrame workingFrame;
+  private final float[] workingPose = new float[16];
+
+  private volatile long integratedCount;
+  private volatile long skippedCount;
+
+  public TsdfFusion(TsdfVolume volume) {
+    this.volume = volume;
+    thread = new Thread(this::runFusion, "TsdfFusion");
+    thread.start();
+  }
+
+  public TsdfVolume getVolume() {
+    return volume;
+  }
+
+  /**
+   * Queues a frame for integration, replacing any frame still pending. Does not block; allocates
+   * only when the frame size changes.
+   *
+   * @param intrinsics intrinsics of the depth image.
+   * @param pose column-major camera-to-world matrix at the depth capture time.
+   */
+  public synchronized void submit(DepthFrame frame, CameraIntrinsics intrinsics, float[] pose) {
+    if (closed) {
+      throw new IllegalStateException("TsdfFusion was closed");
+    }
+    if (pendingFrame == null
+        || pendingFrame.width != frame.width || pendingFrame.height != frame.height) {
+      pendingFrame = new DepthFrame(frame.width, frame.height);
+    }
+    if (hasPending) {
+      skippedCount++;
+    }
+    pendingFrame.copyFrom(frame);
+    System.arraycopy(pose, 0, pendingPose, 0, 16);
+    pendingIntrinsics = intrinsics;
+    hasPending = true;
+    notifyAll();
+  }
+
+  /** Frames integrated so far. */
+  public long getIntegratedCount() {
+    return integratedCount;
+  }
+
+  /** Frames replaced by a newer one before the fusion thread got to them. */
+  public long getSkippedCount() {
+    return skippedCount;
+  }
+
+  public LatencyHistogram.Snapshot getIntegrationTimes() {
+    return integrationTimes.snapshot();
+  }
+
+  /** Drops the pending frame and waits for the fusion thread to finish the current one. */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      hasPending = false;
+      notifyAll();
+    }
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void runFusion() {
+    while (true) {
+      CameraIntrinsics intrinsics;
+      synchronized (this) {
+        while (!hasPending && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            // Only close() stops the thread.
+          }
+        }
+        if (closed) {
+          return;
+        }
+        // Swap, so submit() can fill the other frame while this one is integrated.
+        DepthFrame frame = workingFrame;
+        workingFrame = pendingFrame;
+        pendingFrame = frame != null && frame.width == workingFrame.width
+            && frame.height == workingFrame.height ? frame : null;
+        System.arraycopy(pendingPose, 0, workingPose, 0, 16);
+        intrinsics = pendingIntrinsics;
+        hasPending = false;
+      }
+      long start = System.nanoTime();
+      volume.integrate(workingFrame, intrinsics, workingPose);
+      integrationTimes.record(System.nanoTime() - start);
+      integratedCount++;
+    }
+  }
+}
@@ -0,0 +1,415 @@
+package com.matt.arcore.java.common.reconstruction;
+
+import com.matt.arcore.java.common.profiling.LatencyHistogram;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Extracts the surface of a {@link TsdfVolume} incrementally with {@link MarchingCubes}.
+ *
+ * <p>The volume queues the blocks whose surface may have changed since they were last meshed. An
+ * {@link #update} takes blocks off that queue and re-meshes only those, until its time budget runs
+ * out; the remaining blocks wait for the next update. A cell is meshed only when all eight of its
+ * corners were observed. Each block's voxels are copied out of the volume under its lock and meshed
+ * outside it, so meshing does not hold up integration.
+ *
+ * <p>Every re-meshed block yields a {@link BlockMesh}: interleaved position and normal floats and
+ * 16 bit triangle indices in direct native-order buffers, ready for {@code glBufferData}. Meshes
+ * reach the GL thread through {@link #pollMesh} and go back with {@link #release} once uploaded.
+ * Their buffers are reused and only ever grow, so a steady update does not allocate. When no mesh
+ * is free the update stops early, so a GL thread that falls behind holds the mesher back instead
+ * of growing the queue.
+ *
+ * <p>{@link #start} runs updates on a background thread; {@link #update} may also be called
+ * directly, for example in benchmarks.
+ */
+public final class TsdfMesher {
+
+  /** Position XYZ then outward normal XYZ. */
+  public static final int FLOATS_PER_VERTEX = 6;
+  public static final int BYTES_PER_VERTEX = FLOATS_PER_VERTEX * 4;
+
+  public static final long DEFAULT_BUDGET_NANOS = 4_000_000L;
+  public static final long DEFAULT_INTERVAL_NANOS = 33_000_000L;
+  public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+  private static final int SIDE = TsdfVolume.BLOCK_SIZE + 1;
+  private static final int SAMPLES = SIDE * SIDE * SIDE;
+  // Every cell edge owned by a sample along each axis, the most vertices a block can have.
+  private static final int MAX_VERTICES = SAMPLES * 3;
+  // At most five triangles per cell.
+  private static final int MAX_INDICES = TsdfVolume.VOXELS_PER_BLOCK * 5 * 3;
+  private static final int[] CORNER_OFFSETS = new int[8];
+  private static final int[] AXIS_OFFSETS = {1, SIDE, SIDE * SIDE};
+
+  static {
+    for (int corner = 0; corner < 8; corner++) {
+      CORNER_OFFSETS[corner] =
+          (corner & 1) + ((corner >> 1) & 1) * SIDE + ((corner >> 2) & 1) * SIDE * SIDE;
+    }
+  }
+
+  /** Mesh of one block. Owned by the caller between {@link #pollMesh} and {@link #release}. */
+  public static final class BlockMesh {
+    private int slot;
+    private int vertexCount;
+    private int indexCount;
+    private FloatBuffer vertices = allocateFloats(0);
+    private ShortBuffer indices = allocateShorts(0);
+
+    /**
+     * Identifies the block to the renderer, from 0 up to {@link #getSlotCount}. A block keeps its
+     * slot until its mesh becomes empty, after which the slot may go to another block.
+     */
+    public int getSlot() {
+      return slot;
+    }
+
+    public int getVertexCount() {
+      return vertexCount;
+    }
+
+    /** Three per triangle. 0 when the block no longer has a surface and its mesh should go. */
+    public int getIndexCount() {
+      return indexCount;
+    }
+
+    /** {@link #FLOATS_PER_VERTEX} floats per vertex from position 0 to the limit. */
+    public FloatBuffer getVertices() {
+      return vertices;
+    }
+
+    /** Unsigned short indices into {@link #getVertices}, from position 0 to the limit. */
+    public ShortBuffer getIndices() {
+      return indices;
+    }
+
+    private void set(int slot, float[] vertexData, int vertexCount, short[] indexData,
+        int indexCount) {
+      this.slot = slot;
+      this.vertexCount = vertexCount;
+      this.indexCount = indexCount;
+      int floats = vertexCount * FLOATS_PER_VERTEX;
+      if (vertices.capacity() < floats) {
+        vertices = allocateFloats(Integer.highestOneBit(floats - 1) << 1);
+      }
+      if (indices.capacity() < indexCount) {
+        indices = allocateShorts(Integer.highestOneBit(indexCount - 1) << 1);
+      }
+      vertices.clear();
+      vertices.put(vertexData, 0, floats).flip();
+      indices.clear();
+      indices.put(indexData, 0, indexCount).flip();
+    }
+
+    private static FloatBuffer allocateFloats(int floats) {
+      return ByteBuffer.allocateDirect(floats * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static ShortBuffer allocateShorts(int shorts) {
+      return ByteBuffer.allocateDirect(shorts * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+  }
+
+  private final TsdfVolume volume;
+  private final float voxelSize;
+  private final int queueCapacity;
+  private final ArrayBlockingQueue<BlockMesh> readyMeshes;
+  private final ArrayBlockingQueue<BlockMesh> freeMeshes;
+  private int createdMeshes;
+  private final LatencyHistogram updateTimes = new LatencyHistogram("mesh update");
+
+  // Block copy and marching cubes scratch, guarded by this.
+  private final float[] distances = new float[SAMPLES];
+  private final float[] weights = new float[SAMPLES];
+  private final int[] origin = new int[3];
+  private final int[] vertexIds = new int[MAX_VERTICES];
+  private final int[] vertexStamps = new int[MAX_VERTICES];
+  private int stamp;
+  private final float[] vertexData = new float[MAX_VERTICES * FLOATS_PER_VERTEX];
+  private final short[] indexData = new short[MAX_INDICES];
+  private int vertexCount;
+  private int indexCount;
+
+  // Renderer slots of the blocks that currently have a mesh.
+  private final BlockHashTable meshSlots = new BlockHashTable(1024);
+  private int[] freeSlots = new int[64];
+  private int freeSlotCount;
+  private int slotCount;
+
+  private long budgetNanos = DEFAULT_BUDGET_NANOS;
+  private long intervalNanos = DEFAULT_INTERVAL_NANOS;
+  // Guarded by this; the background thread exits once it is no longer this thread.
+  private Thread thread;
+
+  private volatile long meshedBlocks;
+  private volatile long meshedTriangles;
+
+  public TsdfMesher(TsdfVolume volume) {
+    this(volume, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /** @param queueCapacity meshes that can wait for the GL thread before updates stop early. */
+  public TsdfMesher(TsdfVolume volume, int queueCapacity) {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("queueCapacity must be at least 1, got " + queueCapacity);
+    }
+    this.volume = volume;
+    this.voxelSize = volume.getVoxelSize();
+    this.queueCapacity = queueCapacity;
+    readyMeshes = new ArrayBlockingQueue<>(queueCapacity);
+    freeMeshes = new ArrayBlockingQueue<>(queueCapacity);
+    volume.trackChanges();
+  }
+
+  /** Time an update may spend meshing, and the pause between updates on the background thread. */
+  public synchronized void setBudget(long budgetNanos, long intervalNanos) {
+    if (budgetNanos <= 0 || intervalNanos < 0) {
+      throw new IllegalArgumentException("Invalid budget " + budgetNanos + " ns every "
+          + intervalNanos + " ns");
+    }
+    this.budgetNanos = budgetNanos;
+    this.intervalNanos = intervalNanos;
+  }
+
+  /** Starts updating on a background thread. */
+  public synchronized void start() {
+    if (thread != null) {
+      throw new IllegalStateException("TsdfMesher already started");
+    }
+    thread = new Thread(this::runUpdates, "TsdfMesher");
+    thread.start();
+  }
+
+  /** Stops the background thread, if running, and waits for it. {@link #start} may follow. */
+  public void stop() {
+    Thread thread;
+    synchronized (this) {
+      thread = this.thread;
+      this.thread = null;
+    }
+    if (thread == null) {
+      return;
+    }
+    LockSupport.unpark(thread);
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void runUpdates() {
+    while (true) {
+      long interval;
+      synchronized (this) {
+        if (thread != Thread.currentThread()) {
+          return;
+        }
+        update(budgetNanos);
+        interval = intervalNanos;
+      }
+      LockSupport.parkNanos(this, interval);
+    }
+  }
+
+  /**
+   * Queues every block for meshing again, for example after the GL context and with it the
+   * uploaded meshes were lost. Blocks keep their slots.
+   */
+  public void remeshAll() {
+    volume.markAllChanged();
+  }
+
+  /** Next finished mesh, or null. Hand it back with {@link #release} once uploaded. */
+  public BlockMesh pollMesh() {
+    return readyMeshes.poll();
+  }
+
+  public void release(BlockMesh mesh) {
+    freeMeshes.add(mesh);
+  }
+
+  /** One more than the highest slot handed out so far. */
+  public synchronized int getSlotCount() {
+    return slotCount;
+  }
+
+  public long getMeshedBlocks() {
+    return meshedBlocks;
+  }
+
+  public long getMeshedTriangles() {
+    return meshedTriangles;
+  }
+
+  /** Blocks still waiting to be meshed. */
+  public int getPendingBlocks() {
+    return volume.getChangedBlockCount();
+  }
+
+  public LatencyHistogram.Snapshot getUpdateTimes() {
+    return updateTimes.snapshot();
+  }
+
+  /**
+   * Re-meshes changed blocks until {@code budgetNanos} have passed, no block is left or no mesh is
+   * free. At least one block is meshed if possible.
+   *
+   * @return the number of blocks taken off the queue.
+   */
+  public synchronized int update(long budgetNanos) {
+    long start = System.nanoTime();
+    int blocks = 0;
+    do {
+      BlockMesh mesh = freeMeshes.poll();
+      if (mesh == null && createdMeshes < queueCapacity) {
+        mesh = new BlockMesh();
+        createdMeshes++;
+      }
+      if (mesh == null) {
+        break;
+      }
+      if (!volume.takeChangedBlock(distances, weights, origin)) {
+        freeMeshes.add(mesh);
+        break;
+      }
+      blocks++;
+      meshBlock();
+
+      long key = BlockHashTable.key(origin[0] / TsdfVolume.BLOCK_SIZE,
+          origin[1] / TsdfVolume.BLOCK_SIZE, origin[2] / TsdfVolume.BLOCK_SIZE);
+      int slot = meshSlots.get(key);
+      if (indexCount == 0) {
+        if (slot < 0) {
+          // Had no surface before either.
+          freeMeshes.add(mesh);
+          continue;
+        }
+        meshSlots.remove(key);
+        if (freeSlotCount == freeSlots.length) {
+          freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+      } else if (slot < 0) {
+        slot = freeSlotCount > 0 ? freeSlots[--freeSlotCount] : slotCount++;
+        meshSlots.put(key, slot);
+      }
+      mesh.set(slot, vertexData, vertexCount, indexData, indexCount);
+      readyMeshes.add(mesh);
+      meshedTriangles += indexCount / 3;
+    } while (System.nanoTime() - start < budgetNanos);
+    meshedBlocks += blocks;
+    if (blocks > 0) {
+      updateTimes.record(System.nanoTime() - start);
+    }
+    return blocks;
+  }
+
+  /** Runs marching cubes over the copied block into vertexData and indexData. */
+  private void meshBlock() {
+    if (++stamp == 0) {
+      Arrays.fill(vertexStamps, 0);
+      stamp = 1;
+    }
+    vertexCount = 0;
+    indexCount = 0;
+    final float[] distances = this.distances;
+    final float[] weights = this.weights;
+    final int cells = TsdfVolume.BLOCK_SIZE;
+
+    for (int z = 0; z < cells; z++) {
+      for (int y = 0; y < cells; y++) {
+        for (int x = 0; x < cells; x++) {
+          int cell = (z * SIDE + y) * SIDE + x;
+          int cube = 0;
+          boolean observed = true;
+          for (int corner = 0; corner < 8; corner++) {
+            int sample = cell + CORNER_OFFSETS[corner];
+            if (weights[sample] == 0) {
+              observed = false;
+              break;
+            }
+            if (distances[sample] < 0) {
+              cube |= 1 << corner;
+            }
+          }
+          if (!observed || cube == 0 || cube == 0xFF) {
+            continue;
+          }
+          int[] triangles = MarchingCubes.TRIANGLES[cube];
+          for (int edge : triangles) {
+            indexData[indexCount++] = (short) vertexFor(cell, edge);
+          }
+        }
+      }
+    }
+    computeNormals();
+  }
+
+  // Index of the vertex on a cell edge, shared by the cells around the edge.
+  private int vertexFor(int cell, int edge) {
+    int sample = cell + CORNER_OFFSETS[MarchingCubes.EDGE_CORNER[edge]];
+    int axis = MarchingCubes.EDGE_AXIS[edge];
+    int id = sample * 3 + axis;
+    if (vertexStamps[id] == stamp) {
+      return vertexIds[id];
+    }
+    float d0 = distances[sample];
+    float d1 = distances[sample + AXIS_OFFSETS[axis]];
+    float t = d0 / (d0 - d1);
+    // Global voxel coordinates, so neighbouring blocks compute bit identical border vertices.
+    int x = origin[0] + sample % SIDE;
+    int y = origin[1] + (sample / SIDE) % SIDE;
+    int z = origin[2] + sample / (SIDE * SIDE);
+    int out = vertexCount * FLOATS_PER_VERTEX;
+    vertexData[out] = (x + 0.5f + (axis == 0 ? t : 0)) * voxelSize;
+    vertexData[out + 1] = (y + 0.5f + (axis == 1 ? t : 0)) * voxelSize;
+    vertexData[out + 2] = (z + 0.5f + (axis == 2 ? t : 0)) * voxelSize;
+    vertexData[out + 3] = 0;
+    vertexData[out + 4] = 0;
+    vertexData[out + 5] = 0;
+    vertexStamps[id] = stamp;
+    vertexIds[id] = vertexCount;
+    return vertexCount++;
+  }
+
+  // Area weighted sum of the face normals around each vertex.
+  private void computeNormals() {
+    final float[] v = vertexData;
+    for (int i = 0; i < indexCount; i += 3) {
+      int a = indexData[i] * FLOATS_PER_VERTEX;
+      int b = indexData[i + 1] * FLOATS_PER_VERTEX;
+      int c = indexData[i + 2] * FLOATS_PER_VERTEX;
+      float ux = v[b] - v[a], uy = v[b + 1] - v[a + 1], uz = v[b + 2] - v[a + 2];
+      float wx = v[c] - v[a], wy = v[c + 1] - v[a + 1], wz = v[c + 2] - v[a + 2];
+      float nx = uy * wz - uz * wy;
+      float ny = uz * wx - ux * wz;
+      float nz = ux * wy - uy * wx;
+      v[a + 3] += nx; v[a + 4] += ny; v[a + 5] += nz;
+      v[b + 3] += nx; v[b + 4] += ny; v[b + 5] += nz;
+      v[c + 3] += nx; v[c + 4] += ny; v[c + 5] += nz;
+    }
+    for (int i = 0; i < vertexCount; i++) {
+      int n = i * FLOATS_PER_VERTEX + 3;
+      float length = (float) Math.sqrt(v[n] * v[n] + v[n + 1] * v[n + 1] + v[n + 2] * v[n + 2]);
+      if (length > 0) {
+        v[n] /= length;
+        v[n + 1] /= length;
+        v[n + 2] /= length;
+      }
+    }
+  }
+}
@@ -0,0 +1,774 @@
+package com.matt.arcore.java.common.reconstruction;
+
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import com.matt.arcore.java.common.depth.Depth16Decoder;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+
+import java.util.Arrays;
+
+/**
+ * Truncated signed distance volume fused from depth frames, stored sparsely in hashed blocks.
+ *
+ * <p>Space is cut into blocks of {@link #BLOCK_SIZE}^3 voxels and only blocks near observed
+ * surfaces are allocated. Voxel data lives in flat primitive arrays indexed by block slot; a {@link
+ * BlockHashTable} maps block coordinates to slots. Each voxel keeps its signed distance to the
+ * surface in units of the truncation distance, clamped to [-1, 1] and positive in front of the
+ * surface, and the accumulated observation weight. Weight 0 means the voxel was never observed.
+ *
+ * <p>World space is in metres. Camera space follows the OpenGL and ARCore convention, X right, Y up,
+ * looking down -Z, and poses are column-major camera-to-world matrices such as {@code
+ * Camera.getPose().toMatrix()}, as for {@link
+ * com.matt.arcore.java.common.depth.DepthPointCloudBuilder}.
+ *
+ * <p>{@link #integrate} first allocates every block the truncation band of the frame passes
+ * through, on the calling thread, then updates those blocks in parallel on the executor; blocks are
+ * disjoint, so the update needs no locking. The distance is projective, measured along the optical
+ * axis, and averaged with the confidence of the sample as its weight.
+ *
+ * <p>The number of blocks is bounded by {@link #setMaxBlocks}. When an integration leaves the volume
+ * nearly full, or runs out of blocks, the blocks farthest from the camera that the frame did not
+ * touch are evicted, so the volume follows the camera around instead of running out of memory. All public methods are
+ * synchronized: a {@link #raycast} waits for a running integration.
+ *
+ * <p>For {@link TsdfMesher} the volume can queue the blocks whose surface may have changed: those a
+ * frame updated or that were evicted, plus their neighbours on the lower side, whose border cells
+ * reach into them.
+ */
+public final class TsdfVolume implements RowBandExecutor.RowBandTask {
+
+  private static final int BLOCK_SHIFT = 3;
+  private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+
+  public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  public static final int VOXELS_PER_BLOCK = BLOCK_SIZE * BLOCK_SIZE * BLOCK_SIZE;
+  /** Voxel data per allocated block, a float distance and a float weight per voxel. */
+  public static final int BYTES_PER_BLOCK = VOXELS_PER_BLOCK * 8;
+
+  public static final float DEFAULT_VOXEL_SIZE = 0.02f;
+  /** 64 MB of voxel data. */
+  public static final int DEFAULT_MAX_BLOCKS = 16384;
+
+  private static final int INITIAL_SLOTS = 256;
+  // Marks free slots in touchedFrames, frame numbers start at 1.
+  private static final int FREE = -1;
+
+  private static final float[] CONFIDENCE_FRACTIONS = new float[Depth16Decoder.CONFIDENCE_MASK + 1];
+
+  static {
+    for (int i = 0; i < CONFIDENCE_FRACTIONS.length; i++) {
+      CONFIDENCE_FRACTIONS[i] = Depth16Decoder.confidenceFraction(i);
+    }
+  }
+
+  private final RowBandExecutor executor;
+  private final float voxelSize;
+  private final float blockExtent;
+
+  private float truncation;
+  private float maxWeight = 64;
+  private float minRangeMetres = 0.1f;
+  private float maxRangeMetres = 4;
+  private int allocationStride = 2;
+  private int maxBlocks = DEFAULT_MAX_BLOCKS;
+  // Weight of a sample by raw confidence code, 0 for codes below the minimum confidence.
+  private final float[] confidenceWeights = new float[CONFIDENCE_FRACTIONS.length];
+
+  // Voxel data, VOXELS_PER_BLOCK entries per slot, x fastest.
+  private float[] distances = new float[0];
+  private float[] weights = new float[0];
+  // Block coordinates, 3 per slot.
+  private int[] blockCoords = new int[0];
+  // Frame that last touched each slot, or FREE.
+  private int[] touchedFrames = new int[0];
+  private int[] freeSlots = new int[0];
+  private int freeCount;
+  // Slots ever handed out, the high water mark of the slot arrays.
+  private int slotCount;
+  private final BlockHashTable index = new BlockHashTable(INITIAL_SLOTS);
+
+  private int frameNumber;
+  private long allocationFailures;
+  private long evictedBlocks;
+  private final float[] cameraPosition = new float[3];
+
+  // Per-frame state shared with the block tasks.
+  private int[] visibleSlots = new int[0];
+  private int visibleCount;
+  private short[] depthMm;
+  private byte[] confidence;
+  private int width;
+  private int height;
+  private float fx;
+  private float fy;
+  private float cx;
+  private float cy;
+  private final float[] worldToCamera = new float[16];
+  private int minDepthMm;
+  private int maxDepthMm;
+
+  // Scratch for integrate(DepthFrame, ...) and eviction.
+  private short[] frameDepth = new short[0];
+  private byte[] frameConfidence = new byte[0];
+  private long[] evictionOrder = new long[0];
+
+  // Blocks to re-mesh, first in first out, and their keys for deduplication.
+  private boolean trackChanges;
+  private long[] changedKeys = new long[0];
+  private int changedHead;
+  private int changedCount;
+  private final BlockHashTable changedIndex = new BlockHashTable(INITIAL_SLOTS);
+
+  // Last block looked up by voxelValue(), raycasts hit the same block many times in a row.
+  private long cachedKey = -1;
+  private final int[] neighbourSlots = new int[8];
+  private int cachedSlot = -1;
+
+  /**
+   * @param voxelSize voxel edge length in metres.
+   * @param executor updates blocks in parallel, or null to integrate on the calling thread.
+   */
+  public TsdfVolume(float voxelSize, RowBandExecutor executor) {
+    if (!(voxelSize > 0)) {
+      throw new IllegalArgumentException("Invalid voxel size " + voxelSize);
+    }
+    this.voxelSize = voxelSize;
+    this.blockExtent = voxelSize * BLOCK_SIZE;
+    this.truncation = 4 * voxelSize;
+    this.executor = executor;
+    setMinConfidence(0);
+    ensureSlotCapacity(INITIAL_SLOTS);
+  }
+
+  public float getVoxelSize() {
+    return voxelSize;
+  }
+
+  /**
+   * Distance in metres over which the signed distance is kept, at least one voxel. Must stay below
+   * half a block so the band of a sample spans few blocks.
+   */
+  public synchronized void setTruncation(float metres) {
+    if (metres < voxelSize || metres > blockExtent / 2) {
+      throw new IllegalArgumentException("Truncation " + metres + " outside [" + voxelSize + ", "
+          + blockExtent / 2 + "]");
+    }
+    truncation = metres;
+  }
+
+  public synchronized float getTruncation() {
+    return truncation;
+  }
+
+  /** Caps the accumulated weight, so the volume keeps adapting to changes in the scene. */
+  public synchronized void setMaxWeight(float maxWeight) {
+    if (!(maxWeight >= 1)) {
+      throw new IllegalArgumentException("Invalid max weight " + maxWeight);
+    }
+    this.maxWeight = maxWeight;
+  }
+
+  /** Integrates samples with {@code minMetres <= range <= maxMetres}. */
+  public synchronized void setRange(float minMetres, float maxMetres) {
+    if (!(minMetres > 0) || minMetres > maxMetres) {
+      throw new IllegalArgumentException("Invalid range " + minMetres + " to " + maxMetres);
+    }
+    this.minRangeMetres = minMetres;
+    this.maxRangeMetres = maxMetres;
+  }
+
+  /** Ignores samples whose confidence fraction, 0 to 1, is below {@code minConfidence}. */
+  public synchronized void setMinConfidence(float minConfidence) {
+    for (int code = 0; code < confidenceWeights.length; code++) {
+      float fraction = CONFIDENCE_FRACTIONS[code];
+      confidenceWeights[code] = fraction >= minConfidence ? Math.max(fraction, 1.0f / 16) : 0;
+    }
+  }
+
+  /**
+   * Blocks are allocated from every {@code stride}-th pixel of every {@code stride}-th row. The
+   * band of a sample covers the blocks of its neighbours, so a stride of 2 loses next to nothing.
+   */
+  public synchronized void setAllocationStride(int stride) {
+    if (stride < 1) {
+      throw new IllegalArgumentException("stride must be at least 1, got " + stride);
+    }
+    allocationStride = stride;
+  }
+
+  /**
+   * Bounds the volume to {@code maxBlocks} blocks of {@link #BYTES_PER_BLOCK} bytes each, evicting
+   * the blocks farthest from the last camera position right away if there are more.
+   */
+  public synchronized void setMaxBlocks(int maxBlocks) {
+    if (maxBlocks < 1) {
+      throw new IllegalArgumentException("maxBlocks must be at least 1, got " + maxBlocks);
+    }
+    this.maxBlocks = maxBlocks;
+    if (index.size() > maxBlocks) {
+      evictFarthest(maxBlocks);
+    }
+  }
+
+  public synchronized int getBlockCount() {
+    return index.size();
+  }
+
+  /** Frames integrated since creation or the last {@link #clear}. */
+  public synchronized int getFrameCount() {
+    return frameNumber;
+  }
+
+  /** Blocks that could not be allocated because the volume was full. */
+  public synchronized long getAllocationFailures() {
+    return allocationFailures;
+  }
+
+  public synchronized long getEvictedBlocks() {
+    return evictedBlocks;
+  }
+
+  /** Drops every block. The slot arrays keep their size. */
+  public synchronized void clear() {
+    if (trackChanges) {
+      markAllChanged();
+    }
+    index.clear();
+    Arrays.fill(touchedFrames, 0, slotCount, FREE);
+    slotCount = 0;
+    freeCount = 0;
+    frameNumber = 0;
+    cachedKey = -1;
+  }
+
+  /**
+   * Decodes a DEPTH16 frame and integrates it.
+   *
+   * @see #integrate(short[], byte[], int, int, CameraIntrinsics, float[])
+   */
+  public synchronized int integrate(DepthFrame frame, CameraIntrinsics intrinsics, float[] pose) {
+    int pixels = frame.width * frame.height;
+    if (frameDepth.length < pixels) {
+      frameDepth = new short[pixels];
+      frameConfidence = new byte[pixels];
+    }
+    Depth16Decoder.decode(frame, frameDepth, frameConfidence, null);
+    return integrate(frameDepth, frameConfidence, frame.width, frame.height, intrinsics, pose);
+  }
+
+  /**
+   * Integrates a decoded depth frame seen from {@code pose}.
+   *
+   * @param depthMm width * height ranges in millimetres, 0 for holes.
+   * @param confidence width * height raw confidence codes, or null for fully confident samples.
+   * @param intrinsics intrinsics of the depth image, scaled to width x height if needed.
+   * @param pose column-major camera-to-world matrix.
+   * @return the number of blocks the frame updated.
+   */
+  public synchronized int integrate(short[] depthMm, byte[] confidence, int width, int height,
+      CameraIntrinsics intrinsics, float[] pose) {
+    int pixels = width * height;
+    if (depthMm.length < pixels || (confidence != null && confidence.length < pixels)) {
+      throw new IllegalArgumentException("Input arrays smaller than " + pixels + " pixels");
+    }
+    if (pose.length < 16) {
+      throw new IllegalArgumentException("pose must be a 4x4 matrix");
+    }
+    if (intrinsics.width != width || intrinsics.height != height) {
+      intrinsics = intrinsics.scaled(width, height);
+    }
+    this.depthMm = depthMm;
+    this.confidence = confidence;
+    this.width = width;
+    this.height = height;
+    fx = intrinsics.fx;
+    fy = intrinsics.fy;
+    cx = intrinsics.cx;
+    cy = intrinsics.cy;
+    minDepthMm = Math.max(1, (int) Math.ceil(minRangeMetres * 1000));
+    maxDepthMm = (int) Math.min(Depth16Decoder.MAX_RANGE_MM - 1, Math.floor(maxRangeMetres * 1000));
+    invertRigid(pose, worldToCamera);
+    cameraPosition[0] = pose[12];
+    cameraPosition[1] = pose[13];
+    cameraPosition[2] = pose[14];
+    frameNumber++;
+
+    allocateVisibleBlocks(pose);
+    if (executor != null) {
+      executor.execute(visibleCount, this);
+    } else {
+      run(0, visibleCount);
+    }
+    if (trackChanges) {
+      for (int i = 0; i < visibleCount; i++) {
+        int slot = visibleSlots[i];
+        markChanged(blockCoords[slot * 3], blockCoords[slot * 3 + 1], blockCoords[slot * 3 + 2]);
+      }
+    }
+
+    // Keep an eighth of the blocks free for the next frame.
+    if (index.size() > maxBlocks - maxBlocks / 8) {
+      evictFarthest(maxBlocks - maxBlocks / 4);
+    }
+    this.depthMm = null;
+    this.confidence = null;
+    return visibleCount;
+  }
+
+  /** Allocates the blocks along the truncation band of the sampled pixels into visibleSlots. */
+  private void allocateVisibleBlocks(float[] pose) {
+    visibleCount = 0;
+    final int stride = allocationStride;
+    final float invBlockExtent = 1 / blockExtent;
+    final float truncation = this.truncation;
+    // Half the truncation, at most a quarter block: only corners the band barely clips are missed.
+    final float step = truncation / 2;
+    final float ox = pose[12], oy = pose[13], oz = pose[14];
+    long lastKey = -1;
+
+    for (int y = stride / 2; y < height; y += stride) {
+      float rowFactor = -(y + 0.5f - cy) / fy;
+      for (int x = stride / 2; x < width; x += stride) {
+        int i = y * width + x;
+        int depth = depthMm[i];
+        if (depth < minDepthMm || depth > maxDepthMm) {
+          continue;
+        }
+        if (confidence != null && confidenceWeights[confidence[i]] == 0) {
+          continue;
+        }
+        // World ray per metre of camera depth, the camera looks down -Z.
+        float columnFactor = (x + 0.5f - cx) / fx;
+        float dx = pose[0] * columnFactor + pose[4] * rowFactor - pose[8];
+        float dy = pose[1] * columnFactor + pose[5] * rowFactor - pose[9];
+        float dz = pose[2] * columnFactor + pose[6] * rowFactor - pose[10];
+        float z = depth * 0.001f;
+        float end = z + truncation;
+        for (float t = Math.max(z - truncation, minRangeMetres); t <= end; t += step) {
+          int bx = floor((ox + dx * t) * invBlockExtent);
+          int by = floor((oy + dy * t) * invBlockExtent);
+          int bz = floor((oz + dz * t) * invBlockExtent);
+          long key = BlockHashTable.key(bx, by, bz);
+          if (key == lastKey) {
+            continue;
+          }
+          lastKey = key;
+          int slot = index.get(key);
+          if (slot < 0) {
+            slot = allocateBlock(bx, by, bz, key);
+            if (slot < 0) {
+              continue;
+            }
+          }
+          if (touchedFrames[slot] != frameNumber) {
+            touchedFrames[slot] = frameNumber;
+            visibleSlots[visibleCount++] = slot;
+          }
+        }
+      }
+    }
+  }
+
+  private int allocateBlock(int bx, int by, int bz, long key) {
+    if (index.size() >= maxBlocks) {
+      // Make room from the blocks this frame has not touched so far.
+      evictFarthest(maxBlocks - maxBlocks / 4);
+      if (index.size() >= maxBlocks) {
+        allocationFailures++;
+        return -1;
+      }
+    }
+    int slot;
+    if (freeCount > 0) {
+      slot = freeSlots[--freeCount];
+    } else {
+      ensureSlotCapacity(slotCount + 1);
+      slot = slotCount++;
+    }
+    int voxels = slot * VOXELS_PER_BLOCK;
+    Arrays.fill(distances, voxels, voxels + VOXELS_PER_BLOCK, 0);
+    Arrays.fill(weights, voxels, voxels + VOXELS_PER_BLOCK, 0);
+    blockCoords[slot * 3] = bx;
+    blockCoords[slot * 3 + 1] = by;
+    blockCoords[slot * 3 + 2] = bz;
+    touchedFrames[slot] = 0;
+    index.put(key, slot);
+    return slot;
+  }
+
+  private void ensureSlotCapacity(int slots) {
+    int capacity = touchedFrames.length;
+    if (slots <= capacity) {
+      return;
+    }
+    capacity = Math.max(slots, Math.min(Math.max(capacity * 2, INITIAL_SLOTS), maxBlocks));
+    distances = Arrays.copyOf(distances, capacity * VOXELS_PER_BLOCK);
+    weights = Arrays.copyOf(weights, capacity * VOXELS_PER_BLOCK);
+    blockCoords = Arrays.copyOf(blockCoords, capacity * 3);
+    int oldCapacity = touchedFrames.length;
+    touchedFrames = Arrays.copyOf(touchedFrames, capacity);
+    Arrays.fill(touchedFrames, oldCapacity, capacity, FREE);
+    freeSlots = Arrays.copyOf(freeSlots, capacity);
+    visibleSlots = Arrays.copyOf(visibleSlots, capacity);
+    evictionOrder = new long[capacity];
+  }
+
+  /** Updates visible blocks {@code [start, end)}. */
+  @Override
+  public void run(int start, int end) {
+    for (int i = start; i < end; i++) {
+      integrateBlock(visibleSlots[i]);
+    }
+  }
+
+  private void integrateBlock(int slot) {
+    final short[] depthMm = this.depthMm;
+    final byte[] confidence = this.confidence;
+    final float[] distances = this.distances;
+    final float[] weights = this.weights;
+    final float[] m = worldToCamera;
+    final int width = this.width;
+    final int height = this.height;
+    final float fx = this.fx, fy = this.fy, cx = this.cx, cy = this.cy;
+    final float truncation = this.truncation;
+    final float invTruncation = 1 / truncation;
+    final float maxWeight = this.maxWeight;
+    final int minDepth = minDepthMm;
+    final int maxDepth = maxDepthMm;
+
+    // Camera space centre of the first voxel and the steps between neighbouring voxels.
+    float wx = (blockCoords[slot * 3] * BLOCK_SIZE + 0.5f) * voxelSize;
+    float wy = (blockCoords[slot * 3 + 1] * BLOCK_SIZE + 0.5f) * voxelSize;
+    float wz = (blockCoords[slot * 3 + 2] * BLOCK_SIZE + 0.5f) * voxelSize;
+    float baseX = m[0] * wx + m[4] * wy + m[8] * wz + m[12];
+    float baseY = m[1] * wx + m[5] * wy + m[9] * wz + m[13];
+    float baseZ = m[2] * wx + m[6] * wy + m[10] * wz + m[14];
+    float stepXx = m[0] * voxelSize, stepXy = m[1] * voxelSize, stepXz = m[2] * voxelSize;
+    float stepYx = m[4] * voxelSize, stepYy = m[5] * voxelSize, stepYz = m[6] * voxelSize;
+    float stepZx = m[8] * voxelSize, stepZy = m[9] * voxelSize, stepZz = m[10] * voxelSize;
+
+    int voxel = slot * VOXELS_PER_BLOCK;
+    for (int vz = 0; vz < BLOCK_SIZE; vz++) {
+      for (int vy = 0; vy < BLOCK_SIZE; vy++) {
+        float px = baseX + vy * stepYx + vz * stepZx;
+        float py = baseY + vy * stepYy + vz * stepZy;
+        float pz = baseZ + vy * stepYz + vz * stepZz;
+        for (int vx = 0; vx < BLOCK_SIZE; vx++, voxel++, px += stepXx, py += stepXy, pz += stepXz) {
+          float range = -pz;
+          if (range < 1e-3f) {
+            continue;
+          }
+          float invRange = 1 / range;
+          float u = cx + fx * px * invRange;
+          float v = cy - fy * py * invRange;
+          if (!(u >= 0 && v >= 0 && u < width && v < height)) {
+            continue;
+          }
+          int pixel = (int) v * width + (int) u;
+          int depth = depthMm[pixel];
+          if (depth < minDepth || depth > maxDepth) {
+            continue;
+          }
+          float weight = confidence != null ? confidenceWeights[confidence[pixel]] : 1;
+          float sdf = depth * 0.001f - range;
+          if (sdf < -truncation || weight == 0) {
+            continue;
+          }
+          float tsdf = sdf >= truncation ? 1 : sdf * invTruncation;
+          float oldWeight = weights[voxel];
+          float newWeight = oldWeight + weight;
+          distances[voxel] = (distances[voxel] * oldWeight + tsdf * weight) / newWeight;
+          weights[voxel] = Math.min(newWeight, maxWeight);
+        }
+      }
+    }
+  }
+
+  /**
+   * Evicts every block whose centre is farther than {@code radius} metres from the given point.
+   *
+   * @return the number of evicted blocks.
+   */
+  public synchronized int evictBeyond(float x, float y, float z, float radius) {
+    float radiusSquared = radius * radius;
+    int evicted = 0;
+    for (int slot = 0; slot < slotCount; slot++) {
+      if (touchedFrames[slot] != FREE && blockDistanceSquared(slot, x, y, z) > radiusSquared) {
+        freeBlock(slot);
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Evicts the blocks farthest from the last camera position until {@code targetBlocks} remain,
+   * sparing the blocks the last frame touched.
+   */
+  private void evictFarthest(int targetBlocks) {
+    int candidates = 0;
+    for (int slot = 0; slot < slotCount; slot++) {
+      int touched = touchedFrames[slot];
+      if (touched != FREE && touched != frameNumber) {
+        float distance = blockDistanceSquared(
+            slot, cameraPosition[0], cameraPosition[1], cameraPosition[2]);
+        // Non-negative floats order like their bits.
+        evictionOrder[candidates++] = (long) Float.floatToRawIntBits(distance) << 32 | slot;
+      }
+    }
+    Arrays.sort(evictionOrder, 0, candidates);
+    for (int i = candidates - 1; i >= 0 && index.size() > targetBlocks; i--) {
+      freeBlock((int) evictionOrder[i]);
+    }
+  }
+
+  private float blockDistanceSquared(int slot, float x, float y, float z) {
+    float half = blockExtent / 2;
+    float dx = blockCoords[slot * 3] * blockExtent + half - x;
+    float dy = blockCoords[slot * 3 + 1] * blockExtent + half - y;
+    float dz = blockCoords[slot * 3 + 2] * blockExtent + half - z;
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  private void freeBlock(int slot) {
+    index.remove(BlockHashTable.key(
+        blockCoords[slot * 3], blockCoords[slot * 3 + 1], blockCoords[slot * 3 + 2]));
+    if (trackChanges) {
+      markChanged(blockCoords[slot * 3], blockCoords[slot * 3 + 1], blockCoords[slot * 3 + 2]);
+    }
+    touchedFrames[slot] = FREE;
+    freeSlots[freeCount++] = slot;
+    evictedBlocks++;
+    cachedKey = -1;
+  }
+
+  /** Starts queueing changed blocks, see {@link #takeChangedBlock}. */
+  synchronized void trackChanges() {
+    trackChanges = true;
+  }
+
+  /** Queues every block as changed. */
+  synchronized void markAllChanged() {
+    for (int slot = 0; slot < slotCount; slot++) {
+      if (touchedFrames[slot] != FREE) {
+        markChanged(blockCoords[slot * 3], blockCoords[slot * 3 + 1], blockCoords[slot * 3 + 2]);
+      }
+    }
+  }
+
+  // Queues the block and the allocated blocks below it on any axis.
+  private void markChanged(int bx, int by, int bz) {
+    for (int neighbour = 0; neighbour < 8; neighbour++) {
+      int x = bx - (neighbour & 1);
+      int y = by - ((neighbour >> 1) & 1);
+      int z = bz - ((neighbour >> 2) & 1);
+      long key = BlockHashTable.key(x, y, z);
+      if ((neighbour == 0 || index.get(key) >= 0) && changedIndex.get(key) < 0) {
+        if (changedCount == changedKeys.length) {
+          long[] keys = new long[Math.max(INITIAL_SLOTS, changedKeys.length * 2)];
+          for (int i = 0; i < changedCount; i++) {
+            keys[i] = changedKeys[(changedHead + i) % changedKeys.length];
+          }
+          changedKeys = keys;
+          changedHead = 0;
+        }
+        changedKeys[(changedHead + changedCount++) % changedKeys.length] = key;
+        changedIndex.put(key, 0);
+      }
+    }
+  }
+
+  /** Blocks waiting in the change queue. */
+  synchronized int getChangedBlockCount() {
+    return changedCount;
+  }
+
+  /**
+   * Takes the oldest changed block off the queue and copies its voxels plus the first layer of its
+   * upper neighbours, (BLOCK_SIZE + 1)^3 values with x fastest. Missing voxels get weight 0, all of
+   * them if the block itself was evicted.
+   *
+   * @param origin receives the global voxel coordinates of the block's first voxel.
+   * @return false if no block changed.
+   */
+  synchronized boolean takeChangedBlock(float[] distancesOut, float[] weightsOut, int[] origin) {
+    if (changedCount == 0) {
+      return false;
+    }
+    long key = changedKeys[changedHead];
+    changedHead = (changedHead + 1) % changedKeys.length;
+    changedCount--;
+    changedIndex.remove(key);
+
+    int bx = BlockHashTable.x(key);
+    int by = BlockHashTable.y(key);
+    int bz = BlockHashTable.z(key);
+    origin[0] = bx * BLOCK_SIZE;
+    origin[1] = by * BLOCK_SIZE;
+    origin[2] = bz * BLOCK_SIZE;
+    int[] slots = neighbourSlots;
+    for (int neighbour = 0; neighbour < 8; neighbour++) {
+      slots[neighbour] = index.get(BlockHashTable.key(
+          bx + (neighbour & 1), by + ((neighbour >> 1) & 1), bz + ((neighbour >> 2) & 1)));
+    }
+    int side = BLOCK_SIZE + 1;
+    int out = 0;
+    for (int z = 0; z < side; z++) {
+      for (int y = 0; y < side; y++) {
+        for (int x = 0; x < side; x++, out++) {
+          int slot = slots[(x >> BLOCK_SHIFT) | (y >> BLOCK_SHIFT) << 1 | (z >> BLOCK_SHIFT) << 2];
+          if (slot < 0) {
+            distancesOut[out] = 0;
+            weightsOut[out] = 0;
+          } else {
+            int voxel = slot * VOXELS_PER_BLOCK + (((z & BLOCK_MASK) << BLOCK_SHIFT
+                | (y & BLOCK_MASK)) << BLOCK_SHIFT | (x & BLOCK_MASK));
+            distancesOut[out] = distances[voxel];
+            weightsOut[out] = weights[voxel];
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Signed distance in metres at a world position, trilinearly interpolated from the surrounding
+   * voxel centres, or NaN if any of them was never observed.
+   */
+  public synchronized float sampleDistance(float x, float y, float z) {
+    return sample(x, y, z) * truncation;
+  }
+
+  /**
+   * Casts a ray against the fused surface and finds where it first passes from in front of a
+   * surface to behind it. Surfaces seen from behind are ignored.
+   *
+   * @param origin world position the ray starts from.
+   * @param direction world direction of the ray, need not be normalized.
+   * @param hit receives the world position of the hit, or null.
+   * @return the distance in metres to the hit, or -1 if there is none within {@code maxDistance}.
+   */
+  public synchronized float raycast(float[] origin, float[] direction, float maxDistance,
+      float[] hit) {
+    float length = (float) Math.sqrt(direction[0] * direction[0] + direction[1] * direction[1]
+        + direction[2] * direction[2]);
+    if (!(length > 0)) {
+      throw new IllegalArgumentException("Zero ray direction");
+    }
+    float dx = direction[0] / length;
+    float dy = direction[1] / length;
+    float dz = direction[2] / length;
+    float ox = origin[0], oy = origin[1], oz = origin[2];
+    float minStep = voxelSize / 2;
+
+    float t = 0;
+    float previousT = 0;
+    float previous = Float.NaN;
+    while (t <= maxDistance) {
+      float x = ox + dx * t, y = oy + dy * t, z = oz + dz * t;
+      float value = sample(x, y, z);
+      if (value != value) {
+        previous = Float.NaN;
+        t += blockAt(x, y, z) < 0 ? distanceToBlockExit(x, y, z, dx, dy, dz) : minStep;
+        continue;
+      }
+      if (previous > 0 && value <= 0) {
+        float tHit = previousT + (t - previousT) * previous / (previous - value);
+        if (hit != null) {
+          hit[0] = ox + dx * tHit;
+          hit[1] = oy + dy * tHit;
+          hit[2] = oz + dz * tHit;
+        }
+        return tHit;
+      }
+      previous = value;
+      previousT = t;
+      // The surface is at least the distance away, up to the truncation.
+      t += Math.max(value * truncation * 0.8f, minStep);
+    }
+    return -1;
+  }
+
+  // Distance along a unit ray from a point to just past the boundary of its block.
+  private float distanceToBlockExit(float x, float y, float z, float dx, float dy, float dz) {
+    float exit = Math.min(axisExit(x, dx), Math.min(axisExit(y, dy), axisExit(z, dz)));
+    return exit + voxelSize * 1e-3f;
+  }
+
+  private float axisExit(float p, float d) {
+    if (d == 0) {
+      return Float.POSITIVE_INFINITY;
+    }
+    float blockStart = floor(p / blockExtent) * blockExtent;
+    float boundary = d > 0 ? blockStart + blockExtent : blockStart;
+    return Math.max((boundary - p) / d, 0);
+  }
+
+  private int blockAt(float x, float y, float z) {
+    return index.get(BlockHashTable.key(
+        floor(x / blockExtent), floor(y / blockExtent), floor(z / blockExtent)));
+  }
+
+  // Trilinear distance in truncation units, NaN if a corner is unobserved.
+  private float sample(float x, float y, float z) {
+    float gx = x / voxelSize - 0.5f;
+    float gy = y / voxelSize - 0.5f;
+    float gz = z / voxelSize - 0.5f;
+    int ix = floor(gx), iy = floor(gy), iz = floor(gz);
+    float fx = gx - ix, fy = gy - iy, fz = gz - iz;
+    float c000 = voxelValue(ix, iy, iz);
+    float c100 = voxelValue(ix + 1, iy, iz);
+    float c010 = voxelValue(ix, iy + 1, iz);
+    float c110 = voxelValue(ix + 1, iy + 1, iz);
+    float c001 = voxelValue(ix, iy, iz + 1);
+    float c101 = voxelValue(ix + 1, iy, iz + 1);
+    float c011 = voxelValue(ix, iy + 1, iz + 1);
+    float c111 = voxelValue(ix + 1, iy + 1, iz + 1);
+    float c00 = c000 + (c100 - c000) * fx;
+    float c10 = c010 + (c110 - c010) * fx;
+    float c01 = c001 + (c101 - c001) * fx;
+    float c11 = c011 + (c111 - c011) * fx;
+    float c0 = c00 + (c10 - c00) * fy;
+    float c1 = c01 + (c11 - c01) * fy;
+    return c0 + (c1 - c0) * fz;
+  }
+
+  // Distance of the voxel at integer voxel coordinates, NaN if unobserved.
+  private float voxelValue(int x, int y, int z) {
+    long key = BlockHashTable.key(x >> BLOCK_SHIFT, y >> BLOCK_SHIFT, z >> BLOCK_SHIFT);
+    int slot;
+    if (key == cachedKey) {
+      slot = cachedSlot;
+    } else {
+      slot = index.get(key);
+      cachedKey = key;
+      cachedSlot = slot;
+    }
+    if (slot < 0) {
+      return Float.NaN;
+    }
+    int voxel = slot * VOXELS_PER_BLOCK
+        + (((z & BLOCK_MASK) << BLOCK_SHIFT | (y & BLOCK_MASK)) << BLOCK_SHIFT | (x & BLOCK_MASK));
+    return weights[voxel] > 0 ? distances[voxel] : Float.NaN;
+  }
+
+  private static int floor(float value) {
+    int i = (int) value;
+    return value < i ? i - 1 : i;
+  }
+
+  /** Inverse of a rigid column-major transform. */
+  private static void invertRigid(float[] m, float[] out) {
+    for (int row = 0; row < 3; row++) {
+      for (int column = 0; column < 3; column++) {
+        out[column * 4 + row] = m[row * 4 + column];
+      }
+      out[row * 4 + 3] = 0;
+    }
+    for (int row = 0; row < 3; row++) {
+      out[12 + row] = -(m[row * 4] * m[12] + m[row * 4 + 1] * m[13] + m[row * 4 + 2] * m[14]);
+    }
+    out[15] = 1;
+  }
+}
@@ -0,0 +1,279 @@
+package com.matt.arcore.java.common.recording;
+
+import com.matt.arcore.java.common.depth.DepthFrame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.matt.arcore.java.common.recording.DepthRecordingFormat.*;
+
+/**
+ * Records DEPTH16 frames with their timestamps and camera poses into a {@link
+ * DepthRecordingFormat} file.
+ *
+ * <p>{@link #record} copies the frame into a pooled slot and queues it, it never touches the file.
+ * A dedicated I/O thread appends queued frames to memory-mapped chunks. When every slot is queued
+ * the frame is dropped and counted rather than blocking the caller.
+ */
+public final class DepthRecorder {
+
+  public static final int DEFAULT_FRAMES_PER_CHUNK = 64;
+  public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+  private static final class Slot {
+    final DepthFrame frame;
+    final float[] pose = new float[16];
+    boolean poseValid;
+
+    Slot(int width, int height) {
+      frame = new DepthFrame(width, height);
+    }
+  }
+
+  // Queued after the last frame to stop the I/O thread.
+  private static final Slot END = new Slot(1, 1);
+
+  private final int width;
+  private final int height;
+  private final int framesPerChunk;
+  private final int recordSize;
+  private final long chunkSize;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final ArrayBlockingQueue<Slot> freeSlots;
+  private final ArrayBlockingQueue<Slot> queuedSlots;
+  private final Thread ioThread;
+
+  // I/O thread state.
+  private MappedByteBuffer chunk;
+  private int chunkNumber = -1;
+  private int chunkFrames;
+  private long endOffset = HEADER_SIZE;
+
+  private volatile long recordedCount;
+  // Incremented by both record() and the writer thread.
+  private final AtomicLong droppedCount = new AtomicLong();
+  private volatile IOException failure;
+  // Set by close() before the I/O thread is stopped, record() drops frames from then on.
+  private volatile boolean closed;
+
+  public DepthRecorder(File path, int width, int height) throws IOException {
+    this(path, width, height, DEFAULT_FRAMES_PER_CHUNK, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Creates or truncates {@code path}, writes the file header and starts the I/O thread.
+   *
+   * @param queueCapacity frames that can wait for the I/O thread before new ones are dropped.
+   */
+  public DepthRecorder(File path, int width, int height, int framesPerChunk, int queueCapacity)
+      throws IOException {
+    if (width <= 0 || height <= 0 || framesPerChunk <= 0 || queueCapacity <= 0) {
+      throw new IllegalArgumentException("Invalid recorder configuration " + width + "x" + height
+          + ", " + framesPerChunk + " frames per chunk, queue of " + queueCapacity);
+    }
+    this.width = width;
+    this.height = height;
+    this.framesPerChunk = framesPerChunk;
+    this.recordSize = recordSize(width, height);
+    this.chunkSize = chunkSize(framesPerChunk, recordSize);
+    if (chunkSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Chunk of " + chunkSize + " bytes too large to map");
+    }
+
+    freeSlots = new ArrayBlockingQueue<>(queueCapacity);
+    queuedSlots = new ArrayBlockingQueue<>(queueCapacity + 1);
+    for (int i = 0; i < queueCapacity; i++) {
+      freeSlots.add(new Slot(width, height));
+    }
+
+    file = new RandomAccessFile(path, "rw");
+    channel = file.getChannel();
+    try {
+      channel.truncate(0);
+      writeHeader();
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+
+    ioThread = new Thread(this::runIo, "DepthRecorderIO");
+    ioThread.start();
+  }
+
+  private void writeHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(MAGIC);
+    header.putInt(HEADER_VERSION, VERSION);
+    header.putInt(HEADER_HEADER_SIZE, HEADER_SIZE);
+    header.putInt(HEADER_WIDTH, width);
+    header.putInt(HEADER_HEIGHT, height);
+    header.putInt(HEADER_PIXEL_FORMAT, PIXEL_FORMAT_DEPTH16);
+    header.putInt(HEADER_FRAMES_PER_CHUNK, framesPerChunk);
+    header.putInt(HEADER_RECORD_SIZE, recordSize);
+    header.putInt(HEADER_CHUNK_HEADER_SIZE, CHUNK_HEADER_SIZE);
+    header.putLong(HEADER_CREATION_TIME, System.currentTimeMillis());
+    header.clear();
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+  }
+
+  /**
+   * Queues a frame for writing. Safe to call from any thread, does not block or allocate.
+   *
+   * @param pose column-major camera-to-world matrix, or null if unknown.
+   * @return false if the frame was dropped because the queue is full, the recorder failed or it
+   *     was closed.
+   */
+  public boolean record(DepthFrame frame, float[] pose) {
+    if (frame.width != width || frame.height != height) {
+      throw new IllegalArgumentException("Frame is " + frame.width + "x" + frame.height
+          + ", recording is " + width + "x" + height);
+    }
+    Slot slot = failure == null && !closed ? freeSlots.poll() : null;
+    if (slot == null) {
+      droppedCount.incrementAndGet();
+      return false;
+    }
+    slot.frame.copyFrom(frame);
+    slot.poseValid = pose != null;
+    if (pose != null) {
+      System.arraycopy(pose, 0, slot.pose, 0, 16);
+    }
+    queuedSlots.add(slot);
+    return true;
+  }
+
+  /** Frames written to the file so far. */
+  public long getRecordedCount() {
+    return recordedCount;
+  }
+
+  /** Frames passed to {@link #record} that were not written. */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Writes the queued frames, stops the I/O thread and trims the file after the last record.
+   *
+   * @throws IOException if writing failed at any point; frames before the failure stay readable.
+   */
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    queuedSlots.add(END);
+    boolean interrupted = false;
+    while (ioThread.isAlive()) {
+      try {
+        ioThread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    // Frames queued by a record() that raced close() never reach the file.
+    droppedCount.addAndGet(queuedSlots.size());
+    queuedSlots.clear();
+    try {
+      if (chunk != null) {
+        chunk.force();
+      }
+      channel.truncate(endOffset);
+    } finally {
+      chunk = null;
+      file.close();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void runIo() {
+    while (true) {
+      Slot slot;
+      try {
+        slot = queuedSlots.take();
+      } catch (InterruptedException e) {
+        // Only close() stops the thread.
+        continue;
+      }
+      if (slot == END) {
+        return;
+      }
+      if (failure == null) {
+        try {
+          write(slot);
+          recordedCount++;
+        } catch (IOException e) {
+          failure = e;
+        }
+      }
+      if (failure != null) {
+        droppedCount.incrementAndGet();
+      }
+      freeSlots.add(slot);
+    }
+  }
+
+  private void write(Slot slot) throws IOException {
+    if (chunk == null || chunkFrames == framesPerChunk) {
+      startChunk();
+    }
+    MappedByteBuffer chunk = this.chunk;
+    DepthFrame frame = slot.frame;
+
+    int record = CHUNK_HEADER_SIZE + framesPerChunk * INDEX_ENTRY_SIZE + chunkFrames * recordSize;
+    chunk.putLong(record, frame.getTimestamp());
+    chunk.putLong(record + 8, frame.getSequence());
+    chunk.putInt(record + 16, slot.poseValid ? FLAG_POSE_VALID : 0);
+    for (int i = 0; i < 16; i++) {
+      chunk.putFloat(record + POSE_OFFSET + i * 4, slot.poseValid ? slot.pose[i] : 0);
+    }
+    // DepthFrame uses the native order, little-endian on Android, where the bytes copy as they are.
+    int samples = record + RECORD_HEADER_SIZE;
+    if (frame.data.order() == ByteOrder.LITTLE_ENDIAN) {
+      chunk.position(samples);
+      chunk.put(frame.data);
+      frame.data.rewind();
+    } else {
+      for (int i = 0; i < width * height; i++) {
+        chunk.putShort(samples + 2 * i, frame.samples.get(i));
+      }
+    }
+
+    int entry = CHUNK_HEADER_SIZE + chunkFrames * INDEX_ENTRY_SIZE;
+    chunk.putLong(entry, frame.getTimestamp());
+    chunk.putLong(entry + 8, frame.getSequence());
+
+    chunkFrames++;
+    chunk.putInt(CHUNK_FRAME_COUNT, chunkFrames);
+    endOffset = HEADER_SIZE + chunkNumber * chunkSize + record + recordSize;
+  }
+
+  private void startChunk() throws IOException {
+    if (chunk != null) {
+      chunk.force();
+    }
+    chunkNumber++;
+    chunkFrames = 0;
+    long offset = HEADER_SIZE + chunkNumber * chunkSize;
+    chunk = channel.map(FileChannel.MapMode.READ_WRITE, offset, chunkSize);
+    chunk.order(ByteOrder.LITTLE_ENDIAN);
+    chunk.putInt(0, CHUNK_MAGIC);
+    chunk.putInt(CHUNK_NUMBER, chunkNumber);
+    chunk.putInt(CHUNK_FRAME_COUNT, 0);
+  }
+}
@@ -0,0 +1,87 @@
+package com.matt.arcore.java.common.recording;
+
+/**
+ * Layout of a depth recording file, written by {@link DepthRecorder} and read by {@link
+ * DepthRecordingReader}. All values are little-endian, the DEPTH16 samples included, whatever the
+ * byte order of the device.
+ *
+ * <pre>
+ * File header, HEADER_SIZE bytes
+ *   0   8 bytes  magic "DEPTHREC"
+ *   8   int      format version, VERSION
+ *   12  int      header size in bytes
+ *   16  int      frame width
+ *   20  int      frame height
+ *   24  int      pixel format, PIXEL_FORMAT_DEPTH16
+ *   28  int      frames per chunk
+ *   32  int      record size in bytes
+ *   36  int      chunk header size in bytes
+ *   40  long     wall clock creation time in milliseconds
+ *   48  16 bytes reserved, zero
+ *
+ * Chunks follow back to back, chunk k starts at HEADER_SIZE + k * chunkSize with
+ * chunkSize = CHUNK_HEADER_SIZE + framesPerChunk * (INDEX_ENTRY_SIZE + recordSize).
+ *
+ * Chunk header, CHUNK_HEADER_SIZE bytes
+ *   0   int      magic "CHNK"
+ *   4   int      chunk number
+ *   8   int      frames written to the chunk, updated after each complete record
+ *   12  int      reserved, zero
+ * Index, framesPerChunk entries of INDEX_ENTRY_SIZE bytes
+ *   0   long     sensor timestamp in nanoseconds
+ *   8   long     frame sequence number
+ * Records, framesPerChunk entries of recordSize bytes
+ *   0   long     sensor timestamp in nanoseconds
+ *   8   long     frame sequence number
+ *   16  int      flags, FLAG_POSE_VALID
+ *   20  int      reserved, zero
+ *   24  16 float column-major camera-to-world pose
+ *   88  width * height DEPTH16 samples, rows tightly packed
+ *       padding to a multiple of 8 bytes
+ * </pre>
+ *
+ * <p>Files are append only. A chunk's frame count is written last, so a file cut short by a crash
+ * is still readable up to its last complete record. The final chunk may be truncated after its last
+ * record.
+ */
+public final class DepthRecordingFormat {
+
+  public static final byte[] MAGIC = {'D', 'E', 'P', 'T', 'H', 'R', 'E', 'C'};
+  public static final int VERSION = 1;
+  // android.graphics.ImageFormat.DEPTH16
+  public static final int PIXEL_FORMAT_DEPTH16 = 0x44363159;
+
+  public static final int HEADER_SIZE = 64;
+  public static final int CHUNK_HEADER_SIZE = 16;
+  public static final int CHUNK_MAGIC = 'C' | 'H' << 8 | 'N' << 16 | 'K' << 24;
+  public static final int INDEX_ENTRY_SIZE = 16;
+  public static final int RECORD_HEADER_SIZE = 88;
+  public static final int POSE_OFFSET = 24;
+
+  public static final int FLAG_POSE_VALID = 1;
+
+  static final int HEADER_VERSION = 8;
+  static final int HEADER_HEADER_SIZE = 12;
+  static final int HEADER_WIDTH = 16;
+  static final int HEADER_HEIGHT = 20;
+  static final int HEADER_PIXEL_FORMAT = 24;
+  static final int HEADER_FRAMES_PER_CHUNK = 28;
+  static final int HEADER_RECORD_SIZE = 32;
+  static final int HEADER_CHUNK_HEADER_SIZE = 36;
+  static final int HEADER_CREATION_TIME = 40;
+
+  static final int CHUNK_NUMBER = 4;
+  static final int CHUNK_FRAME_COUNT = 8;
+
+  private DepthRecordingFormat() {}
+
+  /** Bytes per record for width x height frames. */
+  public static int recordSize(int width, int height) {
+    return (RECORD_HEADER_SIZE + width * height * 2 + 7) & ~7;
+  }
+
+  /** Bytes per chunk, header, index and records. */
+  public static long chunkSize(int framesPerChunk, int recordSize) {
+    return CHUNK_HEADER_SIZE + (long) framesPerChunk * (INDEX_ENTRY_SIZE + recordSize);
+  }
+}
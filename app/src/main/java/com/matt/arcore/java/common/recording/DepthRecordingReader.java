@@ -0,0 +1,212 @@
+package com.matt.arcore.java.common.recording;
+
+import com.matt.arcore.java.common.depth.DepthFrame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.matt.arcore.java.common.recording.DepthRecordingFormat.*;
+
+/**
+ * Random access to the frames of a {@link DepthRecordingFormat} file. Chunks are memory-mapped on
+ * first use. Files cut short by a crash are read up to their last complete record. Not thread safe.
+ */
+public final class DepthRecordingReader implements Closeable {
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int width;
+  private final int height;
+  private final int framesPerChunk;
+  private final int recordSize;
+  private final long chunkSize;
+  private final long creationTimeMillis;
+  private final MappedByteBuffer[] chunks;
+  private final long[] timestamps;
+
+  public DepthRecordingReader(File path) throws IOException {
+    file = new RandomAccessFile(path, "r");
+    channel = file.getChannel();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(header, 0);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException(path + " is not a depth recording");
+      }
+      int version = header.getInt(HEADER_VERSION);
+      if (version != VERSION) {
+        throw new IOException("Unsupported depth recording version " + version);
+      }
+      if (header.getInt(HEADER_PIXEL_FORMAT) != PIXEL_FORMAT_DEPTH16
+          || header.getInt(HEADER_HEADER_SIZE) != HEADER_SIZE
+          || header.getInt(HEADER_CHUNK_HEADER_SIZE) != CHUNK_HEADER_SIZE) {
+        throw new IOException("Unexpected layout in depth recording " + path);
+      }
+      width = header.getInt(HEADER_WIDTH);
+      height = header.getInt(HEADER_HEIGHT);
+      framesPerChunk = header.getInt(HEADER_FRAMES_PER_CHUNK);
+      recordSize = header.getInt(HEADER_RECORD_SIZE);
+      creationTimeMillis = header.getLong(HEADER_CREATION_TIME);
+      if (width <= 0 || height <= 0 || framesPerChunk <= 0
+          || recordSize != recordSize(width, height)) {
+        throw new IOException("Corrupt header in depth recording " + path);
+      }
+      chunkSize = chunkSize(framesPerChunk, recordSize);
+
+      long size = channel.size();
+      int chunkCount = (int) ((size - HEADER_SIZE + chunkSize - 1) / chunkSize);
+      chunks = new MappedByteBuffer[chunkCount];
+      ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      // Every chunk but the last is full, the first partial chunk ends the recording.
+      int total = 0;
+      for (int k = 0; k < chunkCount; k++) {
+        long offset = HEADER_SIZE + k * chunkSize;
+        if (size - offset < CHUNK_HEADER_SIZE) {
+          break;
+        }
+        readFully(chunkHeader, offset);
+        if (chunkHeader.getInt(0) != CHUNK_MAGIC || chunkHeader.getInt(CHUNK_NUMBER) != k) {
+          throw new IOException("Corrupt chunk " + k + " in depth recording " + path);
+        }
+        // Only count records that made it into the file.
+        long available = (size - offset - CHUNK_HEADER_SIZE - framesPerChunk * INDEX_ENTRY_SIZE)
+            / recordSize;
+        int frames = (int) Math.max(0, Math.min(chunkHeader.getInt(CHUNK_FRAME_COUNT),
+            Math.min(framesPerChunk, available)));
+        total += frames;
+        if (frames < framesPerChunk) {
+          break;
+        }
+      }
+
+      timestamps = new long[total];
+      for (int index = 0; index < total; index++) {
+        timestamps[index] = chunk(index / framesPerChunk).getLong(indexEntry(index));
+      }
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  private void readFully(ByteBuffer buffer, long offset) throws IOException {
+    buffer.clear();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of depth recording");
+      }
+    }
+    buffer.flip();
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getFrameCount() {
+    return timestamps.length;
+  }
+
+  public long getCreationTimeMillis() {
+    return creationTimeMillis;
+  }
+
+  /** Sensor timestamp of frame {@code index} in nanoseconds. */
+  public long getTimestamp(int index) {
+    return timestamps[index];
+  }
+
+  /** Sequence number the frame had when it was recorded. */
+  public long getSequence(int index) throws IOException {
+    checkIndex(index);
+    return chunk(index / framesPerChunk).getLong(indexEntry(index) + 8);
+  }
+
+  /**
+   * Index of the last frame with a timestamp at or before {@code timestamp}, or -1 if every frame
+   * is later.
+   */
+  public int findFrame(long timestamp) {
+    int index = Arrays.binarySearch(timestamps, timestamp);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  /**
+   * Copies the samples of frame {@code index} into {@code dst}.
+   *
+   * @param pose receives the column-major camera-to-world pose if not null.
+   * @return true if the frame was recorded with a pose.
+   */
+  public boolean readFrame(int index, DepthFrame dst, float[] pose) throws IOException {
+    checkIndex(index);
+    if (dst.width != width || dst.height != height) {
+      throw new IllegalArgumentException("Frame is " + dst.width + "x" + dst.height
+          + ", recording is " + width + "x" + height);
+    }
+    MappedByteBuffer chunk = chunk(index / framesPerChunk);
+    int record = recordOffset(index);
+    boolean poseValid = (chunk.getInt(record + 16) & FLAG_POSE_VALID) != 0;
+    if (pose != null) {
+      for (int i = 0; i < 16; i++) {
+        pose[i] = chunk.getFloat(record + POSE_OFFSET + i * 4);
+      }
+    }
+    int samples = record + RECORD_HEADER_SIZE;
+    if (dst.data.order() == ByteOrder.LITTLE_ENDIAN) {
+      ByteBuffer src = chunk.duplicate();
+      src.position(samples);
+      dst.copyFrom(src.slice(), dst.getRowStride());
+    } else {
+      for (int i = 0; i < width * height; i++) {
+        dst.samples.put(i, chunk.getShort(samples + 2 * i));
+      }
+    }
+    return poseValid;
+  }
+
+  @Override
+  public void close() throws IOException {
+    Arrays.fill(chunks, null);
+    file.close();
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= timestamps.length) {
+      throw new IndexOutOfBoundsException("Frame " + index + " of " + timestamps.length);
+    }
+  }
+
+  private int indexEntry(int index) {
+    return CHUNK_HEADER_SIZE + (index % framesPerChunk) * INDEX_ENTRY_SIZE;
+  }
+
+  private int recordOffset(int index) {
+    return CHUNK_HEADER_SIZE + framesPerChunk * INDEX_ENTRY_SIZE
+        + (index % framesPerChunk) * recordSize;
+  }
+
+  private MappedByteBuffer chunk(int k) throws IOException {
+    MappedByteBuffer chunk = chunks[k];
+    if (chunk == null) {
+      long offset = HEADER_SIZE + k * chunkSize;
+      long length = Math.min(chunkSize, channel.size() - offset);
+      chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+      chunk.order(ByteOrder.LITTLE_ENDIAN);
+      chunks[k] = chunk;
+    }
+    return chunk;
+  }
+}
@@ -0,0 +1,224 @@
+package com.matt.arcore.java.common.recording;
+
+import com.matt.arcore.java.common.depth.DepthFilterStage;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.depth.DepthFrameExchange;
+import com.matt.arcore.java.common.depth.DepthFrameSource;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the frames of a recording as a {@link DepthFrameSource}, so everything downstream of
+ * the TOF camera can run headless.
+ *
+ * <p>In {@link Mode#REALTIME} and {@link Mode#MAX_SPEED} a replay thread started by {@link
+ * #start()} publishes the frames, paced by their recorded timestamps or back to back. In {@link
+ * Mode#SINGLE_STEP} each {@link #step()} publishes the next frame on the calling thread. Frames
+ * keep their recorded timestamps; when looping, later passes are shifted to stay monotonic.
+ */
+public final class DepthReplaySource implements DepthFrameSource {
+
+  public enum Mode {
+    /** Frames are published at the rate they were recorded. */
+    REALTIME,
+    /** Frames are published as fast as they can be read. */
+    MAX_SPEED,
+    /** Frames are published one per {@link #step()} call. */
+    SINGLE_STEP
+  }
+
+  private final DepthRecordingReader reader;
+  private final Mode mode;
+  private final DepthFrameExchange depthFrames;
+  private final float[] pose = new float[16];
+  private volatile boolean loop;
+  private volatile Listener listener;
+  private volatile DepthFilterStage depthFilter;
+
+  // Position, owned by the replay thread or the stepping thread.
+  private int nextIndex;
+  private long timestampOffset;
+  private boolean lastPoseValid;
+
+  private Thread thread;
+  private volatile boolean running;
+  private volatile boolean finished;
+  private volatile IOException failure;
+
+  /** The reader stays owned by the caller and must outlive the replay. */
+  public DepthReplaySource(DepthRecordingReader reader, Mode mode) {
+    if (reader.getFrameCount() == 0) {
+      throw new IllegalArgumentException("Recording has no frames");
+    }
+    this.reader = reader;
+    this.mode = mode;
+    this.depthFrames = new DepthFrameExchange(reader.getWidth(), reader.getHeight());
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /** Restarts from the first frame after the last one instead of finishing. */
+  public void setLoop(boolean loop) {
+    this.loop = loop;
+  }
+
+  @Override
+  public DepthFrameExchange getDepthFrames() {
+    return depthFrames;
+  }
+
+  @Override
+  public int getWidth() {
+    return reader.getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return reader.getHeight();
+  }
+
+  @Override
+  public long getFrameCount() {
+    return depthFrames.getPublishedCount();
+  }
+
+  @Override
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Runs the CPU side of the filter on every frame before it is published, as TOF_ImageReader does
+   * for live frames, null to disable.
+   */
+  public void setDepthFilter(DepthFilterStage filter) {
+    this.depthFilter = filter;
+  }
+
+  /** True once the last frame was published without looping, or replay failed. */
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /** Error that stopped the replay thread, or null. */
+  public IOException getFailure() {
+    return failure;
+  }
+
+  /**
+   * Copies the recorded pose of the frame published last into {@code dst}. Call from the
+   * publishing thread, for example from the listener.
+   *
+   * @return false if that frame was recorded without a pose.
+   */
+  public boolean getLastPose(float[] dst) {
+    System.arraycopy(pose, 0, dst, 0, 16);
+    return lastPoseValid;
+  }
+
+  /** Starts the replay thread. Not used in {@link Mode#SINGLE_STEP}. */
+  public synchronized void start() {
+    if (mode == Mode.SINGLE_STEP) {
+      throw new IllegalStateException("Single step replay is driven by step()");
+    }
+    if (thread != null) {
+      throw new IllegalStateException("Replay already started");
+    }
+    running = true;
+    thread = new Thread(this::runReplay, "DepthReplay");
+    thread.start();
+  }
+
+  /**
+   * Stops the replay thread and waits for it to exit. The thread is woken rather than interrupted:
+   * an interrupt during a file read would close the caller's reader.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (thread == null) {
+      return;
+    }
+    LockSupport.unpark(thread);
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    thread = null;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Publishes the next frame on the calling thread, {@link Mode#SINGLE_STEP} only.
+   *
+   * @return false if the recording has ended.
+   */
+  public boolean step() throws IOException {
+    if (mode != Mode.SINGLE_STEP) {
+      throw new IllegalStateException("step() requires SINGLE_STEP mode, not " + mode);
+    }
+    return publishNext();
+  }
+
+  private boolean publishNext() throws IOException {
+    if (nextIndex == reader.getFrameCount()) {
+      if (!loop) {
+        finished = true;
+        return false;
+      }
+      // Continue one average frame interval after the last frame.
+      int last = reader.getFrameCount() - 1;
+      long duration = reader.getTimestamp(last) - reader.getTimestamp(0);
+      timestampOffset += duration + (last > 0 ? duration / last : 0);
+      nextIndex = 0;
+    }
+    DepthFrame frame = depthFrames.getWriteFrame();
+    frame.setArrivalNanos(System.nanoTime());
+    lastPoseValid = reader.readFrame(nextIndex, frame, pose);
+    DepthFilterStage filter = depthFilter;
+    if (filter != null) {
+      filter.filterFrame(frame);
+    }
+    depthFrames.publish(reader.getTimestamp(nextIndex) + timestampOffset);
+    nextIndex++;
+
+    Listener listener = this.listener;
+    if (listener != null) {
+      listener.onDepthFrameAvailable(this);
+    }
+    return true;
+  }
+
+  private void runReplay() {
+    long startNanos = System.nanoTime();
+    long firstTimestamp = reader.getTimestamp(0);
+    try {
+      while (running) {
+        if (mode == Mode.REALTIME && nextIndex < reader.getFrameCount()) {
+          long due = startNanos + reader.getTimestamp(nextIndex) + timestampOffset - firstTimestamp;
+          long wait;
+          while (running && (wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+          if (!running) {
+            break;
+          }
+        }
+        if (!publishNext()) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+      finished = true;
+    }
+  }
+}
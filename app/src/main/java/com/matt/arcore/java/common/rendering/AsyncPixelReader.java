@@ -0,0 +1,216 @@
+package com.matt.arcore.java.common.rendering;
+
+import android.opengl.GLES32;
+import android.util.Log;
+
+import com.matt.arcore.java.common.image.PixelUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads back framebuffer pixels without stalling the GL thread.
+ *
+ * <p>{@link #requestReadback} issues glReadPixels into one of a ring of pixel pack buffers and puts
+ * a fence behind it. {@link #poll()}, called once per frame, maps the buffers whose fence has
+ * signalled, so frame N is copied out while frames N+1 and N+2 are being rendered. The RGBA to ARGB
+ * swizzle and row flip run on a worker thread, and the result is delivered to the {@link Listener}
+ * there. Pixel arrays come from a fixed pool; a request is dropped when the ring or the pool is
+ * exhausted.
+ */
+public class AsyncPixelReader {
+  private static final String TAG = AsyncPixelReader.class.getSimpleName();
+
+  // Frames between issuing a read and mapping its buffer without waiting.
+  private static final int PBO_COUNT = 3;
+  // Results that can be queued for or held by the worker at once.
+  private static final int JOB_COUNT = 2;
+
+  /** Receives swizzled pixels on the worker thread. */
+  public interface Listener {
+    /**
+     * @param argb width * height ARGB_8888 pixels, top row first, valid only during the call.
+     * @param timestamp the timestamp passed to {@link #requestReadback}.
+     */
+    void onPixelsAvailable(int[] argb, int width, int height, long timestamp);
+  }
+
+  private static final class Slot {
+    int pbo;
+    int capacity;
+    long fence;
+    int width;
+    int height;
+    long timestamp;
+  }
+
+  private static final class Job {
+    int[] rgba = new int[0];
+    int[] argb = new int[0];
+    int width;
+    int height;
+    long timestamp;
+  }
+
+  private final Listener listener;
+  private final Slot[] slots = new Slot[PBO_COUNT];
+  private final ArrayBlockingQueue<Job> freeJobs = new ArrayBlockingQueue<>(JOB_COUNT);
+  private final ArrayBlockingQueue<Job> pendingJobs = new ArrayBlockingQueue<>(JOB_COUNT);
+  private Thread worker;
+
+  // Ring positions, GL thread only: next slot to issue into, oldest slot in flight.
+  private int issueIndex;
+  private int collectIndex;
+  private int inFlight;
+
+  private long droppedCount;
+
+  public AsyncPixelReader(Listener listener) {
+    this.listener = listener;
+    for (int i = 0; i < PBO_COUNT; i++) {
+      slots[i] = new Slot();
+    }
+    for (int i = 0; i < JOB_COUNT; i++) {
+      freeJobs.add(new Job());
+    }
+  }
+
+  /** Allocates the pixel pack buffers and starts the worker. Must be called on the GL thread. */
+  public void createOnGlThread() {
+    int[] buffers = new int[PBO_COUNT];
+    GLES32.glGenBuffers(PBO_COUNT, buffers, 0);
+    for (int i = 0; i < PBO_COUNT; i++) {
+      slots[i].pbo = buffers[i];
+      slots[i].capacity = 0;
+      slots[i].fence = 0;
+    }
+    issueIndex = 0;
+    collectIndex = 0;
+    inFlight = 0;
+    ShaderUtil.checkGLError(TAG, "pixel pack buffer creation");
+
+    if (worker == null) {
+      worker = new Thread(this::runWorker, "PixelReadbackWorker");
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Queues a read of a rectangle of the bound read framebuffer. Must be called on the GL thread
+   * after the frame has been drawn.
+   *
+   * @return false if the request was dropped because every buffer is still in flight.
+   */
+  public boolean requestReadback(int x, int y, int width, int height, long timestamp) {
+    if (inFlight == PBO_COUNT) {
+      poll();
+      if (inFlight == PBO_COUNT) {
+        droppedCount++;
+        return false;
+      }
+    }
+    Slot slot = slots[issueIndex];
+    int size = width * height * 4;
+    GLES32.glBindBuffer(GLES32.GL_PIXEL_PACK_BUFFER, slot.pbo);
+    if (slot.capacity < size) {
+      GLES32.glBufferData(GLES32.GL_PIXEL_PACK_BUFFER, size, null, GLES32.GL_STREAM_READ);
+      slot.capacity = size;
+    }
+    GLES32.glReadPixels(x, y, width, height, GLES32.GL_RGBA, GLES32.GL_UNSIGNED_BYTE, 0);
+    GLES32.glBindBuffer(GLES32.GL_PIXEL_PACK_BUFFER, 0);
+    slot.fence = GLES32.glFenceSync(GLES32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    slot.width = width;
+    slot.height = height;
+    slot.timestamp = timestamp;
+    issueIndex = (issueIndex + 1) % PBO_COUNT;
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * Hands every completed read to the worker, oldest first, without waiting on the GPU. Must be
+   * called on the GL thread, typically once per frame.
+   */
+  public void poll() {
+    while (inFlight > 0) {
+      Slot slot = slots[collectIndex];
+      int status = GLES32.glClientWaitSync(slot.fence, GLES32.GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+      if (status != GLES32.GL_ALREADY_SIGNALED && status != GLES32.GL_CONDITION_SATISFIED) {
+        return;
+      }
+      GLES32.glDeleteSync(slot.fence);
+      slot.fence = 0;
+
+      Job job = freeJobs.poll();
+      if (job != null) {
+        int pixels = slot.width * slot.height;
+        if (job.rgba.length < pixels) {
+          job.rgba = new int[pixels];
+          job.argb = new int[pixels];
+        }
+        GLES32.glBindBuffer(GLES32.GL_PIXEL_PACK_BUFFER, slot.pbo);
+        ByteBuffer mapped = (ByteBuffer) GLES32.glMapBufferRange(
+                GLES32.GL_PIXEL_PACK_BUFFER, 0, pixels * 4, GLES32.GL_MAP_READ_BIT);
+        if (mapped != null) {
+          // Same byte interpretation as glReadPixels into an int[] in readPixels().
+          mapped.order(ByteOrder.nativeOrder()).asIntBuffer().get(job.rgba, 0, pixels);
+          GLES32.glUnmapBuffer(GLES32.GL_PIXEL_PACK_BUFFER);
+          job.width = slot.width;
+          job.height = slot.height;
+          job.timestamp = slot.timestamp;
+          pendingJobs.add(job);
+        } else {
+          Log.e(TAG, "glMapBufferRange failed for pixel readback");
+          freeJobs.add(job);
+        }
+        GLES32.glBindBuffer(GLES32.GL_PIXEL_PACK_BUFFER, 0);
+      } else {
+        droppedCount++;
+      }
+
+      collectIndex = (collectIndex + 1) % PBO_COUNT;
+      inFlight--;
+    }
+  }
+
+  /** Requests dropped because all buffers were in flight or all pixel arrays were in use. */
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /** Deletes fences and buffers. Must be called on the GL thread; the worker keeps running. */
+  public void releaseOnGlThread() {
+    int[] buffers = new int[PBO_COUNT];
+    for (int i = 0; i < PBO_COUNT; i++) {
+      if (slots[i].fence != 0) {
+        GLES32.glDeleteSync(slots[i].fence);
+        slots[i].fence = 0;
+      }
+      buffers[i] = slots[i].pbo;
+      slots[i].capacity = 0;
+    }
+    GLES32.glDeleteBuffers(PBO_COUNT, buffers, 0);
+    inFlight = 0;
+  }
+
+  private void runWorker() {
+    while (true) {
+      Job job;
+      try {
+        job = pendingJobs.take();
+      } catch (InterruptedException e) {
+        Log.e(TAG, "Pixel readback worker interrupted", e);
+        return;
+      }
+      try {
+        PixelUtils.glRgbaToArgbFlipped(job.rgba, job.argb, job.width, job.height);
+        listener.onPixelsAvailable(job.argb, job.width, job.height, job.timestamp);
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Pixel readback listener failed", e);
+      }
+      freeJobs.add(job);
+    }
+  }
+}
@@ -22,12 +22,21 @@ import android.util.Log;
 
 import com.google.ar.core.Coordinates2d;
 import com.google.ar.core.Frame;
+import com.matt.arcore.java.common.depth.DepthFilterStage;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.depth.DepthFrameExchange;
+import com.matt.arcore.java.common.depth.DepthFrameSource;
+import com.matt.arcore.java.common.depth.DepthFrameSynchronizer;
+import com.matt.arcore.java.common.image.PixelUtils;
 import com.matt.arcore.java.sharedcamera_example.SharedCameraActivity;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class renders the AR background from camera feed. It creates and hosts the texture given to
@@ -38,10 +47,30 @@ public class BackgroundRenderer {
   private SharedCameraActivity parentActivity;
   private static final String TAG = BackgroundRenderer.class.getSimpleName();
 
+  /** How depth frames are transferred into the depth texture. */
+  public enum DepthUploadMode {
+    // Re-specify the texture with glTexImage2D on every drawn frame, reallocating its storage.
+    TEX_IMAGE,
+    // Immutable storage, glTexSubImage2D straight from client memory when a new frame arrives.
+    TEX_SUB_IMAGE,
+    // Immutable storage, new frames written into an orphaned, mapped pixel unpack buffer ring.
+    PBO
+  }
+
+  private static final int DEPTH_PBO_COUNT = 2;
+  // Log the average upload time every this many uploads.
+  private static final int UPLOAD_STATS_INTERVAL = 300;
+
   // Shader names.
   private static final String VERTEX_SHADER_NAME = "shaders/screenquad.vert";
   private static final String FRAGMENT_SHADER_NAME = "shaders/screenquad.frag";
 
+  // Number of fragment shader variants, one per visualization mode. Higher modes use the last.
+  private static final int VIZ_MODE_COUNT = 7;
+  // Compile every variant in createOnGlThread instead of on the first draw in its mode, so
+  // switching modes does not hitch.
+  private static final boolean WARM_UP_QUAD_VARIANTS = true;
+
   private static final int COORDS_PER_VERTEX = 2;
   private static final int TEXCOORDS_PER_VERTEX = 2;
   private static final int FLOAT_SIZE = 4;
@@ -49,25 +78,90 @@ public class BackgroundRenderer {
   private FloatBuffer quadCoords;
   private FloatBuffer quadTexCoords;
 
-  private int quadProgram;
-
-  // uniforms for cropping/scaling depth data.
-  private int u_Depth_y_offset;
-  private int u_Depth_x_scale_factor;
-  private int u_Depth_y_scale_factor;
+  /** screenquad.frag compiled for one visualization mode, with its attribute and uniform locations. */
+  private static class QuadVariant {
+    final int program;
+
+    final int positionParam;
+    final int texCoordParam;
+
+    final int u_DepthThresh;
+    final int u_ScreenResolution;
+    final int u_PrecomputedNormals;
+    final int u_RegisteredDepth;
+
+    // uniforms for cropping/scaling depth data.
+    final int u_Depth_y_offset;
+    final int u_Depth_x_scale_factor;
+    final int u_Depth_y_scale_factor;
+
+    QuadVariant(int program) {
+      this.program = program;
+      positionParam = GLES32.glGetAttribLocation(program, "a_Position");
+      texCoordParam = GLES32.glGetAttribLocation(program, "a_TexCoord");
+      u_DepthThresh = GLES32.glGetUniformLocation(program, "u_DepthThresh");
+      u_ScreenResolution = GLES32.glGetUniformLocation(program, "u_ScreenResolution");
+      u_PrecomputedNormals = GLES32.glGetUniformLocation(program, "u_PrecomputedNormals");
+      u_RegisteredDepth = GLES32.glGetUniformLocation(program, "u_RegisteredDepth");
+      u_Depth_y_offset = GLES32.glGetUniformLocation(program, "u_Depth_y_offset");
+      u_Depth_x_scale_factor = GLES32.glGetUniformLocation(program, "u_Depth_x_scale_factor");
+      u_Depth_y_scale_factor = GLES32.glGetUniformLocation(program, "u_Depth_y_scale_factor");
+    }
+  }
 
-  private int quadPositionParam;
-  private int quadTexCoordParam;
-  
-  private int u_vizMode;
-  private int u_DepthThresh;
-  private int u_ScreenResolution;
+  private AssetManager assetManager;
+  private int quadVertexShader;
+  private final QuadVariant[] quadVariants = new QuadVariant[VIZ_MODE_COUNT];
+  private final QuadVariant[] offscreenQuadVariants = new QuadVariant[VIZ_MODE_COUNT];
 
   private int frameCount;
 
   private int cameraTextureId = -1;
   private int depthTextureId = -1;
 
+  private DepthUploadMode depthUploadMode = DepthUploadMode.PBO;
+  private int depthTextureWidth;
+  private int depthTextureHeight;
+  private boolean depthTextureImmutable;
+  private long lastUploadedSequence;
+  private DepthFrame currentDepthFrame;
+  // Sequence currentDepthFrame held when drawn, the synchronized copy is one object refilled in place.
+  private long currentDepthSequence;
+  private long currentDepthUploadNanos;
+  private DepthFilterStage depthFilter;
+  private volatile DepthFrameSynchronizer depthSynchronizer;
+  // Copy of the depth frame matched by the synchronizer.
+  private DepthFrame syncedDepthFrame;
+  private final int[] depthPbos = new int[DEPTH_PBO_COUNT];
+  // Single layer array texture the PBO path unpacks into, see uploadDepth().
+  private int depthStagingTextureId;
+  private int depthPboIndex;
+  private long uploadNanos;
+  private int uploadCount;
+
+  private final NormalMapPass normalMapPass = new NormalMapPass();
+  private volatile boolean precomputedNormals = true;
+  private volatile boolean depthRegistered;
+  private final DepthOcclusionPass occlusionPass = new DepthOcclusionPass();
+  private final VizUpsamplePass vizUpsamplePass = new VizUpsamplePass();
+  private volatile float vizResolutionScale;
+  private volatile boolean depthOcclusion;
+  private volatile float occlusionNear;
+  private volatile float occlusionFar;
+  // Window to depth texel affine map for the occlusion pass, two rows of three.
+  private final float[] depthFromScreen = new float[6];
+  // Window to camera texture coordinate affine map, two rows of three.
+  private final float[] texFromScreen = new float[6];
+  private final float[] texCoords = new float[8];
+  // Timed parts of draw(), from the activity's frame profiler.
+  private FrameProfiler.Section uploadSection;
+  private FrameProfiler.Section filterSection;
+  private FrameProfiler.Section normalPassSection;
+  private FrameProfiler.Section quadSection;
+  private FrameProfiler.Section occlusionSection;
+  private FrameProfiler.Section vizSection;
+  private FrameProfiler.Section upsampleSection;
+
   public int getCameraTextureId() {
     return cameraTextureId;
   }
@@ -77,6 +171,106 @@ public class BackgroundRenderer {
     this.parentActivity = parent;
   }
 
+  /**
+   * Depth frame drawn by the last {@link #draw} call, or null before the first one. It stays valid
+   * until the next draw. GL thread only.
+   */
+  public DepthFrame getCurrentDepthFrame() {
+    return currentDepthFrame;
+  }
+
+  /** {@link System#nanoTime()} when {@link #getCurrentDepthFrame()} was first uploaded. GL thread only. */
+  public long getCurrentDepthUploadNanos() {
+    return currentDepthUploadNanos;
+  }
+
+  /** Runs the GPU side of the filter on each new depth frame, null to disable. GL thread only. */
+  public void setDepthFilter(DepthFilterStage filter) {
+    depthFilter = filter;
+  }
+
+  /**
+   * Draws the depth frame captured closest to each camera frame, falling back to the latest one
+   * when the synchronizer has no match. Null to always draw the latest. May be called from any
+   * thread.
+   */
+  public void setDepthSynchronizer(DepthFrameSynchronizer synchronizer) {
+    depthSynchronizer = synchronizer;
+  }
+
+  /** Selects the depth upload path. May be called from any thread before or between draws. */
+  public void setDepthUploadMode(DepthUploadMode mode) {
+    depthUploadMode = mode;
+  }
+
+  public DepthUploadMode getDepthUploadMode() {
+    return depthUploadMode;
+  }
+
+  /**
+   * Selects between normals rendered once per depth frame by {@link NormalMapPass} and normals
+   * computed per screen fragment, for comparing their GPU times. May be called from any thread.
+   */
+  public void setPrecomputedNormals(boolean precomputed) {
+    precomputedNormals = precomputed;
+  }
+
+  public boolean isPrecomputedNormals() {
+    return precomputedNormals;
+  }
+
+  /**
+   * Declares that depth frames were registered to the color image, see DepthRegistration, so they
+   * are sampled with the camera texture coordinates instead of the aspect ratio based scale and
+   * offset. May be called from any thread.
+   */
+  public void setDepthRegistered(boolean registered) {
+    depthRegistered = registered;
+  }
+
+  /**
+   * Leaves the sensor depth in the depth buffer after drawing the background, converted with the
+   * near and far planes of the projection virtual content is drawn with, so the depth test hides it
+   * behind real surfaces. Depth holes occlude nothing. May be called from any thread before drawing.
+   *
+   * @param near near plane in metres, as passed to {@code Camera.getProjectionMatrix}.
+   * @param far far plane in metres.
+   */
+  public void setDepthOcclusion(boolean enabled, float near, float far) {
+    if (enabled && !(near > 0 && far > near)) {
+      throw new IllegalArgumentException("Invalid clip planes " + near + ", " + far);
+    }
+    occlusionNear = near;
+    occlusionFar = far;
+    depthOcclusion = enabled;
+  }
+
+  public boolean isDepthOcclusion() {
+    return depthOcclusion;
+  }
+
+  /**
+   * Shades the visualization offscreen at {@code scale} times the depth map width, with the aspect
+   * ratio of the screen, and brings it to the screen with a joint bilateral upsample guided by the
+   * camera image. 0 shades every screen pixel instead. Compare the "background draw" profiler
+   * section against "viz offscreen" plus "viz upsample". May be called from any thread.
+   */
+  public void setVizResolutionScale(float scale) {
+    if (!(scale >= 0)) {
+      throw new IllegalArgumentException("Invalid visualization scale " + scale);
+    }
+    vizResolutionScale = scale;
+  }
+
+  public float getVizResolutionScale() {
+    return vizResolutionScale;
+  }
+
+  /** Visualization modes that shade with normals, see screenquad.frag. */
+  private static boolean usesNormals(int vizMode) {
+    return vizMode == 2 || vizMode == 3 || vizMode == 5;
+  }
+
   /**
    * Allocates and initializes OpenGL resources needed by the background renderer. Must be called on
    * the OpenGL thread, typically in {link GLSurfaceView.Renderer#onSurfaceCreated(GL10,
@@ -122,44 +316,40 @@ public class BackgroundRenderer {
     ShaderUtil.checkGLError(TAG, "After OES camera texture creation");
 
 
-    // Generate the Depth  texture.
+    // Generate the Depth  texture. Its storage is allocated on the first upload, once the depth
+    // resolution is known.
     GLES32.glActiveTexture(GLES32.GL_TEXTURE1);
-    textures = new int[1];
-    GLES32.glGenTextures(1, textures, 0);
-    depthTextureId = textures[0];
-    GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, depthTextureId);
-    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_WRAP_S, GLES32.GL_CLAMP_TO_EDGE);
-    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_WRAP_T, GLES32.GL_CLAMP_TO_EDGE);
-    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MIN_FILTER, GLES32.GL_NEAREST);
-    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MAG_FILTER, GLES32.GL_NEAREST);
+    depthTextureId = createDepthTexture();
+    depthTextureWidth = 0;
+    depthTextureHeight = 0;
+    GLES32.glGenBuffers(DEPTH_PBO_COUNT, depthPbos, 0);
     ShaderUtil.checkGLError(TAG, "depth texture creation");
 
-    // ******************* Load shader program
-    int vertexShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    int fragmentShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
-
-    quadProgram = GLES32.glCreateProgram();
-    GLES32.glAttachShader(quadProgram, vertexShader);
-    GLES32.glAttachShader(quadProgram, fragmentShader);
-    GLES32.glLinkProgram(quadProgram);
-    GLES32.glUseProgram(quadProgram);
-    ShaderUtil.checkProgramLinkStatus(TAG, "quadProgram", quadProgram);
-    ShaderUtil.checkGLError(TAG, "Program creation");
-
-    quadPositionParam = GLES32.glGetAttribLocation(quadProgram, "a_Position");
-    quadTexCoordParam = GLES32.glGetAttribLocation(quadProgram, "a_TexCoord");
-    ShaderUtil.checkGLError(TAG, "vertex Program parameters");
-
-    u_DepthThresh = GLES32.glGetUniformLocation(quadProgram, "u_DepthThresh");
-    u_vizMode = GLES32.glGetUniformLocation(quadProgram, "u_vizMode");
-    u_ScreenResolution = GLES32.glGetUniformLocation(quadProgram, "u_ScreenResolution");
-
-    u_Depth_y_offset = GLES32.glGetUniformLocation(quadProgram, "u_Depth_y_offset");
-    u_Depth_x_scale_factor = GLES32.glGetUniformLocation(quadProgram, "u_Depth_x_scale_factor");
-    u_Depth_y_scale_factor = GLES32.glGetUniformLocation(quadProgram, "u_Depth_y_scale_factor");
-
-    ShaderUtil.checkGLError(TAG, "frag Program parameters");
+    // ******************* Load shader programs, one fragment shader variant per visualization mode.
+    this.assetManager = assetManager;
+    Arrays.fill(quadVariants, null);
+    Arrays.fill(offscreenQuadVariants, null);
+    quadVertexShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    if (WARM_UP_QUAD_VARIANTS) {
+      for (int mode = 0; mode < VIZ_MODE_COUNT; mode++) {
+        getQuadVariant(mode, false);
+        if (vizResolutionScale > 0) {
+          getQuadVariant(mode, true);
+        }
+      }
+    }
 
+    normalMapPass.createOnGlThread(assetManager);
+    occlusionPass.createOnGlThread(assetManager);
+    vizUpsamplePass.createOnGlThread(assetManager);
+    FrameProfiler profiler = parentActivity.getFrameProfiler();
+    uploadSection = profiler.section("depth upload");
+    filterSection = profiler.section("depth filter");
+    normalPassSection = profiler.section("normal pass");
+    quadSection = profiler.section("background draw");
+    occlusionSection = profiler.section("depth occlusion");
+    vizSection = profiler.section("viz offscreen");
+    upsampleSection = profiler.section("viz upsample");
   }
 
   /**
@@ -196,36 +386,85 @@ public class BackgroundRenderer {
     GLES32.glActiveTexture(GLES32.GL_TEXTURE1);
     GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, depthTextureId);
     ShaderUtil.checkGLError(TAG, "before upload");
-    GLES32.glTexImage2D(GLES32.GL_TEXTURE_2D,0,GLES32.GL_R16UI,parentActivity.TOFImageReader.WIDTH,
-            parentActivity.TOFImageReader.HEIGHT,0,GLES32.GL_RED_INTEGER,
-            GLES32.GL_UNSIGNED_SHORT, parentActivity.TOFImageReader.depth16_raw);
+    DepthFrameSource depthSource = parentActivity.getDepthSource();
+    DepthFrameExchange depthFrames = depthSource.getDepthFrames();
+    DepthFrame depthFrame = acquireSyncedDepth(frame.getTimestamp());
+    if (depthFrame == null && depthFrames != null) {
+      depthFrame = depthFrames.acquireLatest();
+    }
+    if (depthFrame != null) {
+      uploadSection.begin();
+      uploadDepth(depthFrame);
+      uploadSection.end();
+      if (currentDepthFrame == null || depthFrame.getSequence() != currentDepthSequence) {
+        currentDepthUploadNanos = System.nanoTime();
+      }
+      currentDepthFrame = depthFrame;
+      currentDepthSequence = depthFrame.getSequence();
+    }
     ShaderUtil.checkGLError(TAG, "after upload");
 
-    Log.v(TAG, "depth width: " + parentActivity.TOFImageReader.WIDTH + " height: " + parentActivity.TOFImageReader.HEIGHT);
+    if (depthFilter != null && currentDepthFrame != null) {
+      filterSection.begin();
+      int filteredTexture = depthFilter.filterTexture(depthTextureId, currentDepthFrame.width,
+          currentDepthFrame.height, currentDepthFrame.getSequence());
+      filterSection.end();
+      GLES32.glActiveTexture(GLES32.GL_TEXTURE1);
+      GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, filteredTexture);
+    }
+
+    boolean normalTexture = precomputedNormals && usesNormals(vizMode) && currentDepthFrame != null;
+    if (normalTexture) {
+      normalPassSection.begin();
+      int normalTextureId = normalMapPass.update(currentDepthFrame.width, currentDepthFrame.height,
+          currentDepthFrame.getSequence());
+      normalPassSection.end();
+      GLES32.glActiveTexture(GLES32.GL_TEXTURE2);
+      GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, normalTextureId);
+    }
+
+    Log.v(TAG, "depth width: " + depthSource.getWidth() + " height: " + depthSource.getHeight());
     // ***************************************
 
     // *************************************BEGIN Shader program input variables *************************************************
-    GLES32.glUseProgram(quadProgram);
+    float screenWidth = parentActivity.screenResolution.x;
+    float screenHeight = parentActivity.screenResolution.y;
+    float vizScale = vizResolutionScale;
+    boolean offscreen = vizScale > 0 && currentDepthFrame != null;
+    // Resolution the visualization is shaded at, the screen unless it goes through the upsample.
+    float targetWidth = screenWidth;
+    float targetHeight = screenHeight;
+    if (offscreen) {
+      // Same aspect ratio as the screen, so the crop below still lines up.
+      targetWidth = Math.max(1, Math.round(depthSource.getWidth() * vizScale));
+      targetHeight = Math.max(1, Math.round(targetWidth * screenHeight / screenWidth));
+    }
+    QuadVariant quad = getQuadVariant(vizMode, offscreen);
+    GLES32.glUseProgram(quad.program);
     ShaderUtil.checkGLError(TAG, "before set up variables");
-    GLES32.glVertexAttribPointer(quadPositionParam, COORDS_PER_VERTEX, GLES32.GL_FLOAT, false, 0, quadCoords);
-    GLES32.glVertexAttribPointer(quadTexCoordParam, TEXCOORDS_PER_VERTEX, GLES32.GL_FLOAT, false, 0, quadTexCoords);
-    GLES32.glEnableVertexAttribArray(quadPositionParam);
-    GLES32.glEnableVertexAttribArray(quadTexCoordParam);
+    GLES32.glVertexAttribPointer(quad.positionParam, COORDS_PER_VERTEX, GLES32.GL_FLOAT, false, 0, quadCoords);
+    GLES32.glEnableVertexAttribArray(quad.positionParam);
+    // Variants that do not sample the camera image may have the texture coordinates optimized out.
+    if (quad.texCoordParam >= 0) {
+      GLES32.glVertexAttribPointer(quad.texCoordParam, TEXCOORDS_PER_VERTEX, GLES32.GL_FLOAT, false, 0, quadTexCoords);
+      GLES32.glEnableVertexAttribArray(quad.texCoordParam);
+    }
 
-    GLES32.glUniform1f(u_vizMode, (float) vizMode);
-    GLES32.glUniform1f(u_DepthThresh, (depth_thresh / 100.0f));
-    GLES32.glUniform2f(u_ScreenResolution, parentActivity.screenResolution.x, parentActivity.screenResolution.y);
+    GLES32.glUniform1f(quad.u_DepthThresh, (depth_thresh / 100.0f));
+    GLES32.glUniform1i(quad.u_PrecomputedNormals, normalTexture ? 1 : 0);
+    GLES32.glUniform1i(quad.u_RegisteredDepth, depthRegistered ? 1 : 0);
+    GLES32.glUniform2f(quad.u_ScreenResolution, targetWidth, targetHeight);
 
-    float landscape_aspect = parentActivity.screenResolution.y / parentActivity.screenResolution.x;
-    float new_width = parentActivity.TOFImageReader.WIDTH;
+    float landscape_aspect = screenHeight / screenWidth;
+    float new_width = depthSource.getWidth();
     float new_height = landscape_aspect * new_width;
-    float y_offset = (parentActivity.TOFImageReader.HEIGHT - new_height) / 2.0f;
-    float x_scale_factor = new_width / parentActivity.screenResolution.x;
-    float y_scale_factor = new_height / parentActivity.screenResolution.y;
+    float y_offset = (depthSource.getHeight() - new_height) / 2.0f;
+    float x_scale_factor = new_width / screenWidth;
+    float y_scale_factor = new_height / screenHeight;
 
-    GLES32.glUniform1f(u_Depth_y_offset, y_offset);
-    GLES32.glUniform1f(u_Depth_x_scale_factor, x_scale_factor);
-    GLES32.glUniform1f(u_Depth_y_scale_factor, y_scale_factor);
+    GLES32.glUniform1f(quad.u_Depth_y_offset, y_offset);
+    GLES32.glUniform1f(quad.u_Depth_x_scale_factor, new_width / targetWidth);
+    GLES32.glUniform1f(quad.u_Depth_y_scale_factor, new_height / targetHeight);
 
     ShaderUtil.checkGLError(TAG, "after set up variables");
     // ************************************* END Shader program input variables *************************************************
@@ -233,12 +472,41 @@ public class BackgroundRenderer {
     //***********************************************
     // run the shader
     ShaderUtil.checkGLError(TAG, "before run shader");
-    GLES32.glDrawArrays(GLES32.GL_TRIANGLE_STRIP, 0, 4);
+    if (offscreen) {
+      vizSection.begin();
+      vizUpsamplePass.bindTarget((int) targetWidth, (int) targetHeight);
+      GLES32.glDrawArrays(GLES32.GL_TRIANGLE_STRIP, 0, 4);
+      vizUpsamplePass.unbindTarget();
+      vizSection.end();
+    } else {
+      quadSection.begin();
+      GLES32.glDrawArrays(GLES32.GL_TRIANGLE_STRIP, 0, 4);
+      quadSection.end();
+    }
     ShaderUtil.checkGLError(TAG, "after run shader");
     //***********************************************
 
-    GLES32.glDisableVertexAttribArray(quadPositionParam);
-    GLES32.glDisableVertexAttribArray(quadTexCoordParam);
+    GLES32.glDisableVertexAttribArray(quad.positionParam);
+    if (quad.texCoordParam >= 0) {
+      GLES32.glDisableVertexAttribArray(quad.texCoordParam);
+    }
+
+    if (offscreen) {
+      upsampleSection.begin();
+      updateTexFromScreen();
+      vizUpsamplePass.draw(quadCoords, quadTexCoords, texFromScreen, screenWidth, screenHeight);
+      upsampleSection.end();
+    }
+
+    if (depthOcclusion && currentDepthFrame != null) {
+      occlusionSection.begin();
+      // The filtered depth is still bound to GL_TEXTURE1.
+      occlusionPass.update(currentDepthFrame.width, currentDepthFrame.height,
+          currentDepthFrame.getSequence(), occlusionNear, occlusionFar);
+      updateDepthFromScreen(x_scale_factor, y_scale_factor, y_offset);
+      occlusionPass.draw(depthFromScreen);
+      occlusionSection.end();
+    }
 
     GLES32.glDepthMask(true);
     GLES32.glEnable(GLES32.GL_DEPTH_TEST);
@@ -248,6 +516,215 @@ public class BackgroundRenderer {
   }
 
 
+  /**
+   * Maps window coordinates to the depth texel the background shader samples for that fragment,
+   * either through the camera texture coordinates for registered depth or through the screen crop.
+   */
+  private void updateDepthFromScreen(float xScale, float yScale, float yOffset) {
+    float screenHeight = parentActivity.screenResolution.y;
+    if (depthRegistered) {
+      updateTexFromScreen();
+      for (int i = 0; i < 6; i++) {
+        depthFromScreen[i] = texFromScreen[i] * (i < 3 ? currentDepthFrame.width : currentDepthFrame.height);
+      }
+    } else {
+      // screenCoord2DepthCoord in screenquad.frag, with the window y flipped to screen rows.
+      depthFromScreen[0] = xScale;
+      depthFromScreen[1] = 0;
+      depthFromScreen[2] = -0.5f * xScale;
+      depthFromScreen[3] = 0;
+      depthFromScreen[4] = -yScale;
+      depthFromScreen[5] = (screenHeight - 0.5f) * yScale + yOffset;
+    }
+  }
+
+  // The texture coordinates are affine in the window position, so the quad corners determine them.
+  private void updateTexFromScreen() {
+    float screenWidth = parentActivity.screenResolution.x;
+    float screenHeight = parentActivity.screenResolution.y;
+    // Corners in QUAD_COORDS order: bottom left, top left, bottom right, top right.
+    quadTexCoords.position(0);
+    quadTexCoords.get(texCoords);
+    quadTexCoords.position(0);
+    texFromScreen[0] = (texCoords[4] - texCoords[0]) / screenWidth;
+    texFromScreen[1] = (texCoords[2] - texCoords[0]) / screenHeight;
+    texFromScreen[2] = texCoords[0];
+    texFromScreen[3] = (texCoords[5] - texCoords[1]) / screenWidth;
+    texFromScreen[4] = (texCoords[3] - texCoords[1]) / screenHeight;
+    texFromScreen[5] = texCoords[1];
+  }
+
+  /**
+   * Returns the program for a visualization mode, compiling it with VIZ_MODE defined on first use.
+   * Modes past the last variant share it, as they did with the runtime branch chain. Offscreen
+   * variants render for {@link VizUpsamplePass}, see VIZ_OFFSCREEN in screenquad.frag.
+   */
+  private QuadVariant getQuadVariant(int vizMode, boolean offscreen) {
+    int mode = Math.max(0, Math.min(vizMode, VIZ_MODE_COUNT - 1));
+    QuadVariant[] variants = offscreen ? offscreenQuadVariants : quadVariants;
+    QuadVariant variant = variants[mode];
+    if (variant != null) {
+      return variant;
+    }
+    long start = System.nanoTime();
+    Map<String, Integer> defines = new HashMap<>();
+    defines.put("VIZ_MODE", mode);
+    defines.put("VIZ_OFFSCREEN", offscreen ? 1 : 0);
+    int fragmentShader;
+    try {
+      fragmentShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_FRAGMENT_SHADER,
+          FRAGMENT_SHADER_NAME, defines);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to read " + FRAGMENT_SHADER_NAME, e);
+    }
+    int program = GLES32.glCreateProgram();
+    GLES32.glAttachShader(program, quadVertexShader);
+    GLES32.glAttachShader(program, fragmentShader);
+    GLES32.glLinkProgram(program);
+    String label = (offscreen ? "offscreen " : "") + "mode " + mode;
+    ShaderUtil.checkProgramLinkStatus(TAG, "quadProgram " + label, program);
+    // The program keeps the compiled code, the vertex shader is shared between variants.
+    GLES32.glDetachShader(program, fragmentShader);
+    GLES32.glDeleteShader(fragmentShader);
+    variant = new QuadVariant(program);
+    ShaderUtil.checkGLError(TAG, "quad variant " + label);
+    variants[mode] = variant;
+    Log.d(TAG, "compiled quad variant " + label + " in " + (System.nanoTime() - start) / 1000 + " us");
+    return variant;
+  }
+
+  // Depth frame closest to the camera frame timestamp, or null without a synchronizer or match.
+  private DepthFrame acquireSyncedDepth(long timestamp) {
+    DepthFrameSynchronizer synchronizer = depthSynchronizer;
+    if (synchronizer == null) {
+      return null;
+    }
+    if (syncedDepthFrame == null || syncedDepthFrame.width != synchronizer.getWidth()
+        || syncedDepthFrame.height != synchronizer.getHeight()) {
+      syncedDepthFrame = new DepthFrame(synchronizer.getWidth(), synchronizer.getHeight());
+    }
+    return synchronizer.findClosest(timestamp, syncedDepthFrame) ? syncedDepthFrame : null;
+  }
+
+  private static int createDepthTexture() {
+    int[] textures = new int[1];
+    GLES32.glGenTextures(1, textures, 0);
+    GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, textures[0]);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_WRAP_S, GLES32.GL_CLAMP_TO_EDGE);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_WRAP_T, GLES32.GL_CLAMP_TO_EDGE);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MIN_FILTER, GLES32.GL_NEAREST);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MAG_FILTER, GLES32.GL_NEAREST);
+    return textures[0];
+  }
+
+  /**
+   * (Re)creates the depth texture when the frame size or the upload mode changes. Immutable storage
+   * cannot be resized or re-specified, so the texture object is replaced. Expects GL_TEXTURE1, the
+   * depth texture unit, to be active.
+   */
+  private void ensureDepthTexture(int width, int height, boolean immutable) {
+    if (width == depthTextureWidth && height == depthTextureHeight && immutable == depthTextureImmutable) {
+      return;
+    }
+    int[] textures = {depthTextureId, depthStagingTextureId};
+    GLES32.glDeleteTextures(depthStagingTextureId != 0 ? 2 : 1, textures, 0);
+    depthStagingTextureId = 0;
+    if (immutable) {
+      GLES32.glGenTextures(1, textures, 1);
+      depthStagingTextureId = textures[1];
+      GLES32.glBindTexture(GLES32.GL_TEXTURE_2D_ARRAY, depthStagingTextureId);
+      GLES32.glTexStorage3D(GLES32.GL_TEXTURE_2D_ARRAY, 1, GLES32.GL_R16UI, width, height, 1);
+      GLES32.glBindTexture(GLES32.GL_TEXTURE_2D_ARRAY, 0);
+    }
+    depthTextureId = createDepthTexture();
+    if (immutable) {
+      GLES32.glTexStorage2D(GLES32.GL_TEXTURE_2D, 1, GLES32.GL_R16UI, width, height);
+    }
+    int size = width * height * DepthFrame.BYTES_PER_PIXEL;
+    for (int pbo : depthPbos) {
+      GLES32.glBindBuffer(GLES32.GL_PIXEL_UNPACK_BUFFER, pbo);
+      GLES32.glBufferData(GLES32.GL_PIXEL_UNPACK_BUFFER, size, null, GLES32.GL_STREAM_DRAW);
+    }
+    GLES32.glBindBuffer(GLES32.GL_PIXEL_UNPACK_BUFFER, 0);
+    depthTextureWidth = width;
+    depthTextureHeight = height;
+    depthTextureImmutable = immutable;
+    lastUploadedSequence = 0;
+    ShaderUtil.checkGLError(TAG, "depth texture storage");
+  }
+
+  /**
+   * Uploads a depth frame into the bound depth texture according to {@link #depthUploadMode}. In
+   * the TEX_IMAGE mode every call re-specifies the texture, matching the original upload path; the
+   * other modes skip frames whose sequence number was already uploaded.
+   */
+  private void uploadDepth(DepthFrame depthFrame) {
+    DepthUploadMode mode = depthUploadMode;
+    ensureDepthTexture(depthFrame.width, depthFrame.height, mode != DepthUploadMode.TEX_IMAGE);
+    if (mode != DepthUploadMode.TEX_IMAGE && depthFrame.getSequence() == lastUploadedSequence) {
+      return;
+    }
+
+    long start = System.nanoTime();
+    // DEPTH16 rows are only guaranteed to be 2 byte aligned.
+    GLES32.glPixelStorei(GLES32.GL_UNPACK_ALIGNMENT, 2);
+    switch (mode) {
+      case TEX_IMAGE:
+        GLES32.glTexImage2D(GLES32.GL_TEXTURE_2D, 0, GLES32.GL_R16UI, depthFrame.width,
+                depthFrame.height, 0, GLES32.GL_RED_INTEGER,
+                GLES32.GL_UNSIGNED_SHORT, depthFrame.data);
+        break;
+      case TEX_SUB_IMAGE:
+        GLES32.glTexSubImage2D(GLES32.GL_TEXTURE_2D, 0, 0, 0, depthFrame.width, depthFrame.height,
+                GLES32.GL_RED_INTEGER, GLES32.GL_UNSIGNED_SHORT, depthFrame.data);
+        break;
+      case PBO:
+        depthPboIndex = (depthPboIndex + 1) % DEPTH_PBO_COUNT;
+        GLES32.glBindBuffer(GLES32.GL_PIXEL_UNPACK_BUFFER, depthPbos[depthPboIndex]);
+        writeDepthPbo(depthFrame.data);
+        // android.opengl only exposes the buffer offset variant of the 3D upload, so unpack into a
+        // one layer array texture and copy that into the depth texture on the GPU.
+        GLES32.glBindTexture(GLES32.GL_TEXTURE_2D_ARRAY, depthStagingTextureId);
+        GLES32.glTexSubImage3D(GLES32.GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0, depthFrame.width, depthFrame.height, 1,
+                GLES32.GL_RED_INTEGER, GLES32.GL_UNSIGNED_SHORT, 0);
+        GLES32.glBindTexture(GLES32.GL_TEXTURE_2D_ARRAY, 0);
+        GLES32.glBindBuffer(GLES32.GL_PIXEL_UNPACK_BUFFER, 0);
+        GLES32.glCopyImageSubData(depthStagingTextureId, GLES32.GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0,
+                depthTextureId, GLES32.GL_TEXTURE_2D, 0, 0, 0, 0, depthFrame.width, depthFrame.height, 1);
+        break;
+    }
+    lastUploadedSequence = depthFrame.getSequence();
+
+    uploadNanos += System.nanoTime() - start;
+    if (++uploadCount == UPLOAD_STATS_INTERVAL) {
+      Log.d(TAG, "depth upload " + mode + ": " + (uploadNanos / uploadCount / 1000) + " us average CPU time");
+      uploadNanos = 0;
+      uploadCount = 0;
+    }
+  }
+
+  /**
+   * Fills the bound pixel unpack buffer through a mapping. The storage is orphaned first, so if the
+   * GPU still reads the previous contents the driver hands out fresh memory instead of waiting, and
+   * the unsynchronized map cannot stall either. The samples are copied once, straight into the
+   * buffer.
+   */
+  private static void writeDepthPbo(ByteBuffer samples) {
+    int size = samples.remaining();
+    GLES32.glBufferData(GLES32.GL_PIXEL_UNPACK_BUFFER, size, null, GLES32.GL_STREAM_DRAW);
+    ByteBuffer mapped = (ByteBuffer) GLES32.glMapBufferRange(GLES32.GL_PIXEL_UNPACK_BUFFER, 0, size,
+        GLES32.GL_MAP_WRITE_BIT | GLES32.GL_MAP_INVALIDATE_BUFFER_BIT | GLES32.GL_MAP_UNSYNCHRONIZED_BIT);
+    if (mapped == null) {
+      GLES32.glBufferSubData(GLES32.GL_PIXEL_UNPACK_BUFFER, 0, size, samples);
+      return;
+    }
+    mapped.order(ByteOrder.nativeOrder()).put(samples.duplicate());
+    if (!GLES32.glUnmapBuffer(GLES32.GL_PIXEL_UNPACK_BUFFER)) {
+      // The contents were lost, which only happens on rare events like a display mode change.
+      GLES32.glBufferSubData(GLES32.GL_PIXEL_UNPACK_BUFFER, 0, size, samples);
+    }
+  }
+
   public static Bitmap readPixels(int w, int h){
     int b[]=new int[w*h];
     int bt[]=new int[w*h];
@@ -255,18 +732,7 @@ public class BackgroundRenderer {
     ib.position(0);
     GLES32.glReadPixels(0, 0, w, h, GLES32.GL_RGBA, GLES32.GL_UNSIGNED_BYTE, ib);
 
-    for(int i=0, k=0; i<h; i++, k++)
-    {//remember, that OpenGL bitmap is incompatible with Android bitmap
-      //and so, some correction need.
-      for(int j=0; j<w; j++)
-      {
-        int pix=b[i*w+j];
-        int pb=(pix>>16)&0xff;
-        int pr=(pix<<16)&0x00ff0000;
-        int pix1=(pix&0xff00ff00) | pr | pb;
-        bt[(h-k-1)*w+j]=pix1;
-      }
-    }
+    PixelUtils.glRgbaToArgbFlipped(b, bt, w, h);
     Bitmap sb=Bitmap.createBitmap(bt, w, h, Bitmap.Config.ARGB_8888);
     return sb;
   }
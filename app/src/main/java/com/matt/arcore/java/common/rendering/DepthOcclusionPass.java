@@ -0,0 +1,175 @@
+package com.matt.arcore.java.common.rendering;
+
+import android.content.res.AssetManager;
+import android.opengl.GLES32;
+
+import java.io.IOException;
+
+/**
+ * Writes the sensor depth into the depth buffer, so virtual content drawn afterwards is occluded by
+ * the real scene through the ordinary depth test instead of a per-fragment comparison in its
+ * shaders.
+ *
+ * <p>{@link #update} converts the depth map into window depth for the camera projection once per
+ * depth frame, into a depth texture at depth resolution. {@link #draw} then copies it into the
+ * bound framebuffer's depth buffer with a full screen pass that only fetches a texel, leaving the
+ * color untouched.
+ */
+public class DepthOcclusionPass {
+  private static final String TAG = DepthOcclusionPass.class.getSimpleName();
+
+  private static final String VERTEX_SHADER_NAME = "shaders/normal_map.vert";
+  private static final String DEPTH_SHADER_NAME = "shaders/occlusion_depth.frag";
+  private static final String UPSAMPLE_SHADER_NAME = "shaders/occlusion_upsample.frag";
+
+  private int depthProgram;
+  private int u_Near;
+  private int u_Far;
+  private int upsampleProgram;
+  private int u_DepthFromScreenX;
+  private int u_DepthFromScreenY;
+
+  private int framebuffer;
+  private int depthTextureId;
+  private int width;
+  private int height;
+  private long lastSequence;
+  private float lastNear;
+  private float lastFar;
+  private final int[] viewport = new int[4];
+  private final int[] depthFunc = new int[1];
+  private final boolean[] depthMask = new boolean[1];
+
+  public void createOnGlThread(AssetManager assetManager) throws IOException {
+    int vertexShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    int depthShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_FRAGMENT_SHADER, DEPTH_SHADER_NAME);
+    int upsampleShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_FRAGMENT_SHADER, UPSAMPLE_SHADER_NAME);
+
+    depthProgram = GLES32.glCreateProgram();
+    GLES32.glAttachShader(depthProgram, vertexShader);
+    GLES32.glAttachShader(depthProgram, depthShader);
+    GLES32.glLinkProgram(depthProgram);
+    ShaderUtil.checkProgramLinkStatus(TAG, "occlusion depth", depthProgram);
+    u_Near = GLES32.glGetUniformLocation(depthProgram, "u_Near");
+    u_Far = GLES32.glGetUniformLocation(depthProgram, "u_Far");
+
+    upsampleProgram = GLES32.glCreateProgram();
+    GLES32.glAttachShader(upsampleProgram, vertexShader);
+    GLES32.glAttachShader(upsampleProgram, upsampleShader);
+    GLES32.glLinkProgram(upsampleProgram);
+    ShaderUtil.checkProgramLinkStatus(TAG, "occlusion upsample", upsampleProgram);
+    u_DepthFromScreenX = GLES32.glGetUniformLocation(upsampleProgram, "u_DepthFromScreenX");
+    u_DepthFromScreenY = GLES32.glGetUniformLocation(upsampleProgram, "u_DepthFromScreenY");
+
+    int[] framebuffers = new int[1];
+    GLES32.glGenFramebuffers(1, framebuffers, 0);
+    framebuffer = framebuffers[0];
+    depthTextureId = 0;
+    width = 0;
+    height = 0;
+    ShaderUtil.checkGLError(TAG, "occlusion creation");
+  }
+
+  public int getTextureId() {
+    return depthTextureId;
+  }
+
+  /**
+   * Converts depth frame {@code sequence} to window depth unless it already did for the same planes.
+   * Expects the depth texture on GL_TEXTURE1; restores the framebuffer, the viewport, and the depth
+   * test enable, function and write mask, but leaves a different program bound.
+   *
+   * @param near near plane of the projection virtual content is drawn with, in metres.
+   * @param far far plane of that projection, in metres.
+   * @return the depth resolution depth texture.
+   */
+  public int update(int width, int height, long sequence, float near, float far) {
+    if (width != this.width || height != this.height) {
+      createTexture(width, height);
+    } else if (sequence == lastSequence && near == lastNear && far == lastFar) {
+      return depthTextureId;
+    }
+    lastSequence = sequence;
+    lastNear = near;
+    lastFar = far;
+
+    GLES32.glGetIntegerv(GLES32.GL_VIEWPORT, viewport, 0);
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, framebuffer);
+    GLES32.glViewport(0, 0, width, height);
+    GLES32.glUseProgram(depthProgram);
+    GLES32.glUniform1f(u_Near, near);
+    GLES32.glUniform1f(u_Far, far);
+    drawDepthOnly();
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, 0);
+    GLES32.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+    ShaderUtil.checkGLError(TAG, "occlusion depth pass");
+    return depthTextureId;
+  }
+
+  /**
+   * Writes the last {@link #update} into the depth buffer of the bound framebuffer, leaving its
+   * color alone. Window pixel (x, y) takes depth texel {@code floor(depthFromScreen * (x, y, 1))},
+   * where the matrix has two rows of three, row-major. Leaves the depth test, depth function and
+   * write mask as it found them, and the color mask all true.
+   */
+  public void draw(float[] depthFromScreen) {
+    if (depthTextureId == 0) {
+      return;
+    }
+    GLES32.glActiveTexture(GLES32.GL_TEXTURE3);
+    GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, depthTextureId);
+    GLES32.glUseProgram(upsampleProgram);
+    GLES32.glUniform3fv(u_DepthFromScreenX, 1, depthFromScreen, 0);
+    GLES32.glUniform3fv(u_DepthFromScreenY, 1, depthFromScreen, 3);
+    GLES32.glColorMask(false, false, false, false);
+    drawDepthOnly();
+    GLES32.glColorMask(true, true, true, true);
+    ShaderUtil.checkGLError(TAG, "occlusion upsample");
+  }
+
+  // Full screen triangle that overwrites the depth buffer whatever it held, then puts the depth
+  // state back.
+  private void drawDepthOnly() {
+    boolean depthTest = GLES32.glIsEnabled(GLES32.GL_DEPTH_TEST);
+    GLES32.glGetIntegerv(GLES32.GL_DEPTH_FUNC, depthFunc, 0);
+    GLES32.glGetBooleanv(GLES32.GL_DEPTH_WRITEMASK, depthMask, 0);
+    GLES32.glEnable(GLES32.GL_DEPTH_TEST);
+    GLES32.glDepthFunc(GLES32.GL_ALWAYS);
+    GLES32.glDepthMask(true);
+    GLES32.glDrawArrays(GLES32.GL_TRIANGLES, 0, 3);
+    GLES32.glDepthFunc(depthFunc[0]);
+    GLES32.glDepthMask(depthMask[0]);
+    if (!depthTest) {
+      GLES32.glDisable(GLES32.GL_DEPTH_TEST);
+    }
+  }
+
+  private void createTexture(int width, int height) {
+    int[] textures = {depthTextureId};
+    if (depthTextureId != 0) {
+      GLES32.glDeleteTextures(1, textures, 0);
+    }
+    GLES32.glGenTextures(1, textures, 0);
+    depthTextureId = textures[0];
+    GLES32.glActiveTexture(GLES32.GL_TEXTURE3);
+    GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, depthTextureId);
+    GLES32.glTexStorage2D(GLES32.GL_TEXTURE_2D, 1, GLES32.GL_DEPTH_COMPONENT32F, width, height);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MIN_FILTER, GLES32.GL_NEAREST);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MAG_FILTER, GLES32.GL_NEAREST);
+
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, framebuffer);
+    GLES32.glFramebufferTexture2D(GLES32.GL_FRAMEBUFFER, GLES32.GL_DEPTH_ATTACHMENT,
+        GLES32.GL_TEXTURE_2D, depthTextureId, 0);
+    // Depth only, there is no color attachment to write.
+    GLES32.glDrawBuffers(1, new int[] {GLES32.GL_NONE}, 0);
+    GLES32.glReadBuffer(GLES32.GL_NONE);
+    int status = GLES32.glCheckFramebufferStatus(GLES32.GL_FRAMEBUFFER);
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, 0);
+    if (status != GLES32.GL_FRAMEBUFFER_COMPLETE) {
+      throw new RuntimeException("Occlusion framebuffer incomplete: " + status);
+    }
+    this.width = width;
+    this.height = height;
+    ShaderUtil.checkGLError(TAG, "occlusion texture");
+  }
+}
@@ -0,0 +1,183 @@
+package com.matt.arcore.java.common.rendering;
+
+import com.matt.arcore.java.common.profiling.LatencyHistogram;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * CPU and GPU timings of the render loop, aggregated into {@link LatencyHistogram}s.
+ *
+ * <p>Each {@link Section} brackets a piece of the frame, such as the depth upload or the background
+ * draw, and records its CPU time and, with EXT_disjoint_timer_query, its GPU time a few frames
+ * later. Sections must not nest since GPU time queries cannot. Frames, sections and
+ * {@link #createOnGlThread()} belong to the GL thread; {@link #summary()} and {@link #dump()} may
+ * be called from any thread.
+ */
+public class FrameProfiler {
+  private final List<Section> sections = new CopyOnWriteArrayList<>();
+  private final LatencyHistogram frameCpu = new LatencyHistogram("frame cpu");
+  private final LatencyHistogram frameInterval = new LatencyHistogram("frame interval");
+  private volatile boolean enabled = true;
+  // Bumped by createOnGlThread, sections recreate their timers in a new GL context.
+  private int glGeneration;
+  private long frameStart;
+  private long lastFrameStart;
+
+  /** A timed part of the frame. */
+  public final class Section {
+    private final String name;
+    private final LatencyHistogram cpu;
+    private final LatencyHistogram gpu;
+    private final GpuTimer timer;
+    private int timerGeneration = -1;
+    private long cpuStart;
+    private boolean open;
+
+    private Section(String name) {
+      this.name = name;
+      cpu = new LatencyHistogram(name + " cpu");
+      gpu = new LatencyHistogram(name + " gpu");
+      timer = new GpuTimer(name);
+      timer.setListener((t, nanos) -> gpu.record(nanos));
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public void begin() {
+      if (!enabled) {
+        return;
+      }
+      if (timerGeneration != glGeneration) {
+        timer.createOnGlThread();
+        timerGeneration = glGeneration;
+      }
+      timer.begin();
+      cpuStart = System.nanoTime();
+      open = true;
+    }
+
+    public void end() {
+      if (!open) {
+        return;
+      }
+      cpu.record(System.nanoTime() - cpuStart);
+      timer.end();
+      open = false;
+    }
+
+    public LatencyHistogram getCpuHistogram() {
+      return cpu;
+    }
+
+    /** Empty when GPU timer queries are not supported. */
+    public LatencyHistogram getGpuHistogram() {
+      return gpu;
+    }
+
+    private void poll() {
+      if (timerGeneration == glGeneration) {
+        timer.poll();
+      }
+    }
+  }
+
+  /** Returns the section named {@code name}, creating it on first use. */
+  public Section section(String name) {
+    for (Section section : sections) {
+      if (section.name.equals(name)) {
+        return section;
+      }
+    }
+    Section section = new Section(name);
+    sections.add(section);
+    return section;
+  }
+
+  /** Call in onSurfaceCreated; timer queries of a previous context are abandoned. */
+  public void createOnGlThread() {
+    glGeneration++;
+    lastFrameStart = 0;
+  }
+
+  /** Turns timing off or on, a disabled profiler costs one volatile read per call. */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void beginFrame() {
+    if (!enabled) {
+      return;
+    }
+    frameStart = System.nanoTime();
+    if (lastFrameStart != 0) {
+      frameInterval.record(frameStart - lastFrameStart);
+    }
+    lastFrameStart = frameStart;
+  }
+
+  /** Records the frame CPU time and collects finished GPU timings, without waiting for the GPU. */
+  public void endFrame() {
+    if (!enabled || frameStart == 0) {
+      return;
+    }
+    frameCpu.record(System.nanoTime() - frameStart);
+    frameStart = 0;
+    for (Section section : sections) {
+      section.poll();
+    }
+  }
+
+  public void reset() {
+    frameCpu.reset();
+    frameInterval.reset();
+    for (Section section : sections) {
+      section.cpu.reset();
+      section.gpu.reset();
+    }
+  }
+
+  /** A few lines for an on-screen overlay: frame rate, then CPU/GPU p50 and p95 per section. */
+  public String summary() {
+    LatencyHistogram.Snapshot interval = frameInterval.snapshot();
+    LatencyHistogram.Snapshot cpuFrame = frameCpu.snapshot();
+    long meanInterval = interval.getMeanNanos();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.US, "%.1f fps  frame cpu p50 %.2f p95 %.2f ms",
+        meanInterval > 0 ? 1e9 / meanInterval : 0.0, cpuFrame.getPercentileNanos(50) / 1e6,
+        cpuFrame.getPercentileNanos(95) / 1e6));
+    for (Section section : sections) {
+      LatencyHistogram.Snapshot cpu = section.cpu.snapshot();
+      LatencyHistogram.Snapshot gpu = section.gpu.snapshot();
+      sb.append(String.format(Locale.US, "\n%s  cpu %.2f/%.2f", section.name,
+          cpu.getPercentileNanos(50) / 1e6, cpu.getPercentileNanos(95) / 1e6));
+      if (gpu.getCount() > 0) {
+        sb.append(String.format(Locale.US, "  gpu %.2f/%.2f", gpu.getPercentileNanos(50) / 1e6,
+            gpu.getPercentileNanos(95) / 1e6));
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Every histogram with count, mean, p50, p95, p99 and max, one per line. */
+  public String dump() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(frameInterval.snapshot()).append('\n');
+    sb.append(frameCpu.snapshot()).append('\n');
+    for (Section section : sections) {
+      sb.append(section.cpu.snapshot()).append('\n');
+      LatencyHistogram.Snapshot gpu = section.gpu.snapshot();
+      if (gpu.getCount() > 0) {
+        sb.append(gpu).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+}
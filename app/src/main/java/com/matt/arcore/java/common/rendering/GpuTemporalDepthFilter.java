@@ -0,0 +1,118 @@
+package com.matt.arcore.java.common.rendering;
+
+import android.content.res.AssetManager;
+import android.opengl.GLES32;
+
+import com.matt.arcore.java.common.depth.DepthFilterStage;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.depth.TemporalFilterSettings;
+
+import java.io.IOException;
+
+/**
+ * GLES 3.2 compute shader implementation of the {@link TemporalFilterSettings} temporal filter.
+ *
+ * <p>The running estimate and weight live in two r32f images at depth resolution. Each new depth
+ * frame is filtered once into an R32UI texture with DEPTH16 packing, which the background shader
+ * samples through its usampler2D like the unfiltered texture.
+ */
+public class GpuTemporalDepthFilter implements DepthFilterStage {
+  private static final String TAG = GpuTemporalDepthFilter.class.getSimpleName();
+
+  private static final String COMPUTE_SHADER_NAME = "shaders/temporal_depth_filter.comp";
+  private static final int LOCAL_SIZE = 8;
+  // Texture unit the input is bound to, matching the shader's binding. The background renderer
+  // and its passes bind units 0 to 4 (camera, depth, normals, occlusion, visualization).
+  private static final int INPUT_TEXTURE_UNIT = 5;
+
+  private final AssetManager assetManager;
+  private final TemporalFilterSettings settings;
+
+  private int program;
+  private int u_Reset;
+  // Estimate, weight and filtered output.
+  private final int[] textures = new int[3];
+  private int width;
+  private int height;
+  private long lastSequence;
+  private volatile boolean resetPending;
+
+  public GpuTemporalDepthFilter(AssetManager assetManager, TemporalFilterSettings settings) {
+    this.assetManager = assetManager;
+    this.settings = settings;
+  }
+
+  @Override
+  public void filterFrame(DepthFrame frame) {}
+
+  @Override
+  public void createOnGlThread() throws IOException {
+    int computeShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_COMPUTE_SHADER, COMPUTE_SHADER_NAME);
+    program = GLES32.glCreateProgram();
+    GLES32.glAttachShader(program, computeShader);
+    GLES32.glLinkProgram(program);
+    ShaderUtil.checkProgramLinkStatus(TAG, "temporal filter", program);
+
+    GLES32.glUseProgram(program);
+    GLES32.glUniform1f(GLES32.glGetUniformLocation(program, "u_Decay"), settings.decay);
+    GLES32.glUniform1f(GLES32.glGetUniformLocation(program, "u_DiscontinuityMm"), settings.discontinuityMm);
+    GLES32.glUniform1f(GLES32.glGetUniformLocation(program, "u_DiscontinuityRelative"), settings.discontinuityRelative);
+    GLES32.glUniform1f(GLES32.glGetUniformLocation(program, "u_MinOutputConfidence"), settings.minOutputConfidence);
+    u_Reset = GLES32.glGetUniformLocation(program, "u_Reset");
+    ShaderUtil.checkGLError(TAG, "temporal filter program");
+
+    // Textures from a previous context are gone.
+    textures[0] = textures[1] = textures[2] = 0;
+    width = 0;
+    height = 0;
+  }
+
+  @Override
+  public int filterTexture(int depthTexture, int width, int height, long sequence) {
+    if (width != this.width || height != this.height) {
+      createTextures(width, height);
+      resetPending = true;
+    } else if (sequence == lastSequence) {
+      return textures[2];
+    }
+    lastSequence = sequence;
+
+    GLES32.glUseProgram(program);
+    GLES32.glUniform1i(u_Reset, resetPending ? 1 : 0);
+    resetPending = false;
+    GLES32.glActiveTexture(GLES32.GL_TEXTURE0 + INPUT_TEXTURE_UNIT);
+    GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, depthTexture);
+    GLES32.glBindImageTexture(0, textures[0], 0, false, 0, GLES32.GL_READ_WRITE, GLES32.GL_R32F);
+    GLES32.glBindImageTexture(1, textures[1], 0, false, 0, GLES32.GL_READ_WRITE, GLES32.GL_R32F);
+    GLES32.glBindImageTexture(2, textures[2], 0, false, 0, GLES32.GL_WRITE_ONLY, GLES32.GL_R32UI);
+    GLES32.glDispatchCompute(
+        (width + LOCAL_SIZE - 1) / LOCAL_SIZE, (height + LOCAL_SIZE - 1) / LOCAL_SIZE, 1);
+    // The next dispatch reads the state images, the background shader fetches the output.
+    GLES32.glMemoryBarrier(GLES32.GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GLES32.GL_TEXTURE_FETCH_BARRIER_BIT);
+    ShaderUtil.checkGLError(TAG, "temporal filter dispatch");
+    return textures[2];
+  }
+
+  private void createTextures(int width, int height) {
+    if (textures[0] != 0) {
+      GLES32.glDeleteTextures(3, textures, 0);
+    }
+    GLES32.glGenTextures(3, textures, 0);
+    int[] formats = {GLES32.GL_R32F, GLES32.GL_R32F, GLES32.GL_R32UI};
+    GLES32.glActiveTexture(GLES32.GL_TEXTURE0 + INPUT_TEXTURE_UNIT);
+    for (int i = 0; i < 3; i++) {
+      GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, textures[i]);
+      GLES32.glTexStorage2D(GLES32.GL_TEXTURE_2D, 1, formats[i], width, height);
+      GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MIN_FILTER, GLES32.GL_NEAREST);
+      GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MAG_FILTER, GLES32.GL_NEAREST);
+    }
+    this.width = width;
+    this.height = height;
+    ShaderUtil.checkGLError(TAG, "temporal filter textures");
+  }
+
+  @Override
+  public void reset() {
+    resetPending = true;
+  }
+}
@@ -0,0 +1,157 @@
+package com.matt.arcore.java.common.rendering;
+
+import android.opengl.GLES32;
+import android.util.Log;
+
+/**
+ * Measures GPU time of a range of GL commands with EXT_disjoint_timer_query.
+ *
+ * <p>Queries are kept in a small ring and read back a few frames later, only once their results
+ * are available, so timing never stalls the pipeline. Time elapsed queries cannot nest: at most one
+ * timer may be between {@link #begin()} and {@link #end()} at a time. All methods must be called
+ * on the GL thread; without the extension they do nothing.
+ */
+public class GpuTimer {
+  private static final String TAG = GpuTimer.class.getSimpleName();
+
+  private static final String EXTENSION = "GL_EXT_disjoint_timer_query";
+  // From EXT_disjoint_timer_query, not exposed by android.opengl.
+  private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+  private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+  private static final int QUERY_COUNT = 4;
+
+  /** Receives each completed measurement. */
+  public interface Listener {
+    void onGpuTime(GpuTimer timer, long nanos);
+  }
+
+  private final String name;
+  private final int[] queries = new int[QUERY_COUNT];
+  private final int[] result = new int[1];
+  private boolean supported;
+  // Ring of issued queries: oldest pending and next to issue.
+  private int pendingIndex;
+  private int pendingCount;
+  private boolean active;
+  private Listener listener;
+
+  private long lastNanos;
+  private long totalNanos;
+  private int sampleCount;
+  private int skippedCount;
+
+  public GpuTimer(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Creates the query objects if the extension is present. */
+  public void createOnGlThread() {
+    String extensions = GLES32.glGetString(GLES32.GL_EXTENSIONS);
+    supported = extensions != null && extensions.contains(EXTENSION);
+    pendingIndex = 0;
+    pendingCount = 0;
+    active = false;
+    if (supported) {
+      GLES32.glGenQueries(QUERY_COUNT, queries, 0);
+      // Clear a disjoint event left over from before.
+      GLES32.glGetIntegerv(GL_GPU_DISJOINT_EXT, result, 0);
+    } else {
+      Log.w(TAG, EXTENSION + " not supported, GPU timer " + name + " disabled");
+    }
+  }
+
+  public boolean isSupported() {
+    return supported;
+  }
+
+  /** Starts timing. Skipped when all queries are still waiting for results. */
+  public void begin() {
+    if (!supported) {
+      return;
+    }
+    if (pendingCount == QUERY_COUNT) {
+      poll();
+      if (pendingCount == QUERY_COUNT) {
+        skippedCount++;
+        return;
+      }
+    }
+    GLES32.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[(pendingIndex + pendingCount) % QUERY_COUNT]);
+    active = true;
+  }
+
+  /** Stops timing started by {@link #begin()}. */
+  public void end() {
+    if (!active) {
+      return;
+    }
+    GLES32.glEndQuery(GL_TIME_ELAPSED_EXT);
+    active = false;
+    pendingCount++;
+  }
+
+  /** Collects the results that are available, oldest first, without waiting. */
+  public void poll() {
+    if (!supported || pendingCount == 0) {
+      return;
+    }
+    GLES32.glGetIntegerv(GL_GPU_DISJOINT_EXT, result, 0);
+    boolean disjoint = result[0] != 0;
+    while (pendingCount > 0) {
+      int query = queries[pendingIndex];
+      GLES32.glGetQueryObjectuiv(query, GLES32.GL_QUERY_RESULT_AVAILABLE, result, 0);
+      if (result[0] == 0) {
+        break;
+      }
+      GLES32.glGetQueryObjectuiv(query, GLES32.GL_QUERY_RESULT, result, 0);
+      pendingIndex = (pendingIndex + 1) % QUERY_COUNT;
+      pendingCount--;
+      // Results overlapping a disjoint event, such as a frequency change, are meaningless.
+      if (disjoint) {
+        skippedCount++;
+        continue;
+      }
+      long nanos = result[0] & 0xFFFFFFFFL;
+      lastNanos = nanos;
+      totalNanos += nanos;
+      sampleCount++;
+      if (listener != null) {
+        listener.onGpuTime(this, nanos);
+      }
+    }
+  }
+
+  /** Most recent measurement in nanoseconds, 0 before the first. */
+  public long getLastNanos() {
+    return lastNanos;
+  }
+
+  /** Average since the last {@link #resetStats()}, 0 without measurements. */
+  public long getAverageNanos() {
+    return sampleCount > 0 ? totalNanos / sampleCount : 0;
+  }
+
+  public int getSampleCount() {
+    return sampleCount;
+  }
+
+  /** Ranges not measured because the ring was full or a disjoint event occurred. */
+  public int getSkippedCount() {
+    return skippedCount;
+  }
+
+  public void resetStats() {
+    totalNanos = 0;
+    sampleCount = 0;
+    skippedCount = 0;
+  }
+}
@@ -0,0 +1,99 @@
+package com.matt.arcore.java.common.rendering;
+
+import android.content.res.AssetManager;
+import android.opengl.GLES32;
+
+import java.io.IOException;
+
+/**
+ * Renders the normals of the depth map into an RGBA16F texture at depth resolution, once per depth
+ * frame, so the background shader fetches one texel instead of recomputing them per screen pixel.
+ */
+public class NormalMapPass {
+  private static final String TAG = NormalMapPass.class.getSimpleName();
+
+  private static final String VERTEX_SHADER_NAME = "shaders/normal_map.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/normal_map.frag";
+
+  private int program;
+  private int framebuffer;
+  private int normalTextureId;
+  private int width;
+  private int height;
+  private long lastSequence;
+  private final int[] viewport = new int[4];
+
+  public void createOnGlThread(AssetManager assetManager) throws IOException {
+    int vertexShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    int fragmentShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+    program = GLES32.glCreateProgram();
+    GLES32.glAttachShader(program, vertexShader);
+    GLES32.glAttachShader(program, fragmentShader);
+    GLES32.glLinkProgram(program);
+    ShaderUtil.checkProgramLinkStatus(TAG, "normal map", program);
+
+    int[] framebuffers = new int[1];
+    GLES32.glGenFramebuffers(1, framebuffers, 0);
+    framebuffer = framebuffers[0];
+    normalTextureId = 0;
+    width = 0;
+    height = 0;
+    ShaderUtil.checkGLError(TAG, "normal map creation");
+  }
+
+  public int getTextureId() {
+    return normalTextureId;
+  }
+
+  /**
+   * Renders the normals of depth frame {@code sequence} unless it already did. Expects the depth
+   * texture on GL_TEXTURE1; restores the framebuffer and viewport but leaves a different program
+   * bound.
+   *
+   * @return the normal texture.
+   */
+  public int update(int width, int height, long sequence) {
+    if (width != this.width || height != this.height) {
+      createTexture(width, height);
+    } else if (sequence == lastSequence) {
+      return normalTextureId;
+    }
+    lastSequence = sequence;
+
+    GLES32.glGetIntegerv(GLES32.GL_VIEWPORT, viewport, 0);
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, framebuffer);
+    GLES32.glViewport(0, 0, width, height);
+    GLES32.glUseProgram(program);
+    GLES32.glDrawArrays(GLES32.GL_TRIANGLES, 0, 3);
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, 0);
+    GLES32.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+    ShaderUtil.checkGLError(TAG, "normal map pass");
+    return normalTextureId;
+  }
+
+  private void createTexture(int width, int height) {
+    int[] textures = {normalTextureId};
+    if (normalTextureId != 0) {
+      GLES32.glDeleteTextures(1, textures, 0);
+    }
+    GLES32.glGenTextures(1, textures, 0);
+    normalTextureId = textures[0];
+    GLES32.glActiveTexture(GLES32.GL_TEXTURE2);
+    GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, normalTextureId);
+    GLES32.glTexStorage2D(GLES32.GL_TEXTURE_2D, 1, GLES32.GL_RGBA16F, width, height);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MIN_FILTER, GLES32.GL_NEAREST);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MAG_FILTER, GLES32.GL_NEAREST);
+
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, framebuffer);
+    GLES32.glFramebufferTexture2D(GLES32.GL_FRAMEBUFFER, GLES32.GL_COLOR_ATTACHMENT0,
+        GLES32.GL_TEXTURE_2D, normalTextureId, 0);
+    int status = GLES32.glCheckFramebufferStatus(GLES32.GL_FRAMEBUFFER);
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, 0);
+    if (status != GLES32.GL_FRAMEBUFFER_COMPLETE) {
+      throw new RuntimeException("Normal map framebuffer incomplete: " + status);
+    }
+    this.width = width;
+    this.height = height;
+    ShaderUtil.checkGLError(TAG, "normal map texture");
+  }
+}
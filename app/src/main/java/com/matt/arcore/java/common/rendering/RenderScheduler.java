@@ -0,0 +1,91 @@
+package com.matt.arcore.java.common.rendering;
+
+import android.opengl.GLSurfaceView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a {@link GLSurfaceView} renders: continuously at the display rate, or on demand
+ * whenever a new camera or depth frame arrives.
+ *
+ * <p>In the on-demand policies the view is in {@link GLSurfaceView#RENDERMODE_WHEN_DIRTY} and the
+ * frame callbacks call {@link #onColorFrame} or {@link #onDepthFrame}. Requests are coalesced: while
+ * a render is pending, further frames do not queue another one, they are drawn by the pending
+ * render. The renderer calls {@link #onDrawFrame} first thing, after which the next frame requests
+ * again.
+ */
+public class RenderScheduler {
+
+  /** What triggers a render. */
+  public enum Policy {
+    // Each new depth frame; color frames in between are not drawn.
+    DEPTH_RATE,
+    // Each new camera frame.
+    COLOR_RATE,
+    // Every display refresh whether or not anything changed, the GLSurfaceView default.
+    DISPLAY_RATE
+  }
+
+  private final GLSurfaceView surfaceView;
+  private volatile Policy policy;
+  private final AtomicBoolean renderPending = new AtomicBoolean();
+  private final AtomicLong requestedCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  public RenderScheduler(GLSurfaceView surfaceView, Policy policy) {
+    this.surfaceView = surfaceView;
+    setPolicy(policy);
+  }
+
+  /** Switches policy and the view's render mode. Call after the renderer was set on the view. */
+  public void setPolicy(Policy policy) {
+    this.policy = policy;
+    surfaceView.setRenderMode(policy == Policy.DISPLAY_RATE
+        ? GLSurfaceView.RENDERMODE_CONTINUOUSLY : GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+    // Draw once in the new mode, in case no frame arrives for a while.
+    requestRender();
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  /** A camera frame arrived. May be called from any thread. */
+  public void onColorFrame() {
+    if (policy == Policy.COLOR_RATE) {
+      requestRender();
+    }
+  }
+
+  /** A depth frame arrived. May be called from any thread. */
+  public void onDepthFrame() {
+    if (policy == Policy.DEPTH_RATE) {
+      requestRender();
+    }
+  }
+
+  /** Called by the renderer at the start of each frame, on the GL thread. */
+  public void onDrawFrame() {
+    renderPending.set(false);
+  }
+
+  /** Renders requested from the view. */
+  public long getRequestedCount() {
+    return requestedCount.get();
+  }
+
+  /** Frames that arrived while a render was already pending. */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  private void requestRender() {
+    if (renderPending.compareAndSet(false, true)) {
+      requestedCount.incrementAndGet();
+      surfaceView.requestRender();
+    } else {
+      coalescedCount.incrementAndGet();
+    }
+  }
+}
@@ -21,10 +21,13 @@ import android.opengl.GLES32;
 import android.opengl.GLU;
 import android.util.Log;
 
+import com.matt.arcore.java.BuildConfig;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Map;
 
 /**
  * Shader helper functions.
@@ -51,7 +54,18 @@ public class ShaderUtil {
 
     public static int loadGLShader(String tag, AssetManager assetManager, int type, String filename)
             throws IOException {
-        String code = readShaderFileFromAssets(assetManager, filename);
+        return loadGLShader(tag, assetManager, type, filename, null);
+    }
+
+    /**
+     * Like {@link #loadGLShader(String, AssetManager, int, String)}, compiling a variant of the
+     * shader with a {@code #define NAME value} line for each entry inserted right after #version.
+     *
+     * @param defines Preprocessor definitions, may be null.
+     */
+    public static int loadGLShader(String tag, AssetManager assetManager, int type, String filename,
+                                   Map<String, ?> defines) throws IOException {
+        String code = injectDefines(readShaderFileFromAssets(assetManager, filename), defines);
         int shader = GLES32.glCreateShader(type);
         GLES32.glShaderSource(shader, code);
         GLES32.glCompileShader(shader);
@@ -75,12 +89,16 @@ public class ShaderUtil {
     }
 
     /**
-     * Checks if we've had an error inside of OpenGL ES, and if so what that error is.
+     * Checks if we've had an error inside of OpenGL ES, and if so what that error is. Each check is a
+     * glGetError round trip, so release builds compile them out through BuildConfig.GL_ERROR_CHECKS.
      *
      * @param label Label to report in case of error.
      * @throws RuntimeException If an OpenGL error is detected.
      */
     public static void checkGLError(String tag, String label) {
+        if (!BuildConfig.GL_ERROR_CHECKS) {
+            return;
+        }
         int lastError = GLES32.GL_NO_ERROR;
         // Drain the queue of all errors.
         int error;
@@ -137,6 +155,23 @@ public class ShaderUtil {
 
     }
 
+    private static String injectDefines(String code, Map<String, ?> defines) {
+        if (defines == null || defines.isEmpty()) {
+            return code;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ?> define : defines.entrySet()) {
+            sb.append("#define ").append(define.getKey()).append(' ').append(define.getValue()).append("\n");
+        }
+        // #version has to stay the first line.
+        int insertAt = 0;
+        if (code.startsWith("#version")) {
+            int end = code.indexOf('\n');
+            insertAt = end < 0 ? code.length() : end + 1;
+        }
+        return code.substring(0, insertAt) + sb + code.substring(insertAt);
+    }
+
     /**
      * Converts a raw shader file into a string.
      *
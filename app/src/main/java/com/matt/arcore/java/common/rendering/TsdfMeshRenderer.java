@@ -0,0 +1,168 @@
+package com.matt.arcore.java.common.rendering;
+
+import android.content.res.AssetManager;
+import android.opengl.GLES32;
+import android.opengl.Matrix;
+
+import com.matt.arcore.java.common.reconstruction.TsdfMesher;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Draws the surface extracted by a {@link TsdfMesher}, one vertex array per volume block.
+ *
+ * <p>{@link #update} uploads the block meshes the mesher finished since the last call and hands
+ * their buffers back, so the GL thread only pays for blocks that changed. Blocks are drawn with the
+ * depth test on and blending off, as world space content in front of the camera background.
+ */
+public class TsdfMeshRenderer {
+  private static final String TAG = TsdfMeshRenderer.class.getSimpleName();
+
+  private static final String VERTEX_SHADER_NAME = "shaders/mesh.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/mesh.frag";
+
+  private static final int POSITION_LOCATION = 0;
+  private static final int NORMAL_LOCATION = 1;
+  // Mostly from above, slightly from the side.
+  private static final float[] LIGHT_DIRECTION = {0.25f, 0.9f, 0.35f};
+
+  private int program;
+  private int u_ViewProjection;
+  private int u_LightDirection;
+  private int u_Color;
+
+  // Per mesher slot, 0 where the slot has no GL objects yet.
+  private int[] vertexArrays = new int[0];
+  private int[] vertexBuffers = new int[0];
+  private int[] indexBuffers = new int[0];
+  private int[] indexCounts = new int[0];
+  private final int[] ids = new int[2];
+  private final float[] viewProjection = new float[16];
+  private final float[] color = {0.6f, 0.8f, 1.0f, 1.0f};
+  private int triangleCount;
+
+  /**
+   * Compiles the shaders. Earlier GL objects went with the old context, so the caller should have
+   * the mesher {@link TsdfMesher#remeshAll re-mesh} everything afterwards.
+   */
+  public void createOnGlThread(AssetManager assetManager) throws IOException {
+    int vertexShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    int fragmentShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+    program = GLES32.glCreateProgram();
+    GLES32.glAttachShader(program, vertexShader);
+    GLES32.glAttachShader(program, fragmentShader);
+    GLES32.glLinkProgram(program);
+    ShaderUtil.checkProgramLinkStatus(TAG, "mesh", program);
+    u_ViewProjection = GLES32.glGetUniformLocation(program, "u_ViewProjection");
+    u_LightDirection = GLES32.glGetUniformLocation(program, "u_LightDirection");
+    u_Color = GLES32.glGetUniformLocation(program, "u_Color");
+
+    vertexArrays = new int[0];
+    vertexBuffers = new int[0];
+    indexBuffers = new int[0];
+    indexCounts = new int[0];
+    triangleCount = 0;
+    ShaderUtil.checkGLError(TAG, "mesh renderer creation");
+  }
+
+  /** RGBA of the surface, alpha below 1 needs blending set up by the caller. */
+  public void setColor(float r, float g, float b, float a) {
+    color[0] = r;
+    color[1] = g;
+    color[2] = b;
+    color[3] = a;
+  }
+
+  /** Triangles currently uploaded. */
+  public int getTriangleCount() {
+    return triangleCount;
+  }
+
+  /** Uploads every mesh the mesher has finished and releases it back to the mesher. */
+  public void update(TsdfMesher mesher) {
+    TsdfMesher.BlockMesh mesh;
+    while ((mesh = mesher.pollMesh()) != null) {
+      upload(mesh);
+      mesher.release(mesh);
+    }
+    ShaderUtil.checkGLError(TAG, "mesh upload");
+  }
+
+  private void upload(TsdfMesher.BlockMesh mesh) {
+    int slot = mesh.getSlot();
+    if (slot >= indexCounts.length) {
+      int capacity = Math.max(slot + 1, indexCounts.length * 2);
+      vertexArrays = Arrays.copyOf(vertexArrays, capacity);
+      vertexBuffers = Arrays.copyOf(vertexBuffers, capacity);
+      indexBuffers = Arrays.copyOf(indexBuffers, capacity);
+      indexCounts = Arrays.copyOf(indexCounts, capacity);
+    }
+    triangleCount += (mesh.getIndexCount() - indexCounts[slot]) / 3;
+    indexCounts[slot] = mesh.getIndexCount();
+    if (mesh.getIndexCount() == 0) {
+      // Keep the objects for the next block that gets this slot.
+      return;
+    }
+    if (vertexArrays[slot] == 0) {
+      createSlot(slot);
+    }
+    GLES32.glBindVertexArray(vertexArrays[slot]);
+    GLES32.glBindBuffer(GLES32.GL_ARRAY_BUFFER, vertexBuffers[slot]);
+    GLES32.glBufferData(GLES32.GL_ARRAY_BUFFER, mesh.getVertexCount() * TsdfMesher.BYTES_PER_VERTEX,
+        mesh.getVertices(), GLES32.GL_DYNAMIC_DRAW);
+    GLES32.glBufferData(GLES32.GL_ELEMENT_ARRAY_BUFFER, mesh.getIndexCount() * 2,
+        mesh.getIndices(), GLES32.GL_DYNAMIC_DRAW);
+    GLES32.glBindVertexArray(0);
+    GLES32.glBindBuffer(GLES32.GL_ARRAY_BUFFER, 0);
+  }
+
+  private void createSlot(int slot) {
+    GLES32.glGenVertexArrays(1, ids, 0);
+    vertexArrays[slot] = ids[0];
+    GLES32.glGenBuffers(2, ids, 0);
+    vertexBuffers[slot] = ids[0];
+    indexBuffers[slot] = ids[1];
+
+    GLES32.glBindVertexArray(vertexArrays[slot]);
+    GLES32.glBindBuffer(GLES32.GL_ARRAY_BUFFER, vertexBuffers[slot]);
+    // The element buffer binding is part of the vertex array state.
+    GLES32.glBindBuffer(GLES32.GL_ELEMENT_ARRAY_BUFFER, indexBuffers[slot]);
+    GLES32.glEnableVertexAttribArray(POSITION_LOCATION);
+    GLES32.glVertexAttribPointer(POSITION_LOCATION, 3, GLES32.GL_FLOAT, false,
+        TsdfMesher.BYTES_PER_VERTEX, 0);
+    GLES32.glEnableVertexAttribArray(NORMAL_LOCATION);
+    GLES32.glVertexAttribPointer(NORMAL_LOCATION, 3, GLES32.GL_FLOAT, false,
+        TsdfMesher.BYTES_PER_VERTEX, 3 * 4);
+  }
+
+  /** Draws the uploaded blocks with the view and projection of the AR camera. */
+  public void draw(float[] viewMatrix, float[] projectionMatrix) {
+    if (triangleCount == 0) {
+      return;
+    }
+    Matrix.multiplyMM(viewProjection, 0, projectionMatrix, 0, viewMatrix, 0);
+    GLES32.glEnable(GLES32.GL_DEPTH_TEST);
+    GLES32.glDepthMask(true);
+    GLES32.glUseProgram(program);
+    GLES32.glUniformMatrix4fv(u_ViewProjection, 1, false, viewProjection, 0);
+    GLES32.glUniform3fv(u_LightDirection, 1, normalizedLight(), 0);
+    GLES32.glUniform4fv(u_Color, 1, color, 0);
+    for (int slot = 0; slot < indexCounts.length; slot++) {
+      if (indexCounts[slot] == 0) {
+        continue;
+      }
+      GLES32.glBindVertexArray(vertexArrays[slot]);
+      GLES32.glDrawElements(GLES32.GL_TRIANGLES, indexCounts[slot], GLES32.GL_UNSIGNED_SHORT, 0);
+    }
+    GLES32.glBindVertexArray(0);
+    GLES32.glDisable(GLES32.GL_DEPTH_TEST);
+    ShaderUtil.checkGLError(TAG, "mesh draw");
+  }
+
+  private static float[] normalizedLight() {
+    float length = Matrix.length(LIGHT_DIRECTION[0], LIGHT_DIRECTION[1], LIGHT_DIRECTION[2]);
+    return new float[] {
+        LIGHT_DIRECTION[0] / length, LIGHT_DIRECTION[1] / length, LIGHT_DIRECTION[2] / length};
+  }
+}
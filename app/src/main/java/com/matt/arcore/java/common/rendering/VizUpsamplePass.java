@@ -0,0 +1,138 @@
+package com.matt.arcore.java.common.rendering;
+
+import android.content.res.AssetManager;
+import android.opengl.GLES32;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * Offscreen target for the depth visualization at reduced resolution, and the joint bilateral
+ * upsample that composites it over the camera image at screen resolution.
+ *
+ * <p>The visualization only carries depth resolution information, so shading it per screen pixel
+ * mostly repeats work. {@link #bindTarget} redirects drawing into an RGBA8 texture of the requested
+ * size; {@link #draw} then samples it with the camera color as the guide, see viz_upsample.frag.
+ */
+public class VizUpsamplePass {
+  private static final String TAG = VizUpsamplePass.class.getSimpleName();
+
+  private static final String VERTEX_SHADER_NAME = "shaders/screenquad.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/viz_upsample.frag";
+
+  // Standard deviation of the color weight, in 0..1 color units.
+  private static final float COLOR_SIGMA = 0.1f;
+
+  private int program;
+  private int positionParam;
+  private int texCoordParam;
+  private int u_LowResScale;
+  private int u_TexFromScreenX;
+  private int u_TexFromScreenY;
+  private int u_ColorWeight;
+
+  private int framebuffer;
+  private int vizTextureId;
+  private int width;
+  private int height;
+  private final int[] viewport = new int[4];
+
+  public void createOnGlThread(AssetManager assetManager) throws IOException {
+    int vertexShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    int fragmentShader = ShaderUtil.loadGLShader(TAG, assetManager, GLES32.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+    program = GLES32.glCreateProgram();
+    GLES32.glAttachShader(program, vertexShader);
+    GLES32.glAttachShader(program, fragmentShader);
+    GLES32.glLinkProgram(program);
+    ShaderUtil.checkProgramLinkStatus(TAG, "viz upsample", program);
+    positionParam = GLES32.glGetAttribLocation(program, "a_Position");
+    texCoordParam = GLES32.glGetAttribLocation(program, "a_TexCoord");
+    u_LowResScale = GLES32.glGetUniformLocation(program, "u_LowResScale");
+    u_TexFromScreenX = GLES32.glGetUniformLocation(program, "u_TexFromScreenX");
+    u_TexFromScreenY = GLES32.glGetUniformLocation(program, "u_TexFromScreenY");
+    u_ColorWeight = GLES32.glGetUniformLocation(program, "u_ColorWeight");
+
+    int[] framebuffers = new int[1];
+    GLES32.glGenFramebuffers(1, framebuffers, 0);
+    framebuffer = framebuffers[0];
+    vizTextureId = 0;
+    width = 0;
+    height = 0;
+    ShaderUtil.checkGLError(TAG, "viz upsample creation");
+  }
+
+  public int getTextureId() {
+    return vizTextureId;
+  }
+
+  /**
+   * Directs drawing into the offscreen texture, resized to {@code width} x {@code height} if
+   * needed, with a matching viewport. {@link #unbindTarget} restores the previous viewport.
+   */
+  public void bindTarget(int width, int height) {
+    if (width != this.width || height != this.height) {
+      createTexture(width, height);
+    }
+    GLES32.glGetIntegerv(GLES32.GL_VIEWPORT, viewport, 0);
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, framebuffer);
+    GLES32.glViewport(0, 0, width, height);
+  }
+
+  public void unbindTarget() {
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, 0);
+    GLES32.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+  }
+
+  /**
+   * Draws the offscreen visualization over the camera image into the bound framebuffer. Expects the
+   * camera texture on GL_TEXTURE0 and leaves a different program bound.
+   *
+   * @param quadCoords the background quad, two coordinates per vertex.
+   * @param quadTexCoords camera texture coordinates of the quad vertices.
+   * @param texFromScreen affine map from window to camera texture coordinates, two rows of three.
+   */
+  public void draw(FloatBuffer quadCoords, FloatBuffer quadTexCoords, float[] texFromScreen,
+      float screenWidth, float screenHeight) {
+    GLES32.glActiveTexture(GLES32.GL_TEXTURE4);
+    GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, vizTextureId);
+    GLES32.glUseProgram(program);
+    GLES32.glVertexAttribPointer(positionParam, 2, GLES32.GL_FLOAT, false, 0, quadCoords);
+    GLES32.glEnableVertexAttribArray(positionParam);
+    GLES32.glVertexAttribPointer(texCoordParam, 2, GLES32.GL_FLOAT, false, 0, quadTexCoords);
+    GLES32.glEnableVertexAttribArray(texCoordParam);
+    GLES32.glUniform2f(u_LowResScale, width / screenWidth, height / screenHeight);
+    GLES32.glUniform3fv(u_TexFromScreenX, 1, texFromScreen, 0);
+    GLES32.glUniform3fv(u_TexFromScreenY, 1, texFromScreen, 3);
+    GLES32.glUniform1f(u_ColorWeight, 1.0f / (2.0f * COLOR_SIGMA * COLOR_SIGMA));
+    GLES32.glDrawArrays(GLES32.GL_TRIANGLE_STRIP, 0, 4);
+    GLES32.glDisableVertexAttribArray(positionParam);
+    GLES32.glDisableVertexAttribArray(texCoordParam);
+    ShaderUtil.checkGLError(TAG, "viz upsample");
+  }
+
+  private void createTexture(int width, int height) {
+    int[] textures = {vizTextureId};
+    if (vizTextureId != 0) {
+      GLES32.glDeleteTextures(1, textures, 0);
+    }
+    GLES32.glGenTextures(1, textures, 0);
+    vizTextureId = textures[0];
+    GLES32.glActiveTexture(GLES32.GL_TEXTURE4);
+    GLES32.glBindTexture(GLES32.GL_TEXTURE_2D, vizTextureId);
+    GLES32.glTexStorage2D(GLES32.GL_TEXTURE_2D, 1, GLES32.GL_RGBA8, width, height);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MIN_FILTER, GLES32.GL_NEAREST);
+    GLES32.glTexParameteri(GLES32.GL_TEXTURE_2D, GLES32.GL_TEXTURE_MAG_FILTER, GLES32.GL_NEAREST);
+
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, framebuffer);
+    GLES32.glFramebufferTexture2D(GLES32.GL_FRAMEBUFFER, GLES32.GL_COLOR_ATTACHMENT0,
+        GLES32.GL_TEXTURE_2D, vizTextureId, 0);
+    int status = GLES32.glCheckFramebufferStatus(GLES32.GL_FRAMEBUFFER);
+    GLES32.glBindFramebuffer(GLES32.GL_FRAMEBUFFER, 0);
+    if (status != GLES32.GL_FRAMEBUFFER_COMPLETE) {
+      throw new RuntimeException("Viz framebuffer incomplete: " + status);
+    }
+    this.width = width;
+    this.height = height;
+    ShaderUtil.checkGLError(TAG, "viz texture");
+  }
+}
@@ -21,7 +21,9 @@ package com.matt.arcore.java.sharedcamera_example;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.AssetManager;
+import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -30,12 +32,14 @@ import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
 import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
@@ -60,14 +64,42 @@ import com.google.ar.core.TrackingState;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableException;
 
+import com.matt.arcore.java.BuildConfig;
 import com.matt.arcore.java.R;
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import com.matt.arcore.java.common.depth.DepthFilterChain;
+import com.matt.arcore.java.common.depth.DepthFilterStage;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.depth.DepthFrameSource;
+import com.matt.arcore.java.common.depth.DepthFrameSynchronizer;
+import com.matt.arcore.java.common.depth.DepthRegistration;
+import com.matt.arcore.java.common.depth.DepthStreamSelector;
+import com.matt.arcore.java.common.depth.LensCalibration;
+import com.matt.arcore.java.common.depth.PoseHistory;
+import com.matt.arcore.java.common.depth.SpatialDepthFilter;
+import com.matt.arcore.java.common.depth.TemporalDepthFilter;
+import com.matt.arcore.java.common.depth.TemporalFilterSettings;
+import com.matt.arcore.java.common.env.ImageUtils;
 import com.matt.arcore.java.common.helpers.CameraPermissionHelper;
 import com.matt.arcore.java.common.helpers.DisplayRotationHelper;
 import com.matt.arcore.java.common.helpers.FullScreenHelper;
 import com.matt.arcore.java.common.helpers.TrackingStateHelper;
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import com.matt.arcore.java.common.profiling.LatencyTracker;
+import com.matt.arcore.java.common.reconstruction.TsdfFusion;
+import com.matt.arcore.java.common.reconstruction.TsdfMesher;
+import com.matt.arcore.java.common.reconstruction.TsdfVolume;
+import com.matt.arcore.java.common.rendering.AsyncPixelReader;
+import com.matt.arcore.java.common.recording.DepthRecorder;
 import com.matt.arcore.java.common.rendering.BackgroundRenderer;
+import com.matt.arcore.java.common.rendering.FrameProfiler;
+import com.matt.arcore.java.common.rendering.GpuTemporalDepthFilter;
+import com.matt.arcore.java.common.rendering.RenderScheduler;
+import com.matt.arcore.java.common.rendering.TsdfMeshRenderer;
 
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -90,10 +122,66 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
     private static final String TAG = SharedCameraActivity.class.getSimpleName();
 
 
-    // Depth TOF Image.
-    // Use 240 * 180 for now, hardcoded for Huawei P30 Pro
-    private static final int DEPTH_WIDTH = 240;
-    private static final int DEPTH_HEIGHT = 180;
+    // How the DEPTH16 stream is chosen from the sizes the camera advertises.
+    private static final DepthStreamSelector.Policy DEPTH_STREAM_POLICY = DepthStreamSelector.Policy.MAX_FPS;
+    // Budget for DepthStreamSelector.Policy.MEMORY_BUDGET.
+    private static final long DEPTH_MEMORY_BUDGET_BYTES = 8L * 1024 * 1024;
+
+    // How depth frames reach the GPU, switch to TEX_IMAGE to compare against the original path.
+    private static final BackgroundRenderer.DepthUploadMode DEPTH_UPLOAD_MODE = BackgroundRenderer.DepthUploadMode.PBO;
+    // Normals rendered once per depth frame; false computes them per screen fragment, to compare GPU times.
+    private static final boolean PRECOMPUTED_NORMALS = true;
+    // Shade the depth visualization at this multiple of the depth map width and upsample it guided
+    // by the camera image; 0 shades every screen pixel. Stays 0 until "viz offscreen" plus
+    // "viz upsample" have been measured against "background draw" on a device.
+    private static final float VIZ_RESOLUTION_SCALE = 0.0f;
+
+    // Temporal smoothing of depth: off, on the CPU before frames are published, or in a compute
+    // shader after upload. GPU mode therefore smooths the output of the CPU stages below.
+    private enum DepthFilterMode { NONE, CPU, GPU }
+    private static final DepthFilterMode DEPTH_FILTER_MODE = DepthFilterMode.CPU;
+    // Edge-preserving hole filling on the CPU before frames are published, after the temporal
+    // filter in CPU mode.
+    private static final boolean DEPTH_HOLE_FILLING = true;
+    // Reproject depth into the color image with the lens calibration, when the camera reports one.
+    // The last CPU stage.
+    private static final boolean DEPTH_REGISTRATION = true;
+
+    // Clip planes of the AR camera projection, in metres.
+    private static final float NEAR_PLANE = 0.01f;
+    private static final float FAR_PLANE = 100.0f;
+    // Leave the sensor depth in the depth buffer after the background, so virtual content drawn
+    // with the AR projection is hidden behind real surfaces by the depth test.
+    private static final boolean DEPTH_OCCLUSION = false;
+
+    // When the view renders: on each depth frame, on each camera frame, or continuously.
+    private static final RenderScheduler.Policy RENDER_POLICY = RenderScheduler.Policy.COLOR_RATE;
+
+    // Show CPU/GPU percentiles of the render loop over the view, refreshed at this interval.
+    private static final boolean PROFILER_OVERLAY = BuildConfig.DEBUG;
+    private static final long PROFILER_OVERLAY_INTERVAL_MS = 500;
+
+    // Pair each camera frame with the depth frame captured closest to it, from a short history.
+    private static final boolean DEPTH_SYNC = true;
+    private static final int DEPTH_SYNC_HISTORY = 4;
+    // Beyond this the latest depth frame is drawn instead.
+    private static final long DEPTH_SYNC_MAX_SKEW_NS = 50_000_000L;
+    // Camera poses kept to look up the pose at a depth frame's timestamp, about 2 s at 30 fps.
+    private static final int POSE_HISTORY = 64;
+
+    // Track depth latency from sensor to screen and write the last presentations to a CSV file in
+    // the app's external files directory on pause.
+    private static final boolean LATENCY_CSV = false;
+    private static final int LATENCY_CSV_ROWS = 4096;
+
+    // Record the drawn depth frames and camera poses to the app's external files directory.
+    private static final boolean RECORD_DEPTH = false;
+
+    // Fuse the drawn depth frames into a TSDF volume at their capture poses, on a background thread.
+    private static final boolean RECONSTRUCTION = false;
+    private static final float RECONSTRUCTION_VOXEL_SIZE = TsdfVolume.DEFAULT_VOXEL_SIZE;
+    // Blocks kept around the camera, TsdfVolume.BYTES_PER_BLOCK each.
+    private static final int RECONSTRUCTION_MAX_BLOCKS = TsdfVolume.DEFAULT_MAX_BLOCKS;
 
     // background image rendering
     public Vector2f screenResolution;
@@ -145,6 +233,8 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
 
     // Ensure GL surface draws only occur when new frames are available.
     private final AtomicBoolean shouldUpdateSurfaceTexture = new AtomicBoolean(false);
+    // Requests renders from the camera and depth callbacks, see RENDER_POLICY.
+    private RenderScheduler renderScheduler;
 
 
     // Whether the GL surface has been created.
@@ -162,6 +252,8 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
 
     // Renderers, see hello_ar_java sample to learn more.
     private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer(this);
+    private DepthFilterStage depthFilter;
+    private DepthRegistration depthRegistration;
 
     // Prevent any changes to camera capture session after CameraManager.openCamera() is called, but
     // before camera device becomes active.
@@ -171,6 +263,35 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
     private final ConditionVariable safeToExitApp = new ConditionVariable();
     private int vizMode;
     private TextView vizModeTextView;
+
+    // Reads the composited view back without stalling the GL thread; long-press the view mode text.
+    private final AsyncPixelReader pixelReader = new AsyncPixelReader(this::onVisualizationCaptured);
+    private final AtomicBoolean captureRequested = new AtomicBoolean(false);
+
+    private final FrameProfiler frameProfiler = new FrameProfiler();
+    private FrameProfiler.Section readbackSection;
+    private TextView profilerTextView;
+    private long lastProfilerOverlayMs;
+
+    private final LatencyTracker latencyTracker = new LatencyTracker(LATENCY_CSV_ROWS);
+    // Color timestamp of the frame drawn by onDrawFrameARCore, 0 when nothing was drawn. GL thread only.
+    private long presentedColorTimestamp;
+
+    // GL thread only, closed in onPause() once the GL thread has paused.
+    private DepthRecorder depthRecorder;
+    private long lastRecordedSequence;
+    private final float[] cameraPose = new float[16];
+    private final PoseHistory poseHistory = new PoseHistory(POSE_HISTORY);
+
+    // Kept across pauses; the fusion thread is started on the GL thread and stopped in onPause().
+    private TsdfVolume tsdfVolume;
+    private TsdfFusion tsdfFusion;
+    private CameraIntrinsics fusionIntrinsics;
+    private long lastFusedSequence;
+    // Meshes the volume on its own thread while fusing; the renderer uploads on the GL thread.
+    private TsdfMesher tsdfMesher;
+    private final TsdfMeshRenderer meshRenderer = new TsdfMeshRenderer();
+    private FrameProfiler.Section meshSection;
     private AssetManager assetManager;
     private TrackingStateHelper trackingStateHelper;
 
@@ -268,6 +389,7 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
                         @NonNull CaptureRequest request,
                         @NonNull TotalCaptureResult result) {
                     shouldUpdateSurfaceTexture.set(true);
+                    renderScheduler.onColorFrame();
                 }
 
                 @Override
@@ -308,13 +430,21 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
         surfaceView.setEGLContextClientVersion(2);
         surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
         surfaceView.setRenderer(this);
-        surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
-        surfaceView.setDebugFlags(GLSurfaceView.DEBUG_CHECK_GL_ERROR | GLSurfaceView.DEBUG_LOG_GL_CALLS);
+        renderScheduler = new RenderScheduler(surfaceView, RENDER_POLICY);
+        if (BuildConfig.GL_ERROR_CHECKS) {
+            surfaceView.setDebugFlags(GLSurfaceView.DEBUG_CHECK_GL_ERROR | GLSurfaceView.DEBUG_LOG_GL_CALLS);
+        }
 
         // Helpers, see hello_ar_java sample to learn more.
         displayRotationHelper = new DisplayRotationHelper(this);
 
         vizModeTextView = findViewById(R.id.vizModeText);
+        vizModeTextView.setOnLongClickListener(v -> {
+            captureRequested.set(true);
+            return true;
+        });
+        profilerTextView = findViewById(R.id.profilerText);
+        profilerTextView.setVisibility(PROFILER_OVERLAY ? View.VISIBLE : View.GONE);
 
         vizModeNext = findViewById(R.id.vizModeNext);
         vizModeNext.setOnClickListener(new Button.OnClickListener(){
@@ -360,6 +490,43 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
 
 
         TOFImageReader = new TOF_ImageReader();
+        TOFImageReader.setListener(source -> renderScheduler.onDepthFrame());
+        backgroundRenderer.setDepthUploadMode(DEPTH_UPLOAD_MODE);
+        backgroundRenderer.setPrecomputedNormals(PRECOMPUTED_NORMALS);
+        backgroundRenderer.setVizResolutionScale(VIZ_RESOLUTION_SCALE);
+        // Listed in the order they execute, CPU stages before publishing and then GPU stages after
+        // upload, see DepthFilterChain.
+        List<DepthFilterStage> depthStages = new ArrayList<>();
+        if (DEPTH_FILTER_MODE == DepthFilterMode.CPU) {
+            depthStages.add(new TemporalDepthFilter(TemporalFilterSettings.DEFAULT));
+        }
+        if (DEPTH_HOLE_FILLING) {
+            depthStages.add(new SpatialDepthFilter(RowBandExecutor.shared()));
+        }
+        if (DEPTH_REGISTRATION) {
+            // Last on the CPU, so the holes opened by the reprojection are not mistaken for sensor holes.
+            depthRegistration = new DepthRegistration(RowBandExecutor.shared());
+            depthStages.add(depthRegistration);
+        }
+        if (DEPTH_FILTER_MODE == DepthFilterMode.GPU) {
+            depthStages.add(new GpuTemporalDepthFilter(getAssets(), TemporalFilterSettings.DEFAULT));
+        }
+        if (depthStages.size() == 1) {
+            depthFilter = depthStages.get(0);
+        } else if (depthStages.size() > 1) {
+            depthFilter = new DepthFilterChain(depthStages.toArray(new DepthFilterStage[0]));
+        }
+        TOFImageReader.setDepthFilter(depthFilter);
+        backgroundRenderer.setDepthFilter(depthFilter);
+        backgroundRenderer.setDepthOcclusion(DEPTH_OCCLUSION, NEAR_PLANE, FAR_PLANE);
+        if (RECONSTRUCTION) {
+            // Its own workers, so integration does not hold up the depth filters on the shared executor.
+            RowBandExecutor fusionExecutor = new RowBandExecutor(
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2), "TsdfWorker");
+            tsdfVolume = new TsdfVolume(RECONSTRUCTION_VOXEL_SIZE, fusionExecutor);
+            tsdfVolume.setMaxBlocks(RECONSTRUCTION_MAX_BLOCKS);
+            tsdfMesher = new TsdfMesher(tsdfVolume);
+        }
 
         displayRotationHelper.onResume();
 
@@ -397,6 +564,20 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
     @Override
     public void onPause() {
         surfaceView.onPause();
+        Log.i(TAG, "Frame profile:\n" + frameProfiler.dump());
+        Log.i(TAG, "Depth latency:\n" + latencyTracker.dump());
+        Log.i(TAG, "Render policy " + renderScheduler.getPolicy() + ": requested "
+                + renderScheduler.getRequestedCount() + " renders, coalesced "
+                + renderScheduler.getCoalescedCount() + " frames");
+        if (LATENCY_CSV) {
+            writeLatencyCsv();
+        }
+        stopDepthRecording();
+        stopFusion();
+        // Depth history is stale once the camera resumes.
+        if (depthFilter != null) depthFilter.reset();
+        // The GL thread is paused, the poses would be stale after resuming anyway.
+        poseHistory.clear();
         waitUntilCameraCaptureSesssionIsActive();
         displayRotationHelper.onPause();
         pauseARCore();
@@ -551,24 +732,29 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
         sharedCamera = sharedSession.getSharedCamera();
         // Store the ID of the camera used by ARCore.
         cameraId = sharedSession.getCameraConfig().getCameraId();
-        initCamera(this, cameraId, 1);
-        ArrayList<String> resolutions;
-
-        TOF_available = false;
 
-        resolutions = getResolutions(this, cameraId, ImageFormat.DEPTH16);
-        if (resolutions != null) {
-            resolutions.forEach((temp) -> {
-                Log.v(TAG + "DEPTH16 resolution: ", temp);
-            });
-            if (resolutions.size() > 0) TOF_available = true;
+        DepthStreamSelector.StreamOption depthStream = selectDepthStream(cameraId);
+        TOF_available = depthStream != null;
+        if (!TOF_available && renderScheduler.getPolicy() == RenderScheduler.Policy.DEPTH_RATE) {
+            // Nothing would ever request a render.
+            renderScheduler.setPolicy(RenderScheduler.Policy.COLOR_RATE);
         }
 
         // Color CPU Image.
         // Use the currently configured CPU image size.
         //Size desiredCPUImageSize = sharedSession.getCameraConfig().getImageSize();
 
-        if (TOF_available) TOFImageReader.createImageReader(DEPTH_WIDTH, DEPTH_HEIGHT);
+        if (TOF_available) TOFImageReader.createImageReader(depthStream.width, depthStream.height);
+        if (TOF_available && depthRegistration != null) {
+            configureDepthRegistration(depthStream.width, depthStream.height);
+        }
+        if (TOF_available && DEPTH_SYNC) {
+            DepthFrameSynchronizer synchronizer =
+                    new DepthFrameSynchronizer(depthStream.width, depthStream.height, DEPTH_SYNC_HISTORY);
+            synchronizer.setMaxSkewNanos(DEPTH_SYNC_MAX_SKEW_NS);
+            TOFImageReader.setSynchronizer(synchronizer);
+            backgroundRenderer.setDepthSynchronizer(synchronizer);
+        }
 
         // When ARCore is running, make sure it also updates our CPU image surface.
         if (TOF_available) {
@@ -585,6 +771,11 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
 
             // Get the characteristics for the ARCore camera.
             CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(this.cameraId);
+            // Image timestamps are only comparable with our clocks when the source is REALTIME.
+            Integer timestampSource = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            if (timestampSource != null && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
+                latencyTracker.setSensorClockOffset(SystemClock.elapsedRealtimeNanos() - System.nanoTime());
+            }
 
             // Prevent app crashes due to quick operations on camera open / close by waiting for the
             // capture session's onActive() callback to be triggered.
@@ -657,7 +848,17 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
         // Prepare the rendering objects. This involves reading shaders, so may throw an IOException.
         try {
             // Create the camera preview image texture. Used in non-AR and AR mode.
+            frameProfiler.createOnGlThread();
+            readbackSection = frameProfiler.section("readback");
             backgroundRenderer.createOnGlThread(assetManager);
+            pixelReader.createOnGlThread();
+            if (depthFilter != null) depthFilter.createOnGlThread();
+            if (tsdfMesher != null) {
+                meshSection = frameProfiler.section("mesh draw");
+                meshRenderer.createOnGlThread(assetManager);
+                // The GL objects of the old context are gone, upload every block again.
+                tsdfMesher.remeshAll();
+            }
 
       /*virtualObjectShadow.createOnGlThread(
           this, "models/andy_shadow.obj", "models/andy_shadow.png");
@@ -687,7 +888,10 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
     @Override
     public void onDrawFrame(GL10 gl) {
         // Use the cGL clear color specified in onSurfaceCreated() to erase the GL surface.
+        // Frames arriving from here on need another render.
+        renderScheduler.onDrawFrame();
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        frameProfiler.beginFrame();
 
         if (!shouldUpdateSurfaceTexture.get()) {
             // Not ready to draw.
@@ -696,14 +900,145 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
         // Handle display rotations.
         displayRotationHelper.updateSessionIfNeeded(sharedSession);
 
+        presentedColorTimestamp = 0;
         try {
             onDrawFrameARCore();
         } catch (Throwable t) {
             // Avoid crashing the application due to unhandled exceptions.
             Log.e(TAG, "Exception on the OpenGL thread", t);
         }
+        frameProfiler.endFrame();
+        // GLSurfaceView swaps buffers right after onDrawFrame returns.
+        if (presentedColorTimestamp != 0) {
+            latencyTracker.onPresented(backgroundRenderer.getCurrentDepthFrame(),
+                    backgroundRenderer.getCurrentDepthUploadNanos(), System.nanoTime(), presentedColorTimestamp);
+        }
+        updateProfilerOverlay();
+    }
+
+    // Called on the GL thread, posts the profiler summary to the overlay at most every interval.
+    private void updateProfilerOverlay() {
+        if (!PROFILER_OVERLAY) return;
+        long now = System.currentTimeMillis();
+        if (now - lastProfilerOverlayMs < PROFILER_OVERLAY_INTERVAL_MS) return;
+        lastProfilerOverlayMs = now;
+        String summary = frameProfiler.summary() + "\n" + latencyTracker.summary();
+        runOnUiThread(() -> profilerTextView.setText(summary));
+    }
+
+    public FrameProfiler getFrameProfiler() {
+        return frameProfiler;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    private void writeLatencyCsv() {
+        File file = new File(getExternalFilesDir(null), "latency_" + System.currentTimeMillis() + ".csv");
+        try (FileWriter writer = new FileWriter(file)) {
+            latencyTracker.writeCsv(writer);
+            Log.i(TAG, "Wrote depth latency to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write depth latency", e);
+        }
+    }
+
+
+    // Depth frames drawn by the background renderer.
+    public DepthFrameSource getDepthSource() {
+        return TOFImageReader;
+    }
+
+    // Queues the depth frame that was just drawn for recording. Called on the GL thread.
+    private void recordDepth(Camera camera) {
+        DepthFrame depthFrame = backgroundRenderer.getCurrentDepthFrame();
+        if (depthFrame == null || depthFrame.getSequence() == lastRecordedSequence) return;
+        if (depthRecorder == null) {
+            File file = new File(getExternalFilesDir(null), "depth_" + System.currentTimeMillis() + ".drec");
+            try {
+                depthRecorder = new DepthRecorder(file, depthFrame.width, depthFrame.height);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start depth recording", e);
+                return;
+            }
+            Log.i(TAG, "Recording depth to " + file);
+        }
+        depthRecorder.record(depthFrame, depthCapturePose(camera, depthFrame));
+        lastRecordedSequence = depthFrame.getSequence();
+    }
+
+    // Pose at the depth capture time, the current pose is the one of the camera frame.
+    private float[] depthCapturePose(Camera camera, DepthFrame depthFrame) {
+        if (!poseHistory.interpolate(depthFrame.getTimestamp(), cameraPose)) {
+            camera.getPose().toMatrix(cameraPose, 0);
+        }
+        return cameraPose;
+    }
+
+    // Queues the depth frame that was just drawn for fusion into the volume. Called on the GL thread.
+    private void fuseDepth(Camera camera) {
+        DepthFrame depthFrame = backgroundRenderer.getCurrentDepthFrame();
+        if (depthFrame == null || depthFrame.getSequence() == lastFusedSequence) return;
+        if (tsdfFusion == null) {
+            tsdfFusion = new TsdfFusion(tsdfVolume);
+            tsdfMesher.start();
+        }
+        if (fusionIntrinsics == null || fusionIntrinsics.width != depthFrame.width
+                || fusionIntrinsics.height != depthFrame.height) {
+            fusionIntrinsics = depthIntrinsics(camera, depthFrame.width, depthFrame.height);
+        }
+        tsdfFusion.submit(depthFrame, fusionIntrinsics, depthCapturePose(camera, depthFrame));
+        lastFusedSequence = depthFrame.getSequence();
+    }
+
+    // Registered depth has the color camera's intrinsics. Otherwise ARCore's texture intrinsics
+    // stretched over the depth image, which only roughly lines up with the depth camera.
+    private CameraIntrinsics depthIntrinsics(Camera camera, int width, int height) {
+        if (depthRegistration != null) {
+            CameraIntrinsics registered = depthRegistration.getOutputIntrinsics(width, height);
+            if (registered != null) return registered;
+        }
+        com.google.ar.core.CameraIntrinsics texture = camera.getTextureIntrinsics();
+        float[] focalLength = texture.getFocalLength();
+        float[] principalPoint = texture.getPrincipalPoint();
+        int[] size = texture.getImageDimensions();
+        return new CameraIntrinsics(focalLength[0], focalLength[1], principalPoint[0], principalPoint[1],
+                size[0], size[1]).scaled(width, height);
     }
 
+    private void stopFusion() {
+        if (tsdfFusion == null) return;
+        tsdfFusion.close();
+        tsdfMesher.stop();
+        Log.i(TAG, "Fused " + tsdfFusion.getIntegratedCount() + " depth frames into "
+                + tsdfVolume.getBlockCount() + " blocks, skipped " + tsdfFusion.getSkippedCount()
+                + ", " + tsdfFusion.getIntegrationTimes());
+        Log.i(TAG, "Meshed " + tsdfMesher.getMeshedBlocks() + " blocks, "
+                + tsdfMesher.getMeshedTriangles() + " triangles, " + tsdfMesher.getUpdateTimes());
+        tsdfFusion = null;
+        fusionIntrinsics = null;
+        lastFusedSequence = 0;
+    }
+
+    private void stopDepthRecording() {
+        if (depthRecorder == null) return;
+        try {
+            depthRecorder.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write depth recording", e);
+        }
+        Log.i(TAG, "Recorded " + depthRecorder.getRecordedCount() + " depth frames, dropped "
+                + depthRecorder.getDroppedCount());
+        depthRecorder = null;
+        lastRecordedSequence = 0;
+    }
+
+    // Called on the readback worker thread with the pixels of a captured frame.
+    private void onVisualizationCaptured(int[] argb, int width, int height, long timestamp) {
+        Bitmap bitmap = Bitmap.createBitmap(argb, width, height, Bitmap.Config.ARGB_8888);
+        ImageUtils.saveBitmap(bitmap, "depth_" + timestamp + ".png");
+    }
 
     // Account for any difference between camera sensor orientation and display orientation.
     public int getCameraSensorToDisplayRotation() {
@@ -718,7 +1053,7 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
     // Draw frame when in AR mode. Called on the GL thread.
     public void onDrawFrameARCore() throws CameraNotAvailableException {
 
-        if (TOF_available && TOFImageReader.frameCount == 0) return;
+        if (TOF_available && getDepthSource().getFrameCount() == 0) return;
         screenResolution = new Vector2f(surfaceView.getWidth(), surfaceView.getHeight());
 
 
@@ -751,10 +1086,34 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
             // render background with occlusion.
             // Get projection matrix.
 
-            camera.getProjectionMatrix(projmtx, 0, 0.01f, 100.0f);
+            camera.getProjectionMatrix(projmtx, 0, NEAR_PLANE, FAR_PLANE);
             camera.getViewMatrix(viewmtx, 0);
+            camera.getPose().toMatrix(cameraPose, 0);
+            poseHistory.add(frame.getTimestamp(), cameraPose);
 
             backgroundRenderer.draw(frame, vizMode, depthThresh);
+            presentedColorTimestamp = frame.getTimestamp();
+
+            if (RECORD_DEPTH) {
+                recordDepth(camera);
+            }
+            if (tsdfVolume != null && camera.getTrackingState() == TrackingState.TRACKING) {
+                fuseDepth(camera);
+            }
+            if (tsdfMesher != null) {
+                meshSection.begin();
+                meshRenderer.update(tsdfMesher);
+                meshRenderer.draw(viewmtx, projmtx);
+                meshSection.end();
+            }
+
+            pixelReader.poll();
+            if (captureRequested.getAndSet(false)) {
+                readbackSection.begin();
+                pixelReader.requestReadback(0, 0, surfaceView.getWidth(), surfaceView.getHeight(),
+                        frame.getTimestamp());
+                readbackSection.end();
+            }
 
             // Keep the screen unlocked while tracking, but allow it to lock when tracking stops.
             trackingStateHelper.updateKeepScreenOnFlag(camera.getTrackingState());
@@ -819,45 +1178,87 @@ public class SharedCameraActivity extends AppCompatActivity implements GLSurface
         }
 
 
-        public ArrayList<String> getResolutions (Context context, String cameraId,int imageFormat){
-            Log.v(TAG + "getResolutions:", " cameraId:" + cameraId + " imageFormat: " + imageFormat);
-
-            ArrayList<String> output = new ArrayList<>();
+        // Reads the lens calibrations of the depth and color sensors. A logical camera lists them as
+        // physical cameras, the one with DEPTH_OUTPUT being the depth sensor; otherwise both streams
+        // share the logical camera's calibration. Registration stays off without a calibration.
+        private void configureDepthRegistration (int depthWidth, int depthHeight){
+            LensCalibration depth = null;
+            LensCalibration color = null;
             try {
-                CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-                CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-
-                for (Size s : characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).getOutputSizes(imageFormat)) {
-                    double aspect = (double) s.getWidth() / (double) s.getHeight();
-                    double screen_aspect = (double) surfaceView.getWidth() / (double) surfaceView.getHeight();
-                    output.add(s.getWidth() + "x" + s.getHeight() + " aspect: " + aspect + " screen aspect: " + screen_aspect);
+                CameraManager manager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
+                CameraCharacteristics logical = manager.getCameraCharacteristics(cameraId);
+                CameraCharacteristics depthCharacteristics = logical;
+                CameraCharacteristics colorCharacteristics = logical;
+                for (String physicalId : logical.getPhysicalCameraIds()) {
+                    CameraCharacteristics physical = manager.getCameraCharacteristics(physicalId);
+                    int[] capabilities = physical.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+                    boolean depthOutput = false;
+                    for (int capability : capabilities != null ? capabilities : new int[0]) {
+                        depthOutput |= capability == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_DEPTH_OUTPUT;
+                    }
+                    if (depthOutput) {
+                        depthCharacteristics = physical;
+                    } else {
+                        colorCharacteristics = physical;
+                    }
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+                Size textureSize = sharedSession.getCameraConfig().getTextureSize();
+                depth = readCalibration(depthCharacteristics, depthWidth, depthHeight);
+                color = readCalibration(colorCharacteristics, textureSize.getWidth(), textureSize.getHeight());
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Failed to read the lens calibration", e);
+            }
+            if (depth == null || color == null) {
+                Log.w(TAG, "No lens calibration, depth drawn with the approximate screen mapping");
+                backgroundRenderer.setDepthRegistered(false);
+                return;
             }
-            return output;
+            Log.v(TAG, "depth registration from " + depth + " to " + color);
+            depthRegistration.setCalibration(depth, color);
+            backgroundRenderer.setDepthRegistered(true);
         }
 
+        // Calibration of a stream of the given size, null if the camera does not report intrinsics.
+        private LensCalibration readCalibration (CameraCharacteristics characteristics, int width, int height){
+            float[] intrinsics = characteristics.get(CameraCharacteristics.LENS_INTRINSIC_CALIBRATION);
+            Rect array = characteristics.get(CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE);
+            if (intrinsics == null || array == null || intrinsics[0] <= 0) return null;
+            return LensCalibration.fromCamera2(intrinsics,
+                    characteristics.get(CameraCharacteristics.LENS_DISTORTION),
+                    characteristics.get(CameraCharacteristics.LENS_POSE_ROTATION),
+                    characteristics.get(CameraCharacteristics.LENS_POSE_TRANSLATION),
+                    array.width(), array.height(), width, height);
+        }
 
-        public void initCamera (Context context, String cameraId,int index){
-            boolean ok = false;
+        // Picks the DEPTH16 stream of the camera according to DEPTH_STREAM_POLICY, null if it has none.
+        private DepthStreamSelector.StreamOption selectDepthStream (String cameraId){
+            List<DepthStreamSelector.StreamOption> options = new ArrayList<>();
             try {
-                int current = 0;
-                CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+                CameraManager manager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
                 CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-                for (Size s : characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).getOutputSizes(ImageFormat.DEPTH16)) {
-                    ok = true;
-                    if (current == index)
-                        break;
-                    else ;
-                    current++;
+                StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                Size[] sizes = map != null ? map.getOutputSizes(ImageFormat.DEPTH16) : null;
+                if (sizes != null) {
+                    for (Size size : sizes) {
+                        options.add(new DepthStreamSelector.StreamOption(size.getWidth(), size.getHeight(),
+                                map.getOutputMinFrameDuration(ImageFormat.DEPTH16, size)));
+                    }
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Failed to read the depth stream configurations", e);
             }
-            if (!ok) {
-                Log.e(TAG + " initCamera", "Depth sensor not found!");
+
+            float viewAspect = surfaceView.getHeight() > 0
+                    ? (float) surfaceView.getWidth() / surfaceView.getHeight() : 0;
+            int frameCopies = DepthStreamSelector.residentFrameCopies(DEPTH_SYNC ? DEPTH_SYNC_HISTORY : 0,
+                    RECORD_DEPTH ? DepthRecorder.DEFAULT_QUEUE_CAPACITY : 0);
+            DepthStreamSelector.StreamOption selected = DepthStreamSelector.select(
+                    options, DEPTH_STREAM_POLICY, viewAspect, DEPTH_MEMORY_BUDGET_BYTES, frameCopies);
+            Log.v(TAG, "DEPTH16 streams " + options + ", " + DEPTH_STREAM_POLICY + " selected " + selected);
+            if (selected == null) {
+                Log.e(TAG, "Depth sensor not found!");
             }
+            return selected;
         }
 
     }
@@ -8,15 +8,17 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
+import com.matt.arcore.java.common.depth.DepthFilterStage;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.depth.DepthFrameExchange;
+import com.matt.arcore.java.common.depth.DepthFrameSource;
+import com.matt.arcore.java.common.depth.DepthFrameSynchronizer;
 
-public class TOF_ImageReader implements ImageReader.OnImageAvailableListener {
+public class TOF_ImageReader implements ImageReader.OnImageAvailableListener, DepthFrameSource {
 
     public int WIDTH;
     public int HEIGHT;
     public ImageReader imageReader;
-    public int frameCount;
-    public long timestamp;
 
     private static final String TAG = TOF_ImageReader.class.getSimpleName();
 
@@ -25,7 +27,13 @@ public class TOF_ImageReader implements ImageReader.OnImageAvailableListener {
     // Looper handler.
     private Handler backgroundHandler;
 
-    public ByteBuffer depth16_raw;
+    // Copies of the raw undecoded DEPTH16 frames, published on the DepthDecoderThread and acquired
+    // on the GL thread.
+    public volatile DepthFrameExchange depthFrames;
+
+    private volatile Listener listener;
+    private volatile DepthFilterStage depthFilter;
+    private volatile DepthFrameSynchronizer synchronizer;
 
     TOF_ImageReader(){
     }
@@ -33,6 +41,7 @@ public class TOF_ImageReader implements ImageReader.OnImageAvailableListener {
     public void createImageReader(int width, int height){
         this.WIDTH = width;
         this.HEIGHT = height;
+        this.depthFrames = new DepthFrameExchange(width, height);
         this.imageReader =
                 ImageReader.newInstance(
                         width,
@@ -45,6 +54,7 @@ public class TOF_ImageReader implements ImageReader.OnImageAvailableListener {
     // CPU image reader callback.
     @Override
     public void onImageAvailable(ImageReader imageReader) {
+        long arrivalNanos = System.nanoTime();
         Image image  = imageReader.acquireLatestImage();
         if (image == null) {
             Log.w(TAG, "onImageAvailable: Skipping null image.");
@@ -52,10 +62,27 @@ public class TOF_ImageReader implements ImageReader.OnImageAvailableListener {
         }
         else{
             if(image.getFormat() == ImageFormat.DEPTH16){
-                this.timestamp = image.getTimestamp();
-                depth16_raw = image.getPlanes()[0].getBuffer().asReadOnlyBuffer();
-                // copy raw undecoded DEPTH16 format depth data to NativeBuffer
-                frameCount++;
+                // copy raw undecoded DEPTH16 format depth data into a ring slot, the Image is
+                // returned to the ImageReader below and its buffer must not be used afterwards.
+                Image.Plane plane = image.getPlanes()[0];
+                DepthFrame slot = depthFrames.getWriteFrame();
+                slot.setArrivalNanos(arrivalNanos);
+                slot.copyFrom(plane.getBuffer(), plane.getRowStride());
+                DepthFilterStage filter = depthFilter;
+                if (filter != null) {
+                    filter.filterFrame(slot);
+                }
+                depthFrames.publish(image.getTimestamp());
+                // Only read here, the producer does not write the published slot before its next publish.
+                DepthFrameSynchronizer synchronizer = this.synchronizer;
+                if (synchronizer != null) {
+                    synchronizer.add(slot);
+                }
+
+                Listener listener = this.listener;
+                if (listener != null) {
+                    listener.onDepthFrameAvailable(this);
+                }
             }
             else{
                 Log.w(TAG, "onImageAvailable: depth image not in DEPTH16 format, skipping image");
@@ -64,6 +91,43 @@ public class TOF_ImageReader implements ImageReader.OnImageAvailableListener {
         image.close();
     }
 
+    // Runs the CPU side of the filter on every frame before it is published, null to disable.
+    public void setDepthFilter(DepthFilterStage filter) {
+        this.depthFilter = filter;
+    }
+
+    // Also keeps every published frame in the synchronizer's timestamp history, null to disable.
+    public void setSynchronizer(DepthFrameSynchronizer synchronizer) {
+        this.synchronizer = synchronizer;
+    }
+
+    @Override
+    public DepthFrameExchange getDepthFrames() {
+        return depthFrames;
+    }
+
+    @Override
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    @Override
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Number of depth frames published so far, safe to call from any thread.
+    @Override
+    public long getFrameCount() {
+        DepthFrameExchange frames = depthFrames;
+        return frames != null ? frames.getPublishedCount() : 0;
+    }
+
     // Start background handler thread, used to run callbacks without blocking UI thread.
     public void startBackgroundThread() {
         this.backgroundThread = new HandlerThread("DepthDecoderThread");
@@ -0,0 +1,48 @@
+package com.matt.arcore.java.bench;
+
+import java.util.Random;
+
+/** Frame sizes and deterministic test data shared by the benchmarks. */
+final class BenchFrames {
+
+  // Depth sensor, VGA and 1080p camera frames.
+  static final String SIZES_240x180 = "240x180";
+  static final String SIZES_640x480 = "640x480";
+  static final String SIZES_1920x1080 = "1920x1080";
+
+  static final long SEED = 0x5eed;
+
+  private BenchFrames() {}
+
+  static int width(String size) {
+    return Integer.parseInt(size.substring(0, size.indexOf('x')));
+  }
+
+  static int height(String size) {
+    return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+  }
+
+  static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(SEED).nextBytes(bytes);
+    return bytes;
+  }
+
+  static int[] randomInts(int length) {
+    Random random = new Random(SEED);
+    int[] ints = new int[length];
+    for (int i = 0; i < length; i++) {
+      ints[i] = random.nextInt();
+    }
+    return ints;
+  }
+
+  static short[] randomShorts(int length) {
+    Random random = new Random(SEED);
+    short[] shorts = new short[length];
+    for (int i = 0; i < length; i++) {
+      shorts[i] = (short) random.nextInt();
+    }
+    return shorts;
+  }
+}
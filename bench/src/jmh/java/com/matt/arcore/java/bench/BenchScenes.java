@@ -0,0 +1,63 @@
+package com.matt.arcore.java.bench;
+
+/**
+ * Synthetic depth of a ball in front of a wall, for the reconstruction benchmarks and their tests.
+ *
+ * <p>The camera sits at the origin of a column-major camera-to-world pose and looks down -Z. The
+ * ball has a radius of 0.5 m and its centre 2 m in front of the origin, the wall is 3 m away.
+ */
+public final class BenchScenes {
+
+  private BenchScenes() {}
+
+  /** Pose at {@code x} on the X axis, turned by {@code yaw} radians about Y. */
+  public static float[] pose(float x, float yaw) {
+    float c = (float) Math.cos(yaw);
+    float s = (float) Math.sin(yaw);
+    return new float[] {c, 0, -s, 0, 0, 1, 0, 0, s, 0, c, 0, x, 0, 0, 1};
+  }
+
+  /** Renders the camera depth in millimetres seen from {@code pose} through a pinhole camera. */
+  public static short[] render(float[] pose, int width, int height, float f) {
+    short[] depthMm = new short[width * height];
+    for (int v = 0; v < height; v++) {
+      for (int u = 0; u < width; u++) {
+        float rx = (u + 0.5f - width / 2f) / f;
+        float ry = -(v + 0.5f - height / 2f) / f;
+        // One metre of camera depth per unit of t.
+        float dx = pose[0] * rx + pose[4] * ry - pose[8];
+        float dy = pose[1] * rx + pose[5] * ry - pose[9];
+        float dz = pose[2] * rx + pose[6] * ry - pose[10];
+        float t = hit(pose[12], pose[13], pose[14], dx, dy, dz);
+        depthMm[v * width + u] = t < 10 ? (short) Math.round(t * 1000) : 0;
+      }
+    }
+    return depthMm;
+  }
+
+  /**
+   * Distance along the world ray {@code o + t * d} to the first surface it hits, in multiples of
+   * the direction's length, or {@link Float#MAX_VALUE} if it hits none.
+   */
+  public static float hit(float ox, float oy, float oz, float dx, float dy, float dz) {
+    float best = Float.MAX_VALUE;
+    float lz = oz + 2;
+    float a = dx * dx + dy * dy + dz * dz;
+    float b = ox * dx + oy * dy + lz * dz;
+    float c = ox * ox + oy * oy + lz * lz - 0.25f;
+    float discriminant = b * b - a * c;
+    if (discriminant >= 0) {
+      float t = (-b - (float) Math.sqrt(discriminant)) / a;
+      if (t > 0) {
+        best = t;
+      }
+    }
+    if (dz < 0) {
+      float t = (-3 - oz) / dz;
+      if (t > 0 && t < best) {
+        best = t;
+      }
+    }
+    return best;
+  }
+}
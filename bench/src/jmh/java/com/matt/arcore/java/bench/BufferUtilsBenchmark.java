@@ -0,0 +1,50 @@
+package com.matt.arcore.java.bench;
+
+import com.matt.arcore.java.common.image.BufferUtils;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Buffer copies from MiscUtils, sized as one 16 bit sample per pixel. */
+@State(Scope.Thread)
+public class BufferUtilsBenchmark {
+
+  @Param({BenchFrames.SIZES_240x180, BenchFrames.SIZES_640x480, BenchFrames.SIZES_1920x1080})
+  public String size;
+
+  private ByteBuffer direct;
+  private short[] shorts;
+  private FloatBuffer floats;
+
+  @Setup
+  public void setUp() {
+    int pixels = BenchFrames.width(size) * BenchFrames.height(size);
+    shorts = BenchFrames.randomShorts(pixels);
+    direct = ByteBuffer.allocateDirect(pixels * 2).order(ByteOrder.nativeOrder());
+    direct.asShortBuffer().put(shorts);
+    floats = ByteBuffer.allocateDirect(pixels * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    for (int i = 0; i < pixels; i++) {
+      floats.put(i, shorts[i]);
+    }
+  }
+
+  @Benchmark
+  public ByteBuffer byteBufferCloneDirect() {
+    return BufferUtils.byteBufferCloneDirect(direct);
+  }
+
+  @Benchmark
+  public byte[] shortToByte() {
+    return BufferUtils.ShortToByte(shorts);
+  }
+
+  @Benchmark
+  public FloatBuffer cloneFloatBuffer() {
+    return BufferUtils.cloneFloatBuffer(floats);
+  }
+}
@@ -0,0 +1,152 @@
+package com.matt.arcore.java.bench;
+
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import com.matt.arcore.java.common.depth.Depth16Decoder;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.depth.DepthFrameExchange;
+import com.matt.arcore.java.common.depth.DepthRegistration;
+import com.matt.arcore.java.common.depth.LensCalibration;
+import com.matt.arcore.java.common.depth.SpatialDepthFilter;
+import com.matt.arcore.java.common.depth.TemporalDepthFilter;
+import com.matt.arcore.java.common.depth.TemporalFilterSettings;
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** DEPTH16 frame copy, handoff, decode and filtering. */
+@State(Scope.Thread)
+public class DepthBenchmark {
+
+  @Param({BenchFrames.SIZES_240x180, BenchFrames.SIZES_640x480, BenchFrames.SIZES_1920x1080})
+  public String size;
+
+  private int width;
+  private int height;
+  // Stand-in for the Image plane, with a padded row stride like some camera HALs produce.
+  private ByteBuffer plane;
+  private int planeRowStride;
+  private DepthFrame frame;
+  private DepthFrameExchange exchange;
+  private short[] depthMm;
+  private byte[] confidence;
+  private float[] metres;
+  private TemporalDepthFilter temporalFilter;
+  private RowBandExecutor executor;
+  private SpatialDepthFilter spatialFilter;
+  private SpatialDepthFilter parallelSpatialFilter;
+  // Smooth scene with 10% holes, the spatial filter's cost depends on the hole density.
+  private ByteBuffer holedPlane;
+  private DepthRegistration registration;
+  private DepthRegistration parallelRegistration;
+
+  @Setup
+  public void setUp() {
+    width = BenchFrames.width(size);
+    height = BenchFrames.height(size);
+    int pixels = width * height;
+    planeRowStride = width * 2 + 64;
+    plane = ByteBuffer.allocateDirect(planeRowStride * height).order(ByteOrder.nativeOrder());
+    plane.put(BenchFrames.randomBytes(plane.capacity()));
+    frame = new DepthFrame(width, height);
+    frame.samples.put(BenchFrames.randomShorts(pixels));
+    exchange = new DepthFrameExchange(width, height);
+    depthMm = new short[pixels];
+    confidence = new byte[pixels];
+    metres = new float[pixels];
+    temporalFilter = new TemporalDepthFilter(TemporalFilterSettings.DEFAULT);
+    executor = new RowBandExecutor(Runtime.getRuntime().availableProcessors(), "BenchBand");
+    spatialFilter = new SpatialDepthFilter(null);
+    parallelSpatialFilter = new SpatialDepthFilter(executor);
+    Random random = new Random(BenchFrames.SEED);
+    holedPlane = ByteBuffer.allocateDirect(pixels * 2).order(ByteOrder.nativeOrder());
+    for (int i = 0; i < pixels; i++) {
+      int depth = random.nextInt(10) == 0 ? 0 : 1500 + (i % width) * 4 + random.nextInt(20);
+      holedPlane.putShort(i * 2, (short) depth);
+    }
+    // Depth sensor 1 cm beside a 1080p color camera, both with some radial distortion.
+    LensCalibration depthCalibration = new LensCalibration(
+        new CameraIntrinsics(0.9f * width, 0.9f * width, width / 2f, height / 2f, width, height), 0,
+        new float[] {0.05f, -0.02f, 0, 0, 0}, null, new float[] {0.01f, 0, 0});
+    LensCalibration colorCalibration = new LensCalibration(
+        new CameraIntrinsics(1500, 1500, 960, 540, 1920, 1080), 0,
+        new float[] {0.1f, -0.05f, 0.01f, 0, 0}, null, null);
+    registration = new DepthRegistration(null);
+    registration.setCalibration(depthCalibration, colorCalibration);
+    parallelRegistration = new DepthRegistration(executor);
+    parallelRegistration.setCalibration(depthCalibration, colorCalibration);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public DepthFrame copyPaddedPlane() {
+    frame.copyFrom(plane, planeRowStride);
+    return frame;
+  }
+
+  @Benchmark
+  public DepthFrame publishAndAcquire() {
+    DepthFrame slot = exchange.getWriteFrame();
+    slot.copyFrom(plane, planeRowStride);
+    exchange.publish(System.nanoTime());
+    return exchange.acquireLatest();
+  }
+
+  @Benchmark
+  public short[] decodeDepth() {
+    Depth16Decoder.decode(frame, depthMm, null, null);
+    return depthMm;
+  }
+
+  @Benchmark
+  public float[] decodeAll() {
+    Depth16Decoder.decode(frame, depthMm, confidence, metres);
+    return metres;
+  }
+
+  // Filters the random frame over and over, mostly hitting the discontinuity reset path.
+  @Benchmark
+  public DepthFrame temporalFilter() {
+    frame.copyFrom(plane, planeRowStride);
+    temporalFilter.filterFrame(frame);
+    return frame;
+  }
+
+  @Benchmark
+  public DepthFrame spatialFilter() {
+    frame.copyFrom(holedPlane, width * 2);
+    spatialFilter.filterFrame(frame);
+    return frame;
+  }
+
+  @Benchmark
+  public DepthFrame spatialFilterParallel() {
+    frame.copyFrom(holedPlane, width * 2);
+    parallelSpatialFilter.filterFrame(frame);
+    return frame;
+  }
+
+  @Benchmark
+  public DepthFrame registration() {
+    frame.copyFrom(holedPlane, width * 2);
+    registration.filterFrame(frame);
+    return frame;
+  }
+
+  @Benchmark
+  public DepthFrame registrationParallel() {
+    frame.copyFrom(holedPlane, width * 2);
+    parallelRegistration.filterFrame(frame);
+    return frame;
+  }
+}
@@ -0,0 +1,32 @@
+package com.matt.arcore.java.bench;
+
+import com.matt.arcore.java.common.profiling.LatencyHistogram;
+import java.util.concurrent.ThreadLocalRandom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/** Cost of recording into the profiler histogram, alone and with the GL, camera and worker threads. */
+@State(Scope.Benchmark)
+public class LatencyHistogramBenchmark {
+
+  private final LatencyHistogram histogram = new LatencyHistogram("bench");
+
+  @Benchmark
+  @Threads(1)
+  public void record() {
+    histogram.record(ThreadLocalRandom.current().nextLong(100_000, 50_000_000));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void recordContended() {
+    histogram.record(ThreadLocalRandom.current().nextLong(100_000, 50_000_000));
+  }
+
+  @Benchmark
+  public long snapshotP99() {
+    return histogram.snapshot().getPercentileNanos(99);
+  }
+}
@@ -0,0 +1,83 @@
+package com.matt.arcore.java.bench;
+
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import com.matt.arcore.java.common.reconstruction.TsdfMesher;
+import com.matt.arcore.java.common.reconstruction.TsdfVolume;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Marching cubes over the changed blocks of a fused volume. In throughput mode the triangles
+ * counter is reported per second; the gc profiler's gc.alloc.rate.norm is bytes per update.
+ */
+@State(Scope.Thread)
+public class MeshBenchmark {
+
+  private static final int WIDTH = 240;
+  private static final int HEIGHT = 180;
+  private static final int FRAMES = 16;
+
+  /** Triangles emitted, reported next to the operation rate. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long triangles;
+  }
+
+  private final CameraIntrinsics intrinsics =
+      new CameraIntrinsics(220, 220, WIDTH / 2f, HEIGHT / 2f, WIDTH, HEIGHT);
+  private final short[][] frames = new short[FRAMES][];
+  private final float[][] poses = new float[FRAMES][];
+  private int next;
+  private TsdfVolume volume;
+  private TsdfMesher mesher;
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < FRAMES; i++) {
+      poses[i] = BenchScenes.pose(-0.2f + 0.025f * i, -0.1f + 0.0125f * i);
+      frames[i] = BenchScenes.render(poses[i], WIDTH, HEIGHT, intrinsics.fx);
+    }
+    volume = new TsdfVolume(TsdfVolume.DEFAULT_VOXEL_SIZE, null);
+    mesher = new TsdfMesher(volume);
+    for (int i = 0; i < FRAMES; i++) {
+      volume.integrate(frames[i], null, WIDTH, HEIGHT, intrinsics, poses[i]);
+    }
+    meshPending();
+  }
+
+  /** Re-meshes every block, the worst case update. */
+  @Benchmark
+  public long remeshAll(Counters counters) {
+    mesher.remeshAll();
+    long triangles = meshPending();
+    counters.triangles += triangles;
+    return triangles;
+  }
+
+  /** Meshes the blocks one more frame changed, the steady state of a live session. */
+  @Benchmark
+  public long frameUpdate(Counters counters) {
+    int i = next++ % FRAMES;
+    volume.integrate(frames[i], null, WIDTH, HEIGHT, intrinsics, poses[i]);
+    long triangles = meshPending();
+    counters.triangles += triangles;
+    return triangles;
+  }
+
+  // Updates until the queue is empty, handing meshes straight back like an instant GL upload.
+  private long meshPending() {
+    long before = mesher.getMeshedTriangles();
+    while (mesher.getPendingBlocks() > 0) {
+      mesher.update(Long.MAX_VALUE);
+      TsdfMesher.BlockMesh mesh;
+      while ((mesh = mesher.pollMesh()) != null) {
+        mesher.release(mesh);
+      }
+    }
+    return mesher.getMeshedTriangles() - before;
+  }
+}
@@ -0,0 +1,84 @@
+package com.matt.arcore.java.bench;
+
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import com.matt.arcore.java.common.depth.DepthPointCloudBuilder;
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Back-projection of a decoded depth frame into a world space point cloud. */
+@State(Scope.Thread)
+public class PointCloudBenchmark {
+
+  @Param({BenchFrames.SIZES_240x180, BenchFrames.SIZES_640x480})
+  public String size;
+
+  @Param({"1", "2"})
+  public int stride;
+
+  private int width;
+  private int height;
+  private short[] depthMm;
+  private byte[] confidence;
+  private CameraIntrinsics intrinsics;
+  private final float[] pose = new float[16];
+  private FloatBuffer out;
+  private RowBandExecutor executor;
+  private DepthPointCloudBuilder sequential;
+  private DepthPointCloudBuilder parallel;
+
+  @Setup
+  public void setUp() {
+    width = BenchFrames.width(size);
+    height = BenchFrames.height(size);
+    int pixels = width * height;
+    // Mostly valid depth between 0.2 and 5 m with a few holes, random confidences.
+    Random random = new Random(BenchFrames.SEED);
+    depthMm = new short[pixels];
+    confidence = new byte[pixels];
+    for (int i = 0; i < pixels; i++) {
+      depthMm[i] = (short) (random.nextInt(20) == 0 ? 0 : 200 + random.nextInt(4800));
+      confidence[i] = (byte) random.nextInt(8);
+    }
+    intrinsics = new CameraIntrinsics(0.8f * width, 0.8f * width, width / 2f, height / 2f,
+        width, height);
+    // Rotation of 30 degrees about Y plus a translation.
+    float c = (float) Math.cos(Math.PI / 6);
+    float s = (float) Math.sin(Math.PI / 6);
+    pose[0] = c; pose[2] = -s; pose[5] = 1; pose[8] = s; pose[10] = c;
+    pose[12] = 0.5f; pose[13] = 1.2f; pose[14] = -0.3f; pose[15] = 1;
+    out = DepthPointCloudBuilder.allocateOutput(width, height);
+    executor = new RowBandExecutor(Runtime.getRuntime().availableProcessors(), "BenchBand");
+    sequential = newBuilder(null);
+    parallel = newBuilder(executor);
+  }
+
+  private DepthPointCloudBuilder newBuilder(RowBandExecutor executor) {
+    DepthPointCloudBuilder builder = new DepthPointCloudBuilder(executor);
+    builder.setStride(stride);
+    builder.setMinConfidence(0.3f);
+    builder.setRange(0.25f, 4.0f);
+    return builder;
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public int sequential() {
+    return sequential.build(depthMm, confidence, width, height, intrinsics, pose, out);
+  }
+
+  @Benchmark
+  public int parallel() {
+    return parallel.build(depthMm, confidence, width, height, intrinsics, pose, out);
+  }
+}
@@ -0,0 +1,46 @@
+package com.matt.arcore.java.bench;
+
+import com.matt.arcore.java.common.image.PixelUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** The RGBA to ARGB swizzle and row flip done by BackgroundRenderer.readPixels. */
+@State(Scope.Thread)
+public class ReadPixelsSwizzleBenchmark {
+
+  @Param({BenchFrames.SIZES_240x180, BenchFrames.SIZES_640x480, BenchFrames.SIZES_1920x1080})
+  public String size;
+
+  private int width;
+  private int height;
+  private int[] rgba;
+  private int[] argb;
+
+  @Setup
+  public void setUp() {
+    width = BenchFrames.width(size);
+    height = BenchFrames.height(size);
+    rgba = BenchFrames.randomInts(width * height);
+    argb = new int[width * height];
+  }
+
+  // Reuses the output array, the cost of the loop alone.
+  @Benchmark
+  public int[] swizzle() {
+    PixelUtils.glRgbaToArgbFlipped(rgba, argb, width, height);
+    return argb;
+  }
+
+  // Allocates the two arrays like readPixels does on every call.
+  @Benchmark
+  public int[] swizzleAllocating() {
+    int[] read = new int[width * height];
+    System.arraycopy(rgba, 0, read, 0, read.length);
+    int[] out = new int[width * height];
+    PixelUtils.glRgbaToArgbFlipped(read, out, width, height);
+    return out;
+  }
+}
@@ -0,0 +1,87 @@
+package com.matt.arcore.java.bench;
+
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.depth.DepthFrameExchange;
+import com.matt.arcore.java.common.depth.DepthPointCloudBuilder;
+import com.matt.arcore.java.common.recording.DepthRecorder;
+import com.matt.arcore.java.common.recording.DepthRecordingReader;
+import com.matt.arcore.java.common.recording.DepthReplaySource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * End to end throughput on a recorded session: read the next frame from the recording, publish and
+ * acquire it, decode it and build its point cloud. One operation is one depth frame.
+ */
+@State(Scope.Thread)
+public class ReplayPipelineBenchmark {
+
+  private static final int WIDTH = 240;
+  private static final int HEIGHT = 180;
+  private static final int FRAMES = 120;
+
+  private File file;
+  private DepthRecordingReader reader;
+  private DepthReplaySource source;
+  private DepthFrameExchange frames;
+  private DepthPointCloudBuilder builder;
+  private CameraIntrinsics intrinsics;
+  private final float[] pose = new float[16];
+  private FloatBuffer points;
+
+  @Setup
+  public void setUp() throws IOException {
+    file = File.createTempFile("replay", ".drec");
+    writeRecording(file);
+    reader = new DepthRecordingReader(file);
+    source = new DepthReplaySource(reader, DepthReplaySource.Mode.SINGLE_STEP);
+    source.setLoop(true);
+    frames = source.getDepthFrames();
+    builder = new DepthPointCloudBuilder(null);
+    builder.setMinConfidence(0.3f);
+    intrinsics = new CameraIntrinsics(190, 190, WIDTH / 2f, HEIGHT / 2f, WIDTH, HEIGHT);
+    points = DepthPointCloudBuilder.allocateOutput(WIDTH, HEIGHT);
+  }
+
+  // Synthetic session, random DEPTH16 samples with 1 m to 5 m ranges at 30 fps.
+  private static void writeRecording(File file) throws IOException {
+    Random random = new Random(BenchFrames.SEED);
+    DepthFrameExchange exchange = new DepthFrameExchange(WIDTH, HEIGHT);
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, 32, FRAMES);
+    float[] pose = new float[16];
+    pose[0] = pose[5] = pose[10] = pose[15] = 1;
+    for (int i = 0; i < FRAMES; i++) {
+      DepthFrame frame = exchange.getWriteFrame();
+      for (int p = 0; p < WIDTH * HEIGHT; p++) {
+        frame.samples.put(p, (short) (random.nextInt(8) << 13 | 1000 + random.nextInt(4000)));
+      }
+      exchange.publish(i * 33_333_333L);
+      if (!recorder.record(exchange.acquireLatest(), pose)) {
+        throw new IllegalStateException("Recorder queue sized for every frame dropped one");
+      }
+    }
+    recorder.close();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    reader.close();
+    file.delete();
+  }
+
+  @Benchmark
+  public int replayDecodeAndProject() throws IOException {
+    source.step();
+    source.getLastPose(pose);
+    DepthFrame frame = frames.acquireLatest();
+    return builder.build(frame, intrinsics, pose, points);
+  }
+}
@@ -0,0 +1,67 @@
+package com.matt.arcore.java.bench;
+
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import com.matt.arcore.java.common.reconstruction.TsdfVolume;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Fusing 240x180 depth frames into the block hashed TSDF volume, and raycasting it. */
+@State(Scope.Thread)
+public class TsdfBenchmark {
+
+  private static final int WIDTH = 240;
+  private static final int HEIGHT = 180;
+  private static final int FRAMES = 16;
+
+  private final CameraIntrinsics intrinsics =
+      new CameraIntrinsics(220, 220, WIDTH / 2f, HEIGHT / 2f, WIDTH, HEIGHT);
+  // A short sideways sweep, so integration keeps touching the same blocks like a live session.
+  private final short[][] frames = new short[FRAMES][];
+  private final float[][] poses = new float[FRAMES][];
+  private int next;
+  private RowBandExecutor executor;
+  private TsdfVolume sequential;
+  private TsdfVolume parallel;
+  private final float[] rayOrigin = new float[3];
+  private final float[] rayDirection = {0.1f, 0.05f, -1};
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < FRAMES; i++) {
+      poses[i] = BenchScenes.pose(-0.2f + 0.025f * i, -0.1f + 0.0125f * i);
+      frames[i] = BenchScenes.render(poses[i], WIDTH, HEIGHT, intrinsics.fx);
+    }
+    executor = new RowBandExecutor(Runtime.getRuntime().availableProcessors(), "BenchBand");
+    sequential = new TsdfVolume(TsdfVolume.DEFAULT_VOXEL_SIZE, null);
+    parallel = new TsdfVolume(TsdfVolume.DEFAULT_VOXEL_SIZE, executor);
+    for (int i = 0; i < FRAMES; i++) {
+      parallel.integrate(frames[i], null, WIDTH, HEIGHT, intrinsics, poses[i]);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public int integrate() {
+    int i = next++ % FRAMES;
+    return sequential.integrate(frames[i], null, WIDTH, HEIGHT, intrinsics, poses[i]);
+  }
+
+  @Benchmark
+  public int integrateParallel() {
+    int i = next++ % FRAMES;
+    return parallel.integrate(frames[i], null, WIDTH, HEIGHT, intrinsics, poses[i]);
+  }
+
+  @Benchmark
+  public float raycast() {
+    return parallel.raycast(rayOrigin, rayDirection, 5, null);
+  }
+}
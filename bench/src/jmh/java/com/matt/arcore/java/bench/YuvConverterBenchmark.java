@@ -0,0 +1,92 @@
+package com.matt.arcore.java.bench;
+
+import com.matt.arcore.java.common.image.PackedYuvConverter;
+import com.matt.arcore.java.common.image.ParallelYuvConverter;
+import com.matt.arcore.java.common.image.YuvConverter;
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import java.nio.ByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** YUV to ARGB_8888 conversion, as used by ImageUtils for CPU camera images. */
+@State(Scope.Thread)
+public class YuvConverterBenchmark {
+
+  @Param({BenchFrames.SIZES_240x180, BenchFrames.SIZES_640x480, BenchFrames.SIZES_1920x1080})
+  public String size;
+
+  private int width;
+  private int height;
+
+  // Planar YUV_420_888 with interleaved chroma, the common camera2 layout.
+  private byte[] yPlane;
+  private byte[] uPlane;
+  private byte[] vPlane;
+  private int uvRowStride;
+  private int uvPixelStride;
+
+  // The same planes in direct buffers, as handed out by Image.Plane.getBuffer().
+  private ByteBuffer yDirect;
+  private ByteBuffer uDirect;
+  private ByteBuffer vDirect;
+  private RowBandExecutor executor;
+  private ParallelYuvConverter parallelConverter;
+
+  // NV21 / YUV420SP.
+  private byte[] yuv420sp;
+
+  private int[] argb;
+
+  @Setup
+  public void setUp() {
+    width = BenchFrames.width(size);
+    height = BenchFrames.height(size);
+    uvPixelStride = 2;
+    uvRowStride = width;
+    yPlane = BenchFrames.randomBytes(width * height);
+    uPlane = BenchFrames.randomBytes(uvRowStride * ((height + 1) / 2));
+    vPlane = BenchFrames.randomBytes(uvRowStride * ((height + 1) / 2));
+    yuv420sp = BenchFrames.randomBytes(width * height + uvRowStride * ((height + 1) / 2));
+    argb = new int[width * height];
+    yDirect = ByteBuffer.allocateDirect(yPlane.length).put(yPlane);
+    uDirect = ByteBuffer.allocateDirect(uPlane.length).put(uPlane);
+    vDirect = ByteBuffer.allocateDirect(vPlane.length).put(vPlane);
+    executor = new RowBandExecutor(Runtime.getRuntime().availableProcessors(), "bench");
+    parallelConverter = new ParallelYuvConverter(executor);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public int[] convertYUV420ToARGB8888() {
+    YuvConverter.convertYUV420ToARGB8888(
+        yPlane, uPlane, vPlane, width, height, width, uvRowStride, uvPixelStride, argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] convertYUV420ToARGB8888Parallel() {
+    parallelConverter.convertYUV420ToARGB8888(
+        yDirect, uDirect, vDirect, width, height, width, uvRowStride, uvPixelStride, argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] convertYUV420SPToARGB8888() {
+    YuvConverter.convertYUV420SPToARGB8888(yuv420sp, width, height, argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] convertYUV420SPToARGB8888Packed() {
+    PackedYuvConverter.convertYUV420SPToARGB8888(yuv420sp, width, height, argb);
+    return argb;
+  }
+}
@@ -0,0 +1,170 @@
+package com.matt.arcore.java.common.depth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import org.junit.Test;
+
+public class Depth16DecoderTest {
+
+  // screenquad.frag, in float arithmetic as on the GPU.
+  private static final float K_DEPTH_OFFSETS = 8192.0f;
+  private static final float SHADER_MAX_RANGE_MM = 11000.0f;
+
+  private static float shaderConfidence(float raw) {
+    return (float) Math.floor(raw / K_DEPTH_OFFSETS);
+  }
+
+  private static float shaderDepth(float raw) {
+    float depth = raw - shaderConfidence(raw) * K_DEPTH_OFFSETS;
+    // unpacked_depth * when_lt(unpacked_depth, MAX_RANGE_MM)
+    return depth < SHADER_MAX_RANGE_MM ? depth : 0.0f;
+  }
+
+  private static float shaderDepthPercentage(float confidence) {
+    return confidence == 0.0f ? 1.0f : (confidence - 1.0f) / 7.0f;
+  }
+
+  @Test
+  public void everyCodeMatchesShader() {
+    short[] depthMm = new short[65536];
+    byte[] confidence = new byte[65536];
+    float[] metres = new float[65536];
+    ShortBuffer src = ShortBuffer.allocate(65536);
+    for (int raw = 0; raw < 65536; raw++) {
+      src.put(raw, (short) raw);
+    }
+    Depth16Decoder.decode(src, 256, 256, 256, depthMm, confidence, metres);
+
+    for (int raw = 0; raw < 65536; raw++) {
+      // The shader reads the sample as an unsigned integer.
+      float shaderDepth = shaderDepth(raw);
+      float shaderConfidence = shaderConfidence(raw);
+      String code = "code 0x" + Integer.toHexString(raw);
+      assertEquals(code, shaderDepth, depthMm[raw], 0);
+      assertEquals(code, shaderConfidence, confidence[raw], 0);
+      assertEquals(code, shaderDepth / 1000.0f, metres[raw], 1e-6f);
+      assertEquals(code, shaderDepth, Depth16Decoder.depthMm((short) raw), 0);
+      assertEquals(code, shaderConfidence, Depth16Decoder.confidence((short) raw), 0);
+      assertEquals(code, shaderDepthPercentage(shaderConfidence),
+          Depth16Decoder.confidenceFraction(confidence[raw]), 1e-6f);
+    }
+  }
+
+  @Test
+  public void goldenValues() {
+    assertEquals(0, Depth16Decoder.depthMm((short) 0));
+    assertEquals(1, Depth16Decoder.depthMm((short) 1));
+    // Largest 13 bit depth, below the range clamp.
+    assertEquals(8191, Depth16Decoder.depthMm((short) 0x1FFF));
+    assertEquals(7, Depth16Decoder.confidence((short) 0xE000));
+    assertEquals(0, Depth16Decoder.depthMm((short) 0xE000));
+    assertEquals(1500, Depth16Decoder.depthMm((short) (3 << 13 | 1500)));
+    assertEquals(3, Depth16Decoder.confidence((short) (3 << 13 | 1500)));
+    assertEquals(1.0f, Depth16Decoder.confidenceFraction(0), 0);
+    assertEquals(0.0f, Depth16Decoder.confidenceFraction(1), 0);
+    assertEquals(6.0f / 7, Depth16Decoder.confidenceFraction(7), 1e-6f);
+  }
+
+  @Test
+  public void confidenceCodeInvertsFraction() {
+    for (int code = 0; code <= Depth16Decoder.CONFIDENCE_MASK; code++) {
+      assertEquals(code, Depth16Decoder.confidenceCode(Depth16Decoder.confidenceFraction(code)));
+    }
+  }
+
+  @Test
+  public void paddedShortRowsSkipPadding() {
+    int width = 5;
+    int height = 3;
+    int rowStride = 8;
+    ShortBuffer src = ShortBuffer.allocate(rowStride * height);
+    short[] expected = new short[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < rowStride; x++) {
+        // Padding holds garbage that must not leak into the output.
+        short raw = x < width ? (short) (2 << 13 | (y * 100 + x)) : (short) 0x1234;
+        src.put(y * rowStride + x, raw);
+        if (x < width) {
+          expected[y * width + x] = (short) (y * 100 + x);
+        }
+      }
+    }
+    src.position(7);
+    short[] depthMm = new short[width * height];
+    byte[] confidence = new byte[width * height];
+    Depth16Decoder.decode(src, width, height, rowStride, depthMm, confidence, null);
+
+    assertArrayEquals(expected, depthMm);
+    for (byte c : confidence) {
+      assertEquals(2, c);
+    }
+    assertEquals("position restored", 7, src.position());
+  }
+
+  @Test
+  public void lastRowNeedsNoPadding() {
+    // Image planes often end right after the last pixel of the last row.
+    int width = 3;
+    int height = 2;
+    int rowStride = 4;
+    ShortBuffer src = ShortBuffer.wrap(new short[] {1, 2, 3, 99, 4, 5, 6});
+    short[] depthMm = new short[width * height];
+    Depth16Decoder.decode(src, width, height, rowStride, depthMm, null, null);
+    assertArrayEquals(new short[] {1, 2, 3, 4, 5, 6}, depthMm);
+  }
+
+  @Test
+  public void paddedByteRowsInNativeOrder() {
+    int width = 4;
+    int height = 2;
+    int rowStrideBytes = 12;
+    ByteBuffer src = ByteBuffer.allocateDirect(rowStrideBytes * height).order(ByteOrder.nativeOrder());
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        src.putShort(y * rowStrideBytes + x * 2, (short) (1 << 13 | (1000 + y * 10 + x)));
+      }
+    }
+    short[] depthMm = new short[width * height];
+    float[] metres = new float[width * height];
+    Depth16Decoder.decode(src, width, height, rowStrideBytes, depthMm, null, metres);
+    assertArrayEquals(new short[] {1000, 1001, 1002, 1003, 1010, 1011, 1012, 1013}, depthMm);
+    assertEquals(1.013f, metres[7], 1e-6f);
+  }
+
+  @Test
+  public void decodesFrame() {
+    DepthFrame frame = new DepthFrame(2, 2);
+    frame.samples.put(0, (short) (7 << 13 | 10)).put(1, (short) 20).put(2, (short) 0).put(3, (short) 8191);
+    short[] depthMm = new short[4];
+    byte[] confidence = new byte[4];
+    Depth16Decoder.decode(frame, depthMm, confidence, null);
+    assertArrayEquals(new short[] {10, 20, 0, 8191}, depthMm);
+    assertArrayEquals(new byte[] {7, 0, 0, 0}, confidence);
+  }
+
+  @Test
+  public void rejectsBadStrides() {
+    short[] depthMm = new short[16];
+    expectIllegalArgument(() ->
+        Depth16Decoder.decode(ShortBuffer.allocate(16), 4, 4, 3, depthMm, null, null));
+    expectIllegalArgument(() ->
+        Depth16Decoder.decode(ShortBuffer.allocate(15), 4, 4, 4, depthMm, null, null));
+    expectIllegalArgument(() ->
+        Depth16Decoder.decode(ByteBuffer.allocate(64), 4, 4, 9, depthMm, null, null));
+    expectIllegalArgument(() ->
+        Depth16Decoder.decode(ShortBuffer.allocate(16), 4, 4, 4, new short[15], null, null));
+  }
+
+  private static void expectIllegalArgument(Runnable decode) {
+    try {
+      decode.run();
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
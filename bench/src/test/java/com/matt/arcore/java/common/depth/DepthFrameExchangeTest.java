@@ -0,0 +1,140 @@
+package com.matt.arcore.java.common.depth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class DepthFrameExchangeTest {
+
+  private static final int WIDTH = 24;
+  private static final int HEIGHT = 18;
+
+  @Test
+  public void acquireBeforePublishReturnsNull() {
+    DepthFrameExchange exchange = new DepthFrameExchange(WIDTH, HEIGHT);
+    assertNull(exchange.acquireLatest());
+    assertEquals(0, exchange.getConsumedTwiceCount());
+  }
+
+  @Test
+  public void acquireReturnsPublishedFrame() {
+    DepthFrameExchange exchange = new DepthFrameExchange(WIDTH, HEIGHT);
+    fill(exchange.getWriteFrame(), (short) 1234);
+    exchange.publish(5000);
+
+    DepthFrame frame = exchange.acquireLatest();
+    assertNotNull(frame);
+    assertEquals(1, frame.getSequence());
+    assertEquals(5000, frame.getTimestamp());
+    assertTrue(frame.getPublishNanos() > 0);
+    assertEquals(1234, frame.samples.get(WIDTH * HEIGHT - 1));
+    assertEquals(1, exchange.getConsumedCount());
+  }
+
+  @Test
+  public void acquireWithoutNewFrameCountsConsumedTwice() {
+    DepthFrameExchange exchange = new DepthFrameExchange(WIDTH, HEIGHT);
+    exchange.publish(1);
+    DepthFrame first = exchange.acquireLatest();
+    DepthFrame second = exchange.acquireLatest();
+    assertSame(first, second);
+    assertEquals(1, second.getSequence());
+    assertEquals(1, exchange.getConsumedCount());
+    assertEquals(1, exchange.getConsumedTwiceCount());
+  }
+
+  @Test
+  public void publishOverUnacquiredFrameCountsDrop() {
+    DepthFrameExchange exchange = new DepthFrameExchange(WIDTH, HEIGHT);
+    fill(exchange.getWriteFrame(), (short) 1);
+    exchange.publish(10);
+    fill(exchange.getWriteFrame(), (short) 2);
+    exchange.publish(20);
+
+    DepthFrame frame = exchange.acquireLatest();
+    assertEquals(2, frame.getSequence());
+    assertEquals(20, frame.getTimestamp());
+    assertEquals(2, frame.samples.get(0));
+    assertEquals(2, exchange.getPublishedCount());
+    assertEquals(1, exchange.getDroppedCount());
+  }
+
+  @Test
+  public void writeFrameNeverAliasesAcquiredFrame() {
+    DepthFrameExchange exchange = new DepthFrameExchange(WIDTH, HEIGHT);
+    for (int i = 1; i <= 10; i++) {
+      exchange.publish(i);
+      DepthFrame acquired = exchange.acquireLatest();
+      assertTrue(acquired != exchange.getWriteFrame());
+      exchange.publish(i);
+      assertTrue(acquired != exchange.getWriteFrame());
+    }
+  }
+
+  /**
+   * A producer publishes frames whose samples and timestamp all encode their number while a
+   * consumer acquires concurrently. Every acquired frame must be whole, sequence numbers must never
+   * go backwards, and the last publish must not be lost.
+   */
+  @Test(timeout = 60_000)
+  public void concurrentPublishAndAcquireNeverTearsFrames() throws Exception {
+    final int frames = 200_000;
+    DepthFrameExchange exchange = new DepthFrameExchange(WIDTH, HEIGHT);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    Thread producer = new Thread(() -> {
+      for (int n = 1; n <= frames; n++) {
+        fill(exchange.getWriteFrame(), (short) n);
+        exchange.publish(n);
+      }
+    }, "producer");
+    Thread consumer = new Thread(() -> {
+      try {
+        long lastSequence = 0;
+        while (lastSequence < frames) {
+          DepthFrame frame = exchange.acquireLatest();
+          if (frame == null) {
+            continue;
+          }
+          long sequence = frame.getSequence();
+          assertTrue("sequence went back from " + lastSequence + " to " + sequence,
+              sequence >= lastSequence);
+          // The producer publishes frame n as sequence n with timestamp n.
+          assertEquals(sequence, frame.getTimestamp());
+          short expected = (short) sequence;
+          for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            if (frame.samples.get(i) != expected) {
+              fail("torn frame " + sequence + " at sample " + i + ": " + frame.samples.get(i));
+            }
+          }
+          lastSequence = sequence;
+        }
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    }, "consumer");
+    consumer.start();
+    producer.start();
+    producer.join();
+    consumer.join();
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+
+    assertEquals(frames, exchange.getPublishedCount());
+    // Each published frame was either acquired or overwritten while still unseen.
+    assertEquals(frames, exchange.getConsumedCount() + exchange.getDroppedCount());
+  }
+
+  private static void fill(DepthFrame frame, short value) {
+    for (int i = 0; i < frame.width * frame.height; i++) {
+      frame.samples.put(i, value);
+    }
+  }
+}
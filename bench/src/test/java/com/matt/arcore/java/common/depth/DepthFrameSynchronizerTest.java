@@ -0,0 +1,150 @@
+package com.matt.arcore.java.common.depth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class DepthFrameSynchronizerTest {
+
+  private static final int WIDTH = 8;
+  private static final int HEIGHT = 4;
+  private static final long MS = 1_000_000L;
+
+  private final DepthFrame frame = new DepthFrame(WIDTH, HEIGHT);
+  private final DepthFrame out = new DepthFrame(WIDTH, HEIGHT);
+
+  @Test
+  public void picksClosestFrameAndTiesGoToOlder() {
+    DepthFrameSynchronizer synchronizer = new DepthFrameSynchronizer(WIDTH, HEIGHT, 4);
+    assertFalse(synchronizer.findClosest(0, out));
+    assertEquals(0, synchronizer.findClosestTimestamp(0));
+    add(synchronizer, 1, 100 * MS);
+    add(synchronizer, 2, 130 * MS);
+    add(synchronizer, 3, 170 * MS);
+
+    assertFound(synchronizer, 50 * MS, 1);
+    assertFound(synchronizer, 114 * MS, 1);
+    // Half way between 100 and 130 ms.
+    assertFound(synchronizer, 115 * MS, 1);
+    assertFound(synchronizer, 116 * MS, 2);
+    assertFound(synchronizer, 130 * MS, 2);
+    assertFound(synchronizer, 151 * MS, 3);
+    assertFound(synchronizer, 1000 * MS, 3);
+    assertEquals(830 * MS, synchronizer.getLastSkewNanos());
+    assertEquals(170 * MS, synchronizer.findClosestTimestamp(1000 * MS));
+  }
+
+  @Test
+  public void rejectsOutOfOrderFrames() {
+    DepthFrameSynchronizer synchronizer = new DepthFrameSynchronizer(WIDTH, HEIGHT, 4);
+    assertTrue(add(synchronizer, 1, 100 * MS));
+    assertTrue(add(synchronizer, 2, 200 * MS));
+    assertFalse(add(synchronizer, 3, 150 * MS));
+    // Equal timestamps are not newer either.
+    assertFalse(add(synchronizer, 4, 200 * MS));
+    assertEquals(2, synchronizer.size());
+    assertEquals(2, synchronizer.getAddedCount());
+    assertEquals(2, synchronizer.getOutOfOrderCount());
+    assertFound(synchronizer, 150 * MS, 1);
+    assertFound(synchronizer, 151 * MS, 2);
+
+    // After a clear any timestamp is accepted again.
+    synchronizer.clear();
+    assertEquals(0, synchronizer.size());
+    assertTrue(add(synchronizer, 5, 50 * MS));
+    assertFound(synchronizer, 200 * MS, 5);
+  }
+
+  @Test
+  public void fullHistoryEvictsOldest() {
+    DepthFrameSynchronizer synchronizer = new DepthFrameSynchronizer(WIDTH, HEIGHT, 3);
+    for (int i = 1; i <= 7; i++) {
+      assertTrue(add(synchronizer, i, i * 10 * MS));
+      assertEquals(Math.min(i, 3), synchronizer.size());
+    }
+    // Frames 5 to 7 remain, the oldest is the closest to anything before them.
+    assertFound(synchronizer, 0, 5);
+    assertFound(synchronizer, 44 * MS, 5);
+    assertFound(synchronizer, 61 * MS, 6);
+    assertFound(synchronizer, 100 * MS, 7);
+    assertEquals(7, synchronizer.getAddedCount());
+  }
+
+  @Test
+  public void maxSkewRejectsDistantMatches() {
+    DepthFrameSynchronizer synchronizer = new DepthFrameSynchronizer(WIDTH, HEIGHT, 4);
+    synchronizer.setMaxSkewNanos(10 * MS);
+    add(synchronizer, 1, 100 * MS);
+    assertFound(synchronizer, 110 * MS, 1);
+    assertEquals(10 * MS, synchronizer.getLastSkewNanos());
+
+    out.sequence = 42;
+    assertFalse(synchronizer.findClosest(111 * MS, out));
+    assertFalse(synchronizer.findClosest(89 * MS, out));
+    assertEquals("untouched on a miss", 42, out.getSequence());
+    assertEquals(10 * MS, synchronizer.getLastSkewNanos());
+    // The timestamp lookup ignores the skew limit.
+    assertEquals(100 * MS, synchronizer.findClosestTimestamp(500 * MS));
+  }
+
+  @Test
+  public void matchesLinearScanOnRandomTimestamps() {
+    Random random = new Random(6);
+    int capacity = 5;
+    DepthFrameSynchronizer synchronizer = new DepthFrameSynchronizer(WIDTH, HEIGHT, capacity);
+    TreeMap<Long, Integer> held = new TreeMap<>();
+    long timestamp = 0;
+    for (int i = 1; i <= 500; i++) {
+      timestamp += 1 + random.nextInt(40 * (int) MS);
+      add(synchronizer, i, timestamp);
+      held.put(timestamp, i);
+      if (held.size() > capacity) {
+        held.pollFirstEntry();
+      }
+      for (int q = 0; q < 5; q++) {
+        long target = timestamp - random.nextInt(300 * (int) MS);
+        Long floor = held.floorKey(target);
+        Long ceiling = held.ceilingKey(target);
+        long expected;
+        if (floor == null) {
+          expected = ceiling;
+        } else if (ceiling == null) {
+          expected = floor;
+        } else {
+          expected = target - floor <= ceiling - target ? floor : ceiling;
+        }
+        assertTrue(synchronizer.findClosest(target, out));
+        assertEquals(expected, out.getTimestamp());
+        assertEquals((int) held.get(expected), out.getSequence());
+        assertEquals((short) held.get(expected).intValue(), out.samples.get(WIDTH * HEIGHT - 1));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNegativeSkew() {
+    new DepthFrameSynchronizer(WIDTH, HEIGHT, 2).setMaxSkewNanos(-1);
+  }
+
+  // Adds a frame whose samples all hold its sequence number.
+  private boolean add(DepthFrameSynchronizer synchronizer, long sequence, long timestamp) {
+    for (int i = 0; i < WIDTH * HEIGHT; i++) {
+      frame.samples.put(i, (short) sequence);
+    }
+    frame.sequence = sequence;
+    frame.timestamp = timestamp;
+    return synchronizer.add(frame);
+  }
+
+  private void assertFound(DepthFrameSynchronizer synchronizer, long timestamp, long sequence) {
+    assertTrue(synchronizer.findClosest(timestamp, out));
+    assertEquals("closest to " + timestamp, sequence, out.getSequence());
+    assertEquals(sequence, out.samples.get(0));
+    assertEquals(out.getTimestamp(), synchronizer.findClosestTimestamp(timestamp));
+    assertEquals(Math.abs(out.getTimestamp() - timestamp), synchronizer.getLastSkewNanos());
+  }
+}
@@ -0,0 +1,158 @@
+package com.matt.arcore.java.common.depth;
+
+import static org.junit.Assert.assertEquals;
+
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DepthPointCloudBuilderTest {
+
+  private static final int WIDTH = 240;
+  private static final int HEIGHT = 180;
+  private static final CameraIntrinsics INTRINSICS =
+      new CameraIntrinsics(210.5f, 211.0f, 119.2f, 90.7f, WIDTH, HEIGHT);
+
+  private static RowBandExecutor executor;
+
+  private final short[] depthMm = new short[WIDTH * HEIGHT];
+  private final byte[] confidence = new byte[WIDTH * HEIGHT];
+  // Rotation of 0.3 rad about Y and a translation, column-major camera-to-world.
+  private final float[] pose = {
+      (float) Math.cos(0.3), 0, (float) -Math.sin(0.3), 0,
+      0, 1, 0, 0,
+      (float) Math.sin(0.3), 0, (float) Math.cos(0.3), 0,
+      0.5f, -1.25f, 2.0f, 1};
+
+  @BeforeClass
+  public static void startExecutor() {
+    executor = new RowBandExecutor(4, "test");
+  }
+
+  @AfterClass
+  public static void stopExecutor() {
+    executor.shutdown();
+  }
+
+  public DepthPointCloudBuilderTest() {
+    Random random = new Random(42);
+    for (int i = 0; i < depthMm.length; i++) {
+      // A fifth holes, the rest spread over the sensor range including values past the limits.
+      depthMm[i] = random.nextInt(5) == 0 ? 0 : (short) (1 + random.nextInt(8190));
+      confidence[i] = (byte) random.nextInt(Depth16Decoder.CONFIDENCE_MASK + 1);
+    }
+  }
+
+  @Test
+  public void matchesNaiveReference() {
+    for (int stride : new int[] {1, 2, 3, 7}) {
+      for (float minConfidence : new float[] {0, 0.5f, 1}) {
+        for (float[] pose : new float[][] {null, this.pose}) {
+          DepthPointCloudBuilder builder = new DepthPointCloudBuilder(null);
+          builder.setStride(stride);
+          builder.setMinConfidence(minConfidence);
+          builder.setRange(0.5f, 4.0f);
+          FloatBuffer out = DepthPointCloudBuilder.allocateOutput(WIDTH, HEIGHT);
+          int points = builder.build(depthMm, confidence, WIDTH, HEIGHT, INTRINSICS, pose, out);
+
+          List<float[]> expected = reference(stride, minConfidence, 500, 4000, pose);
+          String label = "stride " + stride + " confidence " + minConfidence + " pose " + (pose != null);
+          assertEquals(label, expected.size(), points);
+          assertEquals(label, points * DepthPointCloudBuilder.FLOATS_PER_POINT, out.limit());
+          for (int p = 0; p < points; p++) {
+            float[] point = expected.get(p);
+            for (int k = 0; k < DepthPointCloudBuilder.FLOATS_PER_POINT; k++) {
+              assertEquals(label + " point " + p, point[k],
+                  out.get(p * DepthPointCloudBuilder.FLOATS_PER_POINT + k), 1e-4f);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void parallelOutputEqualsSequential() {
+    for (int stride : new int[] {1, 3}) {
+      DepthPointCloudBuilder sequential = new DepthPointCloudBuilder(null);
+      DepthPointCloudBuilder parallel = new DepthPointCloudBuilder(executor);
+      sequential.setStride(stride);
+      parallel.setStride(stride);
+      sequential.setMinConfidence(0.3f);
+      parallel.setMinConfidence(0.3f);
+      FloatBuffer expected = DepthPointCloudBuilder.allocateOutput(WIDTH, HEIGHT);
+      FloatBuffer actual = DepthPointCloudBuilder.allocateOutput(WIDTH, HEIGHT);
+      int expectedPoints = sequential.build(depthMm, confidence, WIDTH, HEIGHT, INTRINSICS, pose, expected);
+      int actualPoints = parallel.build(depthMm, confidence, WIDTH, HEIGHT, INTRINSICS, pose, actual);
+      assertEquals(expectedPoints, actualPoints);
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void nullConfidenceKeepsEveryValidSample() {
+    DepthPointCloudBuilder builder = new DepthPointCloudBuilder(null);
+    builder.setMinConfidence(1);
+    FloatBuffer out = DepthPointCloudBuilder.allocateOutput(WIDTH, HEIGHT);
+    int points = builder.build(depthMm, null, WIDTH, HEIGHT, INTRINSICS, null, out);
+    int valid = 0;
+    for (short depth : depthMm) {
+      valid += depth > 0 ? 1 : 0;
+    }
+    assertEquals(valid, points);
+    assertEquals(1.0f, out.get(3), 0);
+  }
+
+  @Test
+  public void scalesIntrinsicsToFrame() {
+    // Intrinsics of a 480x360 image describe the same rays as INTRINSICS at 240x180.
+    CameraIntrinsics large = new CameraIntrinsics(
+        2 * INTRINSICS.fx, 2 * INTRINSICS.fy, 2 * INTRINSICS.cx, 2 * INTRINSICS.cy, 480, 360);
+    DepthPointCloudBuilder builder = new DepthPointCloudBuilder(null);
+    FloatBuffer expected = DepthPointCloudBuilder.allocateOutput(WIDTH, HEIGHT);
+    FloatBuffer actual = DepthPointCloudBuilder.allocateOutput(WIDTH, HEIGHT);
+    builder.build(depthMm, confidence, WIDTH, HEIGHT, INTRINSICS, null, expected);
+    builder.build(depthMm, confidence, WIDTH, HEIGHT, large, null, actual);
+    assertEquals(expected, actual);
+  }
+
+  // One pixel at a time, straight from the pinhole model.
+  private List<float[]> reference(
+      int stride, float minConfidence, int minDepthMm, int maxDepthMm, float[] pose) {
+    List<float[]> points = new ArrayList<>();
+    for (int py = 0; py < HEIGHT; py += stride) {
+      for (int px = 0; px < WIDTH; px += stride) {
+        int i = py * WIDTH + px;
+        int depth = depthMm[i];
+        float fraction = Depth16Decoder.confidenceFraction(confidence[i]);
+        if (depth == 0 || depth < minDepthMm || depth > maxDepthMm || fraction < minConfidence) {
+          continue;
+        }
+        double z = depth / 1000.0;
+        double[] camera = {
+            (px + 0.5 - INTRINSICS.cx) / INTRINSICS.fx * z,
+            -(py + 0.5 - INTRINSICS.cy) / INTRINSICS.fy * z,
+            -z};
+        float[] point = new float[DepthPointCloudBuilder.FLOATS_PER_POINT];
+        for (int row = 0; row < 3; row++) {
+          double value = camera[row];
+          if (pose != null) {
+            value = pose[12 + row];
+            for (int col = 0; col < 3; col++) {
+              value += pose[col * 4 + row] * camera[col];
+            }
+          }
+          point[row] = (float) value;
+        }
+        point[3] = fraction;
+        points.add(point);
+      }
+    }
+    return points;
+  }
+}
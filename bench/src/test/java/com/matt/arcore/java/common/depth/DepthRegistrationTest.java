@@ -0,0 +1,367 @@
+package com.matt.arcore.java.common.depth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DepthRegistrationTest {
+
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+  private static final int PIXELS = WIDTH * HEIGHT;
+  private static final CameraIntrinsics DEPTH_INTRINSICS =
+      new CameraIntrinsics(100, 100, 32, 24, WIDTH, HEIGHT);
+  private static final float[] DISTORTION = {-0.05f, 0.01f, 0, 0.001f, -0.002f};
+
+  private static RowBandExecutor executor;
+
+  @BeforeClass
+  public static void startExecutor() {
+    executor = new RowBandExecutor(4, "test");
+  }
+
+  @AfterClass
+  public static void stopExecutor() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void identityCalibrationPassesThrough() {
+    short[] raw = randomDepth(new Random(1), 0.1f);
+    short[] out = new short[PIXELS];
+    for (float[] distortion : new float[][] {null, DISTORTION}) {
+      LensCalibration calibration = new LensCalibration(DEPTH_INTRINSICS, 0, distortion, null, null);
+      DepthRegistration registration = new DepthRegistration(null);
+      registration.setCalibration(calibration, calibration);
+      registration.setSplatSize(1);
+      registration.register(raw, WIDTH, HEIGHT, out);
+      // Depth and confidence unchanged, holes stay holes.
+      assertArrayEquals(raw, out);
+    }
+  }
+
+  @Test
+  public void planeLandsWhereExtrinsicsPutIt() {
+    // A plane z = 1.5 + 0.3 x in depth camera coordinates, seen by a color camera 5 cm to the side
+    // and turned 5 degrees about y, with its own intrinsics, resolution and distortion.
+    float[] normal = {-0.3f, 0, 1};
+    float offset = 1.5f;
+    double angle = Math.toRadians(5);
+    float[] rotation = {0, (float) Math.sin(angle / 2), 0, (float) Math.cos(angle / 2)};
+    float[] translation = {0.05f, 0.01f, 0};
+    LensCalibration depth = new LensCalibration(DEPTH_INTRINSICS, 0, null, null, null);
+    LensCalibration color = new LensCalibration(
+        new CameraIntrinsics(1000, 1020, 322, 236, 640, 480), 0, DISTORTION, rotation, translation);
+
+    short[] raw = new short[PIXELS];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        float xn = (x + 0.5f - DEPTH_INTRINSICS.cx) / DEPTH_INTRINSICS.fx;
+        float z = offset / (1 - 0.3f * xn);
+        raw[y * WIDTH + x] = (short) Math.round(z * 1000);
+      }
+    }
+    DepthRegistration registration = new DepthRegistration(executor);
+    registration.setCalibration(depth, color);
+    short[] out = new short[PIXELS];
+    registration.register(raw, WIDTH, HEIGHT, out);
+
+    CameraIntrinsics k = registration.getOutputIntrinsics(WIDTH, HEIGHT);
+    assertEquals(100, k.fx, 1e-4f);
+    assertEquals(32.2f, k.cx, 1e-4f);
+    // Color to depth coordinates: p_depth = R^T p_color + t, R a rotation about y.
+    float c = (float) Math.cos(angle);
+    float s = (float) Math.sin(angle);
+    float[] ray = new float[2];
+    int covered = 0;
+    for (int v = 0; v < HEIGHT; v++) {
+      for (int u = 0; u < WIDTH; u++) {
+        color.undistort((u + 0.5f - k.cx) / k.fx, (v + 0.5f - k.cy) / k.fy, ray);
+        float dx = c * ray[0] - s;
+        float dy = ray[1];
+        float dz = s * ray[0] + c;
+        float distance = (offset - normal[0] * translation[0] - normal[1] * translation[1])
+            / (normal[0] * dx + normal[1] * dy + normal[2] * dz);
+        float px = distance * dx + translation[0];
+        float py = distance * dy + translation[1];
+        float pz = distance * dz + translation[2];
+        float depthX = DEPTH_INTRINSICS.fx * px / pz + DEPTH_INTRINSICS.cx;
+        float depthY = DEPTH_INTRINSICS.fy * py / pz + DEPTH_INTRINSICS.cy;
+        int mm = out[v * WIDTH + u] & Depth16Decoder.DEPTH_MASK;
+        boolean inside = depthX >= 2 && depthY >= 2 && depthX < WIDTH - 2 && depthY < HEIGHT - 2;
+        if (inside) {
+          assertTrue("hole at " + u + ", " + v, mm != 0);
+          covered++;
+        }
+        if (mm != 0) {
+          // The color camera's range, within the 2 pixel footprint of a 5 mm per pixel slope.
+          assertEquals("pixel " + u + ", " + v, distance * 1000, mm, 12);
+        }
+      }
+    }
+    assertTrue("covered " + covered, covered > PIXELS / 2);
+  }
+
+  @Test
+  public void parallelMatchesSequential() {
+    Random random = new Random(2);
+    DepthRegistration parallel = new DepthRegistration(executor);
+    DepthRegistration sequential = new DepthRegistration(null);
+    short[] expected = new short[PIXELS];
+    short[] actual = new short[PIXELS];
+    for (int trial = 0; trial < 20; trial++) {
+      LensCalibration depth = randomCalibration(random, DEPTH_INTRINSICS);
+      LensCalibration color = randomCalibration(random,
+          new CameraIntrinsics(480 + random.nextInt(40), 480 + random.nextInt(40), 320, 240, 640,
+              480));
+      parallel.setCalibration(depth, color);
+      sequential.setCalibration(depth, color);
+      short[] raw = randomDepth(random, 0.2f);
+      sequential.register(raw, WIDTH, HEIGHT, expected);
+      parallel.register(raw, WIDTH, HEIGHT, actual);
+      assertArrayEquals("trial " + trial, expected, actual);
+
+      // The frame path registers in place.
+      DepthFrame frame = new DepthFrame(WIDTH, HEIGHT);
+      frame.samples.put(raw);
+      parallel.filterFrame(frame);
+      for (int i = 0; i < PIXELS; i++) {
+        assertEquals(expected[i], frame.samples.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void lookupTableFollowsCalibrationAndSize() {
+    Random random = new Random(3);
+    LensCalibration depth = new LensCalibration(DEPTH_INTRINSICS, 0, DISTORTION, null, null);
+    LensCalibration near = new LensCalibration(DEPTH_INTRINSICS, 0, null, null,
+        new float[] {0.02f, 0, 0});
+    LensCalibration far = new LensCalibration(DEPTH_INTRINSICS, 0, null, null,
+        new float[] {0.08f, 0, 0});
+    short[] raw = randomDepth(random, 0);
+    DepthRegistration registration = new DepthRegistration(null);
+    registration.setCalibration(depth, near);
+    short[] first = new short[PIXELS];
+    registration.register(raw, WIDTH, HEIGHT, first);
+
+    registration.setCalibration(depth, far);
+    short[] second = new short[PIXELS];
+    registration.register(raw, WIDTH, HEIGHT, second);
+    assertFalse(Arrays.equals(first, second));
+    assertArrayEquals(fresh(depth, far, raw, WIDTH, HEIGHT), second);
+
+    // An equal but distinct calibration keeps the table, a new frame size rebuilds it.
+    registration.setCalibration(
+        new LensCalibration(DEPTH_INTRINSICS, 0, DISTORTION, null, null), far);
+    registration.register(raw, WIDTH, HEIGHT, second);
+    assertArrayEquals(fresh(depth, far, raw, WIDTH, HEIGHT), second);
+    short[] half = Arrays.copyOf(raw, PIXELS / 4);
+    short[] halfOut = new short[PIXELS / 4];
+    registration.register(half, WIDTH / 2, HEIGHT / 2, halfOut);
+    assertArrayEquals(fresh(depth, far, half, WIDTH / 2, HEIGHT / 2), halfOut);
+  }
+
+  @Test
+  public void inlinedDistortionMatchesLensCalibration() {
+    // Strong color distortion, so any difference from distort() moves samples by whole pixels.
+    float[] distortion = {-0.2f, 0.05f, 0.01f, 0.01f, -0.02f};
+    LensCalibration depth = new LensCalibration(DEPTH_INTRINSICS, 0, null, null, null);
+    LensCalibration color = new LensCalibration(DEPTH_INTRINSICS, 1.5f, distortion, null, null);
+    DepthRegistration registration = new DepthRegistration(null);
+    registration.setCalibration(depth, color);
+    registration.setSplatSize(1);
+    short[] raw = new short[PIXELS];
+    short[] out = new short[PIXELS];
+    float[] ray = new float[2];
+    float[] distorted = new float[2];
+    int landed = 0;
+    for (int i = 0; i < PIXELS; i += 7) {
+      raw[i] = 1000;
+      registration.register(raw, WIDTH, HEIGHT, out);
+      raw[i] = 0;
+
+      CameraIntrinsics k = DEPTH_INTRINSICS;
+      depth.undistort((i % WIDTH + 0.5f - k.cx) / k.fx, (i / WIDTH + 0.5f - k.cy) / k.fy, ray);
+      color.distort(ray[0], ray[1], distorted);
+      float u = k.fx * distorted[0] + color.skew * distorted[1] + k.cx;
+      float v = k.fy * distorted[1] + k.cy;
+      int expected = u < 0 || v < 0 || u >= WIDTH || v >= HEIGHT ? -1 : (int) v * WIDTH + (int) u;
+      int actual = -1;
+      for (int o = 0; o < PIXELS; o++) {
+        if (out[o] != 0) {
+          assertEquals(-1, actual);
+          assertEquals(1000, out[o]);
+          actual = o;
+        }
+      }
+      assertEquals("pixel " + i, expected, actual);
+      if (actual >= 0) {
+        landed++;
+      }
+    }
+    assertTrue("landed " + landed, landed > PIXELS / 7 / 2);
+  }
+
+  @Test
+  public void splatKeepsNearestSurface() {
+    LensCalibration calibration = new LensCalibration(DEPTH_INTRINSICS, 0, null, null, null);
+    DepthRegistration registration = new DepthRegistration(null);
+    registration.setCalibration(calibration, calibration);
+    registration.setSplatSize(3);
+    short[] raw = new short[PIXELS];
+    short[] out = new short[PIXELS];
+    // Far before near in scan order, then near before far, the near footprint wins both times.
+    raw[10 * WIDTH + 10] = 1000;
+    raw[10 * WIDTH + 11] = 500;
+    raw[30 * WIDTH + 10] = 500;
+    raw[30 * WIDTH + 11] = 1000;
+    registration.register(raw, WIDTH, HEIGHT, out);
+    for (int y = 9; y <= 11; y++) {
+      assertRow(out, y, 9, 1000, 500, 500, 500, 0);
+    }
+    for (int y = 29; y <= 31; y++) {
+      assertRow(out, y, 9, 500, 500, 500, 1000, 0);
+    }
+    assertRow(out, 8, 9, 0, 0, 0, 0, 0);
+    assertRow(out, 12, 9, 0, 0, 0, 0, 0);
+
+    // An even footprint extends up and left, and is clipped at the image border.
+    registration.setSplatSize(2);
+    Arrays.fill(raw, (short) 0);
+    raw[10 * WIDTH + 10] = 700;
+    raw[0] = 900;
+    registration.register(raw, WIDTH, HEIGHT, out);
+    assertRow(out, 9, 9, 700, 700, 0);
+    assertRow(out, 10, 9, 700, 700, 0);
+    assertRow(out, 11, 9, 0, 0, 0);
+    assertRow(out, 0, 0, 900, 0);
+    assertRow(out, 1, 0, 0, 0);
+  }
+
+  @Test
+  public void fromCamera2CropsAndScalesArray() {
+    float[] intrinsics = {3000, 3010, 2010, 1490, 2};
+    // Same aspect ratio as the 4000x3000 array, a plain scale.
+    LensCalibration full = LensCalibration.fromCamera2(intrinsics, null, null, null, 4000, 3000,
+        640, 480);
+    assertEquals(480, full.intrinsics.fx, 1e-3f);
+    assertEquals(481.6f, full.intrinsics.fy, 1e-3f);
+    assertEquals(321.6f, full.intrinsics.cx, 1e-3f);
+    assertEquals(238.4f, full.intrinsics.cy, 1e-3f);
+    assertEquals(0.32f, full.skew, 1e-6f);
+
+    // 16:9 keeps the full width and crops 375 array rows top and bottom.
+    LensCalibration wide = LensCalibration.fromCamera2(intrinsics, null, null, null, 4000, 3000,
+        640, 360);
+    assertEquals(480, wide.intrinsics.fx, 1e-3f);
+    assertEquals(321.6f, wide.intrinsics.cx, 1e-3f);
+    assertEquals((1490 - 375) * 0.16f, wide.intrinsics.cy, 1e-3f);
+    assertEquals(360, wide.intrinsics.height);
+
+    // A narrower stream keeps the full height and crops columns instead.
+    LensCalibration tall = LensCalibration.fromCamera2(intrinsics, null, null, null, 4000, 3000,
+        300, 300);
+    assertEquals(300, tall.intrinsics.fx, 1e-3f);
+    assertEquals((2010 - 500) * 0.1f, tall.intrinsics.cx, 1e-3f);
+    assertEquals(149, tall.intrinsics.cy, 1e-3f);
+  }
+
+  @Test
+  public void relativeTransformFollowsPoseConvention() {
+    // Reference point p is at R (p - t) in each camera.
+    double angle = Math.toRadians(30);
+    float[] quaternion = {(float) Math.sin(angle / 2), 0, 0, (float) Math.cos(angle / 2)};
+    LensCalibration from = new LensCalibration(DEPTH_INTRINSICS, 0, null, quaternion,
+        new float[] {0.1f, -0.2f, 0.3f});
+    LensCalibration to = new LensCalibration(DEPTH_INTRINSICS, 0, null, null,
+        new float[] {-0.4f, 0.5f, 0});
+    float[] rotation = new float[9];
+    float[] translation = new float[3];
+    LensCalibration.relativeTransform(from, to, rotation, translation);
+
+    float[] reference = {1, 2, 3};
+    // Rotation about x by 30 degrees, row-major.
+    float c = (float) Math.cos(angle);
+    float s = (float) Math.sin(angle);
+    float[] r = {1, 0, 0, 0, c, -s, 0, s, c};
+    float[] inFrom = new float[3];
+    float[] shifted = {reference[0] - 0.1f, reference[1] + 0.2f, reference[2] - 0.3f};
+    for (int row = 0; row < 3; row++) {
+      inFrom[row] = r[row * 3] * shifted[0] + r[row * 3 + 1] * shifted[1] + r[row * 3 + 2] * shifted[2];
+    }
+    float[] inTo = {reference[0] + 0.4f, reference[1] - 0.5f, reference[2]};
+    for (int row = 0; row < 3; row++) {
+      float mapped = rotation[row * 3] * inFrom[0] + rotation[row * 3 + 1] * inFrom[1]
+          + rotation[row * 3 + 2] * inFrom[2] + translation[row];
+      assertEquals("row " + row, inTo[row], mapped, 1e-5f);
+    }
+  }
+
+  @Test
+  public void undistortInvertsDistort() {
+    LensCalibration calibration = new LensCalibration(DEPTH_INTRINSICS, 0, DISTORTION, null, null);
+    float[] distorted = new float[2];
+    float[] undistorted = new float[2];
+    for (float y = -0.3f; y <= 0.3f; y += 0.05f) {
+      for (float x = -0.4f; x <= 0.4f; x += 0.05f) {
+        calibration.distort(x, y, distorted);
+        calibration.undistort(distorted[0], distorted[1], undistorted);
+        assertEquals(x, undistorted[0], 1e-5f);
+        assertEquals(y, undistorted[1], 1e-5f);
+      }
+    }
+  }
+
+  private static short[] fresh(LensCalibration depth, LensCalibration color, short[] raw,
+      int width, int height) {
+    DepthRegistration registration = new DepthRegistration(null);
+    registration.setCalibration(depth, color);
+    short[] out = new short[width * height];
+    registration.register(raw, width, height, out);
+    return out;
+  }
+
+  private static void assertRow(short[] out, int y, int x0, int... expected) {
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("pixel " + (x0 + i) + ", " + y, expected[i], out[y * WIDTH + x0 + i]);
+    }
+  }
+
+  // Depth between 0.5 and 4 m with random confidence, a fraction of holes.
+  private static short[] randomDepth(Random random, float holes) {
+    short[] raw = new short[PIXELS];
+    for (int i = 0; i < PIXELS; i++) {
+      if (random.nextFloat() < holes) {
+        continue;
+      }
+      int mm = 500 + random.nextInt(3500);
+      raw[i] = (short) (mm | random.nextInt(8) << Depth16Decoder.CONFIDENCE_SHIFT);
+    }
+    return raw;
+  }
+
+  // Small random pose and distortion around the given intrinsics.
+  private static LensCalibration randomCalibration(Random random, CameraIntrinsics intrinsics) {
+    float[] distortion = new float[5];
+    for (int i = 0; i < 5; i++) {
+      distortion[i] = (random.nextFloat() - 0.5f) * 0.02f;
+    }
+    float[] axis = {random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f};
+    float norm = (float) Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1] + axis[2] * axis[2]);
+    float half = random.nextFloat() * 0.05f;
+    float sin = (float) Math.sin(half) / norm;
+    float[] rotation = {axis[0] * sin, axis[1] * sin, axis[2] * sin, (float) Math.cos(half)};
+    float[] translation = {(random.nextFloat() - 0.5f) * 0.1f, (random.nextFloat() - 0.5f) * 0.1f,
+        (random.nextFloat() - 0.5f) * 0.02f};
+    return new LensCalibration(intrinsics, 0, distortion, rotation, translation);
+  }
+}
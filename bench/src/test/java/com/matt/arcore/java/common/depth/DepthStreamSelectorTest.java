@@ -0,0 +1,177 @@
+package com.matt.arcore.java.common.depth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.matt.arcore.java.common.depth.DepthStreamSelector.Policy;
+import com.matt.arcore.java.common.depth.DepthStreamSelector.StreamOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class DepthStreamSelectorTest {
+
+  private static final long NS_60_FPS = 16_666_667L;
+  private static final long NS_30_FPS = 33_333_333L;
+  private static final long NS_15_FPS = 66_666_667L;
+
+  private static final StreamOption SMALL_60 = new StreamOption(240, 180, NS_60_FPS);
+  private static final StreamOption MEDIUM_30 = new StreamOption(320, 240, NS_30_FPS);
+  private static final StreamOption WIDE_30 = new StreamOption(640, 360, NS_30_FPS);
+  private static final StreamOption LARGE_15 = new StreamOption(640, 480, NS_15_FPS);
+  private static final List<StreamOption> OPTIONS =
+      Arrays.asList(MEDIUM_30, LARGE_15, SMALL_60, WIDE_30);
+
+  private static final int COPIES = DepthStreamSelector.BASE_FRAME_COPIES;
+
+  @Test
+  public void emptyOptionsSelectNothing() {
+    for (Policy policy : Policy.values()) {
+      assertNull(DepthStreamSelector.select(
+          Collections.<StreamOption>emptyList(), policy, 1.5f, Long.MAX_VALUE, COPIES));
+    }
+  }
+
+  @Test
+  public void maxFpsPicksShortestFrameDuration() {
+    assertSelected(SMALL_60, OPTIONS, Policy.MAX_FPS, 0, 0);
+  }
+
+  @Test
+  public void maxFpsTiePrefersMorePixels() {
+    List<StreamOption> options = Arrays.asList(MEDIUM_30, WIDE_30, LARGE_15);
+    assertSelected(WIDE_30, options, Policy.MAX_FPS, 0, 0);
+  }
+
+  @Test
+  public void maxFpsRanksUnknownDurationLast() {
+    StreamOption unknown = new StreamOption(1280, 960, 0);
+    assertEquals(0, unknown.getMaxFps(), 0);
+    assertSelected(LARGE_15, Arrays.asList(unknown, LARGE_15), Policy.MAX_FPS, 0, 0);
+  }
+
+  @Test
+  public void maxPixelsPicksLargest() {
+    assertSelected(LARGE_15, OPTIONS, Policy.MAX_PIXELS, 0, 0);
+  }
+
+  @Test
+  public void maxPixelsTiePrefersHigherFps() {
+    StreamOption slow = new StreamOption(640, 480, NS_15_FPS);
+    StreamOption fast = new StreamOption(480, 640, NS_30_FPS);
+    assertSelected(fast, Arrays.asList(slow, fast), Policy.MAX_PIXELS, 0, 0);
+  }
+
+  @Test
+  public void closestAspectIgnoresOrientation() {
+    assertSelected(WIDE_30, OPTIONS, Policy.CLOSEST_ASPECT, 16 / 9f, 0);
+    assertSelected(WIDE_30, OPTIONS, Policy.CLOSEST_ASPECT, 9 / 16f, 0);
+  }
+
+  @Test
+  public void closestAspectMeasuresOnLogScale() {
+    StreamOption wide = new StreamOption(400, 200, NS_30_FPS);
+    StreamOption tall = new StreamOption(300, 600, NS_30_FPS);
+    StreamOption square = new StreamOption(100, 100, NS_30_FPS);
+    List<StreamOption> options = Arrays.asList(wide, tall, square);
+    assertSelected(square, options, Policy.CLOSEST_ASPECT, 1f, 0);
+    // 1.45 is closer to 1 on a linear scale but closer to 2 on a log scale. 2:1 and 1:2 then tie
+    // and more pixels win.
+    assertSelected(tall, options, Policy.CLOSEST_ASPECT, 1.45f, 0);
+  }
+
+  @Test
+  public void closestAspectTiePrefersMorePixelsThenHigherFps() {
+    // 4:3 for MEDIUM_30, LARGE_15 and the fast copy of the large size.
+    StreamOption largeFast = new StreamOption(480, 640, NS_30_FPS);
+    assertSelected(LARGE_15, OPTIONS, Policy.CLOSEST_ASPECT, 4 / 3f, 0);
+    assertSelected(largeFast, Arrays.asList(MEDIUM_30, LARGE_15, largeFast),
+        Policy.CLOSEST_ASPECT, 4 / 3f, 0);
+  }
+
+  @Test
+  public void closestAspectWithoutTargetFallsBackToMaxPixels() {
+    assertSelected(LARGE_15, OPTIONS, Policy.CLOSEST_ASPECT, 0, 0);
+    assertSelected(LARGE_15, OPTIONS, Policy.CLOSEST_ASPECT, -1, 0);
+  }
+
+  @Test
+  public void memoryBudgetPicksLargestThatFits() {
+    long unlimited = Long.MAX_VALUE;
+    assertSelected(LARGE_15, OPTIONS, Policy.MEMORY_BUDGET, 0, unlimited);
+    long mediumFits = MEDIUM_30.getResidentBytes(COPIES);
+    assertSelected(MEDIUM_30, OPTIONS, Policy.MEMORY_BUDGET, 0, mediumFits);
+    assertSelected(SMALL_60, OPTIONS, Policy.MEMORY_BUDGET, 0, mediumFits - 1);
+    long wideFits = WIDE_30.getResidentBytes(COPIES);
+    assertSelected(WIDE_30, OPTIONS, Policy.MEMORY_BUDGET, 0, wideFits);
+  }
+
+  @Test
+  public void memoryBudgetFallsBackToSmallest() {
+    assertSelected(SMALL_60, OPTIONS, Policy.MEMORY_BUDGET, 0, 0);
+    assertSelected(SMALL_60, OPTIONS, Policy.MEMORY_BUDGET, 0,
+        SMALL_60.getResidentBytes(COPIES) - 1);
+  }
+
+  @Test
+  public void memoryBudgetFallbackTiePrefersHigherFps() {
+    StreamOption slow = new StreamOption(240, 180, NS_30_FPS);
+    assertSelected(SMALL_60, Arrays.asList(slow, SMALL_60, MEDIUM_30), Policy.MEMORY_BUDGET, 0, 0);
+  }
+
+  @Test
+  public void memoryBudgetScalesWithFrameCopies() {
+    long budget = MEDIUM_30.getResidentBytes(COPIES);
+    assertEquals(MEDIUM_30, DepthStreamSelector.select(
+        OPTIONS, Policy.MEMORY_BUDGET, 0, budget, COPIES));
+    int withPools = DepthStreamSelector.residentFrameCopies(4, 8);
+    assertEquals(SMALL_60, DepthStreamSelector.select(
+        OPTIONS, Policy.MEMORY_BUDGET, 0, budget, withPools));
+  }
+
+  @Test
+  public void residentFrameCopiesCountsPools() {
+    assertEquals(DepthStreamSelector.BASE_FRAME_COPIES,
+        DepthStreamSelector.residentFrameCopies(0, 0));
+    // The history plus the renderer's synced frame.
+    assertEquals(DepthStreamSelector.BASE_FRAME_COPIES + 5,
+        DepthStreamSelector.residentFrameCopies(4, 0));
+    assertEquals(DepthStreamSelector.BASE_FRAME_COPIES + 5 + 8,
+        DepthStreamSelector.residentFrameCopies(4, 8));
+    assertEquals(320L * 240 * DepthFrame.BYTES_PER_PIXEL * 7, MEDIUM_30.getResidentBytes(7));
+  }
+
+  @Test
+  public void invalidArgumentsAreRejected() {
+    try {
+      DepthStreamSelector.residentFrameCopies(-1, 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new StreamOption(0, 180, NS_30_FPS);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new StreamOption(240, 180, -1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  // Checks the selection does not depend on the order the camera lists the options in.
+  private static void assertSelected(StreamOption expected, List<StreamOption> options,
+      Policy policy, float targetAspect, long memoryBudgetBytes) {
+    List<StreamOption> reversed = new ArrayList<>(options);
+    Collections.reverse(reversed);
+    assertSame(expected,
+        DepthStreamSelector.select(options, policy, targetAspect, memoryBudgetBytes, COPIES));
+    assertSame(expected,
+        DepthStreamSelector.select(reversed, policy, targetAspect, memoryBudgetBytes, COPIES));
+  }
+}
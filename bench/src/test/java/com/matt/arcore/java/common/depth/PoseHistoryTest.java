@@ -0,0 +1,157 @@
+package com.matt.arcore.java.common.depth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class PoseHistoryTest {
+
+  private static final float EPSILON = 1e-5f;
+
+  private final float[] out = new float[16];
+
+  @Test
+  public void slerpsRotationAndLerpsTranslation() {
+    PoseHistory history = new PoseHistory(4);
+    history.add(1000, pose(0, 0, 0, 0));
+    history.add(2000, pose(120, 1, -2, 3));
+
+    assertTrue(history.interpolate(1500, out));
+    assertArrayEquals(pose(60, 0.5f, -1, 1.5f), out, EPSILON);
+    // Constant angular velocity, a normalized lerp would give about 26 degrees here.
+    assertTrue(history.interpolate(1250, out));
+    assertArrayEquals(pose(30, 0.25f, -0.5f, 0.75f), out, EPSILON);
+    assertTrue(history.interpolate(2000, out));
+    assertArrayEquals(pose(120, 1, -2, 3), out, EPSILON);
+  }
+
+  @Test
+  public void slerpTakesShortWayAround() {
+    PoseHistory history = new PoseHistory(4);
+    history.add(0, pose(170, 0, 0, 0));
+    history.add(100, pose(-170, 0, 0, 0));
+    assertTrue(history.interpolate(50, out));
+    assertArrayEquals(pose(180, 0, 0, 0), out, EPSILON);
+    assertTrue(history.interpolate(75, out));
+    assertArrayEquals(pose(-175, 0, 0, 0), out, EPSILON);
+  }
+
+  @Test
+  public void clampsOutsideRecordedRange() {
+    PoseHistory history = new PoseHistory(4);
+    float[] untouched = new float[16];
+    untouched[0] = 7;
+    System.arraycopy(untouched, 0, out, 0, 16);
+    assertFalse(history.interpolate(0, out));
+    assertArrayEquals(untouched, out, 0);
+
+    history.add(100, pose(10, 1, 0, 0));
+    history.add(200, pose(20, 2, 0, 0));
+    assertFalse(history.interpolate(99, out));
+    assertArrayEquals(pose(10, 1, 0, 0), out, EPSILON);
+    assertFalse(history.interpolate(201, out));
+    assertArrayEquals(pose(20, 2, 0, 0), out, EPSILON);
+    assertTrue(history.interpolate(100, out));
+    assertArrayEquals(pose(10, 1, 0, 0), out, EPSILON);
+
+    // A single sample is only in range at its own timestamp.
+    history.clear();
+    assertEquals(0, history.size());
+    history.add(300, pose(30, 3, 0, 0));
+    assertTrue(history.interpolate(300, out));
+    assertFalse(history.interpolate(301, out));
+    assertArrayEquals(pose(30, 3, 0, 0), out, EPSILON);
+  }
+
+  @Test
+  public void fullHistoryEvictsOldestAndIgnoresOlderPoses() {
+    PoseHistory history = new PoseHistory(3);
+    for (int i = 1; i <= 5; i++) {
+      history.add(i * 100, pose(i * 10, i, 0, 0));
+    }
+    assertEquals(3, history.size());
+    // Poses 3 to 5 remain.
+    assertFalse(history.interpolate(250, out));
+    assertArrayEquals(pose(30, 3, 0, 0), out, EPSILON);
+    assertTrue(history.interpolate(450, out));
+    assertArrayEquals(pose(45, 4.5f, 0, 0), out, EPSILON);
+
+    history.add(450, pose(90, 9, 0, 0));
+    history.add(500, pose(90, 9, 0, 0));
+    assertEquals(3, history.size());
+    assertTrue(history.interpolate(450, out));
+    assertArrayEquals(pose(45, 4.5f, 0, 0), out, EPSILON);
+  }
+
+  @Test
+  public void quaternionRoundTripsRotations() {
+    Random random = new Random(8);
+    float[] q = new float[4];
+    float[] m = new float[16];
+    // Half turns exercise every branch of the conversion, the trace is -1 for all three.
+    float[][] axes = {{1, 0, 0}, {0, 1, 0}, {0, 0, 1}};
+    for (float[] axis : axes) {
+      float[] expected = rotation(axis, (float) Math.PI);
+      PoseHistory.matrixToQuaternion(expected, q, 0);
+      PoseHistory.quaternionToMatrix(q, m);
+      assertRotationEquals(expected, m);
+    }
+    for (int i = 0; i < 1000; i++) {
+      float[] axis = {(float) random.nextGaussian(), (float) random.nextGaussian(),
+          (float) random.nextGaussian()};
+      float norm = (float) Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1] + axis[2] * axis[2]);
+      for (int a = 0; a < 3; a++) {
+        axis[a] /= norm;
+      }
+      float[] expected = rotation(axis, (float) (random.nextDouble() * 2 * Math.PI));
+      PoseHistory.matrixToQuaternion(expected, q, 0);
+      assertEquals(1, q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3], EPSILON);
+      PoseHistory.quaternionToMatrix(q, m);
+      assertRotationEquals(expected, m);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsSingleEntryCapacity() {
+    new PoseHistory(1);
+  }
+
+  // Rotation of yaw degrees about y and a translation, column-major.
+  private static float[] pose(float yawDegrees, float x, float y, float z) {
+    float[] m = rotation(new float[] {0, 1, 0}, (float) Math.toRadians(yawDegrees));
+    m[12] = x;
+    m[13] = y;
+    m[14] = z;
+    return m;
+  }
+
+  // Column-major rotation about a unit axis, Rodrigues' formula.
+  private static float[] rotation(float[] axis, float angle) {
+    float c = (float) Math.cos(angle);
+    float s = (float) Math.sin(angle);
+    float x = axis[0], y = axis[1], z = axis[2];
+    float[] m = new float[16];
+    m[0] = c + x * x * (1 - c);
+    m[1] = y * x * (1 - c) + z * s;
+    m[2] = z * x * (1 - c) - y * s;
+    m[4] = x * y * (1 - c) - z * s;
+    m[5] = c + y * y * (1 - c);
+    m[6] = z * y * (1 - c) + x * s;
+    m[8] = x * z * (1 - c) + y * s;
+    m[9] = y * z * (1 - c) - x * s;
+    m[10] = c + z * z * (1 - c);
+    m[15] = 1;
+    return m;
+  }
+
+  private static void assertRotationEquals(float[] expected, float[] actual) {
+    int[] rotation = {0, 1, 2, 4, 5, 6, 8, 9, 10};
+    for (int i : rotation) {
+      assertEquals("element " + i, expected[i], actual[i], 1e-4f);
+    }
+  }
+}
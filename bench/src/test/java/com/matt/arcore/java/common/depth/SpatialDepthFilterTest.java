@@ -0,0 +1,246 @@
+package com.matt.arcore.java.common.depth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import java.util.Random;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SpatialDepthFilterTest {
+
+  private static final int WIDTH = 160;
+  private static final int HEIGHT = 120;
+  private static final int PIXELS = WIDTH * HEIGHT;
+  // Sensor noise added to the synthetic scenes.
+  private static final double NOISE_MM = 4;
+
+  private static RowBandExecutor executor;
+
+  @BeforeClass
+  public static void startExecutor() {
+    executor = new RowBandExecutor(4, "test");
+  }
+
+  @AfterClass
+  public static void stopExecutor() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void fillsIsolatedHolesOnSlantedPlane() {
+    float[] truth = slantedPlane();
+    short[] depth = noisy(truth, new Random(1));
+    boolean[] holes = injectHoles(depth, 0.1, new Random(2));
+    short[] out = new short[PIXELS];
+    float[] outConfidence = new float[PIXELS];
+    new SpatialDepthFilter(null).filter(depth, null, WIDTH, HEIGHT, out, outConfidence);
+
+    double filledError = 0;
+    int filled = 0;
+    for (int i = 0; i < PIXELS; i++) {
+      if (holes[i]) {
+        assertTrue("hole " + i + " left unfilled", out[i] != 0);
+        assertTrue(outConfidence[i] > 0 && outConfidence[i] <= 1);
+        filledError += Math.abs(out[i] - truth[i]);
+        filled++;
+      }
+    }
+    assertTrue(filled > PIXELS / 20);
+    assertTrue("mean fill error " + filledError / filled, filledError / filled < 3);
+  }
+
+  @Test
+  public void reducesNoiseOnValidSamples() {
+    float[] truth = slantedPlane();
+    short[] depth = noisy(truth, new Random(3));
+    injectHoles(depth, 0.05, new Random(4));
+    short[] out = new short[PIXELS];
+    new SpatialDepthFilter(null).filter(depth, null, WIDTH, HEIGHT, out, null);
+
+    double before = 0;
+    double after = 0;
+    int valid = 0;
+    for (int i = 0; i < PIXELS; i++) {
+      if (depth[i] != 0) {
+        before += square(depth[i] - truth[i]);
+        after += square(out[i] - truth[i]);
+        valid++;
+      }
+    }
+    double rmsBefore = Math.sqrt(before / valid);
+    double rmsAfter = Math.sqrt(after / valid);
+    assertTrue("rms " + rmsBefore + " -> " + rmsAfter, rmsAfter < 0.5 * rmsBefore);
+  }
+
+  @Test
+  public void preservesStepEdge() {
+    // A box at 1 m in front of a wall at 2 m, both noisy and with holes along the edge.
+    float[] truth = new float[PIXELS];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        truth[y * WIDTH + x] = x < WIDTH / 2 ? 1000 : 2000;
+      }
+    }
+    short[] depth = noisy(truth, new Random(5));
+    for (int y = 0; y < HEIGHT; y += 3) {
+      depth[y * WIDTH + WIDTH / 2 - 1] = 0;
+      depth[y * WIDTH + WIDTH / 2] = 0;
+    }
+    short[] out = new short[PIXELS];
+    new SpatialDepthFilter(null).filter(depth, null, WIDTH, HEIGHT, out, null);
+
+    for (int i = 0; i < PIXELS; i++) {
+      // Filled from one side of the edge only, never a blend of both.
+      float error = Math.min(Math.abs(out[i] - 1000), Math.abs(out[i] - 2000));
+      assertTrue("sample " + i + " = " + out[i], out[i] != 0 && error < 5 * NOISE_MM);
+      if (depth[i] != 0) {
+        assertEquals("sample " + i + " changed side", truth[i], out[i], 5 * NOISE_MM);
+      }
+    }
+  }
+
+  @Test
+  public void leavesHolesWiderThanKernel() {
+    short[] depth = noisy(slantedPlane(), new Random(6));
+    int size = 2 * SpatialDepthFilter.DEFAULT_RADIUS + 5;
+    int x0 = 50;
+    int y0 = 40;
+    for (int y = y0; y < y0 + size; y++) {
+      for (int x = x0; x < x0 + size; x++) {
+        depth[y * WIDTH + x] = 0;
+      }
+    }
+    short[] out = new short[PIXELS];
+    float[] outConfidence = new float[PIXELS];
+    new SpatialDepthFilter(null).filter(depth, null, WIDTH, HEIGHT, out, outConfidence);
+
+    int centre = (y0 + size / 2) * WIDTH + x0 + size / 2;
+    assertEquals(0, out[centre]);
+    assertEquals(0, outConfidence[centre], 0);
+  }
+
+  @Test
+  public void lowConfidenceSamplesContributeLess() {
+    // Confident samples at 1500 mm, unconfident ones at 1560 mm within the range sigma.
+    short[] depth = new short[PIXELS];
+    byte[] confidence = new byte[PIXELS];
+    for (int i = 0; i < PIXELS; i++) {
+      boolean confident = i % 2 == 0;
+      depth[i] = (short) (confident ? 1500 : 1560);
+      confidence[i] = (byte) (confident ? 0 : 1);
+    }
+    short[] out = new short[PIXELS];
+    new SpatialDepthFilter(null).filter(depth, confidence, WIDTH, HEIGHT, out, null);
+    int centre = HEIGHT / 2 * WIDTH + WIDTH / 2;
+    assertTrue("centre " + out[centre], out[centre] < 1515);
+  }
+
+  @Test
+  public void invalidInputsAreMaskedNotIndexed() {
+    short[] depth = noisy(slantedPlane(), new Random(7));
+    byte[] confidence = new byte[PIXELS];
+    Random random = new Random(8);
+    for (int i = 0; i < PIXELS; i++) {
+      confidence[i] = (byte) random.nextInt(256);
+    }
+    depth[10] = -5;
+    depth[11] = Short.MIN_VALUE;
+    depth[12] = Depth16Decoder.MAX_RANGE_MM;
+    depth[13] = Short.MAX_VALUE;
+    short[] out = new short[PIXELS];
+    new SpatialDepthFilter(null).filter(depth, confidence, WIDTH, HEIGHT, out, null);
+
+    // Out of range values are holes and get filled from their neighbours.
+    for (int i = 10; i <= 13; i++) {
+      assertTrue("sample " + i + " = " + out[i], out[i] > 0 && out[i] < Depth16Decoder.MAX_RANGE_MM);
+    }
+    // Confidence codes only count by their low 3 bits.
+    byte[] masked = new byte[PIXELS];
+    for (int i = 0; i < PIXELS; i++) {
+      masked[i] = (byte) (confidence[i] & Depth16Decoder.CONFIDENCE_MASK);
+    }
+    short[] maskedOut = new short[PIXELS];
+    new SpatialDepthFilter(null).filter(depth, masked, WIDTH, HEIGHT, maskedOut, null);
+    assertArrayEquals(maskedOut, out);
+  }
+
+  @Test
+  public void frameFilterMatchesArrayFilter() {
+    short[] depth = noisy(slantedPlane(), new Random(9));
+    boolean[] holes = injectHoles(depth, 0.1, new Random(10));
+    byte[] confidence = new byte[PIXELS];
+    Random random = new Random(11);
+    DepthFrame frame = new DepthFrame(WIDTH, HEIGHT);
+    for (int i = 0; i < PIXELS; i++) {
+      confidence[i] = depth[i] == 0 ? 0 : (byte) random.nextInt(Depth16Decoder.CONFIDENCE_MASK + 1);
+      frame.samples.put(i, (short) (depth[i] | confidence[i] << Depth16Decoder.CONFIDENCE_SHIFT));
+    }
+    short[] out = new short[PIXELS];
+    float[] outConfidence = new float[PIXELS];
+    new SpatialDepthFilter(null).filter(depth, confidence, WIDTH, HEIGHT, out, outConfidence);
+    new SpatialDepthFilter(null).filterFrame(frame);
+
+    for (int i = 0; i < PIXELS; i++) {
+      short raw = frame.samples.get(i);
+      assertEquals("depth " + i, out[i], Depth16Decoder.depthMm(raw));
+      int expectedCode = holes[i] && out[i] != 0
+          ? Depth16Decoder.confidenceCode(outConfidence[i]) : confidence[i];
+      assertEquals("confidence " + i, expectedCode, Depth16Decoder.confidence(raw));
+    }
+  }
+
+  @Test
+  public void parallelOutputEqualsSequential() {
+    short[] depth = noisy(slantedPlane(), new Random(12));
+    injectHoles(depth, 0.2, new Random(13));
+    short[] sequential = new short[PIXELS];
+    float[] sequentialConfidence = new float[PIXELS];
+    short[] parallel = new short[PIXELS];
+    float[] parallelConfidence = new float[PIXELS];
+    new SpatialDepthFilter(null)
+        .filter(depth, null, WIDTH, HEIGHT, sequential, sequentialConfidence);
+    new SpatialDepthFilter(executor)
+        .filter(depth, null, WIDTH, HEIGHT, parallel, parallelConfidence);
+    assertArrayEquals(sequential, parallel);
+    assertArrayEquals(sequentialConfidence, parallelConfidence, 0);
+  }
+
+  // A plane tilted in both directions, 1.2 m to about 2 m away.
+  private static float[] slantedPlane() {
+    float[] truth = new float[PIXELS];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        truth[y * WIDTH + x] = 1200 + 3.0f * x + 2.5f * y;
+      }
+    }
+    return truth;
+  }
+
+  private static short[] noisy(float[] truth, Random random) {
+    short[] depth = new short[PIXELS];
+    for (int i = 0; i < PIXELS; i++) {
+      depth[i] = (short) Math.round(truth[i] + random.nextGaussian() * NOISE_MM);
+    }
+    return depth;
+  }
+
+  // Zeroes a fraction of the samples, returns which.
+  private static boolean[] injectHoles(short[] depth, double fraction, Random random) {
+    boolean[] holes = new boolean[depth.length];
+    for (int i = 0; i < depth.length; i++) {
+      if (random.nextDouble() < fraction) {
+        depth[i] = 0;
+        holes[i] = true;
+      }
+    }
+    return holes;
+  }
+
+  private static double square(double x) {
+    return x * x;
+  }
+}
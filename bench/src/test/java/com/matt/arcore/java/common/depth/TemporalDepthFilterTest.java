@@ -0,0 +1,179 @@
+package com.matt.arcore.java.common.depth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.junit.Test;
+
+public class TemporalDepthFilterTest {
+
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+  private static final int PIXELS = WIDTH * HEIGHT;
+  private static final TemporalFilterSettings SETTINGS = TemporalFilterSettings.DEFAULT;
+  // Full confidence, DEPTH16 code 0.
+  private static final int CONFIDENT = 0;
+
+  private final DepthFrame frame = new DepthFrame(WIDTH, HEIGHT);
+
+  @Test
+  public void convergesAndReducesNoise() {
+    TemporalDepthFilter filter = new TemporalDepthFilter(SETTINGS);
+    Random random = new Random(1);
+    double noiseMm = 10;
+    double inputError = 0;
+    double outputError = 0;
+    int measured = 0;
+    for (int f = 0; f < 60; f++) {
+      for (int i = 0; i < PIXELS; i++) {
+        int depth = (int) Math.round(truth(i) + random.nextGaussian() * noiseMm);
+        frame.samples.put(i, pack(depth, CONFIDENT));
+      }
+      if (f >= 30) {
+        for (int i = 0; i < PIXELS; i++) {
+          inputError += square(Depth16Decoder.depthMm(frame.samples.get(i)) - truth(i));
+        }
+      }
+      filter.filterFrame(frame);
+      if (f >= 30) {
+        for (int i = 0; i < PIXELS; i++) {
+          short raw = frame.samples.get(i);
+          outputError += square(Depth16Decoder.depthMm(raw) - truth(i));
+          // Converged to the steady state weight of a fully confident pixel.
+          assertEquals(CONFIDENT, Depth16Decoder.confidence(raw));
+        }
+        measured += PIXELS;
+      }
+    }
+    double inputRms = Math.sqrt(inputError / measured);
+    double outputRms = Math.sqrt(outputError / measured);
+    // An exponential average with decay d keeps sqrt((1 - d) / (1 + d)), a third at 0.8.
+    assertTrue("rms " + inputRms + " -> " + outputRms, outputRms < 0.45 * inputRms);
+  }
+
+  @Test
+  public void restartsAtDiscontinuity() {
+    TemporalDepthFilter filter = new TemporalDepthFilter(SETTINGS);
+    converge(filter, 1500);
+    // 100 mm is beyond both the 80 mm and the 5% threshold.
+    fill(1600, CONFIDENT);
+    filter.filterFrame(frame);
+    short raw = frame.samples.get(0);
+    assertEquals(1600, Depth16Decoder.depthMm(raw));
+    // One fresh sample is 1 - decay of the steady state weight.
+    assertEquals(Depth16Decoder.confidenceCode(1 - SETTINGS.decay), Depth16Decoder.confidence(raw));
+
+    // Within the threshold the sample is blended instead.
+    converge(filter, 1500);
+    fill(1550, CONFIDENT);
+    filter.filterFrame(frame);
+    int blended = Depth16Decoder.depthMm(frame.samples.get(0));
+    assertTrue("blended " + blended, blended > 1500 && blended < 1550);
+  }
+
+  @Test
+  public void resetForgetsHistory() {
+    TemporalDepthFilter filter = new TemporalDepthFilter(SETTINGS);
+    converge(filter, 1500);
+    filter.reset();
+    fill(1550, CONFIDENT);
+    filter.filterFrame(frame);
+    assertEquals(1550, Depth16Decoder.depthMm(frame.samples.get(0)));
+    // A hole right after a reset stays a hole.
+    filter.reset();
+    fill(0, CONFIDENT);
+    filter.filterFrame(frame);
+    assertEquals(0, frame.samples.get(0));
+  }
+
+  @Test
+  public void holesDecayToZero() {
+    TemporalDepthFilter filter = new TemporalDepthFilter(SETTINGS);
+    converge(filter, 1500);
+    // Frames a converged pixel outlives its sample: decay^k drops below the minimum confidence.
+    int expectedFrames = 0;
+    for (double confidence = SETTINGS.decay; confidence >= SETTINGS.minOutputConfidence;
+        confidence *= SETTINGS.decay) {
+      expectedFrames++;
+    }
+    assertEquals(10, expectedFrames);
+    for (int f = 1; f <= expectedFrames + 1; f++) {
+      fill(0, CONFIDENT);
+      filter.filterFrame(frame);
+      short raw = frame.samples.get(0);
+      if (f <= expectedFrames) {
+        assertEquals("frame " + f, 1500, Depth16Decoder.depthMm(raw));
+      } else {
+        assertEquals("frame " + f, 0, raw);
+      }
+    }
+  }
+
+  @Test
+  public void unconfidentSamplesMoveEstimateLess() {
+    TemporalDepthFilter confident = new TemporalDepthFilter(SETTINGS);
+    TemporalDepthFilter unconfident = new TemporalDepthFilter(SETTINGS);
+    converge(confident, 1500);
+    fill(1560, CONFIDENT);
+    confident.filterFrame(frame);
+    int confidentStep = Depth16Decoder.depthMm(frame.samples.get(0)) - 1500;
+
+    converge(unconfident, 1500);
+    fill(1560, 1);
+    unconfident.filterFrame(frame);
+    int unconfidentStep = Depth16Decoder.depthMm(frame.samples.get(0)) - 1500;
+    assertTrue(confidentStep + " vs " + unconfidentStep,
+        unconfidentStep >= 0 && unconfidentStep < confidentStep);
+  }
+
+  @Test
+  public void steadyStateDoesNotAllocate() {
+    TemporalDepthFilter filter = new TemporalDepthFilter(SETTINGS);
+    converge(filter, 1500);
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    for (int f = 0; f < 100; f++) {
+      filter.filterFrame(frame);
+    }
+    long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+    assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+
+    // A new frame size starts over.
+    DepthFrame small = new DepthFrame(16, 12);
+    for (int i = 0; i < 16 * 12; i++) {
+      small.samples.put(i, pack(900, CONFIDENT));
+    }
+    filter.filterFrame(small);
+    assertEquals(900, Depth16Decoder.depthMm(small.samples.get(0)));
+  }
+
+  private void converge(TemporalDepthFilter filter, int depth) {
+    for (int f = 0; f < 200; f++) {
+      fill(depth, CONFIDENT);
+      filter.filterFrame(frame);
+    }
+    assertEquals(pack(depth, CONFIDENT), frame.samples.get(0));
+  }
+
+  private void fill(int depth, int confidence) {
+    for (int i = 0; i < PIXELS; i++) {
+      frame.samples.put(i, pack(depth, confidence));
+    }
+  }
+
+  // A plane from 1 m to about 1.4 m.
+  private static double truth(int pixel) {
+    return 1000 + 4 * (pixel % WIDTH) + 3 * (pixel / WIDTH);
+  }
+
+  private static short pack(int depth, int confidence) {
+    return (short) (depth | confidence << Depth16Decoder.CONFIDENCE_SHIFT);
+  }
+
+  private static double square(double x) {
+    return x * x;
+  }
+}
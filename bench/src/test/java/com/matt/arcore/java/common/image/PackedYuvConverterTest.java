@@ -0,0 +1,62 @@
+package com.matt.arcore.java.common.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class PackedYuvConverterTest {
+
+  /**
+   * Covers all 2^24 YUV triples through the public API: in 64 frames of 512x512, the 2x2 block
+   * (bx, by) uses v = bx and u = by, and frame k gives its four pixels the luma values 4k to 4k + 3.
+   */
+  @Test
+  public void matchesYuv2RgbForEveryTriple() {
+    int side = 512;
+    byte[] nv21 = new byte[side * side + side * side / 2];
+    int[] packed = new int[side * side];
+    for (int by = 0; by < 256; by++) {
+      for (int bx = 0; bx < 256; bx++) {
+        int uvp = side * side + by * side + bx * 2;
+        nv21[uvp] = (byte) bx;
+        nv21[uvp + 1] = (byte) by;
+      }
+    }
+    for (int k = 0; k < 64; k++) {
+      for (int row = 0; row < side; row++) {
+        for (int col = 0; col < side; col++) {
+          nv21[row * side + col] = (byte) (4 * k + 2 * (row & 1) + (col & 1));
+        }
+      }
+      PackedYuvConverter.convertYUV420SPToARGB8888(nv21, side, side, packed);
+      for (int row = 0; row < side; row++) {
+        for (int col = 0; col < side; col++) {
+          int y = 4 * k + 2 * (row & 1) + (col & 1);
+          int expected = YuvConverter.YUV2RGB(y, row >> 1, col >> 1);
+          if (packed[row * side + col] != expected) {
+            fail("PackedYuvConverter differs from YUV2RGB at y=" + y + " u=" + (row >> 1)
+                + " v=" + (col >> 1));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void matchesYuvConverterOnOddSizes() {
+    Random random = new Random(7);
+    for (int[] size : new int[][] {{1, 1}, {3, 5}, {17, 9}, {240, 180}}) {
+      int width = size[0];
+      int height = size[1];
+      byte[] nv21 = new byte[width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2)];
+      random.nextBytes(nv21);
+      int[] expected = new int[width * height];
+      int[] packed = new int[width * height];
+      YuvConverter.convertYUV420SPToARGB8888(nv21, width, height, expected);
+      PackedYuvConverter.convertYUV420SPToARGB8888(nv21, width, height, packed);
+      assertArrayEquals(width + "x" + height, expected, packed);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.matt.arcore.java.common.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ParallelYuvConverterTest {
+
+  private static RowBandExecutor executor;
+
+  @BeforeClass
+  public static void startExecutor() {
+    executor = new RowBandExecutor(4, "test");
+  }
+
+  @AfterClass
+  public static void stopExecutor() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void matchesYuvConverterOnRandomSizesAndStrides() {
+    Random random = new Random(3);
+    ParallelYuvConverter converter = new ParallelYuvConverter(executor);
+    for (int trial = 0; trial < 300; trial++) {
+      Planes planes = new Planes(random, 1 + random.nextInt(97), 1 + random.nextInt(71));
+      int[] expected = new int[planes.width * planes.height];
+      int[] actual = new int[planes.width * planes.height];
+      YuvConverter.convertYUV420ToARGB8888(planes.y, planes.u, planes.v, planes.width,
+          planes.height, planes.yRowStride, planes.uvRowStride, planes.uvPixelStride, expected);
+
+      converter.convertYUV420ToARGB8888(planes.y, planes.u, planes.v, planes.width,
+          planes.height, planes.yRowStride, planes.uvRowStride, planes.uvPixelStride, actual);
+      assertArrayEquals(planes.toString(), expected, actual);
+
+      // Direct buffers as Image.Plane hands them out, positioned past the start.
+      ByteBuffer y = direct(planes.y);
+      ByteBuffer u = direct(planes.u);
+      ByteBuffer v = direct(planes.v);
+      y.position(y.limit());
+      Arrays.fill(actual, 0);
+      converter.convertYUV420ToARGB8888(y, u, v, planes.width, planes.height, planes.yRowStride,
+          planes.uvRowStride, planes.uvPixelStride, actual);
+      assertArrayEquals(planes.toString(), expected, actual);
+      assertEquals("position touched", y.limit(), y.position());
+    }
+  }
+
+  @Test
+  public void sameArraysDoNotAllocate() {
+    Planes planes = new Planes(new Random(4), 64, 48);
+    int[] out = new int[64 * 48];
+    ParallelYuvConverter converter = new ParallelYuvConverter(executor);
+    for (int i = 0; i < 1000; i++) {
+      convert(converter, planes, out);
+    }
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    for (int i = 0; i < 100; i++) {
+      convert(converter, planes, out);
+    }
+    long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+    // Three wraps per call would be well over 10 kB.
+    assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+
+    // Other arrays are wrapped afresh.
+    Planes other = new Planes(new Random(5), 64, 48);
+    int[] expected = new int[64 * 48];
+    YuvConverter.convertYUV420ToARGB8888(other.y, other.u, other.v, 64, 48, other.yRowStride,
+        other.uvRowStride, other.uvPixelStride, expected);
+    convert(converter, other, out);
+    assertArrayEquals(expected, out);
+  }
+
+  private static void convert(ParallelYuvConverter converter, Planes planes, int[] out) {
+    converter.convertYUV420ToARGB8888(planes.y, planes.u, planes.v, planes.width, planes.height,
+        planes.yRowStride, planes.uvRowStride, planes.uvPixelStride, out);
+  }
+
+  private static ByteBuffer direct(byte[] data) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data);
+    buffer.clear();
+    return buffer;
+  }
+
+  // Random YUV_420_888 planes with padded rows, either planar or semi-planar chroma.
+  private static final class Planes {
+    final int width;
+    final int height;
+    final int yRowStride;
+    final int uvRowStride;
+    final int uvPixelStride;
+    final byte[] y;
+    final byte[] u;
+    final byte[] v;
+
+    Planes(Random random, int width, int height) {
+      this.width = width;
+      this.height = height;
+      int chromaWidth = (width + 1) / 2;
+      int chromaHeight = (height + 1) / 2;
+      uvPixelStride = 1 + random.nextInt(2);
+      yRowStride = width + random.nextInt(16);
+      uvRowStride = chromaWidth * uvPixelStride + random.nextInt(16);
+      y = new byte[yRowStride * height];
+      // The last chroma row is not padded, as in a real plane buffer.
+      int uvSize = uvRowStride * (chromaHeight - 1) + (chromaWidth - 1) * uvPixelStride + 1;
+      u = new byte[uvSize];
+      v = new byte[uvSize];
+      random.nextBytes(y);
+      random.nextBytes(u);
+      random.nextBytes(v);
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height + " strides " + yRowStride + "/" + uvRowStride + "/"
+          + uvPixelStride;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.matt.arcore.java.common.reconstruction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class BlockHashTableTest {
+
+  @Test
+  public void keysRoundTripCoordinates() {
+    Random random = new Random(1);
+    int limit = 1 << 20;
+    int[] edges = {0, 1, -1, limit - 1, -limit};
+    for (int x : edges) {
+      for (int y : edges) {
+        for (int z : edges) {
+          assertRoundTrip(x, y, z);
+        }
+      }
+    }
+    for (int i = 0; i < 100_000; i++) {
+      assertRoundTrip(random.nextInt(2 * limit) - limit, random.nextInt(2 * limit) - limit,
+          random.nextInt(2 * limit) - limit);
+    }
+  }
+
+  @Test
+  public void behavesLikeHashMapUnderFuzzing() {
+    Random random = new Random(2);
+    BlockHashTable table = new BlockHashTable(4);
+    Map<Long, Integer> reference = new HashMap<>();
+    for (int op = 0; op < 500_000; op++) {
+      // A small cube of blocks, so keys repeat and removals hit long probe runs.
+      long key = BlockHashTable.key(
+          random.nextInt(12) - 6, random.nextInt(12) - 6, random.nextInt(12) - 6);
+      int choice = random.nextInt(10);
+      if (choice < 4) {
+        int value = random.nextInt(1 << 20);
+        table.put(key, value);
+        reference.put(key, value);
+      } else if (choice < 7) {
+        Integer expected = reference.remove(key);
+        assertEquals("remove op " + op, expected != null ? expected : -1, table.remove(key));
+      } else {
+        Integer expected = reference.get(key);
+        assertEquals("get op " + op, expected != null ? expected : -1, table.get(key));
+      }
+      assertEquals("size op " + op, reference.size(), table.size());
+      if (op % 10_000 == 0) {
+        assertSameEntries(reference, table);
+      }
+      if (op % 100_000 == 99_999) {
+        table.clear();
+        reference.clear();
+      }
+    }
+    assertSameEntries(reference, table);
+  }
+
+  @Test
+  public void growsPastExpectedSize() {
+    BlockHashTable table = new BlockHashTable(1);
+    for (int i = 0; i < 10_000; i++) {
+      table.put(BlockHashTable.key(i, -i, i / 3), i);
+    }
+    assertEquals(10_000, table.size());
+    for (int i = 0; i < 10_000; i++) {
+      assertEquals(i, table.get(BlockHashTable.key(i, -i, i / 3)));
+    }
+    assertEquals(-1, table.get(BlockHashTable.key(10_000, -10_000, 0)));
+  }
+
+  private static void assertRoundTrip(int x, int y, int z) {
+    long key = BlockHashTable.key(x, y, z);
+    assertTrue(key >= 0);
+    assertEquals(x, BlockHashTable.x(key));
+    assertEquals(y, BlockHashTable.y(key));
+    assertEquals(z, BlockHashTable.z(key));
+  }
+
+  // Every key of the cube maps to the same slot in both, including the absent ones.
+  private static void assertSameEntries(Map<Long, Integer> reference, BlockHashTable table) {
+    for (int x = -6; x < 6; x++) {
+      for (int y = -6; y < 6; y++) {
+        for (int z = -6; z < 6; z++) {
+          long key = BlockHashTable.key(x, y, z);
+          Integer expected = reference.get(key);
+          assertEquals(expected != null ? expected : -1, table.get(key));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,263 @@
+package com.matt.arcore.java.common.reconstruction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class MarchingCubesTest {
+
+  @Test
+  public void everyCaseIsClosedInsideTheCell() {
+    for (int cube = 0; cube < 256; cube++) {
+      int[] triangles = MarchingCubes.TRIANGLES[cube];
+      assertEquals(0, triangles.length % 3);
+      // The mesher sizes its index buffer for five triangles per cell.
+      assertTrue("case " + cube + " has " + triangles.length / 3 + " triangles",
+          triangles.length <= 15);
+
+      int crossed = 0;
+      for (int edge = 0; edge < 12; edge++) {
+        int a = MarchingCubes.EDGE_CORNER[edge];
+        int b = a | 1 << MarchingCubes.EDGE_AXIS[edge];
+        if (inside(cube, a) != inside(cube, b)) {
+          crossed |= 1 << edge;
+        }
+      }
+      int used = 0;
+      for (int edge : triangles) {
+        used |= 1 << edge;
+      }
+      assertEquals("case " + cube, crossed, used);
+
+      int[][] directed = directedEdges(triangles);
+      for (int a = 0; a < 12; a++) {
+        for (int b = 0; b < 12; b++) {
+          String message = "case " + cube + " edge " + a + " -> " + b;
+          assertTrue(message, directed[a][b] <= 1);
+          if (directed[a][b] == 0) {
+            continue;
+          }
+          int face = sharedFace(a, b);
+          if (face < 0) {
+            // A diagonal through the interior, shared by the two triangles on either side.
+            assertEquals(message, 1, directed[b][a]);
+          } else {
+            // On a face, where the neighbouring cell walks the same segment the other way.
+            assertEquals(message, 0, directed[b][a]);
+            int neighbour = mirror(cube, face / 2);
+            int[][] other = directedEdges(MarchingCubes.TRIANGLES[neighbour]);
+            assertEquals(message + " in neighbour " + neighbour, 1,
+                other[across(b, face)][across(a, face)]);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void randomFieldsMeshToClosedManifolds() {
+    Random random = new Random(5);
+    int side = 12;
+    float[] field = new float[side * side * side];
+    for (int trial = 0; trial < 200; trial++) {
+      // From mostly outside to mostly inside, so every kind of case shows up.
+      float bias = random.nextFloat() * 1.6f - 0.8f;
+      for (int z = 0; z < side; z++) {
+        for (int y = 0; y < side; y++) {
+          for (int x = 0; x < side; x++) {
+            boolean border = x == 0 || y == 0 || z == 0 || x == side - 1 || y == side - 1
+                || z == side - 1;
+            // Outside on the border, so the surface closes.
+            field[(z * side + y) * side + x] = border ? 1 : random.nextFloat() * 2 - 1 + bias;
+          }
+        }
+      }
+      Mesh mesh = mesh(field, side);
+      Map<Long, Integer> edges = new HashMap<>();
+      for (int t = 0; t < mesh.count; t += 3) {
+        for (int k = 0; k < 3; k++) {
+          edges.merge(edgeKey(mesh.indices[t + k], mesh.indices[t + (k + 1) % 3]), 1, Integer::sum);
+        }
+      }
+      for (Map.Entry<Long, Integer> entry : edges.entrySet()) {
+        long key = entry.getKey();
+        String message = "trial " + trial + " edge " + (key >> 32) + " -> " + (int) key;
+        assertEquals(message, 1, (int) entry.getValue());
+        assertEquals(message + " reversed", 1,
+            (int) edges.getOrDefault(edgeKey((int) key, (int) (key >> 32)), 0));
+      }
+      assertVertexLinksAreCycles(mesh);
+      int vertices = mesh.vertexCount();
+      int euler = vertices - edges.size() / 2 + mesh.count / 3;
+      assertEquals("closed orientable surfaces have an even Euler characteristic", 0, euler % 2);
+      assertTrue("trial " + trial + " volume", mesh.count == 0 || mesh.signedVolume() > 0);
+    }
+  }
+
+  // Triangle at the vertices of each cell edge the field crosses, vertex ids sample * 3 + axis.
+  private static Mesh mesh(float[] field, int side) {
+    Mesh mesh = new Mesh(field, side);
+    int[] corners = new int[8];
+    for (int corner = 0; corner < 8; corner++) {
+      corners[corner] = (corner & 1) + ((corner >> 1) & 1) * side + ((corner >> 2) & 1) * side * side;
+    }
+    for (int z = 0; z + 1 < side; z++) {
+      for (int y = 0; y + 1 < side; y++) {
+        for (int x = 0; x + 1 < side; x++) {
+          int cell = (z * side + y) * side + x;
+          int cube = 0;
+          for (int corner = 0; corner < 8; corner++) {
+            if (field[cell + corners[corner]] < 0) {
+              cube |= 1 << corner;
+            }
+          }
+          for (int edge : MarchingCubes.TRIANGLES[cube]) {
+            int sample = cell + corners[MarchingCubes.EDGE_CORNER[edge]];
+            mesh.add(sample * 3 + MarchingCubes.EDGE_AXIS[edge]);
+          }
+        }
+      }
+    }
+    return mesh;
+  }
+
+  // The triangles around each vertex close into a single fan: no pinched vertices.
+  private static void assertVertexLinksAreCycles(Mesh mesh) {
+    Map<Integer, Map<Integer, Integer>> links = new HashMap<>();
+    for (int t = 0; t < mesh.count; t += 3) {
+      for (int k = 0; k < 3; k++) {
+        links.computeIfAbsent(mesh.indices[t + k], v -> new HashMap<>())
+            .put(mesh.indices[t + (k + 1) % 3], mesh.indices[t + (k + 2) % 3]);
+      }
+    }
+    for (Map.Entry<Integer, Map<Integer, Integer>> entry : links.entrySet()) {
+      Map<Integer, Integer> link = entry.getValue();
+      int start = link.keySet().iterator().next();
+      int steps = 0;
+      int current = start;
+      do {
+        Integer following = link.get(current);
+        assertTrue("open fan at vertex " + entry.getKey(), following != null);
+        current = following;
+        steps++;
+      } while (current != start && steps <= link.size());
+      assertEquals("fans around vertex " + entry.getKey(), link.size(), steps);
+    }
+  }
+
+  private static int[][] directedEdges(int[] triangles) {
+    int[][] directed = new int[12][12];
+    for (int t = 0; t < triangles.length; t += 3) {
+      for (int k = 0; k < 3; k++) {
+        int a = triangles[t + k];
+        int b = triangles[t + (k + 1) % 3];
+        assertNotEquals(a, b);
+        directed[a][b]++;
+      }
+    }
+    return directed;
+  }
+
+  // Face 2 * axis + side both edges lie on, or -1.
+  private static int sharedFace(int a, int b) {
+    for (int axis = 0; axis < 3; axis++) {
+      for (int side = 0; side < 2; side++) {
+        if (onFace(a, axis, side) && onFace(b, axis, side)) {
+          return axis * 2 + side;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static boolean onFace(int edge, int axis, int side) {
+    int corner = MarchingCubes.EDGE_CORNER[edge];
+    return MarchingCubes.EDGE_AXIS[edge] != axis && ((corner >> axis) & 1) == side;
+  }
+
+  // The same edge seen from the cell on the other side of the face.
+  private static int across(int edge, int face) {
+    int corner = MarchingCubes.EDGE_CORNER[edge] ^ 1 << (face / 2);
+    for (int other = 0; other < 12; other++) {
+      if (MarchingCubes.EDGE_CORNER[other] == corner
+          && MarchingCubes.EDGE_AXIS[other] == MarchingCubes.EDGE_AXIS[edge]) {
+        return other;
+      }
+    }
+    throw new AssertionError();
+  }
+
+  // Case of the cell reflected across the plane normal to axis, the neighbour sharing that face.
+  private static int mirror(int cube, int axis) {
+    int mirrored = 0;
+    for (int corner = 0; corner < 8; corner++) {
+      if (inside(cube, corner)) {
+        mirrored |= 1 << (corner ^ 1 << axis);
+      }
+    }
+    return mirrored;
+  }
+
+  private static boolean inside(int cube, int corner) {
+    return (cube & (1 << corner)) != 0;
+  }
+
+  private static long edgeKey(int from, int to) {
+    return (long) from << 32 | to;
+  }
+
+  private static final class Mesh {
+    final float[] field;
+    final int side;
+    int[] indices = new int[1024];
+    int count;
+
+    Mesh(float[] field, int side) {
+      this.field = field;
+      this.side = side;
+    }
+
+    void add(int vertex) {
+      if (count == indices.length) {
+        indices = Arrays.copyOf(indices, count * 2);
+      }
+      indices[count++] = vertex;
+    }
+
+    int vertexCount() {
+      return (int) Arrays.stream(indices, 0, count).distinct().count();
+    }
+
+    // Enclosed volume in cells, positive when triangles wind counter-clockwise from outside.
+    double signedVolume() {
+      double volume = 0;
+      double[][] p = new double[3][];
+      for (int t = 0; t < count; t += 3) {
+        for (int k = 0; k < 3; k++) {
+          p[k] = position(indices[t + k]);
+        }
+        volume += p[0][0] * (p[1][1] * p[2][2] - p[1][2] * p[2][1])
+            - p[0][1] * (p[1][0] * p[2][2] - p[1][2] * p[2][0])
+            + p[0][2] * (p[1][0] * p[2][1] - p[1][1] * p[2][0]);
+      }
+      return volume / 6;
+    }
+
+    private double[] position(int vertex) {
+      int sample = vertex / 3;
+      int axis = vertex % 3;
+      int[] step = {1, side, side * side};
+      float d0 = field[sample];
+      float d1 = field[sample + step[axis]];
+      double[] p = {sample % side, sample / side % side, sample / (side * side)};
+      p[axis] += d0 / (d0 - d1);
+      return p;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.matt.arcore.java.common.reconstruction;
+
+import static org.junit.Assert.assertEquals;
+
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class TsdfMesherTest {
+
+  private static final int SIZE = 320;
+  private static final CameraIntrinsics INTRINSICS =
+      new CameraIntrinsics(400, 400, SIZE / 2f, SIZE / 2f, SIZE, SIZE);
+  // Off the voxel grid, so no sample lands exactly on the surface.
+  private static final float[] CENTRE = {0.013f, -0.007f, -1.021f};
+  private static final float RADIUS = 0.3f;
+  private static final float VIEW_DISTANCE = 1.2f;
+
+  @Test
+  public void fusedSphereMeshesToClosedSurfaceOfGenusZero() {
+    TsdfVolume volume = new TsdfVolume(TsdfVolume.DEFAULT_VOXEL_SIZE, null);
+    TsdfMesher mesher = new TsdfMesher(volume, 64);
+    // Along the axes and the cube diagonals, so every surface point is seen head on by some view.
+    for (int x = -1; x <= 1; x++) {
+      for (int y = -1; y <= 1; y++) {
+        for (int z = -1; z <= 1; z++) {
+          int nonZero = Math.abs(x) + Math.abs(y) + Math.abs(z);
+          if (nonZero == 1 || nonZero == 3) {
+            float[] pose = lookAtCentre(x, y, z);
+            volume.integrate(renderSphere(pose), null, SIZE, SIZE, INTRINSICS, pose);
+          }
+        }
+      }
+    }
+
+    // Blocks mesh separately; their border vertices are bit identical, so weld by position.
+    Map<List<Float>, Integer> welded = new HashMap<>();
+    List<float[]> positions = new ArrayList<>();
+    List<int[]> triangles = new ArrayList<>();
+    while (mesher.getPendingBlocks() > 0) {
+      mesher.update(Long.MAX_VALUE);
+      for (TsdfMesher.BlockMesh mesh; (mesh = mesher.pollMesh()) != null; ) {
+        FloatBuffer vertices = mesh.getVertices();
+        ShortBuffer indices = mesh.getIndices();
+        int[] ids = new int[mesh.getVertexCount()];
+        for (int i = 0; i < ids.length; i++) {
+          int v = i * TsdfMesher.FLOATS_PER_VERTEX;
+          float[] p = {vertices.get(v), vertices.get(v + 1), vertices.get(v + 2)};
+          List<Float> key = Arrays.asList(p[0], p[1], p[2]);
+          Integer id = welded.get(key);
+          if (id == null) {
+            id = positions.size();
+            welded.put(key, id);
+            positions.add(p);
+          }
+          ids[i] = id;
+        }
+        for (int i = 0; i < mesh.getIndexCount(); i += 3) {
+          triangles.add(new int[] {ids[indices.get(i) & 0xFFFF], ids[indices.get(i + 1) & 0xFFFF],
+              ids[indices.get(i + 2) & 0xFFFF]});
+        }
+        mesher.release(mesh);
+      }
+    }
+
+    Map<Long, Integer> directed = new HashMap<>();
+    double volumeSum = 0;
+    for (int[] t : triangles) {
+      for (int k = 0; k < 3; k++) {
+        directed.merge((long) t[k] << 32 | t[(k + 1) % 3], 1, Integer::sum);
+      }
+      volumeSum += signedVolume(positions.get(t[0]), positions.get(t[1]), positions.get(t[2]));
+    }
+    for (Map.Entry<Long, Integer> entry : directed.entrySet()) {
+      long key = entry.getKey();
+      String message = "edge " + (key >> 32) + " -> " + (int) key;
+      assertEquals(message, 1, (int) entry.getValue());
+      assertEquals(message + " reversed", 1,
+          (int) directed.getOrDefault(key << 32 | key >>> 32, 0));
+    }
+    int euler = positions.size() - directed.size() / 2 + triangles.size();
+    assertEquals("Euler characteristic of " + triangles.size() + " triangles", 2, euler);
+
+    for (float[] p : positions) {
+      float dx = p[0] - CENTRE[0], dy = p[1] - CENTRE[1], dz = p[2] - CENTRE[2];
+      assertEquals(RADIUS, Math.sqrt(dx * dx + dy * dy + dz * dz), TsdfVolume.DEFAULT_VOXEL_SIZE);
+    }
+    // Wound counter-clockwise seen from outside, so the enclosed volume comes out positive.
+    double ball = 4 / 3.0 * Math.PI * RADIUS * RADIUS * RADIUS;
+    assertEquals(ball, volumeSum, 0.05 * ball);
+  }
+
+  // Column-major camera-to-world pose at the given direction from the centre, looking at it.
+  private static float[] lookAtCentre(float x, float y, float z) {
+    float[] back = normalize(x, y, z);
+    // Any up that is not along the view.
+    float[] up = Math.abs(back[1]) < 0.9f ? new float[] {0, 1, 0} : new float[] {1, 0, 0};
+    float[] right = normalize(up[1] * back[2] - up[2] * back[1], up[2] * back[0] - up[0] * back[2],
+        up[0] * back[1] - up[1] * back[0]);
+    float[] cameraUp = {back[1] * right[2] - back[2] * right[1],
+        back[2] * right[0] - back[0] * right[2], back[0] * right[1] - back[1] * right[0]};
+    return new float[] {
+        right[0], right[1], right[2], 0,
+        cameraUp[0], cameraUp[1], cameraUp[2], 0,
+        back[0], back[1], back[2], 0,
+        CENTRE[0] + VIEW_DISTANCE * back[0], CENTRE[1] + VIEW_DISTANCE * back[1],
+        CENTRE[2] + VIEW_DISTANCE * back[2], 1};
+  }
+
+  // Camera depth of the sphere in millimetres, 0 where the ray misses it.
+  private static short[] renderSphere(float[] pose) {
+    short[] depthMm = new short[SIZE * SIZE];
+    float ox = pose[12] - CENTRE[0], oy = pose[13] - CENTRE[1], oz = pose[14] - CENTRE[2];
+    for (int v = 0; v < SIZE; v++) {
+      for (int u = 0; u < SIZE; u++) {
+        float rx = (u + 0.5f - INTRINSICS.cx) / INTRINSICS.fx;
+        float ry = -(v + 0.5f - INTRINSICS.cy) / INTRINSICS.fy;
+        // One metre of camera depth per unit of t.
+        float dx = pose[0] * rx + pose[4] * ry - pose[8];
+        float dy = pose[1] * rx + pose[5] * ry - pose[9];
+        float dz = pose[2] * rx + pose[6] * ry - pose[10];
+        float a = dx * dx + dy * dy + dz * dz;
+        float b = ox * dx + oy * dy + oz * dz;
+        float c = ox * ox + oy * oy + oz * oz - RADIUS * RADIUS;
+        float discriminant = b * b - a * c;
+        if (discriminant >= 0) {
+          depthMm[v * SIZE + u] = (short) Math.round((-b - Math.sqrt(discriminant)) / a * 1000);
+        }
+      }
+    }
+    return depthMm;
+  }
+
+  private static double signedVolume(float[] a, float[] b, float[] c) {
+    return (a[0] * ((double) b[1] * c[2] - (double) b[2] * c[1])
+        - a[1] * ((double) b[0] * c[2] - (double) b[2] * c[0])
+        + a[2] * ((double) b[0] * c[1] - (double) b[1] * c[0])) / 6;
+  }
+
+  private static float[] normalize(float x, float y, float z) {
+    float length = (float) Math.sqrt(x * x + y * y + z * z);
+    return new float[] {x / length, y / length, z / length};
+  }
+}
@@ -0,0 +1,131 @@
+package com.matt.arcore.java.common.reconstruction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.matt.arcore.java.bench.BenchScenes;
+import com.matt.arcore.java.common.depth.CameraIntrinsics;
+import com.matt.arcore.java.common.parallel.RowBandExecutor;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TsdfVolumeTest {
+
+  private static final int WIDTH = 240;
+  private static final int HEIGHT = 180;
+  private static final int FRAMES = 16;
+  private static final CameraIntrinsics INTRINSICS =
+      new CameraIntrinsics(220, 220, WIDTH / 2f, HEIGHT / 2f, WIDTH, HEIGHT);
+
+  private static RowBandExecutor executor;
+  // The sideways sweep of the benchmarks.
+  private static final short[][] frames = new short[FRAMES][];
+  private static final float[][] poses = new float[FRAMES][];
+
+  @BeforeClass
+  public static void setUp() {
+    executor = new RowBandExecutor(4, "test");
+    for (int i = 0; i < FRAMES; i++) {
+      poses[i] = BenchScenes.pose(-0.2f + 0.025f * i, -0.1f + 0.0125f * i);
+      frames[i] = BenchScenes.render(poses[i], WIDTH, HEIGHT, INTRINSICS.fx);
+    }
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void raycastMatchesSceneGeometry() {
+    TsdfVolume volume = fuse(null);
+    float[] origin = {0, 0, 0};
+    float[] direction = new float[3];
+    float[] hit = new float[3];
+    double errorSum = 0;
+    double maxError = 0;
+    int rays = 0;
+    for (float dy = -0.3f; dy <= 0.3f; dy += 0.05f) {
+      for (float dx = -0.4f; dx <= 0.4f; dx += 0.05f) {
+        direction[0] = dx;
+        direction[1] = dy;
+        direction[2] = -1;
+        float length = (float) Math.sqrt(dx * dx + dy * dy + 1);
+        float expected = BenchScenes.hit(0, 0, 0, dx, dy, -1) * length;
+        float distance = volume.raycast(origin, direction, 5, hit);
+        assertTrue("ray " + dx + ", " + dy + " missed", distance > 0);
+        assertEquals(distance * dx / length, hit[0], 1e-5f);
+        assertEquals(distance * -1 / length, hit[2], 1e-5f);
+        double error = Math.abs(distance - expected);
+        errorSum += error;
+        maxError = Math.max(maxError, error);
+        rays++;
+      }
+    }
+    // Measured 0.6 mm mean and 11 mm max with 2 cm voxels.
+    double meanError = errorSum / rays;
+    assertTrue("mean raycast error " + meanError + " m", meanError < 0.002);
+    assertTrue("max raycast error " + maxError + " m", maxError < 0.02);
+  }
+
+  @Test
+  public void raycastMissesEmptySpace() {
+    TsdfVolume volume = fuse(null);
+    // Behind the camera, where nothing was observed.
+    assertEquals(-1, volume.raycast(new float[] {0, 0, 0}, new float[] {0, 0, 1}, 5, null), 0);
+    // Stops short of the wall.
+    assertEquals(-1, volume.raycast(new float[] {0, 1, 0}, new float[] {0, 0, -1}, 2.5f, null), 0);
+  }
+
+  @Test
+  public void sampleDistanceIsSignedAroundSurface() {
+    TsdfVolume volume = fuse(null);
+    // Ball surface at z = -1.5 on the optical axis, the wall at z = -3.
+    assertTrue(volume.sampleDistance(0, 0, -1.45f) > 0);
+    assertTrue(volume.sampleDistance(0, 0, -1.55f) < 0);
+    assertEquals(0, volume.sampleDistance(0, 0, -1.5f), 0.01f);
+    assertEquals(0, volume.sampleDistance(0.9f, 0, -3), 0.01f);
+    assertTrue(Float.isNaN(volume.sampleDistance(0, 0, 1)));
+  }
+
+  @Test
+  public void parallelIntegrationEqualsSequential() {
+    TsdfVolume sequential = fuse(null);
+    TsdfVolume parallel = fuse(executor);
+    assertEquals(sequential.getBlockCount(), parallel.getBlockCount());
+    assertEquals(sequential.getFrameCount(), parallel.getFrameCount());
+
+    sequential.markAllChanged();
+    parallel.markAllChanged();
+    int side = TsdfVolume.BLOCK_SIZE + 1;
+    float[] sequentialDistances = new float[side * side * side];
+    float[] sequentialWeights = new float[side * side * side];
+    float[] parallelDistances = new float[side * side * side];
+    float[] parallelWeights = new float[side * side * side];
+    int[] sequentialOrigin = new int[3];
+    int[] parallelOrigin = new int[3];
+    int blocks = 0;
+    while (sequential.takeChangedBlock(sequentialDistances, sequentialWeights, sequentialOrigin)) {
+      assertTrue(parallel.takeChangedBlock(parallelDistances, parallelWeights, parallelOrigin));
+      assertEquals(sequentialOrigin[0], parallelOrigin[0]);
+      assertEquals(sequentialOrigin[1], parallelOrigin[1]);
+      assertEquals(sequentialOrigin[2], parallelOrigin[2]);
+      for (int i = 0; i < sequentialDistances.length; i++) {
+        assertEquals(sequentialDistances[i], parallelDistances[i], 0);
+        assertEquals(sequentialWeights[i], parallelWeights[i], 0);
+      }
+      blocks++;
+    }
+    assertEquals(sequential.getBlockCount(), blocks);
+    assertEquals(0, parallel.getChangedBlockCount());
+  }
+
+  private static TsdfVolume fuse(RowBandExecutor executor) {
+    TsdfVolume volume = new TsdfVolume(TsdfVolume.DEFAULT_VOXEL_SIZE, executor);
+    for (int i = 0; i < FRAMES; i++) {
+      volume.integrate(frames[i], null, WIDTH, HEIGHT, INTRINSICS, poses[i]);
+    }
+    return volume;
+  }
+}
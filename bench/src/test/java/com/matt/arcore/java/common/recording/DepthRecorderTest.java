@@ -0,0 +1,199 @@
+package com.matt.arcore.java.common.recording;
+
+import static com.matt.arcore.java.common.recording.DepthRecordingFormat.CHUNK_HEADER_SIZE;
+import static com.matt.arcore.java.common.recording.DepthRecordingFormat.HEADER_SIZE;
+import static com.matt.arcore.java.common.recording.DepthRecordingFormat.INDEX_ENTRY_SIZE;
+import static com.matt.arcore.java.common.recording.DepthRecordingFormat.RECORD_HEADER_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.depth.DepthFrameExchange;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DepthRecorderTest {
+
+  private static final int WIDTH = 13;
+  private static final int HEIGHT = 7;
+  private static final int FRAMES_PER_CHUNK = 4;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final DepthFrameExchange exchange = new DepthFrameExchange(WIDTH, HEIGHT);
+
+  @Test
+  public void roundTripsFramesAcrossChunks() throws IOException {
+    File file = folder.newFile();
+    int frames = 3 * FRAMES_PER_CHUNK + 2;
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, FRAMES_PER_CHUNK, frames);
+    for (int i = 0; i < frames; i++) {
+      assertTrue(recorder.record(frame(i), i % 3 == 0 ? null : pose(i)));
+    }
+    recorder.close();
+    assertEquals(frames, recorder.getRecordedCount());
+    assertEquals(0, recorder.getDroppedCount());
+
+    long chunkSize = DepthRecordingFormat.chunkSize(
+        FRAMES_PER_CHUNK, DepthRecordingFormat.recordSize(WIDTH, HEIGHT));
+    long lastRecordEnd = recordOffset(frames - 1) + DepthRecordingFormat.recordSize(WIDTH, HEIGHT);
+    assertEquals("trimmed after the last record", lastRecordEnd, file.length());
+    assertTrue(file.length() > HEADER_SIZE + 3 * chunkSize);
+
+    try (DepthRecordingReader reader = new DepthRecordingReader(file)) {
+      assertEquals(WIDTH, reader.getWidth());
+      assertEquals(HEIGHT, reader.getHeight());
+      assertEquals(frames, reader.getFrameCount());
+      assertTrue(reader.getCreationTimeMillis() > 0);
+      DepthFrame dst = new DepthFrame(WIDTH, HEIGHT);
+      float[] readPose = new float[16];
+      for (int i = 0; i < frames; i++) {
+        assertEquals(timestamp(i), reader.getTimestamp(i));
+        assertEquals(i + 1, reader.getSequence(i));
+        boolean poseValid = reader.readFrame(i, dst, readPose);
+        assertEquals("pose flag " + i, i % 3 != 0, poseValid);
+        assertArrayEquals(poseValid ? pose(i) : new float[16], readPose, 0);
+        for (int p = 0; p < WIDTH * HEIGHT; p++) {
+          assertEquals("frame " + i + " sample " + p, sample(i, p), dst.samples.get(p));
+        }
+      }
+      assertEquals(-1, reader.findFrame(timestamp(0) - 1));
+      assertEquals(0, reader.findFrame(timestamp(0)));
+      assertEquals(5, reader.findFrame(timestamp(5) + 1));
+      assertEquals(frames - 1, reader.findFrame(Long.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void samplesAreLittleEndianOnDisk() throws IOException {
+    File file = folder.newFile();
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, FRAMES_PER_CHUNK, 2);
+    recorder.record(frame(0), null);
+    recorder.close();
+
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    int samples = (int) recordOffset(0) + RECORD_HEADER_SIZE;
+    for (int p = 0; p < WIDTH * HEIGHT; p++) {
+      assertEquals(sample(0, p), buffer.getShort(samples + 2 * p));
+    }
+    assertEquals(timestamp(0), buffer.getLong((int) recordOffset(0)));
+  }
+
+  @Test
+  public void readsTruncatedFileUpToLastCompleteRecord() throws IOException {
+    File file = folder.newFile();
+    int frames = FRAMES_PER_CHUNK + 3;
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, FRAMES_PER_CHUNK, frames);
+    for (int i = 0; i < frames; i++) {
+      recorder.record(frame(i), pose(i));
+    }
+    recorder.close();
+
+    // A crash half way through writing the last record.
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(recordOffset(frames - 1) + RECORD_HEADER_SIZE + WIDTH);
+    }
+    try (DepthRecordingReader reader = new DepthRecordingReader(file)) {
+      assertEquals(frames - 1, reader.getFrameCount());
+      DepthFrame dst = new DepthFrame(WIDTH, HEIGHT);
+      assertTrue(reader.readFrame(frames - 2, dst, null));
+      assertEquals(sample(frames - 2, WIDTH * HEIGHT - 1), dst.samples.get(WIDTH * HEIGHT - 1));
+    }
+
+    // Cut inside the header of the second chunk, only the first chunk remains.
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(recordOffset(FRAMES_PER_CHUNK) - FRAMES_PER_CHUNK * INDEX_ENTRY_SIZE
+          - CHUNK_HEADER_SIZE / 2);
+    }
+    try (DepthRecordingReader reader = new DepthRecordingReader(file)) {
+      assertEquals(FRAMES_PER_CHUNK, reader.getFrameCount());
+    }
+  }
+
+  @Test
+  public void countsDroppedFrames() throws IOException {
+    File file = folder.newFile();
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, FRAMES_PER_CHUNK, 1);
+    DepthFrame frame = frame(0);
+    int attempts = 2000;
+    int accepted = 0;
+    for (int i = 0; i < attempts; i++) {
+      if (recorder.record(frame, null)) {
+        accepted++;
+      }
+    }
+    recorder.close();
+    assertEquals(accepted, recorder.getRecordedCount());
+    assertEquals(attempts - accepted, recorder.getDroppedCount());
+    try (DepthRecordingReader reader = new DepthRecordingReader(file)) {
+      assertEquals(accepted, reader.getFrameCount());
+    }
+  }
+
+  @Test
+  public void recordAfterCloseIsDropped() throws IOException {
+    File file = folder.newFile();
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, FRAMES_PER_CHUNK, 4);
+    assertTrue(recorder.record(frame(0), null));
+    recorder.close();
+    assertFalse(recorder.record(frame(1), null));
+    assertEquals(1, recorder.getRecordedCount());
+    assertEquals(1, recorder.getDroppedCount());
+    // Closing again does nothing.
+    recorder.close();
+    try (DepthRecordingReader reader = new DepthRecordingReader(file)) {
+      assertEquals(1, reader.getFrameCount());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsForeignFile() throws IOException {
+    File file = folder.newFile();
+    Files.write(file.toPath(), new byte[HEADER_SIZE]);
+    new DepthRecordingReader(file).close();
+  }
+
+  // Frame i has sequence i + 1 when frames are published in order.
+  private DepthFrame frame(int i) {
+    DepthFrame slot = exchange.getWriteFrame();
+    for (int p = 0; p < WIDTH * HEIGHT; p++) {
+      slot.samples.put(p, sample(i, p));
+    }
+    exchange.publish(timestamp(i));
+    return exchange.acquireLatest();
+  }
+
+  // Uses all 16 bits, so a byte swap would show.
+  private static short sample(int frame, int pixel) {
+    return (short) (frame * 7919 + pixel * 257 + 0x8001);
+  }
+
+  private static long timestamp(int frame) {
+    return 1_000_000_000_000L + frame * 33_333_333L;
+  }
+
+  private static float[] pose(int frame) {
+    float[] pose = new float[16];
+    for (int i = 0; i < 16; i++) {
+      pose[i] = frame + i / 16f;
+    }
+    return pose;
+  }
+
+  private static long recordOffset(int index) {
+    int recordSize = DepthRecordingFormat.recordSize(WIDTH, HEIGHT);
+    long chunkSize = DepthRecordingFormat.chunkSize(FRAMES_PER_CHUNK, recordSize);
+    return HEADER_SIZE + index / FRAMES_PER_CHUNK * chunkSize + CHUNK_HEADER_SIZE
+        + FRAMES_PER_CHUNK * INDEX_ENTRY_SIZE + (long) (index % FRAMES_PER_CHUNK) * recordSize;
+  }
+}
@@ -0,0 +1,248 @@
+package com.matt.arcore.java.common.recording;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.matt.arcore.java.common.depth.DepthFilterStage;
+import com.matt.arcore.java.common.depth.DepthFrame;
+import com.matt.arcore.java.common.depth.DepthFrameExchange;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DepthReplaySourceTest {
+
+  private static final int WIDTH = 8;
+  private static final int HEIGHT = 6;
+  private static final int FRAMES = 5;
+  private static final long FIRST_TIMESTAMP = 5_000_000_000L;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private DepthRecordingReader reader;
+  private DepthReplaySource replay;
+
+  @After
+  public void tearDown() throws IOException {
+    if (replay != null) {
+      replay.stop();
+    }
+    if (reader != null) {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void singleStepPublishesRecordedFramesInOrder() throws IOException {
+    long[] timestamps = {0, 30_000_000L, 70_000_000L, 100_000_000L, 140_000_000L};
+    open(timestamps, DepthReplaySource.Mode.SINGLE_STEP);
+    CountingFilter filter = new CountingFilter();
+    replay.setDepthFilter(filter);
+    List<long[]> published = collect();
+    float[] pose = new float[16];
+
+    for (int i = 0; i < FRAMES; i++) {
+      assertTrue(replay.step());
+      assertEquals(i + 1, replay.getFrameCount());
+      assertEquals(i % 2 == 0, replay.getLastPose(pose));
+      if (i % 2 == 0) {
+        assertEquals(i, pose[12], 0);
+      }
+      DepthFrame frame = replay.getDepthFrames().acquireLatest();
+      assertEquals(i + 1, frame.getSequence());
+      assertEquals(FIRST_TIMESTAMP + timestamps[i], frame.getTimestamp());
+      // The filter ran before publishing.
+      assertEquals(sample(i) + 1, frame.samples.get(0));
+    }
+    assertEquals(FRAMES, filter.frames);
+    assertEquals(FRAMES, published.size());
+    assertFalse(replay.isFinished());
+    assertFalse(replay.step());
+    assertTrue(replay.isFinished());
+    assertEquals(FRAMES, replay.getFrameCount());
+
+    // Removing the filter publishes the recorded samples unchanged.
+    replay.setDepthFilter(null);
+    replay.setLoop(true);
+    assertTrue(replay.step());
+    assertEquals(sample(0), replay.getDepthFrames().acquireLatest().samples.get(0));
+  }
+
+  @Test
+  public void loopShiftsTimestampsMonotonically() throws IOException {
+    long[] timestamps = {0, 30_000_000L, 70_000_000L, 100_000_000L, 140_000_000L};
+    open(timestamps, DepthReplaySource.Mode.SINGLE_STEP);
+    replay.setLoop(true);
+    List<long[]> published = collect();
+    for (int i = 0; i < 3 * FRAMES; i++) {
+      assertTrue(replay.step());
+    }
+    assertFalse(replay.isFinished());
+
+    // Each pass starts one mean frame interval, 35 ms, after the previous pass ended.
+    long period = timestamps[FRAMES - 1] + timestamps[FRAMES - 1] / (FRAMES - 1);
+    for (int i = 0; i < published.size(); i++) {
+      long[] frame = published.get(i);
+      assertEquals(i + 1, frame[0]);
+      assertEquals(FIRST_TIMESTAMP + timestamps[i % FRAMES] + i / FRAMES * period, frame[1]);
+      if (i > 0) {
+        assertTrue(frame[1] > published.get(i - 1)[1]);
+      }
+    }
+  }
+
+  @Test
+  public void maxSpeedStopLeavesReaderUsable() throws Exception {
+    open(new long[] {0, 1, 2, 3, 4}, DepthReplaySource.Mode.MAX_SPEED);
+    replay.setLoop(true);
+    List<long[]> published = collect();
+    replay.start();
+    long deadline = System.nanoTime() + 5_000_000_000L;
+    while (replay.getFrameCount() < 20 * FRAMES) {
+      if (System.nanoTime() > deadline) {
+        fail("replay published only " + replay.getFrameCount() + " frames");
+      }
+      Thread.sleep(1);
+    }
+    replay.stop();
+    long count = replay.getFrameCount();
+    Thread.sleep(20);
+    assertEquals("published after stop()", count, replay.getFrameCount());
+    assertNull(replay.getFailure());
+    assertFalse(Thread.currentThread().isInterrupted());
+
+    synchronized (published) {
+      for (int i = 1; i < published.size(); i++) {
+        assertEquals(published.get(i - 1)[0] + 1, published.get(i)[0]);
+        assertTrue(published.get(i)[1] > published.get(i - 1)[1]);
+      }
+    }
+    // No interrupt reached the reader's channel.
+    DepthFrame dst = new DepthFrame(WIDTH, HEIGHT);
+    assertTrue(reader.readFrame(FRAMES - 1, dst, null));
+    assertEquals(sample(FRAMES - 1), dst.samples.get(0));
+  }
+
+  @Test
+  public void realtimeFollowsRecordedPacing() throws Exception {
+    long interval = 40_000_000L;
+    long[] timestamps = new long[FRAMES];
+    for (int i = 0; i < FRAMES; i++) {
+      timestamps[i] = i * interval;
+    }
+    open(timestamps, DepthReplaySource.Mode.REALTIME);
+    long start = System.nanoTime();
+    replay.start();
+    while (!replay.isFinished()) {
+      Thread.sleep(1);
+    }
+    long elapsed = System.nanoTime() - start;
+    assertEquals(FRAMES, replay.getFrameCount());
+    assertTrue("finished after " + elapsed + " ns", elapsed >= timestamps[FRAMES - 1]);
+  }
+
+  @Test
+  public void stopWakesRealtimeWait() throws Exception {
+    // Ten seconds between frames, stop() must not wait for the next one.
+    open(new long[] {0, 10_000_000_000L, 20_000_000_000L, 30_000_000_000L, 40_000_000_000L},
+        DepthReplaySource.Mode.REALTIME);
+    replay.start();
+    while (replay.getFrameCount() < 1) {
+      Thread.sleep(1);
+    }
+    long start = System.nanoTime();
+    replay.stop();
+    assertTrue(System.nanoTime() - start < 1_000_000_000L);
+    assertEquals(1, replay.getFrameCount());
+    assertEquals(FRAMES, reader.getFrameCount());
+    assertTrue(reader.readFrame(0, new DepthFrame(WIDTH, HEIGHT), null));
+  }
+
+  @Test
+  public void modesAreEnforced() throws IOException {
+    open(new long[] {0, 1, 2, 3, 4}, DepthReplaySource.Mode.SINGLE_STEP);
+    try {
+      replay.start();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    DepthReplaySource maxSpeed = new DepthReplaySource(reader, DepthReplaySource.Mode.MAX_SPEED);
+    try {
+      maxSpeed.step();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  // Records FRAMES frames at FIRST_TIMESTAMP + timestamps, even ones with a pose, and opens them.
+  private void open(long[] timestamps, DepthReplaySource.Mode mode) throws IOException {
+    File file = folder.newFile();
+    DepthFrameExchange exchange = new DepthFrameExchange(WIDTH, HEIGHT);
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, 2, FRAMES);
+    for (int i = 0; i < FRAMES; i++) {
+      DepthFrame frame = exchange.getWriteFrame();
+      for (int p = 0; p < WIDTH * HEIGHT; p++) {
+        frame.samples.put(p, sample(i));
+      }
+      exchange.publish(FIRST_TIMESTAMP + timestamps[i]);
+      float[] pose = null;
+      if (i % 2 == 0) {
+        pose = new float[16];
+        pose[12] = i;
+      }
+      assertTrue(recorder.record(exchange.acquireLatest(), pose));
+    }
+    recorder.close();
+    reader = new DepthRecordingReader(file);
+    replay = new DepthReplaySource(reader, mode);
+  }
+
+  // Sequence and timestamp of every published frame, taken from the listener.
+  private List<long[]> collect() {
+    List<long[]> published = new ArrayList<>();
+    replay.setListener(source -> {
+      DepthFrame frame = source.getDepthFrames().acquireLatest();
+      synchronized (published) {
+        published.add(new long[] {frame.getSequence(), frame.getTimestamp()});
+      }
+    });
+    return published;
+  }
+
+  private static short sample(int frame) {
+    return (short) (1000 + 10 * frame);
+  }
+
+  // Adds 1 mm to every sample and counts the frames it saw.
+  private static final class CountingFilter implements DepthFilterStage {
+    int frames;
+
+    @Override
+    public void filterFrame(DepthFrame frame) {
+      for (int p = 0; p < frame.width * frame.height; p++) {
+        frame.samples.put(p, (short) (frame.samples.get(p) + 1));
+      }
+      frames++;
+    }
+
+    @Override
+    public void createOnGlThread() {}
+
+    @Override
+    public int filterTexture(int depthTexture, int width, int height, long sequence) {
+      return depthTexture;
+    }
+
+    @Override
+    public void reset() {}
+  }
+}